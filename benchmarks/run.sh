@@ -0,0 +1,15 @@
+#!/bin/sh
+# Runs the JMH benchmarks and keeps the results of each commit in results/, named after the commit, so a change
+# can be compared with the one before it:
+#
+#   ./run.sh                                     Every benchmark
+#   ./run.sh CatalogBenchmark -p snapshots=1000  Some of them, any JMH option works
+#
+# Build first: mvn install in the parent folder, then mvn package here.
+cd "$(dirname "$0")" || exit 1
+mkdir -p results
+commit=$(git rev-parse --short HEAD)
+if ! git diff --quiet HEAD -- ../src; then
+    commit="$commit-dirty"
+fi
+exec java -jar target/benchmarks.jar -rf json -rff "results/$commit.json" "$@"
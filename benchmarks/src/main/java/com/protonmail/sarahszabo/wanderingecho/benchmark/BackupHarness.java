@@ -0,0 +1,304 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.BTRFS;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.RunOptions;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.schedule.DeviceLimits;
+import com.protonmail.sarahszabo.wanderingecho.util.CommandBackend;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs whole backups against a stand-in for btrfs, so the engine can be load
+ * tested on any Linux box without root or btrfs volumes. Each subvolume count
+ * gets a fresh simulation folder and its own JVM, since BTRFS configures
+ * itself once per process. The first round sends every snapshot in full, the
+ * ones after it incrementally. Before each later round a file is written into
+ * the given percentage of the subvolumes, the others are unchanged and
+ * skipped.
+ * <p>
+ * For each round it reports the throughput, the scheduler efficiency and the
+ * peak memory. The efficiency is the time streams were sending divided by the
+ * time the device limits would have allowed them to send, the snapshots
+ * taken before the sends count against it. Every subvolume is on the same
+ * disk as the backup folder, so the device limit is how many streams may run
+ * at once.
+ * <p>
+ * Usage: BackupHarness [--subvolumes=1,10,100,500] [--rounds=2]
+ * [--changed=100] [--device-limit=1] [--send-bytes=BYTES]
+ * [--incremental-bytes=BYTES] [--send-rate=BYTES PER SECOND]
+ * [--snapshot-delay=SECONDS] [--keep]
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class BackupHarness {
+
+    private static final double MIB = 1 << 20;
+
+    /**
+     * The results a simulation writes for the harness, one line per round.
+     */
+    private static final String RESULTS_FILE = "Results.tsv";
+
+    /**
+     * @param args The options
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        var options = parse(args);
+        if (options.containsKey("--simulate")) {
+            simulate(Integer.parseInt(options.get("--subvolumes")), Integer.parseInt(options.get("--rounds")),
+                    Integer.parseInt(options.get("--changed")), Integer.parseInt(options.get("--device-limit")));
+            //The backup executor isn't a daemon
+            System.exit(0);
+        }
+        var counts = Arrays.stream(options.getOrDefault("--subvolumes", "1,10,100,500").split(","))
+                .map(String::trim).map(Integer::parseInt).collect(Collectors.toList());
+        var rounds = options.getOrDefault("--rounds", "2");
+        var changed = options.getOrDefault("--changed", "100");
+        var deviceLimit = options.getOrDefault("--device-limit", Integer.toString(DeviceLimits.DEFAULT_LIMIT));
+        var environment = new HashMap<String, String>();
+        putIfGiven(options, "--send-bytes", environment, "FAKE_BTRFS_SEND_BYTES");
+        putIfGiven(options, "--incremental-bytes", environment, "FAKE_BTRFS_INCREMENTAL_BYTES");
+        putIfGiven(options, "--send-rate", environment, "FAKE_BTRFS_SEND_RATE");
+        putIfGiven(options, "--snapshot-delay", environment, "FAKE_BTRFS_SNAPSHOT_DELAY");
+        System.out.printf("%-11s %-5s %-6s %-6s %-9s %-10s %-8s %-10s %-10s %-10s %-7s%n", "Subvolumes", "Round",
+                "Sends", "Failed", "Seconds", "MiB", "MiB/s", "Efficiency", "Peak RSS", "Peak Heap", "Threads");
+        for (int count : counts) {
+            var folder = Files.createTempDirectory("Wandering Echo Harness");
+            createSimulation(folder, count);
+            var log = folder.resolve("Harness.log");
+            var builder = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-D" + CommandBackend.SIMULATION_PROPERTY + "=" + folder, "-cp",
+                    System.getProperty("java.class.path"), BackupHarness.class.getName(), "--simulate",
+                    "--subvolumes=" + count, "--rounds=" + rounds, "--changed=" + changed,
+                    "--device-limit=" + deviceLimit)
+                    .redirectErrorStream(true).redirectOutput(log.toFile());
+            builder.environment().putAll(environment);
+            int exitCode = builder.start().waitFor();
+            var results = folder.resolve(RESULTS_FILE);
+            if (exitCode != 0 || Files.notExists(results)) {
+                System.out.println(count + " subvolumes failed with exit code " + exitCode + ", see " + log);
+                continue;
+            }
+            Files.readAllLines(results).forEach(line -> System.out.printf("%-11s %-5s %-6s %-6s %-9s %-10s %-8s "
+                    + "%-10s %-10s %-10s %-7s%n", (Object[]) line.split("\t")));
+            if (options.containsKey("--keep")) {
+                System.out.println("Kept " + folder);
+            } else {
+                delete(folder);
+            }
+        }
+    }
+
+    /**
+     * Parses --name=value options, --name alone maps to an empty value.
+     */
+    private static Map<String, String> parse(String[] args) {
+        var options = new HashMap<String, String>();
+        for (var arg : args) {
+            int equals = arg.indexOf('=');
+            options.put(equals < 0 ? arg : arg.substring(0, equals), equals < 0 ? "" : arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    /**
+     * Passes an option on to the stand-in as an environment variable.
+     */
+    private static void putIfGiven(Map<String, String> options, String option, Map<String, String> environment,
+            String variable) {
+        if (options.containsKey(option)) {
+            environment.put(variable, options.get(option));
+        }
+    }
+
+    /**
+     * Creates the folders of a simulation and installs the stand-ins as its
+     * btrfs and ssh.
+     *
+     * @param folder The simulation folder
+     * @param subvolumes The number of subvolumes to back up
+     */
+    private static void createSimulation(Path folder, int subvolumes) throws IOException {
+        install(folder.resolve("btrfs"), "fake-btrfs.sh");
+        install(folder.resolve("ssh"), "fake-ssh.sh");
+        for (int i = 0; i < subvolumes; i++) {
+            Files.createDirectories(getVolumesFolder(folder).resolve("Subvolume " + i));
+        }
+        Files.createDirectories(getBackupFolder(folder));
+    }
+
+    /**
+     * Copies a stand-in script out of the resources and makes it executable.
+     *
+     * @param target Where to put it
+     * @param resource The name of the script
+     */
+    private static void install(Path target, String resource) throws IOException {
+        try ( var script = BackupHarness.class.getResourceAsStream(resource)) {
+            Files.copy(script, target);
+        }
+        Files.setPosixFilePermissions(target, PosixFilePermissions.fromString("rwxr-xr-x"));
+    }
+
+    /**
+     * Runs the backups of a simulation in this JVM. Must be started with the
+     * simulation property set, before anything touched BTRFS.
+     *
+     * @param subvolumes The number of subvolumes
+     * @param rounds The number of backups to run
+     * @param changed The percentage of subvolumes changed before each round
+     * after the first
+     * @param deviceLimit The streams allowed per disk
+     */
+    private static void simulate(int subvolumes, int rounds, int changed, int deviceLimit) throws IOException,
+            InterruptedException {
+        var folder = CommandBackend.system().getSimulationFolder().get();
+        Logger.getLogger("").setLevel(Level.WARNING);
+        var mapper = new ObjectMapper();
+        //The device limits only come from the configuration file
+        var configFolder = Files.createDirectories(folder.resolve("System Configuration"));
+        var config = mapper.createObjectNode();
+        config.putArray("subvolumes");
+        config.put("typicalBackupLocation", getBackupFolder(folder).toString());
+        config.putObject("backupMap");
+        config.set("deviceLimits", mapper.valueToTree(new DeviceLimits(deviceLimit, deviceLimit, null)));
+        mapper.writeValue(configFolder.resolve("BTRFS Config.json").toFile(), config);
+        var paths = new ArrayList<Path>();
+        for (int i = 0; i < subvolumes; i++) {
+            paths.add(getVolumesFolder(folder).resolve("Subvolume " + i));
+        }
+        var metricsFile = folder.resolve("wandering_echo.prom");
+        BTRFS.getInstance(new RunOptions(true, paths, getBackupFolder(folder), List.of(), List.of(), false,
+                List.of(), null, false, metricsFile));
+        var memory = ManagementFactory.getMemoryPoolMXBeans().stream().filter(pool -> pool.getType()
+                == MemoryType.HEAP).collect(Collectors.toList());
+        var results = new ArrayList<String>();
+        double bytesBefore = 0;
+        var sendsBefore = new ArrayList<Double>();
+        for (int round = 1; round <= rounds; round++) {
+            if (round > 1) {
+                for (int i = 0; i < subvolumes * changed / 100; i++) {
+                    Files.writeString(paths.get(i).resolve("Round"), Integer.toString(round));
+                }
+            }
+            //Snapshot names only go down to the second
+            Thread.sleep(1000 - System.currentTimeMillis() % 1000);
+            memory.forEach(pool -> pool.resetPeakUsage());
+            long start = System.nanoTime();
+            BTRFS.commenceBackupOperation();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            var metrics = readMetrics(metricsFile);
+            double bytes = sum(metrics, "wandering_echo_bytes_sent_total") - bytesBefore;
+            bytesBefore += bytes;
+            //Every stream of an earlier round keeps its series, only the ones with new sends count
+            var sends = new ArrayList<Double>();
+            var successes = metrics.getOrDefault("wandering_echo_send_successes_total", List.of());
+            var failures = metrics.getOrDefault("wandering_echo_send_failures_total", List.of());
+            for (int i = 0; i < successes.size(); i++) {
+                sends.add(successes.get(i) + failures.get(i));
+            }
+            var allDurations = metrics.getOrDefault("wandering_echo_send_duration_seconds", List.of());
+            var durations = new ArrayList<Double>();
+            for (int i = 0; i < sends.size(); i++) {
+                if (i >= sendsBefore.size() || !sends.get(i).equals(sendsBefore.get(i))) {
+                    durations.add(allDurations.get(i));
+                }
+            }
+            sendsBefore = sends;
+            int slots = Math.max(1, Math.min(deviceLimit, durations.size()));
+            double efficiency = durations.stream().mapToDouble(Double::doubleValue).sum() / (seconds * slots);
+            long peakHeap = memory.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+            results.add(String.join("\t", Integer.toString(subvolumes), Integer.toString(round),
+                    Integer.toString(durations.size()), String.format("%.0f", sum(metrics,
+                    "wandering_echo_send_failures_total")), String.format("%.2f", seconds),
+                    String.format("%.1f", bytes / MIB), String.format("%.1f", bytes / MIB / seconds),
+                    String.format("%.2f", efficiency), String.format("%.1f MiB", getPeakResidentBytes() / MIB),
+                    String.format("%.1f MiB", peakHeap / MIB), Integer.toString(ManagementFactory
+                    .getThreadMXBean().getPeakThreadCount())));
+        }
+        Files.write(folder.resolve(RESULTS_FILE), results);
+    }
+
+    /**
+     * Reads the samples of a Prometheus text file by metric name.
+     */
+    private static Map<String, List<Double>> readMetrics(Path file) throws IOException {
+        var metrics = new HashMap<String, List<Double>>();
+        for (var line : Files.readAllLines(file)) {
+            if (line.startsWith("#") || line.isBlank()) {
+                continue;
+            }
+            int labels = line.indexOf('{');
+            var name = line.substring(0, labels < 0 ? line.indexOf(' ') : labels);
+            metrics.computeIfAbsent(name, key -> new ArrayList<>())
+                    .add(Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1)));
+        }
+        return metrics;
+    }
+
+    /**
+     * Sums the samples of a metric over every series.
+     */
+    private static double sum(Map<String, List<Double>> metrics, String name) {
+        return metrics.getOrDefault(name, List.of()).stream().mapToDouble(Double::doubleValue).sum();
+    }
+
+    /**
+     * Gets the peak resident set size of this process.
+     */
+    private static long getPeakResidentBytes() throws IOException {
+        //Line: VmHWM:	  123456 kB
+        for (var line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+            if (line.startsWith("VmHWM:")) {
+                return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the folder the subvolumes of a simulation are in.
+     */
+    private static Path getVolumesFolder(Path folder) {
+        return folder.resolve("Volumes");
+    }
+
+    /**
+     * Gets the folder a simulation backs up to.
+     */
+    private static Path getBackupFolder(Path folder) {
+        return folder.resolve("Backups");
+    }
+
+    /**
+     * Deletes a simulation folder.
+     */
+    private static void delete(Path folder) throws IOException {
+        try ( Stream<Path> files = Files.walk(folder)) {
+            for (var file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
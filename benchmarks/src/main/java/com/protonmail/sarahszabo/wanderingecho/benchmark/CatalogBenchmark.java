@@ -0,0 +1,252 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.benchmark;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.ParentResolver;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.catalog.SnapshotCatalog;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Backup;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Snapshot;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Subvolume;
+import com.protonmail.sarahszabo.wanderingecho.util.PathDeserializer;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The snapshot bookkeeping that runs on every backup, at a growing number of
+ * snapshots spread over ten subvolumes: loading the configuration and the
+ * catalog at startup, finding the latest snapshot of a subvolume, resolving
+ * the parent of an incremental send when the target only holds the oldest
+ * snapshot, and saving a new snapshot. Everything lives in a temporary folder,
+ * no btrfs or root is needed.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CatalogBenchmark {
+
+    /**
+     * The number of subvolumes the snapshots are spread over.
+     */
+    private static final int SUBVOLUMES = 10;
+
+    /**
+     * The time between two snapshots of a subvolume.
+     */
+    private static final long SNAPSHOT_INTERVAL_SECONDS = 3600;
+
+    @Param({"10", "1000", "100000"})
+    public int snapshots;
+
+    private Path folder;
+    private Path configFile;
+    private Path catalogFile;
+    private ObjectMapper mapper;
+    private SnapshotCatalog catalog;
+    private Path subvolume;
+    private Snapshot newest;
+    private ParentResolver resolver;
+    private List<Snapshot> toSave;
+    private int saved;
+
+    /**
+     * Writes the configuration, migrates the snapshots into a catalog the way
+     * an upgrade does and opens it.
+     *
+     * @throws IOException If the temporary files couldn't be written
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        //Keeps the parent logged on every resolve out of the results
+        Logger.getLogger(ParentResolver.class.getName()).setLevel(java.util.logging.Level.WARNING);
+        this.folder = Files.createTempDirectory("Wandering Echo Catalog Benchmark");
+        this.mapper = newMapper();
+        this.subvolume = this.folder.resolve("Subvolume 0");
+        var associations = Files.createDirectories(this.folder.resolve("Associations"));
+        String oldestUuid = null;
+        for (int i = 0; i < this.snapshots; i++) {
+            int subvolumeIndex = i % SUBVOLUMES;
+            long time = 1_500_000_000L + i / SUBVOLUMES * SNAPSHOT_INTERVAL_SECONDS;
+            var json = snapshotJson(subvolumeIndex, time, "snapshot-" + i);
+            Files.writeString(associations.resolve(i + ".JSON"), json);
+            if (subvolumeIndex == 0) {
+                //The resolver checks that the candidate still exists on the source
+                Files.createDirectories(this.folder.resolve("Snapshots").resolve(Long.toString(time)));
+                oldestUuid = oldestUuid == null ? "snapshot-" + i : oldestUuid;
+            }
+        }
+        this.catalogFile = this.folder.resolve("Snapshot Catalog.dat");
+        try ( var migrating = SnapshotCatalog.open(this.catalogFile, this.mapper)) {
+            migrating.migrate(associations);
+        }
+        var backup = this.mapper.createObjectNode();
+        for (int i = 0; i < SUBVOLUMES; i++) {
+            backup.set(this.folder.resolve("Subvolume " + i).toString(), this.mapper.readTree(
+                    "{\"BTRFSPhysicalLocationItem\":\"Backup\",\"location\":" + quote(this.folder.resolve("Backups")
+                    .resolve(Integer.toString(i))) + ",\"parentSnapshot\":" + snapshotJson(i, 1_500_000_000L,
+                    "backup-" + i) + ",\"creationDate\":1500000000}"));
+        }
+        var config = this.mapper.createObjectNode();
+        var subvolumes = config.putArray("subvolumes");
+        for (int i = 0; i < SUBVOLUMES; i++) {
+            subvolumes.add(this.mapper.readTree(subvolumeJson(i)));
+        }
+        config.put("typicalBackupLocation", this.folder.resolve("Backups").toString());
+        config.set("backupMap", backup);
+        this.configFile = this.folder.resolve("BTRFS Config.json");
+        this.mapper.writeValue(this.configFile.toFile(), config);
+        this.catalog = SnapshotCatalog.open(this.catalogFile, this.mapper);
+        this.newest = this.catalog.getLatestSnapshotOf(this.subvolume, null).get();
+        this.resolver = new ParentResolver(Set.of(oldestUuid));
+        this.toSave = List.of(this.mapper.readValue(snapshotJson(0, 2_000_000_000L, "saved-0"), Snapshot.class),
+                this.mapper.readValue(snapshotJson(1, 2_000_000_000L, "saved-1"), Snapshot.class));
+    }
+
+    /**
+     * Removes the temporary folder.
+     *
+     * @throws IOException If it couldn't be removed
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.catalog.close();
+        try ( Stream<Path> files = Files.walk(this.folder)) {
+            for (var file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * What a run does before its first snapshot: read the configuration with
+     * its subvolumes and backups and index the catalog.
+     *
+     * @return The number of snapshots found
+     * @throws IOException If a file couldn't be read
+     */
+    @Benchmark
+    public int loadConfiguration() throws IOException {
+        JsonNode config = this.mapper.readTree(this.configFile.toFile());
+        List<Subvolume> subvolumes = this.mapper.convertValue(config.get("subvolumes"),
+                new TypeReference<List<Subvolume>>() {
+        });
+        Map<Path, Backup> backups = this.mapper.convertValue(config.get("backupMap"),
+                new TypeReference<Map<Path, Backup>>() {
+        });
+        try ( var opened = SnapshotCatalog.open(this.catalogFile, this.mapper)) {
+            return subvolumes.size() + backups.size() + opened.size();
+        }
+    }
+
+    /**
+     * Finds the latest snapshot of a subvolume, which used to be
+     * detectPreviousBackupOf.
+     *
+     * @return The snapshot
+     */
+    @Benchmark
+    public Optional<Snapshot> latestSnapshot() {
+        return this.catalog.getLatestSnapshotOf(this.subvolume, null);
+    }
+
+    /**
+     * Resolves the parent of an incremental send when only the oldest
+     * snapshot is on the target, so every snapshot of the subvolume is
+     * looked at.
+     *
+     * @return The parent
+     */
+    @Benchmark
+    public Optional<Snapshot> resolveParent() {
+        return this.resolver.resolve(this.newest, this.catalog);
+    }
+
+    /**
+     * Saves a new snapshot to the catalog, forced to the disk, which is what
+     * saveSnapshot does.
+     *
+     * @return The number of snapshots in the catalog
+     * @throws IOException If it couldn't be written
+     */
+    @Benchmark
+    public int saveSnapshot() throws IOException {
+        this.catalog.append(this.toSave.get(this.saved++ & 1));
+        return this.catalog.size();
+    }
+
+    /**
+     * Creates a mapper set up like the one of the BTRFS class.
+     *
+     * @return The mapper
+     */
+    private static ObjectMapper newMapper() {
+        var mapper = new ObjectMapper();
+        mapper.findAndRegisterModules();
+        mapper.enable(SerializationFeature.INDENT_OUTPUT);
+        var module = new SimpleModule("Path Deserializer Module");
+        module.addKeyDeserializer(Path.class, new PathDeserializer());
+        mapper.registerModule(module);
+        return mapper;
+    }
+
+    /**
+     * Gets the JSON of a snapshot as the catalog stores it.
+     */
+    private String snapshotJson(int subvolumeIndex, long time, String uuid) {
+        var location = this.folder.resolve("Snapshots").resolve(subvolumeIndex == 0 ? Long.toString(time)
+                : subvolumeIndex + "-" + time);
+        return "{\"BTRFSPhysicalLocationItem\":\"Snapshot\",\"of\":" + quote(this.folder.resolve("Subvolume "
+                + subvolumeIndex)) + ",\"location\":" + quote(location) + ",\"parentSubvolume\":"
+                + subvolumeJson(subvolumeIndex) + ",\"creationDate\":" + time + ",\"uuid\":\"" + uuid
+                + "\",\"receivedUuid\":null}";
+    }
+
+    /**
+     * Gets the JSON of a subvolume.
+     */
+    private String subvolumeJson(int subvolumeIndex) {
+        return "{\"BTRFSPhysicalLocationItem\":\"Subvolume\",\"location\":"
+                + quote(this.folder.resolve("Subvolume " + subvolumeIndex)) + "}";
+    }
+
+    /**
+     * Quotes a path as a JSON string.
+     */
+    private static String quote(Path path) {
+        return "\"" + path.toString().replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.benchmark;
+
+import com.protonmail.sarahszabo.wanderingecho.util.EchoUtil;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The overhead of spawning a command with processOP, which every btrfs call
+ * goes through, next to a bare ProcessBuilder running the same command. The
+ * command is true, so all that is measured is the fork, the exec and the wait.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessBenchmark {
+
+    /**
+     * Keeps the command line logged on every call out of the results.
+     */
+    @Setup
+    public void setUp() {
+        Logger.getLogger(EchoUtil.class.getName()).setLevel(Level.WARNING);
+    }
+
+    /**
+     * Runs true through processOP.
+     *
+     * @return Whether it timed out
+     * @throws IOException If it couldn't be started
+     */
+    @Benchmark
+    public boolean processOP() throws IOException {
+        return EchoUtil.processOP(false, "true");
+    }
+
+    /**
+     * Runs true with a bare ProcessBuilder.
+     *
+     * @return The exit code
+     * @throws IOException If it couldn't be started
+     * @throws InterruptedException If interrupted while waiting
+     */
+    @Benchmark
+    public int processBuilder() throws IOException, InterruptedException {
+        return new ProcessBuilder("true").start().waitFor();
+    }
+}
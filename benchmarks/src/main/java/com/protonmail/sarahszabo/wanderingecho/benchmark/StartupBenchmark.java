@@ -0,0 +1,88 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.benchmark;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.topology.MountTopology;
+import com.protonmail.sarahszabo.wanderingecho.util.EchoUtil;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Scanner;
+
+/**
+ * Compares the startup checks done before any backup work: the old way, which
+ * forks whoami, findmnt and mount and parses their output with a Scanner, and
+ * the new way, which reads /proc. The mount fork is stood in for by mount
+ * --version, a real mount would change the system.
+ * <p>
+ * Usage: StartupBenchmark [iterations]
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class StartupBenchmark {
+
+    /**
+     * @param args The number of iterations
+     */
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length >= 1 ? Integer.parseInt(args[0]) : 50;
+        //Warm up both paths
+        for (int i = 0; i < 5; i++) {
+            forkingStartup();
+            procStartup();
+        }
+        var forking = new long[iterations];
+        var proc = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            forkingStartup();
+            forking[i] = System.nanoTime() - start;
+            start = System.nanoTime();
+            procStartup();
+            proc[i] = System.nanoTime() - start;
+        }
+        System.out.printf("Forking startup: median %.3f ms%n", median(forking) / 1e6);
+        System.out.printf("/proc startup:   median %.3f ms%n", median(proc) / 1e6);
+    }
+
+    /**
+     * The startup checks as they were done before, one process each.
+     */
+    private static void forkingStartup() throws IOException {
+        try ( var scanner = new Scanner(new ProcessBuilder("whoami").start().getInputStream())) {
+            scanner.next();
+        }
+        try ( var scanner = new Scanner(new ProcessBuilder("findmnt", "/", "-o", "UUID").start().getInputStream())) {
+            scanner.nextLine();
+            scanner.nextLine();
+        }
+        try ( var scanner = new Scanner(new ProcessBuilder("mount", "--version").start().getInputStream())) {
+            while (scanner.hasNextLine()) {
+                scanner.nextLine();
+            }
+        }
+    }
+
+    /**
+     * The startup checks as they are done now, a fresh mount table each time
+     * like a fresh JVM would read.
+     */
+    private static void procStartup() throws IOException {
+        EchoUtil.getEffectiveUserID();
+        var topology = new MountTopology(Paths.get("/proc/self/mountinfo"));
+        topology.getMountOf(Paths.get("/")).getUuid();
+        topology.getMountAt(Paths.get("/media/Wandering_Echo"));
+    }
+
+    /**
+     * Gets the median of some timings.
+     */
+    private static double median(long[] timings) {
+        var sorted = timings.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
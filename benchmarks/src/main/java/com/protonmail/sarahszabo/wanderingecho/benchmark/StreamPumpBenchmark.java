@@ -0,0 +1,60 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.benchmark;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.StreamTransfer;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Compares the in-JVM stream pump against a plain shell pipe moving the same
+ * amount of data between the same two commands.
+ * <p>
+ * Usage: StreamPumpBenchmark [GiB per round] [rounds]
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class StreamPumpBenchmark {
+
+    private static final double MIB = 1 << 20;
+
+    /**
+     * @param args The size of one round in GiB and the number of rounds
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long gib = args.length >= 1 ? Long.parseLong(args[0]) : 4;
+        int rounds = args.length >= 2 ? Integer.parseInt(args[1]) : 3;
+        long bytes = gib << 30;
+        var sendCommand = List.of("head", "-c", Long.toString(bytes), "/dev/zero");
+        var receiveCommand = List.of("sh", "-c", "cat > /dev/null");
+        //Warm up both paths once
+        shellPipe(bytes >> 4);
+        StreamTransfer.transfer(List.of("head", "-c", Long.toString(bytes >> 4), "/dev/zero"), receiveCommand);
+        for (int round = 1; round <= rounds; round++) {
+            double shellSeconds = shellPipe(bytes);
+            var result = StreamTransfer.transfer(sendCommand, receiveCommand);
+            double pumpSeconds = result.getDuration().toNanos() / 1e9;
+            System.out.printf("Round %d: shell pipe %.1f MiB/s, stream pump %.1f MiB/s (%s)%n", round,
+                    bytes / MIB / shellSeconds, bytes / MIB / pumpSeconds, result);
+        }
+    }
+
+    /**
+     * Moves the bytes through a shell pipe.
+     *
+     * @param bytes The number of bytes to move
+     * @return The wall time in seconds
+     */
+    private static double shellPipe(long bytes) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        var process = new ProcessBuilder("sh", "-c", "head -c " + bytes + " /dev/zero | cat > /dev/null")
+                .inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("Shell pipe failed");
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+}
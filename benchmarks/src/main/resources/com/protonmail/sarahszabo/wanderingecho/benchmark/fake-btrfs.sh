@@ -0,0 +1,169 @@
+#!/bin/sh
+# A stand-in for the btrfs tool, enough of it for a backup run. Subvolumes are plain folders with a .fake-btrfs
+# file holding their UUID, received UUID, generation and the generation they were created in. Writing a file
+# into a subvolume moves it to a new generation the next time it's looked at, like a commit would. Send streams
+# are a header line with the UUID and the name of the snapshot followed by zeros, receive creates the folder
+# once the whole stream arrived.
+#
+# FAKE_BTRFS_SEND_BYTES         Bytes of a full send stream, 64 MiB if unset
+# FAKE_BTRFS_INCREMENTAL_BYTES  Bytes of an incremental send stream, a tenth of a full one if unset
+# FAKE_BTRFS_SEND_RATE          Bytes per second a send produces, unlimited if unset or 0
+# FAKE_BTRFS_SNAPSHOT_DELAY     Seconds a snapshot takes, 0 if unset
+set -e
+
+SEND_BYTES=${FAKE_BTRFS_SEND_BYTES:-67108864}
+INCREMENTAL_BYTES=${FAKE_BTRFS_INCREMENTAL_BYTES:-$((SEND_BYTES / 10))}
+SEND_RATE=${FAKE_BTRFS_SEND_RATE:-0}
+SNAPSHOT_DELAY=${FAKE_BTRFS_SNAPSHOT_DELAY:-0}
+
+fail() {
+    echo "ERROR: $*" >&2
+    exit 1
+}
+
+new_uuid() {
+    cat /proc/sys/kernel/random/uuid
+}
+
+# Starts a new transaction and prints its generation, shared by every subvolume next to this script
+TRANSID="$(dirname "$0")/.fake-btrfs-transid"
+new_transid() {
+    (
+        flock 9
+        transid=$(($(cat "$TRANSID" 2> /dev/null || echo 0) + 1))
+        echo "$transid" > "$TRANSID"
+        echo "$transid"
+    ) 9>> "$TRANSID.lock"
+}
+
+# Prints "UUID RECEIVED_UUID GENERATION CREATED_IN" of a subvolume, making a folder one the first time it's asked
+# about and moving it to a new generation if files in it changed
+info() {
+    [ -d "$1" ] || fail "cannot find subvolume $1"
+    if [ ! -f "$1/.fake-btrfs" ]; then
+        transid=$(new_transid)
+        echo "$(new_uuid) - $transid $transid" > "$1/.fake-btrfs"
+    elif [ -n "$(find "$1" -newer "$1/.fake-btrfs" ! -name .fake-btrfs 2> /dev/null | head -n 1)" ]; then
+        set -- "$1" $(cat "$1/.fake-btrfs")
+        echo "$2 $3 $(new_transid) $5" > "$1/.fake-btrfs"
+    fi
+    cat "$1/.fake-btrfs"
+}
+
+# Writes zeros, at most SEND_RATE bytes per second
+zeros() {
+    if [ "$SEND_RATE" -le 0 ]; then
+        head -c "$1" /dev/zero
+        return
+    fi
+    remaining=$1
+    chunk=$((SEND_RATE / 10 > 0 ? SEND_RATE / 10 : 1))
+    while [ "$remaining" -gt 0 ]; do
+        bytes=$((remaining < chunk ? remaining : chunk))
+        head -c "$bytes" /dev/zero
+        remaining=$((remaining - bytes))
+        sleep 0.1
+    done
+}
+
+subvolume() {
+    command=$1
+    shift
+    case "$command" in
+        snapshot)
+            [ "$1" = "-r" ] && shift
+            set -- "$1" "$2" $(info "$1")
+            # The snapshot is taken in a new transaction, which the source is part of
+            transid=$(new_transid)
+            echo "$3 $4 $transid $6" > "$1/.fake-btrfs"
+            mkdir -p "$2"
+            echo "$(new_uuid) - $transid $transid" > "$2/.fake-btrfs"
+            sleep "$SNAPSHOT_DELAY"
+            echo "Create a readonly snapshot of '$1' in '$2'"
+            ;;
+        show)
+            [ -d "$1" ] || fail "cannot find subvolume $1"
+            set -- "$1" $(info "$1")
+            echo "$(basename "$1")"
+            echo "	Name: 			$(basename "$1")"
+            echo "	UUID: 			$2"
+            echo "	Parent UUID: 		-"
+            echo "	Received UUID: 		$3"
+            echo "	Generation: 		$4"
+            echo "	Gen at creation: 	$5"
+            ;;
+        list)
+            # Deleted subvolumes are gone at once, there's never a backlog to clean up
+            [ "$1" = "-d" ] && exit 0
+            while [ $# -gt 1 ]; do
+                shift
+            done
+            id=256
+            find "$1" -name .fake-btrfs 2> /dev/null | while read -r file; do
+                set -- $(cat "$file")
+                echo "ID $id gen $3 top level 5 received_uuid $2 path ${file%/.fake-btrfs}"
+                id=$((id + 1))
+            done
+            ;;
+        delete)
+            mode=no-commit
+            [ "$1" = "-C" ] || [ "$1" = "-c" ] && mode=commit && shift
+            for path in "$@"; do
+                [ -d "$path" ] || fail "cannot delete $path: No such file or directory"
+                rm -rf "$path"
+                echo "Delete subvolume ($mode): '$path'"
+            done
+            ;;
+        sync)
+            [ -d "$1" ] || fail "cannot open $1: No such file or directory"
+            ;;
+        *)
+            fail "unknown subvolume command $command"
+            ;;
+    esac
+}
+
+send() {
+    parent=
+    while [ $# -gt 1 ]; do
+        case "$1" in
+            -p) parent=$2; shift 2 ;;
+            -c) shift 2 ;;
+            *) shift ;;
+        esac
+    done
+    [ -d "$1" ] || fail "cannot find subvolume $1"
+    set -- "$1" $(info "$1")
+    # A received subvolume keeps the UUID it was received as
+    [ "$3" = "-" ] && uuid=$2 || uuid=$3
+    echo "fake-btrfs-stream $uuid $(basename "$1")"
+    if [ -n "$parent" ]; then
+        info "$parent" > /dev/null
+        zeros "$INCREMENTAL_BYTES"
+    else
+        zeros "$SEND_BYTES"
+    fi
+}
+
+receive() {
+    while [ $# -gt 1 ]; do
+        shift
+    done
+    [ -d "$1" ] || fail "cannot open $1: No such file or directory"
+    read -r magic uuid name || fail "empty stream"
+    [ "$magic" = "fake-btrfs-stream" ] || fail "not a send stream"
+    cat > /dev/null
+    mkdir -p "$1/$name"
+    transid=$(new_transid)
+    echo "$(new_uuid) $uuid $transid $transid" > "$1/$name/.fake-btrfs"
+    echo "At subvol $name"
+}
+
+command=$1
+[ $# -gt 0 ] && shift
+case "$command" in
+    subvolume) subvolume "$@" ;;
+    send) send "$@" ;;
+    receive) receive "$@" ;;
+    *) fail "unknown command $command" ;;
+esac
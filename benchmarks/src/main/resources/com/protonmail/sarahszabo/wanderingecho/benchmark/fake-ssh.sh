@@ -0,0 +1,68 @@
+#!/bin/sh
+# A stand-in for ssh, enough of it for remote targets. Every host is this machine: a master connection is a
+# process that lives as long as its control socket, a plain file here, and a command run over it goes to sh with
+# the folder of this script first on the PATH, so btrfs on the "remote" end is the stand-in next to it. Commands
+# without a master fail, like they would with ControlMaster=no. Each master started is logged to
+# .fake-ssh-masters next to this script, one line per host.
+#
+# FAKE_SSH_DOWN      Hosts that can't be reached, separated by spaces
+# FAKE_SSH_LATENCY   Seconds a connection takes to come up, 0 if unset
+set -e
+
+LATENCY=${FAKE_SSH_LATENCY:-0}
+MASTERS="$(dirname "$0")/.fake-ssh-masters"
+
+fail() {
+    echo "ssh: $*" >&2
+    exit 255
+}
+
+master=false
+socket=""
+control=""
+while [ $# -gt 0 ]; do
+    case "$1" in
+        -M) master=true ;;
+        -N) ;;
+        -S) socket=$2; shift ;;
+        -O) control=$2; shift ;;
+        -o) shift ;;
+        -*) fail "unknown option $1" ;;
+        *) break ;;
+    esac
+    shift
+done
+[ $# -ge 1 ] || fail "no host given"
+host=$1
+shift
+[ -n "$socket" ] || fail "only multiplexed connections are simulated, give -S"
+# ssh names the socket after the connection, the host is enough here
+socket=$(echo "$socket" | sed "s/%C/$(echo "$host" | tr -c 'A-Za-z0-9.\n' '_')/")
+
+for down in $FAKE_SSH_DOWN; do
+    [ "$down" != "$host" ] || fail "connect to host $host port 22: No route to host"
+done
+
+if [ -n "$control" ]; then
+    case "$control" in
+        check) [ -e "$socket" ] || fail "Control socket connect($socket): No such file or directory" ;;
+        exit) rm -f "$socket" ;;
+        *) fail "unknown control command $control" ;;
+    esac
+    exit 0
+fi
+
+if $master; then
+    sleep "$LATENCY"
+    echo "$host" >> "$MASTERS"
+    touch "$socket"
+    trap 'rm -f "$socket"; exit 0' TERM INT
+    while [ -e "$socket" ]; do
+        sleep 0.1
+    done
+    exit 0
+fi
+
+[ -e "$socket" ] || fail "Control socket connect($socket): No such file or directory"
+[ $# -ge 1 ] || fail "no command given"
+PATH="$(dirname "$0"):$PATH" exec sh -c "$*"
@@ -6,12 +6,26 @@
 package com.protonmail.sarahszabo.wanderingecho;
 
 import com.protonmail.sarahszabo.wanderingecho.btrfs.BTRFS;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.BackupDaemon;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.RunOptions;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.archive.SendArchive;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.BlockCompressor;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.BlockDecompressor;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.CompressionSettings;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.remote.ReceiveAgent;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.StreamPump;
+import com.protonmail.sarahszabo.wanderingecho.ui.UserInterfaceLoader;
 import com.protonmail.sarahszabo.wanderingecho.util.EchoUtil;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.ZoneId;
 import java.util.Arrays;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
-import javafx.application.Platform;
+import java.util.stream.Collectors;
 
 /**
  * The Class that holds the main method.
@@ -50,7 +64,9 @@ public class Init {
      */
     private static void printGenericCommandNotRecognized() {
         EchoUtil.messageThenExit("Command not recognized, shutting down.\n\n"
-                + "OPTIONS: Backup, Delete_Cache, System_Reset, Configure");
+                + "OPTIONS: Backup, Daemon, Remote, Verify, Agent, Delete_Cache, Prune, System_Reset, Configure, "
+                + "Compress, Decompress, Restore\n"
+                + "FLAGS: " + RunOptions.USAGE);
     }
 
     /**
@@ -59,31 +75,95 @@ public class Init {
     public static void main(String[] args) throws InterruptedException {
         //Print args for debugging
         LOG.fine(Arrays.asList(args).toString());
+        RunOptions options = null;
+        try {
+            options = RunOptions.parse(args);
+        } catch (IllegalArgumentException ex) {
+            EchoUtil.messageThenExit(ex.getMessage());
+        }
+        //The command and its parameters, without the flags
+        args = Arrays.stream(args).filter(arg -> !arg.startsWith("--")).toArray(String[]::new);
         try {
             if (args.length >= 1) {
                 //We're Backing Up Data
                 if (args[0].equalsIgnoreCase("Backup")) {
                     //Run configuration
-                    BTRFS.getInstance();
+                    BTRFS.getInstance(options);
                     BTRFS.commenceBackupOperation();
+                } //Keep running and back up on the configured schedules
+                else if (args[0].equalsIgnoreCase("Daemon")) {
+                    BTRFS.getInstance(options);
+                    new BackupDaemon(BTRFS.getSubvolumes(), BTRFS.getSchedules(), ZoneId.systemDefault()).run();
+                } //Send the newest snapshots to the remote targets over ssh or to their agents
+                else if (args[0].equalsIgnoreCase("Remote")) {
+                    BTRFS.getInstance(options);
+                    BTRFS.sendBackupsOverSSH();
+                } //Check that every target still holds what the catalog says it was sent, exit 1 if not
+                else if (args[0].equalsIgnoreCase("Verify")) {
+                    BTRFS.getInstance(options);
+                    if (!BTRFS.verifyBackups()) {
+                        UserInterfaceLoader.closeIfLoaded();
+                        System.exit(1);
+                    }
+                } //Receive backups from other machines over plain TCP until killed
+                else if (args[0].equalsIgnoreCase("Agent")) {
+                    if (args.length >= 3) {
+                        var folders = Arrays.stream(args, 2, args.length).map(Paths::get)
+                                .collect(Collectors.toList());
+                        try ( var agent = new ReceiveAgent(ReceiveAgent.parseAddress(args[1]), folders)) {
+                            agent.run();
+                        }
+                    } else {
+                        EchoUtil.messageThenExit("COMMAND FORMAT: Agent (port or host:port to listen on) "
+                                + "(folder to receive into)...");
+                    }
                 } //Delete the System Cache, and Possibly Backups as Well
                 else if (args[0].equalsIgnoreCase("Delete_Cache")) {
                     if (args.length >= 2) {
                         //Get boolean value from string
                         boolean value = Boolean.parseBoolean(args[1]);
                         //Run configuration
-                        BTRFS.getInstance();
+                        BTRFS.getInstance(options);
                         BTRFS.purgeSnapshots(value);
                     } else {
                         EchoUtil.messageThenExit("COMMAND FORMAT: Delete_Cache "
                                 + "(true / false value here for deleting backups as well)");
                     }
+                    //Delete the snapshots the retention policy doesn't keep
+                } else if (args[0].equalsIgnoreCase("Prune")) {
+                    BTRFS.getInstance(options);
+                    BTRFS.pruneSnapshots();
+                    BTRFS.awaitSnapshotCleanup();
                     //Reset BTRFS Configuration
                 } else if (args[0].equalsIgnoreCase("System_Reset")) {
                     BTRFS.resetConfiguration();
                 } //Run basic configuration
                 else if (args[0].equalsIgnoreCase("Configure")) {
-                    BTRFS.getInstance();
+                    BTRFS.getInstance(options);
+                } //Compress standard input to standard output, e.g. btrfs send X | Compress > file
+                else if (args[0].equalsIgnoreCase("Compress")) {
+                    var settings = options.getCompression().orElseGet(() -> new CompressionSettings(null, null,
+                            null, null));
+                    try ( var in = new FileInputStream(FileDescriptor.in).getChannel();
+                            var out = new BlockCompressor(new FileOutputStream(FileDescriptor.out).getChannel(),
+                                    settings)) {
+                        new StreamPump().pump(in, out);
+                    }
+                } //Decompress standard input to standard output, e.g. Decompress < file | btrfs receive X
+                else if (args[0].equalsIgnoreCase("Decompress")) {
+                    try ( var in = new BlockDecompressor(new FileInputStream(FileDescriptor.in).getChannel(),
+                            Runtime.getRuntime().availableProcessors());
+                            var out = new FileOutputStream(FileDescriptor.out).getChannel()) {
+                        new StreamPump().pump(in, out);
+                    }
+                } //Replay an archive and the archives it depends on into btrfs receive
+                else if (args[0].equalsIgnoreCase("Restore")) {
+                    if (args.length >= 3) {
+                        SendArchive.restore(Paths.get(args[1]), Paths.get(args[2]));
+                    } else {
+                        EchoUtil.messageThenExit("COMMAND FORMAT: Restore (archive folder) "
+                                + "(btrfs folder to receive into)");
+                    }
                 }//User Input Incorrect Print Commands
                 else {
                     printGenericCommandNotRecognized();
@@ -92,8 +172,8 @@ public class Init {
             else {
                 printGenericCommandNotRecognized();
             }
-            //Shutdown JFX Platform & Exit Gracefully
-            Platform.exit();
+            //Shutdown JFX Platform if it was Started & Exit Gracefully
+            UserInterfaceLoader.closeIfLoaded();
             System.exit(0);
             //TODO: Send over Network
         } catch (IOException e) {
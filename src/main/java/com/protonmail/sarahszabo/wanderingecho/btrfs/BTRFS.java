@@ -10,10 +10,36 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.archive.SendArchive;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.catalog.SnapshotCatalog;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.CompressionSettings;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.dedup.DedupSettings;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.metrics.MetricsRegistry;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.metrics.StreamMetrics;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.remote.RemoteSender;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.remote.RemoteTarget;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.retention.RetentionPolicy;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.retention.SnapshotCleaner;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.retention.SnapshotPruner;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.schedule.BackupSchedules;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.schedule.DeviceLimits;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.schedule.DeviceScheduler;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.schedule.DeviceTask;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.FanOutSettings;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.SendSizeEstimator;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.StreamTransfer;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.TransferResult;
 import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Backup;
 import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Snapshot;
 import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Subvolume;
-import com.protonmail.sarahszabo.wanderingecho.ui.UI;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.SubvolumeInfo;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.throttle.Throttle;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.throttle.TokenBucket;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.topology.MountTopology;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.verify.BackupVerifier;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.verify.VerifyResult;
+import com.protonmail.sarahszabo.wanderingecho.ui.UserInterfaceLoader;
+import com.protonmail.sarahszabo.wanderingecho.util.CommandBackend;
 import static com.protonmail.sarahszabo.wanderingecho.util.EchoUtil.*;
 import com.protonmail.sarahszabo.wanderingecho.util.PathDeserializer;
 import java.io.IOException;
@@ -21,19 +47,32 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.Scanner;
-import java.util.TreeSet;
-import java.util.concurrent.Callable;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
-import javafx.scene.control.ButtonType;
 import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 
 /**
@@ -45,10 +84,17 @@ import org.apache.commons.lang3.concurrent.BasicThreadFactory;
  */
 public class BTRFS {
 
+    /**
+     * The tools commands are run with, a simulation keeps every folder below
+     * in its own folder.
+     */
+    private static final CommandBackend BACKEND = CommandBackend.system();
+
     /**
      * The folder that @ and @home mounts to.
      */
-    private static final Path MOUNTING_FOLDER = Paths.get("/media/Wandering_Echo");
+    private static final Path MOUNTING_FOLDER = BACKEND.getSimulationFolder().map(folder
+            -> folder.resolve("Wandering_Echo")).orElse(Paths.get("/media/Wandering_Echo"));
 
     /**
      * The folder that snapshots are stored in.
@@ -60,15 +106,26 @@ public class BTRFS {
      */
     private static Path BACKUP_FOLDER;
 
+    /**
+     * Folders that get a copy of every backup, e.g. on a second drive.
+     */
+    private static List<Path> mirrorFolders;
+
+    /**
+     * Btrfs folders on other machines that get backups over ssh.
+     */
+    private static List<RemoteTarget> remoteTargets;
+
     /**
      * The path to the configuration folder for system configuration files
      */
-    private static final Path CONFIGURATION_FOLDER = Paths.get(System.getProperty("user.home"), ".Wandering Echo")
-            .resolve("System Configuration");
+    private static final Path CONFIGURATION_FOLDER = BACKEND.getSimulationFolder().orElse(Paths.get(System
+            .getProperty("user.home"), ".Wandering Echo")).resolve("System Configuration");
 
     /**
-     * The folder that stores files of our snapshot objects that share the same
-     * filename as the ones in the snapshots folders.
+     * The folder that stored files of our snapshot objects that share the same
+     * filename as the ones in the snapshots folders. Only read to migrate into
+     * the snapshot catalog.
      */
     private static final Path SNAPSHOT_ASSOCIATION_FOLDER = CONFIGURATION_FOLDER.resolve("Snapshot Association Folder");
 
@@ -77,6 +134,32 @@ public class BTRFS {
      */
     private static final Path BTRFS_CONFIG_FILE = CONFIGURATION_FOLDER.resolve("BTRFS Config.json");
 
+    /**
+     * The catalog file of every snapshot we created.
+     */
+    private static final Path SNAPSHOT_CATALOG_FILE = CONFIGURATION_FOLDER.resolve("Snapshot Catalog.dat");
+
+    /**
+     * The rate limits file, kept apart from the config so it can be edited
+     * while a backup runs.
+     */
+    private static final Path THROTTLE_FILE = CONFIGURATION_FOLDER.resolve("Throttle.json");
+
+    /**
+     * When backups last succeeded, for the recovery point lag of the metrics.
+     */
+    private static final Path METRICS_STATE_FILE = CONFIGURATION_FOLDER.resolve("Metrics State.json");
+
+    /**
+     * The snapshots waiting to be deleted by the cleaner.
+     */
+    private static final Path CLEANER_QUEUE_FILE = CONFIGURATION_FOLDER.resolve("Cleaner Queue.json");
+
+    /**
+     * The textfile collector directory of the Debian node_exporter package.
+     */
+    private static final Path NODE_EXPORTER_TEXTFILE_FOLDER = Paths.get("/var/lib/prometheus/node-exporter");
+
     /**
      * A list of subvolumes to snapshot.
      */
@@ -87,6 +170,66 @@ public class BTRFS {
      */
     private static BackupMap backupMap;
 
+    /**
+     * The catalog of every snapshot we created.
+     */
+    private static SnapshotCatalog catalog;
+
+    /**
+     * How many backups may use one disk at the same time.
+     */
+    private static DeviceLimits deviceLimits;
+
+    /**
+     * How archives and streams leaving this machine are compressed, null if they aren't.
+     */
+    private static CompressionSettings compression;
+
+    /**
+     * How long snapshots are kept, null to keep every snapshot.
+     */
+    private static RetentionPolicy retention;
+
+    /**
+     * When the daemon backs up each subvolume.
+     */
+    private static BackupSchedules schedules;
+
+    /**
+     * How one send stream is copied to the backup folder and its mirrors.
+     */
+    private static FanOutSettings fanOut;
+
+    /**
+     * Whether and how archive targets are deduplicated.
+     */
+    private static DedupSettings dedup;
+
+    /**
+     * Deletes the snapshots the retention policy doesn't keep in the background.
+     */
+    private static SnapshotCleaner cleaner;
+
+    /**
+     * How fast backup streams may go.
+     */
+    private static Throttle throttle;
+
+    /**
+     * The metrics of the backups.
+     */
+    private static MetricsRegistry metrics;
+
+    /**
+     * Runs the backup tasks within the device limits.
+     */
+    private static DeviceScheduler scheduler;
+
+    /**
+     * The command line options of this run.
+     */
+    private static RunOptions runOptions = RunOptions.DEFAULT;
+
     /**
      * A value representing whether or not the root file-system is mounted or
      * not
@@ -98,6 +241,11 @@ public class BTRFS {
      */
     private static final ObjectMapper MAPPER = new ObjectMapper();
 
+    /**
+     * The snapshot folders we already created this run.
+     */
+    private static final Set<Path> SNAPSHOT_FOLDERS = ConcurrentHashMap.newKeySet();
+
     /**
      * The separator to be used in filenames to seperate the subvolume and date.
      */
@@ -125,18 +273,17 @@ public class BTRFS {
         SimpleModule module = new SimpleModule("Path Deserializer Module");
         module.addKeyDeserializer(Path.class, new PathDeserializer());
         MAPPER.registerModule(module);
-        //Check for root
-        try ( var scanner = getProcessInputScanner(processOPNoWait(false, "whoami"))) {
-            while (scanner.hasNext()) {
-                if (!scanner.next().equalsIgnoreCase("root")) {
-                    messageThenExit("We aren't root!, Run using sudo for root level");
-                } else {
-                    LOG.info("We're root");
-                }
+        //Check for root, straight from /proc instead of forking whoami
+        try {
+            if (BACKEND.isSimulated()) {
+                LOG.info("Simulating: " + BACKEND);
+            } else if (getEffectiveUserID() != 0) {
+                messageThenExit("We aren't root!, Run using sudo for root level");
+            } else {
+                LOG.info("We're root");
             }
             //Create snapshots and mounting folders
             Files.createDirectories(ROOT_SNAPSHOT_FOLDER);
-            Files.createDirectories(SNAPSHOT_ASSOCIATION_FOLDER);
 
         } catch (IOException ex) {
             Logger.getLogger(BTRFS.class.getName()).log(Level.SEVERE, null, ex);
@@ -160,7 +307,8 @@ public class BTRFS {
                     var newSubvolumeList = new SubvolumeList();
                     SUBVOLUME_LIST.stream().filter(sub -> !sub.getName().equals("@")
                             && !sub.getName().equalsIgnoreCase("@home")).forEach(sub -> newSubvolumeList.add(sub));
-                    MAPPER.writeValue(BTRFS_CONFIG_FILE.toFile(), new BTRFSConfig(newSubvolumeList, BACKUP_FOLDER, backupMap));
+                    MAPPER.writeValue(BTRFS_CONFIG_FILE.toFile(), new BTRFSConfig(newSubvolumeList, BACKUP_FOLDER, backupMap, deviceLimits, compression,
+                            retention, schedules, mirrorFolders, fanOut, remoteTargets, dedup));
                 }
             } catch (IOException ex) {
                 Logger.getLogger(BTRFS.class.getName()).log(Level.SEVERE, null, ex);
@@ -216,49 +364,95 @@ public class BTRFS {
      * @throws java.io.IOException If something went wrong
      */
     public static BTRFS getInstance() throws IOException {
+        return getInstance(RunOptions.DEFAULT);
+    }
+
+    /**
+     * Gets the instance of BTRFS. Also runs set up routines. Subvolumes and the
+     * backup folder given in the options replace the configured ones and are
+     * saved. The user interface is only started if there is no configuration
+     * and the options don't provide one.
+     *
+     * @param options The options of this run
+     * @return The instance
+     * @throws java.io.IOException If something went wrong
+     */
+    public static BTRFS getInstance(RunOptions options) throws IOException {
         //We're null, run initialization routine
         if (INSTANCE == null) {
+            runOptions = options;
             //If config doesn't exist, make a new one
             if (Files.notExists(BTRFS_CONFIG_FILE)) {
                 Files.createDirectories(CONFIGURATION_FOLDER);
-                Files.createFile(BTRFS_CONFIG_FILE);
-                //Ask User Which Subvolumes they Want to Save
-                boolean moreSubvolumes = true;
                 //Initialize subvolume list
                 SUBVOLUME_LIST = new SubvolumeList();
                 backupMap = new BackupMap();
+                deviceLimits = new DeviceLimits();
+                retention = new RetentionPolicy();
+                schedules = new BackupSchedules();
+                mirrorFolders = options.getMirrorFolders();
+                fanOut = new FanOutSettings();
+                remoteTargets = options.getRemoteTargets();
+                dedup = new DedupSettings();
                 LOG.info("Subvolume List not Detected, Generating a New List");
-                do {
-                    //Only add to path list if we have something
-                    UI.getDirectory("Choose a Subvoume for Backing Up, but not @ or @home").ifPresent(path
-                            -> SUBVOLUME_LIST.add(new Subvolume(path)));
-                    //Don't continue is any match the close/no buttons
-                    moreSubvolumes = !UI.showConfirmationDialog("Confirmation: More Snapshots?",
-                            "Are there there more directories to snapshot?").stream().anyMatch(button
-                                    -> button == ButtonType.CANCEL || button == ButtonType.CLOSE || button == ButtonType.NO);
-
-                } while (moreSubvolumes);
-                BACKUP_FOLDER = UI.getDirectory("Select a Directory for Backups to Appear In").get();
+                if (options.isCompleteConfiguration()) {
+                    options.getSubvolumes().forEach(path -> SUBVOLUME_LIST.add(new Subvolume(path)));
+                    BACKUP_FOLDER = options.getBackupFolder().get();
+                } else if (options.isHeadless()) {
+                    messageThenExit("No configuration found, run Configure or give both --subvolume=PATH "
+                            + "and --backup-folder=PATH");
+                } else {
+                    askForConfiguration();
+                }
                 //Write Config File
                 MAPPER.writeValue(BTRFS_CONFIG_FILE.toFile(),
-                        new BTRFSConfig(SUBVOLUME_LIST, BACKUP_FOLDER, backupMap));
-                /*System.out.println("\n\n");
-                MAPPER.writeValue(System.out, SUBVOLUME_LIST);
-                System.out.println("\n\n\n");
-                var s = MAPPER.writeValueAsString(SUBVOLUME_LIST);
-                List<Subvolume> list = MAPPER.readValue(s, new TypeReference<List<Subvolume>>() {
-                });*/
+                        new BTRFSConfig(SUBVOLUME_LIST, BACKUP_FOLDER, backupMap, deviceLimits, compression,
+                                retention, schedules, mirrorFolders, fanOut, remoteTargets, dedup));
             } else {
                 var config = MAPPER.readValue(BTRFS_CONFIG_FILE.toFile(), BTRFSConfig.class);
                 SUBVOLUME_LIST = config.getSubvolumes();
                 BACKUP_FOLDER = config.getTypicalBackupLocation();
                 backupMap = config.getBackupMap();
+                deviceLimits = config.getDeviceLimits();
+                compression = config.getCompression();
+                retention = config.getRetention();
+                schedules = config.getSchedules();
+                mirrorFolders = config.getMirrorFolders();
+                fanOut = config.getFanOut();
+                remoteTargets = config.getRemoteTargets();
+                dedup = config.getDedup();
+                //Options given on the command line win
+                if (!options.getSubvolumes().isEmpty()) {
+                    SUBVOLUME_LIST = new SubvolumeList();
+                    options.getSubvolumes().forEach(path -> SUBVOLUME_LIST.add(new Subvolume(path)));
+                }
+                BACKUP_FOLDER = options.getBackupFolder().orElse(BACKUP_FOLDER);
+                if (!options.getMirrorFolders().isEmpty()) {
+                    mirrorFolders = options.getMirrorFolders();
+                }
+                if (!options.getRemoteTargets().isEmpty()) {
+                    remoteTargets = options.getRemoteTargets();
+                }
                 LOG.info("Subvolume List Detected: " + SUBVOLUME_LIST);
+                LOG.info("Device Limits: " + deviceLimits);
+                if (!mirrorFolders.isEmpty()) {
+                    LOG.info("Mirror Folders: " + mirrorFolders + ", Fan Out: " + fanOut);
+                }
+                LOG.info("Archive Dedup: " + (options.isDedup() ? dedup.enable() : dedup));
             }
             BTRFS.mountRootFilesystem();
+            catalog = SnapshotCatalog.open(SNAPSHOT_CATALOG_FILE, MAPPER);
+            catalog.migrate(SNAPSHOT_ASSOCIATION_FOLDER);
+            throttle = Throttle.open(THROTTLE_FILE, MAPPER);
+            LOG.info(throttle.toString());
+            metrics = MetricsRegistry.open(METRICS_STATE_FILE, options.getMetricsFile().orElse(
+                    Files.isDirectory(NODE_EXPORTER_TEXTFILE_FOLDER) ? NODE_EXPORTER_TEXTFILE_FOLDER
+                    .resolve("wandering_echo.prom") : CONFIGURATION_FOLDER.resolve("wandering_echo.prom")), MAPPER);
+            cleaner = SnapshotCleaner.open(CLEANER_QUEUE_FILE, catalog, metrics, MAPPER);
             //Add BTRFS System & User Subvolumes
             SUBVOLUME_LIST.add(new Subvolume(BTRFS.MOUNTING_FOLDER.resolve("@")));
             SUBVOLUME_LIST.add(new Subvolume(BTRFS.MOUNTING_FOLDER.resolve("@home")));
+            scheduler = new DeviceScheduler(executor, deviceLimits);
             //Initialize BTRFS
             INSTANCE = new BTRFS();
         }
@@ -266,32 +460,242 @@ public class BTRFS {
     }
 
     /**
-     * Sends backups over SSH.
+     * Asks the user which subvolumes to back up and where to, through the user
+     * interface.
      */
-    public static void sendBackupsOverSSH() {
+    private static void askForConfiguration() {
+        var userInterface = UserInterfaceLoader.get();
+        //Ask User Which Subvolumes they Want to Save
+        boolean moreSubvolumes = true;
+        do {
+            //Only add to path list if we have something
+            userInterface.getDirectory("Choose a Subvoume for Backing Up, but not @ or @home").ifPresent(path
+                    -> SUBVOLUME_LIST.add(new Subvolume(path)));
+            moreSubvolumes = userInterface.confirm("Confirmation: More Snapshots?",
+                    "Are there there more directories to snapshot?");
+        } while (moreSubvolumes);
+        BACKUP_FOLDER = userInterface.getDirectory("Select a Directory for Backups to Appear In").get();
+    }
+
+    /**
+     * Sends the newest snapshot of every subvolume to the remote targets over
+     * ssh, or to their receive agents, incrementally against the newest one
+     * each target holds. Each host gets one multiplexed connection and at most
+     * its configured number of streams; the call returns once every stream
+     * finished.
+     *
+     * @throws IOException If something happened
+     */
+    public static void sendBackupsOverSSH() throws IOException {
         //Ensure we're initialized
         checkConfiguration();
-        //Get sorted set of backup objects sorted by date
-        var backupValuesSortedByDate = new TreeSet<Backup>(backupMap.values());
-        //Since all snapshots are backed up at the same time, the results are the top 3
-        var backupStream = backupValuesSortedByDate.stream().limit(3);
-        var scriptPathList = new ArrayList<Path>(SUBVOLUME_LIST.size());
-        //Record backup script file locations for parallel send
-        backupStream.forEach(backup -> {
-            try {
-                //Generate backup script for each backup since we can't do it directly
-                var scriptPath = Files.createTempFile("Wandering Echo Temporary SSH Script for " + backup, ".sh");
-                Files.write(scriptPath, ("btrfs send " + backup.getLocation().toString() + " | SSH SciLab0 "
-                        + stringInQuotes("btrfs receive /media/sarah/SENTINEL")).getBytes());
-                scriptPathList.add(scriptPath);
-                //TODO: Make a general version of this before mainline release
-            } catch (IOException ex) {
-                Logger.getLogger(BTRFS.class.getName()).log(Level.SEVERE, null, ex);
-                throw new IllegalStateException("Something went wrong in the SSH back stream block", ex);
+        if (remoteTargets.isEmpty()) {
+            LOG.warning("REMOTE: No Remote Targets Configured");
+            return;
+        }
+        //Compress on our cores, the remote end decompresses with the stock tool before receiving
+        var streamCompression = getStreamCompression();
+        //A host is a device of its own, with as many slots as it takes streams
+        var hostLimits = new HashMap<String, Integer>();
+        remoteTargets.forEach(target -> hostLimits.merge(target.getDevice(), target.getMaxStreams(), Math::min));
+        var remoteScheduler = new DeviceScheduler(executor, deviceLimits.withOverrides(hostLimits));
+        var tasks = new ArrayList<DeviceTask<TransferResult>>();
+        int unreachable = 0;
+        try ( var sender = new RemoteSender()) {
+            for (var target : remoteTargets) {
+                ParentResolver resolver;
+                try {
+                    resolver = sender.getResolver(target);
+                } catch (IOException ex) {
+                    //The other targets still get their backups
+                    Logger.getLogger(BTRFS.class.getName()).log(Level.SEVERE, "REMOTE: Skipping " + target, ex);
+                    unreachable++;
+                    continue;
+                }
+                for (var subvolume : SUBVOLUME_LIST) {
+                    var latest = catalog.getLatestSnapshotOf(subvolume.getLocation(), null).filter(snapshot
+                            -> Files.isDirectory(snapshot.getLocation()));
+                    if (latest.isEmpty()) {
+                        continue;
+                    }
+                    var streamMetrics = metrics.getStream(subvolume.getLocation().toString(), target.getName());
+                    if (latest.equals(resolver.findNewestOnTarget(subvolume.getLocation(), catalog))) {
+                        streamMetrics.recordUnchanged();
+                        continue;
+                    }
+                    var snapshot = latest.get();
+                    var parent = runOptions.isFullSend() ? null : resolver.resolve(snapshot, catalog).orElse(null);
+                    var buckets = streamMetrics.meter(throttle.getBuckets(target.getName()));
+                    tasks.add(new DeviceTask<>(DeviceScheduler.getDiskOf(subvolume.getLocation()),
+                            target.getDevice(), () -> sendToRemote(sender, snapshot, parent, target,
+                            streamCompression, streamMetrics, buckets)));
+                }
+            }
+            int failed = 0;
+            for (var future : remoteScheduler.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    //Counted as a failure, the other backups still went
+                    LOG.severe("REMOTE: " + ex.getCause().getMessage());
+                    failed++;
+                }
             }
-        });
-        //Send backups
-        scriptPathList.parallelStream().forEach(scriptPath -> processOPNoWaitNOE(true, "bash " + scriptPath));
+            LOG.info("REMOTE: " + (tasks.size() - failed) + " Streams Sent, " + failed + " Failed, " + unreachable
+                    + " Targets Unreachable");
+        } catch (InterruptedException ex) {
+            Logger.getLogger(BTRFS.class.getName()).log(Level.SEVERE, null, ex);
+            throw new IllegalStateException("We've been interrupted while waiting for the remote backups!", ex);
+        } finally {
+            metrics.export();
+        }
+    }
+
+    /**
+     * Sends a snapshot to a remote target, records the stream in the metrics
+     * and the backup in the catalog.
+     *
+     * @param sender The sender holding the connections
+     * @param snapshot The snapshot to send
+     * @param parent The parent to send against, null for a full send
+     * @param target The target
+     * @param compression How to compress the stream, may be null
+     * @param streamMetrics The metrics of the stream
+     * @param buckets The buckets limiting the rate of the stream, may be empty
+     * @return The result of the transfer
+     * @throws Exception If the send failed
+     */
+    private static TransferResult sendToRemote(RemoteSender sender, Snapshot snapshot, Snapshot parent,
+            RemoteTarget target, CompressionSettings compression, StreamMetrics streamMetrics,
+            List<TokenBucket> buckets) throws Exception {
+        var created = ZonedDateTime.now();
+        var result = streamMetrics.recordSend(() -> sender.send(snapshot, parent, target, compression, buckets));
+        //An agent that already held the snapshot got nothing to checksum
+        if (result.getChecksum().isPresent()) {
+            catalog.appendBackup(target.getName(), new Backup(Paths.get(target.getFolder()), snapshot, created,
+                    result.getBytes(), result.getChecksum().getAsLong()));
+        }
+        return result;
+    }
+
+    /**
+     * Checks that every target still holds the backups the catalog recorded
+     * for it. Archives are read back whole and checked against the length and
+     * CRC32C of the stream that was sent, received subvolumes and remote
+     * targets against their listing. Targets are checked in parallel, within
+     * the limits of their disks and hosts.
+     *
+     * @return True if every backup was verified
+     * @throws IOException If something happened
+     */
+    public static boolean verifyBackups() throws IOException {
+        //Ensure we're initialized
+        checkConfiguration();
+        var targets = catalog.getBackupTargets();
+        if (targets.isEmpty()) {
+            LOG.warning("VERIFY: No Backups Recorded in the Catalog");
+            return true;
+        }
+        var remotes = new HashMap<String, RemoteTarget>();
+        var hostLimits = new HashMap<String, Integer>();
+        for (var target : remoteTargets) {
+            remotes.put(target.getName(), target);
+            hostLimits.merge(target.getDevice(), target.getMaxStreams(), Math::min);
+        }
+        var verifyScheduler = new DeviceScheduler(executor, deviceLimits.withOverrides(hostLimits));
+        var tasks = new ArrayList<DeviceTask<List<VerifyResult>>>();
+        //The target and backups of every task, to report them if the task fails
+        var checked = new ArrayList<Map.Entry<String, List<Backup>>>();
+        var results = new ArrayList<VerifyResult>();
+        try ( var sender = new RemoteSender()) {
+            for (var name : targets) {
+                var backups = catalog.getBackupsOn(name);
+                var remote = remotes.get(name);
+                if (remote != null) {
+                    tasks.add(new DeviceTask<>(remote.getDevice(), remote.getDevice(), () -> {
+                        try {
+                            return BackupVerifier.verifyListed(name, sender.getResolver(remote), backups);
+                        } catch (IOException ex) {
+                            return BackupVerifier.unreachable(name, backups, ex.getMessage());
+                        }
+                    }));
+                    checked.add(Map.entry(name, backups));
+                    continue;
+                }
+                var folder = Paths.get(name);
+                if (!Files.isDirectory(folder)) {
+                    results.addAll(BackupVerifier.unreachable(name, backups, "It isn't there or configured anymore"));
+                } else if (SendArchive.isArchiveFolder(folder)) {
+                    //Every archive is read whole, one task each so the disk's slots bound the reads
+                    var disk = DeviceScheduler.getDiskOf(folder);
+                    for (var backup : backups) {
+                        tasks.add(new DeviceTask<>(disk, disk, () -> List.of(BackupVerifier.verifyArchive(folder,
+                                backup))));
+                        checked.add(Map.entry(name, List.of(backup)));
+                    }
+                } else {
+                    var disk = DeviceScheduler.getDiskOf(folder);
+                    tasks.add(new DeviceTask<>(disk, disk, () -> {
+                        try {
+                            return BackupVerifier.verifyListed(name, ParentResolver.forTarget(folder), backups);
+                        } catch (IOException ex) {
+                            return BackupVerifier.unreachable(name, backups, ex.getMessage());
+                        }
+                    }));
+                    checked.add(Map.entry(name, backups));
+                }
+            }
+            var futures = verifyScheduler.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.addAll(futures.get(i).get());
+                } catch (ExecutionException ex) {
+                    //A check that broke down fails its backups, the other checks still count
+                    var target = checked.get(i);
+                    Logger.getLogger(BTRFS.class.getName()).log(Level.SEVERE, "VERIFY: Check of " + target.getKey()
+                            + " Failed", ex.getCause());
+                    results.addAll(BackupVerifier.unreachable(target.getKey(), target.getValue(), "The check failed: "
+                            + ex.getCause()));
+                }
+            }
+        } catch (InterruptedException ex) {
+            Logger.getLogger(BTRFS.class.getName()).log(Level.SEVERE, null, ex);
+            throw new IllegalStateException("We've been interrupted while verifying the backups!", ex);
+        }
+        var counts = new EnumMap<VerifyResult.Status, Integer>(VerifyResult.Status.class);
+        for (var result : results) {
+            counts.merge(result.getStatus(), 1, Integer::sum);
+            if (result.isVerified()) {
+                LOG.info("VERIFY: " + result);
+            } else {
+                LOG.severe("VERIFY: " + result);
+            }
+        }
+        LOG.info("VERIFY: " + counts.getOrDefault(VerifyResult.Status.VERIFIED, 0) + " Verified, "
+                + counts.getOrDefault(VerifyResult.Status.MISSING, 0) + " Missing, "
+                + counts.getOrDefault(VerifyResult.Status.DAMAGED, 0) + " Damaged, "
+                + counts.getOrDefault(VerifyResult.Status.UNREACHABLE, 0) + " Unreachable");
+        return results.stream().allMatch(VerifyResult::isVerified);
+    }
+
+    /**
+     * Gets how streams leaving this machine are compressed this run, the
+     * command line wins over the configuration.
+     *
+     * @return The compression, null if streams aren't compressed
+     */
+    private static CompressionSettings getStreamCompression() {
+        return runOptions.getCompression().orElse(compression);
+    }
+
+    /**
+     * Gets how archives are deduplicated this run, switched on by the
+     * configuration or the command line.
+     *
+     * @return The dedup settings, null if archives are written as segments
+     */
+    private static DedupSettings getArchiveDedup() {
+        return dedup.isEnabled() ? dedup : runOptions.isDedup() ? dedup.enable() : null;
     }
 
     /**
@@ -306,18 +710,37 @@ public class BTRFS {
     }
 
     /**
-     * Gets a snapshot from the snapshot association folder. Doesn't throw an
-     * exception if an I/O error occurred.
+     * Gets the subvolumes we back up, including the @ and @home subvolumes.
+     *
+     * @return The subvolumes
+     */
+    public static List<Subvolume> getSubvolumes() {
+        //Ensure we're initialized
+        checkConfiguration();
+        return Collections.unmodifiableList(new ArrayList<>(SUBVOLUME_LIST));
+    }
+
+    /**
+     * Gets when the daemon backs up each subvolume.
+     *
+     * @return The schedules
+     */
+    public static BackupSchedules getSchedules() {
+        //Ensure we're initialized
+        checkConfiguration();
+        return schedules;
+    }
+
+    /**
+     * Gets a snapshot from the snapshot catalog. Doesn't throw a checked
+     * exception if it isn't there.
      *
      * @param existingSnapshot The existing BTRFS snapshot on the disk
      * @return The snapshot object of the BTRFS snapshot
      */
     public static Snapshot getStoredSnapshotNOE(Path existingSnapshot) {
-        //Ensure we're initialized
-        checkConfiguration();
         try {
-            return MAPPER.readValue(SNAPSHOT_ASSOCIATION_FOLDER.resolve(existingSnapshot.getFileName()).toFile(),
-                    Snapshot.class);
+            return getStoredSnapshot(existingSnapshot);
         } catch (IOException ex) {
             Logger.getLogger(BTRFS.class.getName()).log(Level.SEVERE, null, ex);
             throw new IllegalStateException("Unable to resolve snapshot from BTRFS snapshot", ex);
@@ -325,22 +748,22 @@ public class BTRFS {
     }
 
     /**
-     * Gets a snapshot from the snapshot association folder.
+     * Gets a snapshot from the snapshot catalog.
      *
      * @param existingSnapshot The existing BTRFS snapshot on the disk
      * @return The snapshot object of the BTRFS snapshot
-     * @throws IOException If something went wrong
+     * @throws IOException If the snapshot isn't in the catalog
      */
     public static Snapshot getStoredSnapshot(Path existingSnapshot) throws IOException {
         //Ensure we're initialized
         checkConfiguration();
-        return MAPPER.readValue(SNAPSHOT_ASSOCIATION_FOLDER.resolve(existingSnapshot.getFileName() + ".JSON").toFile(),
-                Snapshot.class);
+        return catalog.getSnapshot(existingSnapshot).orElseThrow(()
+                -> new IOException("Snapshot not in the catalog: " + existingSnapshot));
     }
 
     /**
-     * Saves a snapshot to the snapshot association folder for associating the
-     * BTRFS snapshot with our Snapshot objects.
+     * Saves a snapshot to the snapshot catalog for associating the BTRFS
+     * snapshot with our Snapshot objects.
      *
      * @param snapshot The snapshot to save
      * @throws IOException If something went wrong
@@ -348,7 +771,21 @@ public class BTRFS {
     public static void saveSnapshot(Snapshot snapshot) throws IOException {
         //Ensure we're initialized
         checkConfiguration();
-        MAPPER.writeValue(SNAPSHOT_ASSOCIATION_FOLDER.resolve(snapshot.getLocation().getFileName() + ".JSON").toFile(), snapshot);
+        catalog.append(snapshot);
+    }
+
+    /**
+     * Gets the snapshots of a subvolume created within a time range.
+     *
+     * @param subvolume The subvolume
+     * @param from The start of the range, inclusive
+     * @param to The end of the range, inclusive
+     * @return The snapshots, oldest first
+     */
+    public static List<Snapshot> getSnapshotsOf(Subvolume subvolume, ZonedDateTime from, ZonedDateTime to) {
+        //Ensure we're initialized
+        checkConfiguration();
+        return catalog.getSnapshotsOf(subvolume.getLocation(), from, to);
     }
 
     /**
@@ -361,7 +798,7 @@ public class BTRFS {
         //Ensure we're initialized
         checkConfiguration();
         var scriptPath = Files.createTempFile("Wandering Echo Snapshot Delete Script", ".sh");
-        var string = "btrfs subvolume delete -C ";
+        var string = stringInQuotes(BACKEND.getBTRFSCommand()) + " subvolume delete -C ";
         //Make the rest of the delete string SNAPFOLDER1/* SNAPFOLDER2/*
         string += SUBVOLUME_LIST.stream().map((subvolume) -> {
             try {
@@ -372,97 +809,534 @@ public class BTRFS {
             }
         }).distinct().collect(Collectors.joining(" ")) + (alsoBackups ? " " + BACKUP_FOLDER + "/*" : "");
         Files.write(scriptPath, string.getBytes(), StandardOpenOption.CREATE);
-        processOP(true, "bash", scriptPath.toString());
+        long start = System.nanoTime();
+        boolean failed = processOP(true, "bash", scriptPath.toString());
+        //One command deletes the snapshots of every subvolume, each gets its duration
+        long duration = System.nanoTime() - start;
+        SUBVOLUME_LIST.forEach(subvolume -> metrics.getSubvolume(subvolume.getLocation().toString())
+                .recordDelete(duration, !failed));
+        metrics.export();
     }
 
     /**
-     * Gets the previous snapshot of a certain subvolume.
+     * Turns all available snapshots (Including the @ and @home subvolumes into
+     * backups to a location of the user's choosing.
      *
-     * @param snapshot The snapshot to find the earlier version of
-     * @return The earlier version
+     * @throws java.io.IOException If something happened
      */
-    private static Snapshot detectPreviousBackupOf(Snapshot snapshot) {
-        try {
-            var pathStream = Files.list(ROOT_SNAPSHOT_FOLDER);
-            //Get all dates after the triple underscore & filter by name (if we're looking at @, only get @ subvolumes),
-            //also ifnore selected subvolume's snapshot
-            var snapshotList = pathStream.parallel().map(BTRFS::getStoredSnapshotNOE).filter(snap -> snap.getName()
-                    .equalsIgnoreCase(snapshot.getName()) && !snap.equals(snapshot)).collect(Collectors.toList());
-            //Sort by earliest creation date, we want the latest
-            snapshotList.sort((snap0, snap1) -> snap0.getCreationDate().compareTo(snap1.getCreationDate()));
-            //Get the latest creation date
-            return snapshotList.isEmpty() ? null : snapshotList.get(snapshotList.size() - 1);
-        } catch (IOException ex) {
-            Logger.getLogger(BTRFS.class.getName()).log(Level.SEVERE, null, ex);
-            throw new IllegalStateException(ex);
-        }
+    public static void commenceBackupOperation() throws IOException {
+        commenceBackupOperation(SUBVOLUME_LIST);
     }
 
     /**
-     * Turns all available snapshots (Including the @ and @home subvolumes into
-     * backups to a location of the user's choosing.
+     * Snapshots some of the subvolumes and backs them up to the backup folder
+     * and its mirrors. Mirrors on btrfs that need the same parent share one
+     * send stream, so each snapshot is read once however many copies are
+     * kept.
      *
+     * @param subvolumes The subvolumes
      * @throws java.io.IOException If something happened
      */
-    public static void commenceBackupOperation() throws IOException {
+    public static void commenceBackupOperation(List<Subvolume> subvolumes) throws IOException {
         checkConfiguration();
-        //Do Snapshots
-        var snapshots = new ArrayList<Snapshot>(SUBVOLUME_LIST.size());
-        SUBVOLUME_LIST.stream().parallel().map(subvolume -> subvolume.snapshot()).forEach(snapshot -> {
-            snapshots.add(snapshot);
-            snapshot.create();
-        });
-        var callableList = new ArrayList<Callable<Backup>>(3);
-        snapshots.stream().forEach(snapshot -> {
-            Snapshot parent = null;
-            //Ask User if there is a parent or not
-            var scanner = getSystemInputScanner();
-            LOG.info("Is there a parent for the snapshot of " + snapshot.getFullFileName() + " ? (Yes / Y / No / N)");
-            var response = scanner.nextLine();
-            if (response.equalsIgnoreCase("Yes") || response.equalsIgnoreCase("Y")) {
-                //Guess Parent
-                var guess = detectPreviousBackupOf(snapshot);
-                LOG.info("Is this parent correct?" + guess.getFullFileName());
-                response = scanner.nextLine();
-                if (response.equalsIgnoreCase("Yes") || response.equalsIgnoreCase("Y")) {
-                    parent = guess;
+        //Pick up drives mounted since the last run
+        MountTopology.system().refreshIfChanged();
+        var resolvers = new LinkedHashMap<Path, ParentResolver>();
+        for (var folder : getTargetFolders()) {
+            resolvers.put(folder, getTargetResolver(folder));
+        }
+        //Do Snapshots, unchanged subvolumes every target is up to date with are skipped
+        var snapshots = subvolumes.stream().parallel().map(subvolume -> {
+            var subvolumeMetrics = metrics.getSubvolume(subvolume.getLocation().toString());
+            var unchanged = runOptions.isFullSend() ? Optional.<Snapshot>empty() : findUnchangedSnapshot(subvolume);
+            if (unchanged.isEmpty()) {
+                return subvolumeMetrics.recordSnapshot(() -> subvolume.snapshot().create());
+            }
+            if (resolvers.values().stream().allMatch(resolver -> unchanged.equals(resolver.findNewestOnTarget(
+                    subvolume.getLocation(), catalog)))) {
+                LOG.info("UNCHANGED: " + subvolume.getLocation() + " is Backed Up as " + unchanged.get()
+                        + ", Skipping");
+                subvolumeMetrics.recordUnchanged();
+                resolvers.keySet().forEach(folder -> metrics.getStream(subvolume.getLocation().toString(),
+                        folder.toString()).recordUnchanged());
+                return null;
+            }
+            //Nothing new to snapshot, but a target doesn't have the latest one yet
+            LOG.info("UNCHANGED: " + subvolume.getLocation() + ", Sending " + unchanged.get());
+            return unchanged.get();
+        }).filter(Objects::nonNull).collect(Collectors.toList());
+        var streamCompression = getStreamCompression();
+        var archiveDedup = getArchiveDedup();
+        //Parents given on the command line, by the subvolume they are of
+        var chosenParents = new HashMap<Path, Snapshot>();
+        for (var parentLocation : runOptions.getParents()) {
+            var parent = getStoredSnapshot(parentLocation);
+            chosenParents.put(parent.getParentSubvolume().getLocation(), parent);
+        }
+        var archiveTargets = new HashSet<Path>();
+        for (var folder : resolvers.keySet()) {
+            if (SendArchive.isArchiveFolder(folder)) {
+                archiveTargets.add(folder);
+            }
+        }
+        //Built once every send is estimated, the largest sends go first
+        var taskBuilders = new ArrayList<LongFunction<DeviceTask<List<Backup>>>>(snapshots.size());
+        //The subvolume, the snapshot and parent, and the folders of each task
+        var taskSubvolumes = new ArrayList<Path>(snapshots.size());
+        var taskSends = new ArrayList<List<Snapshot>>(snapshots.size());
+        var taskFolders = new ArrayList<List<Path>>(snapshots.size());
+        for (var snapshot : snapshots) {
+            var subvolumeLocation = snapshot.getParentSubvolume().getLocation();
+            var sourceDevice = DeviceScheduler.getDiskOf(subvolumeLocation);
+            //Received targets sharing a parent share a send, archives are written one by one
+            var receivedByParent = new LinkedHashMap<Optional<Snapshot>, List<Path>>();
+            for (var entry : resolvers.entrySet()) {
+                var folder = entry.getKey();
+                var resolver = entry.getValue();
+                if (resolver.findNewestOnTarget(subvolumeLocation, catalog).equals(Optional.of(snapshot))) {
+                    //An unchanged subvolume this target is already up to date with
+                    continue;
+                }
+                //Send incrementally against the newest snapshot the target already holds, full send if none
+                var parent = runOptions.isFullSend() ? null : chosenParents.containsKey(subvolumeLocation)
+                        ? chosenParents.get(subvolumeLocation) : resolver.resolve(snapshot, catalog).orElse(null);
+                if (archiveTargets.contains(folder)) {
+                    //Add to List of Tasks to Launch, queued behind other tasks on the same disks, largest first
+                    var targetDevices = List.of(DeviceScheduler.getDiskOf(folder));
+                    taskBuilders.add(estimate -> new DeviceTask<>(sourceDevice, targetDevices, estimate,
+                            () -> logSent(snapshot, estimate, List.of(sendTo(snapshot, parent, folder, true,
+                            streamCompression, archiveDedup)))));
+                    taskSubvolumes.add(subvolumeLocation);
+                    taskSends.add(Arrays.asList(snapshot, parent));
+                    taskFolders.add(List.of(folder));
                 } else {
-                    parent = BTRFS.getStoredSnapshotNOE(UI.getDirectory("Choose an Already Existing Snapshot",
-                            ROOT_SNAPSHOT_FOLDER).orElse(null));
+                    receivedByParent.computeIfAbsent(Optional.ofNullable(parent), key -> new ArrayList<>())
+                            .add(folder);
+                }
+            }
+            for (var entry : receivedByParent.entrySet()) {
+                var parent = entry.getKey().orElse(null);
+                var folders = entry.getValue();
+                var targetDevices = new ArrayList<String>(folders.size());
+                for (var folder : folders) {
+                    targetDevices.add(DeviceScheduler.getDiskOf(folder));
                 }
+                taskBuilders.add(estimate -> new DeviceTask<>(sourceDevice, targetDevices, estimate,
+                        () -> logSent(snapshot, estimate, folders.size() == 1 ? List.of(sendTo(snapshot, parent,
+                        folders.get(0), false, streamCompression, null)) : fanOutTo(snapshot, parent, folders))));
+                taskSubvolumes.add(subvolumeLocation);
+                taskSends.add(Arrays.asList(snapshot, parent));
+                taskFolders.add(folders);
             }
-            //Don' need to find parent, null is ok
-            final var localParent = parent;
-            //Add to List of Tasks to Launch
-            callableList.add(() -> snapshot.backup(localParent, BACKUP_FOLDER));
-        });
+        }
+        var failed = new LinkedHashSet<Path>();
         try {
+            var estimates = estimateSends(taskSends, taskFolders);
+            var taskList = new ArrayList<DeviceTask<List<Backup>>>(taskBuilders.size());
+            for (int i = 0; i < taskBuilders.size(); i++) {
+                taskList.add(taskBuilders.get(i).apply(estimates[i]));
+            }
             //Execute List of Tasks
-            executor.invokeAll(callableList);
+            var futures = scheduler.invokeAll(taskList);
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException ex) {
+                    //Counted as a failure, the other backups still went
+                    Logger.getLogger(BTRFS.class.getName()).log(Level.SEVERE, "BACKUP: " + taskSubvolumes.get(i)
+                            + " Failed", ex.getCause());
+                    failed.add(taskSubvolumes.get(i));
+                }
+            }
         } catch (InterruptedException ex) {
             Logger.getLogger(BTRFS.class.getName()).log(Level.SEVERE, null, ex);
             throw new IllegalStateException("We've been interrupted while waiting for the BTRFS backup tasks to complete!", ex);
+        } finally {
+            metrics.export();
+        }
+        //The data is on the target, old snapshots are deleted in the background
+        pruneSnapshots(failed);
+        if (!failed.isEmpty()) {
+            throw new IllegalStateException("Backup of " + failed.stream().map(Path::toString)
+                    .collect(Collectors.joining(", ")) + " failed");
+        }
+    }
+
+    /**
+     * Estimates how long the send streams of snapshots will be, so the
+     * largest sends can be started first. An incremental send is estimated by
+     * the stream of the last backup of the subvolume to its folders. A full
+     * send, or one without a recorded backup, is estimated by a send without
+     * data. Those run at once, as many per source disk as backups may, each
+     * given up on after {@link SendSizeEstimator#TIMEOUT_SECONDS}.
+     *
+     * @param sends The snapshot and the parent of each send, null for a full
+     * send
+     * @param folders The folders each send goes to
+     * @return The estimate of each send in bytes, 0 if there is none
+     * @throws IOException If the disk of a snapshot couldn't be resolved
+     * @throws InterruptedException If we were interrupted while estimating
+     */
+    private static long[] estimateSends(List<List<Snapshot>> sends, List<List<Path>> folders)
+            throws IOException, InterruptedException {
+        var estimates = new long[sends.size()];
+        var sources = new String[sends.size()];
+        //Sends without data, once per send, targets sharing a parent would estimate the same stream
+        var probes = new LinkedHashMap<List<Snapshot>, DeviceTask<Long>>();
+        for (int i = 0; i < sends.size(); i++) {
+            var snapshot = sends.get(i).get(0);
+            var parent = sends.get(i).get(1);
+            var subvolume = snapshot.getParentSubvolume().getLocation();
+            estimates[i] = parent == null ? 0 : folders.get(i).stream().map(folder -> catalog.getLatestBackupOf(
+                    folder.toString(), subvolume)).flatMap(Optional::stream).map(Backup::getStreamBytes)
+                    .filter(OptionalLong::isPresent).mapToLong(OptionalLong::getAsLong).max().orElse(0);
+            sources[i] = "Last Backup";
+            if (estimates[i] == 0 && !probes.containsKey(sends.get(i))) {
+                probes.put(sends.get(i), new DeviceTask<>(DeviceScheduler.getDiskOf(subvolume),
+                        () -> snapshot.estimateSend(parent)));
+            }
+        }
+        var futures = scheduler.invokeAll(new ArrayList<>(probes.values()));
+        var probed = new HashMap<List<Snapshot>, Long>();
+        var keys = new ArrayList<>(probes.keySet());
+        for (int i = 0; i < keys.size(); i++) {
+            try {
+                probed.put(keys.get(i), futures.get(i).get());
+            } catch (ExecutionException ex) {
+                LOG.warning("ESTIMATE: Couldn't Estimate " + keys.get(i).get(0) + " Without Data: "
+                        + ex.getCause().getMessage());
+            }
+        }
+        for (int i = 0; i < sends.size(); i++) {
+            if (probes.containsKey(sends.get(i))) {
+                estimates[i] = probed.getOrDefault(sends.get(i), 0L);
+                sources[i] = probed.containsKey(sends.get(i)) ? "Send Without Data" : "Unknown";
+            }
+            LOG.info(String.format("ESTIMATE: %s to %s, %,d Bytes (%s)", sends.get(i).get(0), folders.get(i),
+                    estimates[i], sources[i]));
+        }
+        return estimates;
+    }
+
+    /**
+     * Logs how long the stream of a send was next to its estimate.
+     *
+     * @param snapshot The snapshot that was sent
+     * @param estimate The estimate in bytes
+     * @param backups The backups the send made
+     * @return The backups
+     */
+    private static List<Backup> logSent(Snapshot snapshot, long estimate, List<Backup> backups) {
+        backups.stream().map(Backup::getStreamBytes).filter(OptionalLong::isPresent)
+                .mapToLong(OptionalLong::getAsLong).max().ifPresent(sent -> LOG.info(String.format(
+                "ESTIMATE: %s Sent %,d Bytes, %,d Estimated", snapshot, sent, estimate)));
+        return backups;
+    }
+
+    /**
+     * Sends a snapshot to one folder and records the stream in the metrics.
+     *
+     * @param snapshot The snapshot to send
+     * @param parent The parent to send against, null for a full send
+     * @param folder The folder to send it to
+     * @param archive Whether the folder gets archives instead of received
+     * subvolumes
+     * @param compression How to compress archives, may be null
+     * @param dedup How to deduplicate archives, null to write segments
+     * @return The backup, also recorded in the catalog
+     * @throws Exception If the send failed
+     */
+    private static Backup sendTo(Snapshot snapshot, Snapshot parent, Path folder, boolean archive,
+            CompressionSettings compression, DedupSettings dedup) throws Exception {
+        var streamMetrics = metrics.getStream(snapshot.getParentSubvolume().getLocation().toString(),
+                folder.toString());
+        var meteredBuckets = streamMetrics.meter(throttle.getBuckets(folder.toString()));
+        var backup = streamMetrics.recordSend(() -> archive ? snapshot.archive(parent, folder, compression, dedup,
+                meteredBuckets) : snapshot.backup(parent, folder, meteredBuckets));
+        catalog.appendBackup(folder.toString(), backup);
+        return backup;
+    }
+
+    /**
+     * Sends a snapshot once and receives it in several folders. A folder the
+     * tee detached for falling behind is sent the snapshot again on its own
+     * once the others are done.
+     *
+     * @param snapshot The snapshot to send
+     * @param parent The parent to send against, every folder holds it, null
+     * for a full send
+     * @param folders The folders to receive it in
+     * @return The backups, also recorded in the catalog
+     * @throws Exception If the backup to a folder failed, after the others
+     * were done
+     */
+    private static List<Backup> fanOutTo(Snapshot snapshot, Snapshot parent, List<Path> folders) throws Exception {
+        var streams = new ArrayList<StreamMetrics>(folders.size());
+        var throttles = new ArrayList<List<TokenBucket>>(folders.size());
+        for (var folder : folders) {
+            var streamMetrics = metrics.getStream(snapshot.getParentSubvolume().getLocation().toString(),
+                    folder.toString());
+            streams.add(streamMetrics);
+            throttles.add(streamMetrics.meter(throttle.getBuckets(folder.toString())));
+        }
+        var created = ZonedDateTime.now();
+        var starts = streams.stream().mapToLong(StreamMetrics::startSend).toArray();
+        List<TransferResult> results;
+        try {
+            results = snapshot.backup(parent, folders, throttles, fanOut);
+        } catch (RuntimeException ex) {
+            for (int i = 0; i < streams.size(); i++) {
+                streams.get(i).finishSend(starts[i], false);
+            }
+            throw ex;
+        }
+        var backups = new ArrayList<Backup>(folders.size());
+        var detached = new ArrayList<Integer>();
+        var failures = new ArrayList<String>();
+        for (int i = 0; i < folders.size(); i++) {
+            var result = results.get(i);
+            if (result.isDetached()) {
+                detached.add(i);
+                continue;
+            }
+            streams.get(i).finishSend(starts[i], result.isSuccessful());
+            if (result.isSuccessful()) {
+                backups.add(new Backup(folders.get(i), snapshot, created, result.getBytes(),
+                        result.getChecksum().getAsLong()));
+            } else {
+                failures.add(folders.get(i) + ": " + result);
+                try {
+                    snapshot.discardPartialBackup(folders.get(i));
+                } catch (RuntimeException ex) {
+                    failures.add(ex.getMessage());
+                }
+            }
+        }
+        for (int i : detached) {
+            var folder = folders.get(i);
+            var buckets = throttles.get(i);
+            LOG.info("TEE: " + folder + " Fell Behind, Sending " + snapshot + " to it on its Own");
+            try {
+                snapshot.discardPartialBackup(folder);
+                backups.add(snapshot.backup(parent, folder, buckets));
+                streams.get(i).finishSend(starts[i], true);
+            } catch (RuntimeException ex) {
+                streams.get(i).finishSend(starts[i], false);
+                failures.add(folder + ": " + ex.getMessage());
+            }
+        }
+        for (var backup : backups) {
+            catalog.appendBackup(backup.getLocation().toString(), backup);
+        }
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Backup of " + snapshot + " failed: " + String.join(", ", failures));
+        }
+        return backups;
+    }
+
+    /**
+     * Finds the latest snapshot of a subvolume if the subvolume didn't change
+     * since it was taken, its generation didn't go past the one the snapshot
+     * was created in.
+     *
+     * @param subvolume The subvolume
+     * @return The snapshot, empty if the subvolume changed or we can't tell
+     */
+    private static Optional<Snapshot> findUnchangedSnapshot(Subvolume subvolume) {
+        var latest = catalog.getLatestSnapshotOf(subvolume.getLocation(), null).filter(snapshot
+                -> snapshot.getGeneration() >= 0 && Files.isDirectory(snapshot.getLocation()));
+        if (latest.isEmpty()) {
+            return latest;
+        }
+        try {
+            long generation = SubvolumeInfo.of(subvolume.getLocation()).getGeneration();
+            return generation >= 0 && generation <= latest.get().getGeneration() ? latest : Optional.empty();
+        } catch (IOException ex) {
+            Logger.getLogger(BTRFS.class.getName()).log(Level.WARNING, "Couldn't read the generation of "
+                    + subvolume.getLocation() + ", taking a snapshot", ex);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Gets the folders every backup goes to: the backup folder, then the
+     * mirror folders that are there. A mirror on a drive that isn't plugged in
+     * is skipped and catches up the next time it is.
+     *
+     * @return The folders
+     */
+    private static List<Path> getTargetFolders() {
+        var folders = new ArrayList<Path>(List.of(BACKUP_FOLDER));
+        for (var mirror : mirrorFolders) {
+            if (Files.isDirectory(mirror)) {
+                folders.add(mirror);
+            } else {
+                LOG.warning("Mirror Folder " + mirror + " isn't there, Skipping it");
+            }
+        }
+        return folders;
+    }
+
+    /**
+     * Gets the backup folder and every mirror folder, whether they are there
+     * or not.
+     *
+     * @return The folders
+     */
+    private static List<Path> getConfiguredTargetFolders() {
+        var folders = new ArrayList<Path>(List.of(BACKUP_FOLDER));
+        folders.addAll(mirrorFolders);
+        return folders;
+    }
+
+    /**
+     * Gets the resolver of the snapshots a backup folder holds.
+     *
+     * @param folder The backup folder
+     * @return The resolver
+     * @throws IOException If the backup folder couldn't be listed
+     */
+    private static ParentResolver getTargetResolver(Path folder) throws IOException {
+        return SendArchive.isArchiveFolder(folder) ? ParentResolver.forArchive(folder)
+                : ParentResolver.forTarget(folder);
+    }
+
+    /**
+     * Queues the snapshots the retention policy doesn't keep for the cleaner,
+     * which deletes them in the background. The newest snapshot of each
+     * subvolume the backup folder, each mirror and each remote target holds
+     * is kept, the next backup is sent against it. For a mirror that isn't
+     * there or a remote that can't be reached, that is the newest backup the
+     * catalog recorded for it, and a subvolume isn't pruned at all if such a
+     * target has no recorded backups to tell. Does nothing without a policy,
+     * or if the backup folder isn't there to tell which snapshots it holds.
+     *
+     * @throws IOException If something happened
+     */
+    public static void pruneSnapshots() throws IOException {
+        pruneSnapshots(Set.of());
+    }
+
+    /**
+     * Queues the snapshots the retention policy doesn't keep for the cleaner,
+     * except those of subvolumes whose backup just failed: a target may not
+     * hold what it was sent, the snapshots are left until a backup succeeds.
+     *
+     * @param skipped The locations of the subvolumes not to prune
+     * @throws IOException If something happened
+     */
+    private static void pruneSnapshots(Set<Path> skipped) throws IOException {
+        //Ensure we're initialized
+        checkConfiguration();
+        if (retention == null) {
+            LOG.info("No Retention Policy, Keeping Every Snapshot");
+            return;
+        }
+        if (!Files.isDirectory(BACKUP_FOLDER)) {
+            LOG.warning("PRUNE: " + BACKUP_FOLDER + " isn't there, can't tell which snapshots it needs, not pruning");
+            return;
+        }
+        var parents = new HashSet<Path>();
+        var unknown = new HashSet<Path>(skipped);
+        for (var folder : getConfiguredTargetFolders()) {
+            try {
+                if (!Files.isDirectory(folder)) {
+                    throw new IOException(folder + " isn't there");
+                }
+                var resolver = getTargetResolver(folder);
+                SUBVOLUME_LIST.forEach(subvolume -> resolver.findNewestOnTarget(subvolume.getLocation(), catalog)
+                        .ifPresent(parent -> parents.add(parent.getLocation())));
+            } catch (IOException ex) {
+                //A mirror that isn't plugged in catches up later, against the parent it holds
+                keepRecordedParents(folder.toString(), ex.getMessage(), parents, unknown);
+            }
+        }
+        if (!remoteTargets.isEmpty()) {
+            try ( var sender = new RemoteSender()) {
+                for (var target : remoteTargets) {
+                    try {
+                        var resolver = sender.getResolver(target);
+                        SUBVOLUME_LIST.forEach(subvolume -> resolver.findNewestOnTarget(subvolume.getLocation(),
+                                catalog).ifPresent(parent -> parents.add(parent.getLocation())));
+                    } catch (IOException ex) {
+                        keepRecordedParents(target.getName(), ex.getMessage(), parents, unknown);
+                    }
+                }
+            }
+        }
+        var subvolumes = SUBVOLUME_LIST.stream().filter(subvolume -> !unknown.contains(subvolume.getLocation()))
+                .collect(Collectors.toList());
+        skipped.forEach(subvolume -> LOG.warning("PRUNE: Keeping Every Snapshot of " + subvolume
+                + ", its Backup Failed"));
+        unknown.stream().filter(subvolume -> !skipped.contains(subvolume)).forEach(subvolume -> LOG.warning(
+                "PRUNE: Keeping Every Snapshot of " + subvolume + ", a Target's Parent for it is Unknown"));
+        var plan = SnapshotPruner.plan(catalog, subvolumes, retention, parents, ZoneId.systemDefault());
+        if (!plan.isEmpty()) {
+            cleaner.enqueue(plan.values().stream().flatMap(List::stream).collect(Collectors.toList()));
+        }
+    }
+
+    /**
+     * Keeps the parents a target that can't be listed was last sent, as the
+     * catalog recorded them. A subvolume the catalog doesn't know for such a
+     * target isn't pruned, if the target was ever backed up to before backups
+     * were recorded.
+     *
+     * @param target The name of the target
+     * @param reason Why it couldn't be listed
+     * @param parents The locations of the snapshots to keep
+     * @param unknown The locations of the subvolumes not to prune
+     */
+    private static void keepRecordedParents(String target, String reason, Set<Path> parents, Set<Path> unknown) {
+        boolean recorded = catalog.getBackupTargets().contains(target);
+        LOG.warning("PRUNE: Couldn't list " + target + ", " + (recorded ? "Keeping its Recorded Parents: "
+                : "No Backups Recorded for it: ") + reason);
+        for (var subvolume : SUBVOLUME_LIST) {
+            var backup = catalog.getLatestBackupOf(target, subvolume.getLocation());
+            if (backup.isPresent()) {
+                parents.add(backup.get().getParentSnapshot().getLocation());
+            } else if (!recorded) {
+                //It may hold a parent from before the catalog recorded backups
+                unknown.add(subvolume.getLocation());
+            }
+        }
+    }
+
+    /**
+     * Waits until the cleaner deleted every queued snapshot and btrfs cleaned
+     * them up.
+     */
+    public static void awaitSnapshotCleanup() {
+        //Ensure we're initialized
+        checkConfiguration();
+        try {
+            cleaner.awaitIdle();
+        } catch (InterruptedException ex) {
+            Logger.getLogger(BTRFS.class.getName()).log(Level.SEVERE, null, ex);
+            throw new IllegalStateException("We've been interrupted while waiting for the snapshot cleaner!", ex);
         }
     }
 
     /**
      * Configures a subvolume's drive for snapshots and returns the directory of
-     * the snapshots folder.Creates the snapshots directory on the drive.
+     * the snapshots folder. Creates the snapshots directory on the drive the
+     * first time it is asked for. The drive is looked up in the cached mount
+     * table, no process is started.
      *
      * @param subvolume The folder on the hard drive to configure
      * @return The location of the Snapshots folder
      * @throws java.io.IOException
      */
     public static Path configureSnapshotFilesystem(Subvolume subvolume) throws IOException {
-        //We want to get the parent because this command has a strange output ON the subvolume itself
-        //Command: df --output=target /media/sarah/drive/Snapshots
-        try ( var scanner = getProcessInputScanner(processOPNoWait(false, "df", "--output=target",
-                subvolume.getLocation().getParent().toString()))) {
-            //Throw out first line, not helpful information, the path is on the second
-            scanner.nextLine();
-            Path localFilesystemRoot = Paths.get(scanner.nextLine());
-            return Files.createDirectories(localFilesystemRoot.resolve("Snapshots"));
+        //We want to get the parent because the mount point of a mounted subvolume is the subvolume itself
+        //A simulation has no filesystem of its own, the folder of the subvolume stands in for it
+        var localFilesystemRoot = BACKEND.isSimulated() ? subvolume.getLocation().getParent()
+                : MountTopology.system().getMountOf(subvolume.getLocation().getParent()).getMountPoint();
+        var snapshotFolder = localFilesystemRoot.resolve("Snapshots");
+        if (SNAPSHOT_FOLDERS.add(snapshotFolder)) {
+            Files.createDirectories(snapshotFolder);
         }
+        return snapshotFolder;
     }
 
     /**
@@ -478,34 +1352,64 @@ public class BTRFS {
         //Check if filesystem mounted, if so, unmount
         if (ROOT_FILESYSTEM_MOUNTED.get()) {
             processOP("umount", MOUNTING_FOLDER.toString());
+            MountTopology.system().refreshIfChanged();
             LOG.info("Filesystem Unmounted!");
         }
     }
 
     /**
-     * Mounts the root filesystem or does nothing if already mounted
+     * Mounts the root filesystem or does nothing if already mounted. A
+     * simulation creates the @ and @home folders instead.
      *
      * @throws java.io.IOException If something went wrong
      */
     public static void mountRootFilesystem() throws IOException {
+        if (BACKEND.isSimulated()) {
+            //The stand-in snapshots plain folders
+            Files.createDirectories(MOUNTING_FOLDER.resolve("@"));
+            Files.createDirectories(MOUNTING_FOLDER.resolve("@home"));
+            return;
+        }
         if (!ROOT_FILESYSTEM_MOUNTED.get()) {
-            //Command: findmnt / -o UUID
-            var process = processOPNoWait(false, "findmnt", "/", "-o", "UUID");
-            var scanner = new Scanner(process.getInputStream());
-            //What we want is on second line
-            scanner.nextLine();
-            String rootUUID = scanner.nextLine();
+            var topology = MountTopology.system();
+            var rootUUID = topology.getMountOf(Paths.get("/")).getUuid().orElse(null);
+            if (rootUUID == null) {
+                //No udev links or btrfs sysfs entry for the root device, ask findmnt
+                rootUUID = findRootUUID();
+            }
             LOG.info("Mounting Scanner Root ID = " + rootUUID);
+            //Still mounted from an earlier run?
+            var existingMount = topology.getMountAt(MOUNTING_FOLDER);
+            if (existingMount.isPresent() && rootUUID.equals(existingMount.get().getUuid().orElse(null))) {
+                LOG.info("Filesystem Already Mounted!");
+                return;
+            }
             //Mount by UUID
-            process = processOPNoWait(false, "mount", "-U", rootUUID, MOUNTING_FOLDER.toString());
-            scanner = new Scanner(process.getErrorStream());
+            var process = processOPNoWait(false, "mount", "-U", rootUUID, MOUNTING_FOLDER.toString());
+            var scanner = new Scanner(process.getErrorStream());
             while (scanner.hasNextLine()) {
                 LOG.info(scanner.nextLine());
             }
+            topology.refreshIfChanged();
             LOG.info("Filesystem Mounted!");
         }
     }
 
+    /**
+     * Gets the UUID of the root filesystem from findmnt.
+     *
+     * @return The UUID
+     * @throws IOException If findmnt couldn't be run
+     */
+    private static String findRootUUID() throws IOException {
+        //Command: findmnt / -o UUID
+        try ( var scanner = getProcessInputScanner(processOPNoWait(false, "findmnt", "/", "-o", "UUID"))) {
+            //What we want is on second line
+            scanner.nextLine();
+            return scanner.nextLine().trim();
+        }
+    }
+
     /**
      * Gets the subvolume list that was saved earlier.
      *
@@ -534,14 +1438,52 @@ public class BTRFS {
         private final Path typicalBackupLocation;
         @JsonProperty
         private final BackupMap backupMap;
+        @JsonProperty
+        private final DeviceLimits deviceLimits;
+        @JsonProperty
+        private final CompressionSettings compression;
+        @JsonProperty
+        private final RetentionPolicy retention;
+        @JsonProperty
+        private final BackupSchedules schedules;
+        @JsonProperty
+        private final List<Path> mirrorFolders;
+        @JsonProperty
+        private final FanOutSettings fanOut;
+        @JsonProperty
+        private final List<RemoteTarget> remoteTargets;
+        @JsonProperty
+        private final DedupSettings dedup;
 
         @JsonCreator
         BTRFSConfig(@JsonProperty(value = "subvolumes") SubvolumeList subvolumes,
                 @JsonProperty(value = "typicalBackupLocation") Path typicalBackupLocation,
-                @JsonProperty(value = "backupMap") BackupMap backupMap) {
+                @JsonProperty(value = "backupMap") BackupMap backupMap,
+                @JsonProperty(value = "deviceLimits") DeviceLimits deviceLimits,
+                @JsonProperty(value = "compression") CompressionSettings compression,
+                @JsonProperty(value = "retention") RetentionPolicy retention,
+                @JsonProperty(value = "schedules") BackupSchedules schedules,
+                @JsonProperty(value = "mirrorFolders") List<Path> mirrorFolders,
+                @JsonProperty(value = "fanOut") FanOutSettings fanOut,
+                @JsonProperty(value = "remoteTargets") List<RemoteTarget> remoteTargets,
+                @JsonProperty(value = "dedup") DedupSettings dedup) {
             this.subvolumes = subvolumes;
             this.typicalBackupLocation = typicalBackupLocation;
             this.backupMap = backupMap;
+            //Older config files don't have limits yet
+            this.deviceLimits = deviceLimits == null ? new DeviceLimits() : deviceLimits;
+            this.compression = compression;
+            //Older config files keep every snapshot
+            this.retention = retention;
+            //Older config files back up every subvolume hourly in the daemon
+            this.schedules = schedules == null ? new BackupSchedules() : schedules;
+            //Older config files have no mirrors
+            this.mirrorFolders = mirrorFolders == null ? List.of() : List.copyOf(mirrorFolders);
+            this.fanOut = fanOut == null ? new FanOutSettings() : fanOut;
+            //Older config files send nothing over ssh
+            this.remoteTargets = remoteTargets == null ? List.of() : List.copyOf(remoteTargets);
+            //Older config files write archives as segments
+            this.dedup = dedup == null ? new DedupSettings() : dedup;
         }
 
         /**
@@ -571,6 +1513,78 @@ public class BTRFS {
             return this.backupMap;
         }
 
+        /**
+         * Gets the per disk concurrency limits.
+         *
+         * @return The limits
+         */
+        public DeviceLimits getDeviceLimits() {
+            return this.deviceLimits;
+        }
+
+        /**
+         * Gets how streams leaving this machine are compressed.
+         *
+         * @return The compression, null if streams aren't compressed
+         */
+        public CompressionSettings getCompression() {
+            return this.compression;
+        }
+
+        /**
+         * Gets how long snapshots are kept.
+         *
+         * @return The retention policy, null to keep every snapshot
+         */
+        public RetentionPolicy getRetention() {
+            return this.retention;
+        }
+
+        /**
+         * Gets when the daemon backs up each subvolume.
+         *
+         * @return The schedules
+         */
+        public BackupSchedules getSchedules() {
+            return this.schedules;
+        }
+
+        /**
+         * Gets the folders that get a copy of every backup.
+         *
+         * @return The mirror folders
+         */
+        public List<Path> getMirrorFolders() {
+            return this.mirrorFolders;
+        }
+
+        /**
+         * Gets how one send stream is copied to several folders.
+         *
+         * @return The fan out settings
+         */
+        public FanOutSettings getFanOut() {
+            return this.fanOut;
+        }
+
+        /**
+         * Gets the folders on other machines that get backups over ssh.
+         *
+         * @return The remote targets
+         */
+        public List<RemoteTarget> getRemoteTargets() {
+            return this.remoteTargets;
+        }
+
+        /**
+         * Gets whether and how archive targets are deduplicated.
+         *
+         * @return The dedup settings
+         */
+        public DedupSettings getDedup() {
+            return this.dedup;
+        }
+
     }
 
     /**
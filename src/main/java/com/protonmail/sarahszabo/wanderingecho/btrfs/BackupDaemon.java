@@ -0,0 +1,146 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.schedule.BackupSchedules;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Subvolume;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+/**
+ * Keeps running and backs up each subvolume on its schedule, so the
+ * configuration, the snapshot catalog and the mount table are loaded once
+ * instead of once per backup. Subvolumes due at the same time are backed up
+ * together, sharing the device limits like a normal backup. Backups run one
+ * after another, a subvolume that is due while its last backup still runs or
+ * waits skips that turn.
+ * <p>
+ * Missed times, e.g. while the machine was asleep, are made up for by a
+ * single backup.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class BackupDaemon {
+
+    /**
+     * The longest the daemon sleeps at once, so changes of the system clock
+     * are noticed.
+     */
+    private static final Duration MAX_SLEEP = Duration.ofMinutes(1);
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(BackupDaemon.class.getName());
+
+    private final List<Subvolume> subvolumes;
+    private final BackupSchedules schedules;
+    private final ZoneId zone;
+    private final ExecutorService jobs = Executors.newSingleThreadExecutor(new BasicThreadFactory.Builder()
+            .namingPattern("Wandering Echo Daemon Backup Thread %d").build());
+
+    /**
+     * The locations of the subvolumes with a backup running or waiting to run.
+     */
+    private final Set<Path> busy = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates a new daemon.
+     *
+     * @param subvolumes The subvolumes to back up
+     * @param schedules When to back them up
+     * @param zone The time zone the schedules are in
+     */
+    public BackupDaemon(List<Subvolume> subvolumes, BackupSchedules schedules, ZoneId zone) {
+        this.subvolumes = new ArrayList<>(subvolumes);
+        this.schedules = schedules;
+        this.zone = zone;
+    }
+
+    /**
+     * Runs the schedules until interrupted. BTRFS must be configured.
+     *
+     * @throws InterruptedException If interrupted
+     */
+    public void run() throws InterruptedException {
+        if (this.subvolumes.isEmpty()) {
+            LOG.warning("DAEMON: No Subvolumes to Back Up");
+            return;
+        }
+        var now = ZonedDateTime.now(this.zone);
+        //By location, subvolumes sharing a snapshot folder are equal
+        var nextRuns = new LinkedHashMap<Path, ZonedDateTime>();
+        for (var subvolume : this.subvolumes) {
+            var schedule = this.schedules.getScheduleFor(subvolume.getLocation());
+            nextRuns.put(subvolume.getLocation(), schedule.next(now));
+            LOG.info("DAEMON: " + subvolume.getLocation() + " on " + schedule + ", next at "
+                    + nextRuns.get(subvolume.getLocation()));
+        }
+        try {
+            while (true) {
+                var soonest = nextRuns.values().stream().min(ZonedDateTime::compareTo).get();
+                var wait = Duration.between(ZonedDateTime.now(this.zone), soonest);
+                if (!wait.isNegative() && !wait.isZero()) {
+                    Thread.sleep(wait.compareTo(MAX_SLEEP) > 0 ? MAX_SLEEP.toMillis() : Math.max(1, wait.toMillis()));
+                    continue;
+                }
+                now = ZonedDateTime.now(this.zone);
+                var due = new ArrayList<Subvolume>();
+                for (var subvolume : this.subvolumes) {
+                    var location = subvolume.getLocation();
+                    if (nextRuns.get(location).isAfter(now)) {
+                        continue;
+                    }
+                    nextRuns.put(location, this.schedules.getScheduleFor(location).next(now));
+                    if (this.busy.add(location)) {
+                        due.add(subvolume);
+                    } else {
+                        LOG.warning("DAEMON: " + location + " is Still Backing Up, Skipping This Turn");
+                    }
+                }
+                if (!due.isEmpty()) {
+                    this.jobs.execute(() -> backUp(due));
+                }
+            }
+        } finally {
+            this.jobs.shutdownNow();
+        }
+    }
+
+    /**
+     * Backs up subvolumes, a failed backup is logged and the daemon goes on.
+     *
+     * @param due The subvolumes to back up
+     */
+    private void backUp(List<Subvolume> due) {
+        try {
+            LOG.info("DAEMON: Backing Up " + due.stream().map(subvolume -> subvolume.getLocation().toString())
+                    .collect(Collectors.joining(", ")));
+            long start = System.nanoTime();
+            BTRFS.commenceBackupOperation(due);
+            LOG.info("DAEMON: Backed Up " + due.size() + " Subvolumes in "
+                    + Duration.ofNanos(System.nanoTime() - start).toSeconds() + " s");
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(BackupDaemon.class.getName()).log(Level.SEVERE, "Scheduled backup failed", ex);
+        } finally {
+            due.forEach(subvolume -> this.busy.remove(subvolume.getLocation()));
+        }
+    }
+}
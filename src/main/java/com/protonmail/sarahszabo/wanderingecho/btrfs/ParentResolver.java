@@ -0,0 +1,270 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.archive.SendArchive;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.catalog.SnapshotCatalog;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Snapshot;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.SubvolumeInfo;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.topology.MountTopology;
+import com.protonmail.sarahszabo.wanderingecho.util.EchoUtil;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Picks the parent for an incremental send without asking anyone. A snapshot
+ * can be the parent if it still exists on the source and the target holds a
+ * subvolume received from it, which btrfs records as the received UUID of the
+ * target subvolume. The newest such snapshot wins; without one, a full send is
+ * needed.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class ParentResolver {
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(ParentResolver.class.getName());
+
+    private final Set<String> receivedUuids;
+
+    /**
+     * Creates a new resolver for a target that holds subvolumes received with
+     * these UUIDs.
+     *
+     * @param receivedUuids The received UUIDs on the target
+     */
+    public ParentResolver(Set<String> receivedUuids) {
+        this.receivedUuids = Set.copyOf(receivedUuids);
+    }
+
+    /**
+     * Creates a resolver for a backup folder by listing the received UUIDs of
+     * the subvolumes in it. btrfs lists every subvolume on its filesystem, so
+     * only those below the folder count, a mirror on the same filesystem
+     * doesn't hold what the other folder does.
+     *
+     * @param backupFolder The folder backups are received into
+     * @return The resolver
+     * @throws IOException If btrfs couldn't be run
+     */
+    public static ParentResolver forTarget(Path backupFolder) throws IOException {
+        var folder = backupFolder.toRealPath();
+        var mount = MountTopology.system().getMountOf(folder);
+        //Command: btrfs subvolume list -R "BACKUP FOLDER"
+        return forListing(List.of("btrfs", "subvolume", "list", "-R", backupFolder.toString()),
+                backupFolder.toString(), getListedPath(mount.getMountPoint(), mount.getRoot(), folder));
+    }
+
+    /**
+     * Gets the path of a folder as btrfs subvolume list prints it, relative to
+     * the top level of its filesystem.
+     *
+     * @param mountPoint Where the filesystem is mounted
+     * @param mountRoot The subvolume or folder of the filesystem mounted
+     * there, as the mount table has it
+     * @param folder The folder, without symbolic links
+     * @return The path, empty for the top level
+     */
+    public static String getListedPath(Path mountPoint, String mountRoot, Path folder) {
+        var root = Paths.get("/", mountRoot).resolve(mountPoint.relativize(folder)).normalize();
+        return Paths.get("/").relativize(root).toString();
+    }
+
+    /**
+     * Creates a resolver from the output of a command that lists the received
+     * UUIDs of the subvolumes on a target like btrfs subvolume list -R does,
+     * e.g. that command run on a remote host.
+     *
+     * @param listCommand The command to run
+     * @param target The name of the target, for the log
+     * @return The resolver
+     * @throws IOException If the command couldn't be run
+     */
+    public static ParentResolver forListing(List<String> listCommand, String target) throws IOException {
+        return forListing(listCommand, target, "");
+    }
+
+    /**
+     * Creates a resolver from the output of a command that lists the received
+     * UUIDs of the subvolumes on a target like btrfs subvolume list -R does,
+     * counting only the subvolumes below a folder.
+     *
+     * @param listCommand The command to run
+     * @param target The name of the target, for the log
+     * @param folder The path of the folder as the listing prints it, see
+     * {@link #getListedPath(Path, String, Path)}, empty for every subvolume
+     * @return The resolver
+     * @throws IOException If the command couldn't be run
+     */
+    public static ParentResolver forListing(List<String> listCommand, String target, String folder)
+            throws IOException {
+        //Output: ID 258 gen 9 top level 5 received_uuid 1f6e... path Snapshots/@___...
+        var uuids = new HashSet<String>();
+        var process = EchoUtil.processOPNoWait(false, listCommand.toArray(new String[0]));
+        try ( var scanner = EchoUtil.getProcessInputScanner(process)) {
+            while (scanner.hasNextLine()) {
+                var line = scanner.nextLine();
+                if (!isBelow(line, folder)) {
+                    continue;
+                }
+                var tokens = line.trim().split("\\s+");
+                for (int i = 0; i < tokens.length - 1; i++) {
+                    if (tokens[i].equals("received_uuid") && !tokens[i + 1].equals("-")) {
+                        uuids.add(tokens[i + 1]);
+                    }
+                }
+            }
+        }
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("Listing the subvolumes of " + target + " failed with exit status "
+                        + process.exitValue());
+            }
+        } catch (InterruptedException ex) {
+            Logger.getLogger(ParentResolver.class.getName()).log(Level.SEVERE, null, ex);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while listing the subvolumes of " + target, ex);
+        }
+        LOG.info("Received Subvolumes in " + target + ": " + uuids.size());
+        return new ParentResolver(uuids);
+    }
+
+    /**
+     * Checks whether a line of the listing is of a subvolume below a folder.
+     *
+     * @param line The line
+     * @param folder The path of the folder as the listing prints it, empty for
+     * every subvolume
+     * @return True if it is
+     */
+    private static boolean isBelow(String line, String folder) {
+        if (folder.isEmpty()) {
+            return true;
+        }
+        int index = line.indexOf(" path ");
+        if (index < 0) {
+            return false;
+        }
+        //The path is the rest of the line, it may hold spaces
+        var path = line.substring(index + " path ".length()).replaceFirst("^/+", "");
+        return path.equals(folder) || path.startsWith(folder + "/");
+    }
+
+    /**
+     * Creates a resolver for a folder holding send stream archives, from the
+     * UUIDs of the snapshots that were archived completely.
+     *
+     * @param backupFolder The folder holding the archives
+     * @return The resolver
+     * @throws IOException If the archives couldn't be listed
+     */
+    public static ParentResolver forArchive(Path backupFolder) throws IOException {
+        var uuids = new HashSet<String>();
+        SendArchive.listArchives(backupFolder).forEach(manifest -> manifest.getUuid().ifPresent(uuids::add));
+        LOG.info("Archived Snapshots in " + backupFolder + ": " + uuids.size());
+        return new ParentResolver(uuids);
+    }
+
+    /**
+     * Checks whether the target holds a subvolume received with a UUID, for
+     * the target's own side where there is no catalog.
+     *
+     * @param uuid The UUID the subvolume was sent with
+     * @return True if the target holds it
+     */
+    public boolean isReceived(String uuid) {
+        return this.receivedUuids.contains(uuid);
+    }
+
+    /**
+     * Gets the received UUIDs of the subvolumes on the target.
+     *
+     * @return The UUIDs
+     */
+    public Set<String> getReceivedUuids() {
+        return this.receivedUuids;
+    }
+
+    /**
+     * Finds the newest snapshot of the same subvolume that the target already
+     * holds.
+     *
+     * @param snapshot The snapshot about to be sent
+     * @param catalog The catalog of our snapshots
+     * @return The parent to send against, empty if a full send is needed
+     */
+    public Optional<Snapshot> resolve(Snapshot snapshot, SnapshotCatalog catalog) {
+        if (this.receivedUuids.isEmpty()) {
+            return Optional.empty();
+        }
+        var parent = streamOnTarget(snapshot.getParentSubvolume().getLocation(), catalog)
+                .filter(candidate -> !candidate.getLocation().equals(snapshot.getLocation())).findFirst();
+        LOG.info("Parent of " + snapshot.getFullFileName() + ": " + parent.map(Snapshot::getFullFileName)
+                .orElse("None, Full Send"));
+        return parent;
+    }
+
+    /**
+     * Finds the newest snapshot of a subvolume that the target holds, the one
+     * the next backup is sent against.
+     *
+     * @param subvolume The location of the subvolume
+     * @param catalog The catalog of our snapshots
+     * @return The snapshot, empty if the target holds none
+     */
+    public Optional<Snapshot> findNewestOnTarget(Path subvolume, SnapshotCatalog catalog) {
+        if (this.receivedUuids.isEmpty()) {
+            return Optional.empty();
+        }
+        return streamOnTarget(subvolume, catalog).findFirst();
+    }
+
+    /**
+     * Streams the snapshots of a subvolume that still exist on the source and
+     * that the target holds, newest first.
+     */
+    private Stream<Snapshot> streamOnTarget(Path subvolume, SnapshotCatalog catalog) {
+        return catalog.streamSnapshotsOf(subvolume).filter(candidate -> Files.isDirectory(candidate.getLocation()))
+                .filter(this::isOnTarget);
+    }
+
+    /**
+     * Checks whether the target holds a subvolume received from a snapshot,
+     * or a complete archive of it. The target records the received UUID of
+     * the source if the source had one, its own UUID otherwise.
+     *
+     * @param candidate The snapshot on the source
+     * @return True if it was received on the target
+     */
+    public boolean isOnTarget(Snapshot candidate) {
+        var uuid = candidate.getUuid();
+        var receivedUuid = candidate.getReceivedUuid();
+        if (uuid.isEmpty()) {
+            //Snapshots from before we recorded UUIDs
+            try {
+                var info = SubvolumeInfo.of(candidate.getLocation());
+                uuid = Optional.of(info.getUuid());
+                receivedUuid = info.getReceivedUuid();
+            } catch (IOException ex) {
+                Logger.getLogger(ParentResolver.class.getName()).log(Level.WARNING, null, ex);
+                return false;
+            }
+        }
+        return this.receivedUuids.contains(uuid.get())
+                || receivedUuid.map(this.receivedUuids::contains).orElse(false);
+    }
+}
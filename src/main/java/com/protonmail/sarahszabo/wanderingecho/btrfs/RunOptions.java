@@ -0,0 +1,269 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.CompressionSettings;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.remote.RemoteTarget;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The options given on the command line for one run, as opposed to the
+ * configuration file that persists between runs.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class RunOptions {
+
+    /**
+     * No options, interactive setup allowed.
+     */
+    public static final RunOptions DEFAULT = new RunOptions(false, List.of(), null, List.of(), List.of(), false,
+            List.of(), null, false, null);
+
+    /**
+     * The options a user can give, for the usage message.
+     */
+    public static final String USAGE = "--headless (never open a window), --subvolume=PATH (repeatable), "
+            + "--backup-folder=PATH, --mirror-folder=PATH (repeatable, gets a copy of every backup), "
+            + "--remote=HOST:FOLDER (repeatable, for Remote), "
+            + "--agent=HOST:PORT:FOLDER (repeatable, for Remote, to a receive agent), "
+            + "--full-send (no incremental parents), "
+            + "--parent=SNAPSHOT (repeatable), "
+            + "--compression=zstd|lz4[:LEVEL] (for archives and streams leaving this machine), "
+            + "--dedup (archives go into a deduplicating chunk store), "
+            + "--metrics-file=PATH (Prometheus text file, e.g. in the node_exporter textfile directory)";
+
+    private final boolean headless;
+    private final List<Path> subvolumes;
+    private final Path backupFolder;
+    private final List<Path> mirrorFolders;
+    private final List<RemoteTarget> remoteTargets;
+    private final boolean fullSend;
+    private final List<Path> parents;
+    private final CompressionSettings compression;
+    private final boolean dedup;
+    private final Path metricsFile;
+
+    /**
+     * Creates new run options.
+     *
+     * @param headless If true, never start the user interface
+     * @param subvolumes Subvolumes to back up, replacing the configured ones if
+     * not empty
+     * @param backupFolder The folder to back up to, replacing the configured
+     * one if not null
+     * @param mirrorFolders Folders that get a copy of every backup, replacing
+     * the configured ones if not empty
+     * @param remoteTargets Folders on other machines that get backups over
+     * ssh or from a receive agent, replacing the configured ones if not empty
+     * @param fullSend If true, always send whole snapshots
+     * @param parents Snapshots to use as parents for their subvolumes instead
+     * of the resolved ones
+     * @param compression How to compress streams, replacing the configured
+     * compression if not null
+     * @param dedup If true, deduplicate archives even if the configuration
+     * doesn't
+     * @param metricsFile Where to write the metrics, replacing the default
+     * file if not null
+     */
+    public RunOptions(boolean headless, List<Path> subvolumes, Path backupFolder, List<Path> mirrorFolders,
+            List<RemoteTarget> remoteTargets, boolean fullSend, List<Path> parents, CompressionSettings compression,
+            boolean dedup, Path metricsFile) {
+        this.headless = headless;
+        this.subvolumes = Collections.unmodifiableList(new ArrayList<>(subvolumes));
+        this.backupFolder = backupFolder;
+        this.mirrorFolders = Collections.unmodifiableList(new ArrayList<>(mirrorFolders));
+        this.remoteTargets = Collections.unmodifiableList(new ArrayList<>(remoteTargets));
+        this.fullSend = fullSend;
+        this.parents = Collections.unmodifiableList(new ArrayList<>(parents));
+        this.compression = compression;
+        this.dedup = dedup;
+        this.metricsFile = metricsFile;
+    }
+
+    /**
+     * Parses the options from command line arguments. Arguments that don't
+     * start with -- are skipped, they are the command and its parameters.
+     *
+     * @param args The command line arguments
+     * @return The options
+     * @throws IllegalArgumentException If an option isn't recognized
+     */
+    public static RunOptions parse(String... args) {
+        boolean headless = false;
+        boolean fullSend = false;
+        boolean dedup = false;
+        Path backupFolder = null;
+        CompressionSettings compression = null;
+        Path metricsFile = null;
+        var subvolumes = new ArrayList<Path>();
+        var mirrorFolders = new ArrayList<Path>();
+        var remoteTargets = new ArrayList<RemoteTarget>();
+        var parents = new ArrayList<Path>();
+        for (var arg : args) {
+            if (!arg.startsWith("--")) {
+                continue;
+            }
+            int equals = arg.indexOf('=');
+            var name = equals < 0 ? arg : arg.substring(0, equals);
+            var value = equals < 0 ? null : arg.substring(equals + 1);
+            switch (name.toLowerCase()) {
+                case "--headless":
+                    headless = true;
+                    break;
+                case "--full-send":
+                    fullSend = true;
+                    break;
+                case "--subvolume":
+                    subvolumes.add(Paths.get(requireValue(name, value)));
+                    break;
+                case "--backup-folder":
+                    backupFolder = Paths.get(requireValue(name, value));
+                    break;
+                case "--mirror-folder":
+                    mirrorFolders.add(Paths.get(requireValue(name, value)));
+                    break;
+                case "--remote":
+                    remoteTargets.add(RemoteTarget.parse(requireValue(name, value)));
+                    break;
+                case "--agent":
+                    remoteTargets.add(RemoteTarget.parseAgent(requireValue(name, value)));
+                    break;
+                case "--parent":
+                    parents.add(Paths.get(requireValue(name, value)));
+                    break;
+                case "--compression":
+                    compression = CompressionSettings.parse(requireValue(name, value));
+                    break;
+                case "--dedup":
+                    dedup = true;
+                    break;
+                case "--metrics-file":
+                    metricsFile = Paths.get(requireValue(name, value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg + ", OPTIONS: " + USAGE);
+            }
+        }
+        return new RunOptions(headless, subvolumes, backupFolder, mirrorFolders, remoteTargets, fullSend, parents,
+                compression, dedup, metricsFile);
+    }
+
+    /**
+     * Checks that an option had a value.
+     */
+    private static String requireValue(String name, String value) {
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException(name + " needs a value, OPTIONS: " + USAGE);
+        }
+        return value;
+    }
+
+    /**
+     * Checks whether the user interface must not be started.
+     *
+     * @return True for headless runs
+     */
+    public boolean isHeadless() {
+        return this.headless;
+    }
+
+    /**
+     * Gets the subvolumes given on the command line.
+     *
+     * @return The subvolumes, empty to use the configured ones
+     */
+    public List<Path> getSubvolumes() {
+        return this.subvolumes;
+    }
+
+    /**
+     * Gets the backup folder given on the command line.
+     *
+     * @return The backup folder, empty to use the configured one
+     */
+    public Optional<Path> getBackupFolder() {
+        return Optional.ofNullable(this.backupFolder);
+    }
+
+    /**
+     * Gets the mirror folders given on the command line.
+     *
+     * @return The mirror folders, empty to use the configured ones
+     */
+    public List<Path> getMirrorFolders() {
+        return this.mirrorFolders;
+    }
+
+    /**
+     * Gets the remote targets given on the command line.
+     *
+     * @return The remote targets, empty to use the configured ones
+     */
+    public List<RemoteTarget> getRemoteTargets() {
+        return this.remoteTargets;
+    }
+
+    /**
+     * Checks whether the command line options are enough to configure the
+     * program without asking anything.
+     *
+     * @return True if subvolumes and a backup folder were given
+     */
+    public boolean isCompleteConfiguration() {
+        return !this.subvolumes.isEmpty() && this.backupFolder != null;
+    }
+
+    /**
+     * Checks whether incremental parents are disabled.
+     *
+     * @return True to always send whole snapshots
+     */
+    public boolean isFullSend() {
+        return this.fullSend;
+    }
+
+    /**
+     * Checks whether archives are deduplicated this run.
+     *
+     * @return True to deduplicate archives even if the configuration doesn't
+     */
+    public boolean isDedup() {
+        return this.dedup;
+    }
+
+    /**
+     * Gets the snapshots given as parents on the command line.
+     *
+     * @return The parent snapshots
+     */
+    public List<Path> getParents() {
+        return this.parents;
+    }
+
+    /**
+     * Gets the compression given on the command line.
+     *
+     * @return The compression, empty to use the configured one
+     */
+    public Optional<CompressionSettings> getCompression() {
+        return Optional.ofNullable(this.compression);
+    }
+
+    /**
+     * Gets the metrics file given on the command line.
+     *
+     * @return The metrics file, empty to use the default one
+     */
+    public Optional<Path> getMetricsFile() {
+        return Optional.ofNullable(this.metricsFile);
+    }
+}
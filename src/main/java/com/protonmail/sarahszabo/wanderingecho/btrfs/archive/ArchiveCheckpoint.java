@@ -0,0 +1,107 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.archive;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.Codec;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * How far an archive got before it was interrupted: the segments that are
+ * safely on the disk with their checksums, and what the stream they belong to
+ * was sent with. Rewritten after every segment, removed once the manifest
+ * exists.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class ArchiveCheckpoint {
+
+    @JsonProperty
+    private final String parent;
+    @JsonProperty
+    private final Codec codec;
+    @JsonProperty
+    private final int level;
+    @JsonProperty
+    private final long segmentSize;
+    @JsonProperty
+    private final List<Long> segmentLengths;
+    @JsonProperty
+    private final List<Long> segmentChecksums;
+
+    /**
+     * Creates a new checkpoint.
+     *
+     * @param parent The file name of the parent the stream is sent against,
+     * null for a full send
+     * @param codec How the segments are compressed, null if they aren't
+     * @param level The compression level, 0 if they aren't compressed
+     * @param segmentSize The number of stream bytes in every segment
+     * @param segmentLengths The file length of every finished segment
+     * @param segmentChecksums The CRC32C of the stream bytes of every finished
+     * segment
+     */
+    @JsonCreator
+    public ArchiveCheckpoint(@JsonProperty(value = "parent") String parent,
+            @JsonProperty(value = "codec") Codec codec,
+            @JsonProperty(value = "level") int level,
+            @JsonProperty(value = "segmentSize") long segmentSize,
+            @JsonProperty(value = "segmentLengths") List<Long> segmentLengths,
+            @JsonProperty(value = "segmentChecksums") List<Long> segmentChecksums) {
+        this.parent = parent;
+        this.codec = codec;
+        this.level = level;
+        this.segmentSize = segmentSize;
+        this.segmentLengths = List.copyOf(segmentLengths);
+        this.segmentChecksums = List.copyOf(segmentChecksums);
+    }
+
+    /**
+     * Checks whether a new attempt writes the same stream the same way, so its
+     * segments can be kept.
+     *
+     * @param parent The file name of the parent of the new attempt
+     * @param codec Its codec
+     * @param level Its compression level
+     * @param segmentSize Its segment size
+     * @return True if the checkpoint can be resumed from
+     */
+    public boolean matches(String parent, Codec codec, int level, long segmentSize) {
+        return Objects.equals(this.parent, parent) && this.codec == codec && this.level == level
+                && this.segmentSize == segmentSize;
+    }
+
+    /**
+     * Gets the file length of every finished segment.
+     *
+     * @return The segment lengths
+     */
+    public List<Long> getSegmentLengths() {
+        return this.segmentLengths;
+    }
+
+    /**
+     * Gets the CRC32C of the stream bytes of every finished segment.
+     *
+     * @return The segment checksums
+     */
+    public List<Long> getSegmentChecksums() {
+        return this.segmentChecksums;
+    }
+
+    /**
+     * Gets the number of stream bytes that are safely on the disk.
+     *
+     * @return The stream offset to resume from
+     */
+    @JsonIgnore
+    public long getStreamOffset() {
+        return this.segmentSize * this.segmentLengths.size();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.archive;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.Codec;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Describes one archived send stream: which snapshot it is, which archive it
+ * was sent against, and the segments holding it. Written after the last
+ * segment is synced, so an archive without a manifest is incomplete. A
+ * deduplicated archive has no segments, its stream is in the chunk store.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class ArchiveManifest {
+
+    @JsonProperty
+    private final String snapshot;
+    @JsonProperty
+    private final Path subvolume;
+    @JsonProperty
+    private final String uuid;
+    @JsonProperty
+    private final String parent;
+    @JsonProperty
+    private final String parentUuid;
+    @JsonProperty
+    private final Codec codec;
+    @JsonProperty
+    private final long segmentSize;
+    @JsonProperty
+    private final List<Long> segmentLengths;
+    @JsonProperty
+    private final List<Long> segmentChecksums;
+    @JsonProperty
+    private final long streamBytes;
+    @JsonProperty
+    private final Long streamChecksum;
+    @JsonProperty
+    private final ZonedDateTime creationDate;
+    @JsonProperty
+    private final boolean deduplicated;
+
+    /**
+     * Creates a new manifest.
+     *
+     * @param snapshot The file name of the snapshot, also the name of the
+     * archive folder
+     * @param subvolume The subvolume the snapshot is of
+     * @param uuid The btrfs UUID of the snapshot, may be null
+     * @param parent The file name of the snapshot this stream was sent
+     * against, null for a full send
+     * @param parentUuid The btrfs UUID of the parent, may be null
+     * @param codec How the segments are compressed, null if they aren't
+     * @param segmentSize The number of stream bytes in every segment but the
+     * last
+     * @param segmentLengths The file length of every segment, in order
+     * @param segmentChecksums The CRC32C of the stream bytes of every segment,
+     * in order, may be null for archives written before checksums
+     * @param streamBytes The length of the uncompressed send stream
+     * @param streamChecksum The CRC32C of the whole uncompressed send stream,
+     * null if only part of it came through here or for archives written
+     * before
+     * @param creationDate When the archive was finished
+     * @param deduplicated True if the stream is in the chunk store of the
+     * target instead of segments
+     */
+    @JsonCreator
+    public ArchiveManifest(@JsonProperty(value = "snapshot") String snapshot,
+            @JsonProperty(value = "subvolume") Path subvolume,
+            @JsonProperty(value = "uuid") String uuid,
+            @JsonProperty(value = "parent") String parent,
+            @JsonProperty(value = "parentUuid") String parentUuid,
+            @JsonProperty(value = "codec") Codec codec,
+            @JsonProperty(value = "segmentSize") long segmentSize,
+            @JsonProperty(value = "segmentLengths") List<Long> segmentLengths,
+            @JsonProperty(value = "segmentChecksums") List<Long> segmentChecksums,
+            @JsonProperty(value = "streamBytes") long streamBytes,
+            @JsonProperty(value = "streamChecksum") Long streamChecksum,
+            @JsonProperty(value = "creationDate") ZonedDateTime creationDate,
+            @JsonProperty(value = "deduplicated") boolean deduplicated) {
+        this.snapshot = snapshot;
+        this.subvolume = subvolume;
+        this.uuid = uuid;
+        this.parent = parent;
+        this.parentUuid = parentUuid;
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+        this.segmentLengths = List.copyOf(segmentLengths);
+        this.segmentChecksums = segmentChecksums == null ? List.of() : List.copyOf(segmentChecksums);
+        this.streamBytes = streamBytes;
+        this.streamChecksum = streamChecksum;
+        this.creationDate = creationDate;
+        //Older manifests are all segments
+        this.deduplicated = deduplicated;
+    }
+
+    /**
+     * Gets the file name of the archived snapshot.
+     *
+     * @return The snapshot name
+     */
+    public String getSnapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * Gets the subvolume the snapshot is of.
+     *
+     * @return The subvolume location
+     */
+    public Path getSubvolume() {
+        return this.subvolume;
+    }
+
+    /**
+     * Gets the btrfs UUID of the archived snapshot.
+     *
+     * @return The UUID, if it was known
+     */
+    public Optional<String> getUuid() {
+        return Optional.ofNullable(this.uuid);
+    }
+
+    /**
+     * Gets the file name of the snapshot this stream was sent against.
+     *
+     * @return The parent, empty for a full send
+     */
+    public Optional<String> getParent() {
+        return Optional.ofNullable(this.parent);
+    }
+
+    /**
+     * Gets the btrfs UUID of the parent.
+     *
+     * @return The UUID, if there is a parent and it was known
+     */
+    public Optional<String> getParentUuid() {
+        return Optional.ofNullable(this.parentUuid);
+    }
+
+    /**
+     * Gets how the segments are compressed.
+     *
+     * @return The codec, empty if they aren't
+     */
+    public Optional<Codec> getCodec() {
+        return Optional.ofNullable(this.codec);
+    }
+
+    /**
+     * Gets the number of stream bytes in every segment but the last.
+     *
+     * @return The segment size
+     */
+    public long getSegmentSize() {
+        return this.segmentSize;
+    }
+
+    /**
+     * Gets the file length of every segment, in order.
+     *
+     * @return The segment lengths
+     */
+    public List<Long> getSegmentLengths() {
+        return this.segmentLengths;
+    }
+
+    /**
+     * Gets the CRC32C of the stream bytes of every segment, in order.
+     *
+     * @return The segment checksums, empty for archives written before
+     * checksums
+     */
+    public List<Long> getSegmentChecksums() {
+        return this.segmentChecksums;
+    }
+
+    /**
+     * Gets the length of the uncompressed send stream.
+     *
+     * @return The stream length
+     */
+    public long getStreamBytes() {
+        return this.streamBytes;
+    }
+
+    /**
+     * Gets the CRC32C of the whole uncompressed send stream.
+     *
+     * @return The checksum, empty if it wasn't taken
+     */
+    public Optional<Long> getStreamChecksum() {
+        return Optional.ofNullable(this.streamChecksum);
+    }
+
+    /**
+     * Gets when the archive was finished.
+     *
+     * @return The creation date
+     */
+    public ZonedDateTime getCreationDate() {
+        return this.creationDate;
+    }
+
+    /**
+     * Checks whether the stream is in the chunk store of the target, listed
+     * in {@link SendArchive#CHUNK_LIST_FILE_NAME}, instead of segments.
+     *
+     * @return True if it is
+     */
+    public boolean isDeduplicated() {
+        return this.deduplicated;
+    }
+
+    @Override
+    public String toString() {
+        return this.snapshot + (this.parent == null ? " (Full)" : " (Parent " + this.parent + ")");
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.archive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * A channel that passes a restored stream through while checking the CRC32C
+ * of every segment's worth of stream bytes against the manifest, so a damaged
+ * archive fails the restore instead of reaching btrfs receive unnoticed.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class ChecksumVerifier implements ReadableByteChannel {
+
+    private final ReadableByteChannel source;
+    private final long segmentSize;
+    private final List<Long> checksums;
+    private final CRC32C checksum = new CRC32C();
+    private long segmentStreamBytes;
+    private int index;
+
+    /**
+     * Creates a new verifier.
+     *
+     * @param source The uncompressed stream
+     * @param segmentSize The number of stream bytes in every segment
+     * @param checksums The checksum of every segment, in order
+     */
+    public ChecksumVerifier(ReadableByteChannel source, long segmentSize, List<Long> checksums) {
+        this.source = source;
+        this.segmentSize = segmentSize;
+        this.checksums = List.copyOf(checksums);
+    }
+
+    @Override
+    public int read(ByteBuffer destination) throws IOException {
+        int start = destination.position();
+        int read = this.source.read(destination);
+        if (read < 0) {
+            if (this.segmentStreamBytes > 0) {
+                verifySegment();
+            }
+            if (this.index != this.checksums.size()) {
+                throw new IOException("The stream ended after " + this.index + " of " + this.checksums.size()
+                        + " segments");
+            }
+            return read;
+        }
+        var chunk = destination.duplicate();
+        chunk.position(start).limit(start + read);
+        while (chunk.hasRemaining()) {
+            int length = (int) Math.min(chunk.remaining(), this.segmentSize - this.segmentStreamBytes);
+            var slice = chunk.slice();
+            slice.limit(length);
+            this.checksum.update(slice);
+            chunk.position(chunk.position() + length);
+            this.segmentStreamBytes += length;
+            if (this.segmentStreamBytes == this.segmentSize) {
+                verifySegment();
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Compares the checksum of the segment that just ended.
+     */
+    private void verifySegment() throws IOException {
+        if (this.index >= this.checksums.size() || this.checksum.getValue() != this.checksums.get(this.index)) {
+            throw new IOException("Segment " + this.index + " doesn't match its checksum, the archive is damaged");
+        }
+        this.index++;
+        this.checksum.reset();
+        this.segmentStreamBytes = 0;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.source.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.source.close();
+    }
+
+    @Override
+    public String toString() {
+        return this.source + " => Checksums";
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.archive;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * A channel that reads the segments written by a {@link SegmentWriter} back as
+ * one stream, checking that every segment has the length it was written with.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class SegmentReader implements ReadableByteChannel {
+
+    private final Path folder;
+    private final List<Long> segmentLengths;
+    private int index;
+    private FileChannel segment;
+    private long segmentRead;
+    private boolean open = true;
+
+    /**
+     * Creates a new segment reader.
+     *
+     * @param folder The folder holding the segments
+     * @param segmentLengths The length of every segment, in order
+     */
+    public SegmentReader(Path folder, List<Long> segmentLengths) {
+        this.folder = folder;
+        this.segmentLengths = List.copyOf(segmentLengths);
+    }
+
+    @Override
+    public int read(ByteBuffer destination) throws IOException {
+        if (!this.open) {
+            throw new ClosedChannelException();
+        }
+        while (true) {
+            if (this.segment == null) {
+                if (this.index == this.segmentLengths.size()) {
+                    return -1;
+                }
+                var path = this.folder.resolve(SegmentWriter.getSegmentName(this.index));
+                this.segment = FileChannel.open(path, StandardOpenOption.READ);
+                if (this.segment.size() != this.segmentLengths.get(this.index)) {
+                    throw new IOException(path + " has " + this.segment.size() + " bytes, the manifest says "
+                            + this.segmentLengths.get(this.index));
+                }
+                this.segmentRead = 0;
+            }
+            int read = this.segment.read(destination);
+            //Files only read nothing if the destination is full
+            if (read >= 0) {
+                this.segmentRead += read;
+                return read;
+            }
+            if (this.segmentRead != this.segmentLengths.get(this.index)) {
+                throw new EOFException("Segment " + this.index + " ended early");
+            }
+            this.segment.close();
+            this.segment = null;
+            this.index++;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.open = false;
+        if (this.segment != null) {
+            this.segment.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Segments in " + this.folder;
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.archive;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.BlockCompressor;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.CompressionSettings;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32C;
+
+/**
+ * A channel that cuts a stream into segments of a fixed number of stream bytes
+ * and writes each into its own numbered file in one folder, compressed on its
+ * own if compression is given. Writes are gathered into a large buffer so the
+ * disk sees big sequential writes no matter how the stream arrives, and every
+ * segment is synced once when it is full instead of on every write.
+ * <p>
+ * The CRC32C of the stream bytes of every segment is kept. A writer resumed
+ * after some segments checks the start of the stream against their checksums
+ * instead of writing it, and only writes what comes after.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class SegmentWriter implements WritableByteChannel {
+
+    /**
+     * The size of the buffer writes are gathered in.
+     */
+    private static final int WRITE_BUFFER_SIZE = 4 << 20;
+
+    private final Path folder;
+    private final long segmentSize;
+    private final CompressionSettings compression;
+    private final ExecutorService compressionWorkers;
+    private final SegmentListener listener;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final List<Long> segmentLengths = new ArrayList<>();
+    private final List<Long> segmentChecksums = new ArrayList<>();
+    private final List<Long> expectedChecksums;
+    private final CRC32C checksum = new CRC32C();
+    private WritableByteChannel segment;
+    private long segmentStreamBytes;
+    private long bytesWritten;
+    private boolean open = true;
+
+    /**
+     * Creates a new segment writer.
+     *
+     * @param folder The existing folder to write the segments into
+     * @param segmentSize The number of stream bytes in every segment but the
+     * last
+     * @param compression How to compress the segments, null to write them as
+     * they are
+     * @param listener Told about every segment once it is on the disk, may be
+     * null
+     */
+    public SegmentWriter(Path folder, long segmentSize, CompressionSettings compression,
+            SegmentListener listener) {
+        this(folder, segmentSize, compression, listener, List.of(), List.of());
+    }
+
+    /**
+     * Creates a segment writer that resumes after segments written before. The
+     * stream is expected to start with exactly the bytes of those segments.
+     *
+     * @param folder The folder holding the segments
+     * @param segmentSize The segment size they were written with
+     * @param compression The compression they were written with
+     * @param listener Told about every new segment once it is on the disk, may
+     * be null
+     * @param segmentLengths The file lengths of the segments written before
+     * @param segmentChecksums The checksums of the segments written before
+     */
+    public SegmentWriter(Path folder, long segmentSize, CompressionSettings compression, SegmentListener listener,
+            List<Long> segmentLengths, List<Long> segmentChecksums) {
+        this(folder, segmentSize, compression, listener, segmentLengths, segmentChecksums, false);
+    }
+
+    /**
+     * Creates a segment writer that resumes after segments written before.
+     * The stream either starts with exactly the bytes of those segments, or
+     * right after them if whoever sends it already checked them, e.g. against
+     * the checksums handed out by the receive agent.
+     *
+     * @param folder The folder holding the segments
+     * @param segmentSize The segment size they were written with
+     * @param compression The compression they were written with
+     * @param listener Told about every new segment once it is on the disk, may
+     * be null
+     * @param segmentLengths The file lengths of the segments written before
+     * @param segmentChecksums The checksums of the segments written before
+     * @param streamAfterSegments True if the stream starts after the segments
+     * written before
+     */
+    public SegmentWriter(Path folder, long segmentSize, CompressionSettings compression, SegmentListener listener,
+            List<Long> segmentLengths, List<Long> segmentChecksums, boolean streamAfterSegments) {
+        if (segmentLengths.size() != segmentChecksums.size()) {
+            throw new IllegalArgumentException("Every segment needs a length and a checksum");
+        }
+        this.folder = folder;
+        this.segmentSize = segmentSize;
+        this.compression = compression;
+        this.compressionWorkers = compression == null ? null : BlockCompressor.newWorkers(compression);
+        this.listener = listener;
+        this.segmentLengths.addAll(segmentLengths);
+        this.expectedChecksums = List.copyOf(segmentChecksums);
+        if (streamAfterSegments) {
+            this.segmentChecksums.addAll(segmentChecksums);
+            this.bytesWritten = segmentSize * segmentChecksums.size();
+        }
+    }
+
+    /**
+     * Gets the file name of a segment.
+     *
+     * @param index The number of the segment, from 0
+     * @return The file name
+     */
+    public static String getSegmentName(int index) {
+        return String.format("Segment %06d.dat", index);
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        if (!this.open) {
+            throw new ClosedChannelException();
+        }
+        int written = source.remaining();
+        while (source.hasRemaining()) {
+            boolean verifying = this.segmentChecksums.size() < this.expectedChecksums.size();
+            if (!verifying && this.segment == null) {
+                this.segment = openSegment(this.segmentLengths.size());
+            }
+            int length = (int) Math.min(source.remaining(), this.segmentSize - this.segmentStreamBytes);
+            var slice = source.slice();
+            slice.limit(length);
+            source.position(source.position() + length);
+            this.checksum.update(slice.duplicate());
+            if (!verifying) {
+                while (slice.hasRemaining()) {
+                    this.segment.write(slice);
+                }
+            }
+            this.segmentStreamBytes += length;
+            if (this.segmentStreamBytes == this.segmentSize) {
+                finishSegment();
+            }
+        }
+        this.bytesWritten += written;
+        return written;
+    }
+
+    /**
+     * Opens a new segment file, behind a compressor if we compress.
+     */
+    private WritableByteChannel openSegment(int index) throws IOException {
+        var file = new GatheringChannel(FileChannel.open(this.folder.resolve(getSegmentName(index)),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+        return this.compression == null ? file
+                : new BlockCompressor(file, this.compression, this.compressionWorkers);
+    }
+
+    /**
+     * Ends the current segment: checks it against its old checksum if we're
+     * resuming, otherwise syncs it to the disk and tells the listener.
+     */
+    private void finishSegment() throws IOException {
+        int index = this.segmentChecksums.size();
+        long value = this.checksum.getValue();
+        this.checksum.reset();
+        this.segmentStreamBytes = 0;
+        if (index < this.expectedChecksums.size()) {
+            if (value != this.expectedChecksums.get(index)) {
+                throw new StreamChangedException("Segment " + index + " of the stream differs from the one "
+                        + "written before");
+            }
+            this.segmentChecksums.add(value);
+            return;
+        }
+        this.segment.close();
+        this.segment = null;
+        this.segmentLengths.add(Files.size(this.folder.resolve(getSegmentName(index))));
+        this.segmentChecksums.add(value);
+        if (this.listener != null) {
+            this.listener.segmentWritten(getSegmentLengths(), getSegmentChecksums());
+        }
+    }
+
+    /**
+     * Gets the file lengths of the segments finished so far, in order.
+     *
+     * @return The segment lengths
+     */
+    public List<Long> getSegmentLengths() {
+        return Collections.unmodifiableList(new ArrayList<>(this.segmentLengths));
+    }
+
+    /**
+     * Gets the CRC32C of the stream bytes of every segment finished so far, in
+     * order.
+     *
+     * @return The segment checksums
+     */
+    public List<Long> getSegmentChecksums() {
+        return Collections.unmodifiableList(new ArrayList<>(this.segmentChecksums));
+    }
+
+    /**
+     * Gets the number of stream bytes written or verified so far.
+     *
+     * @return The stream bytes
+     */
+    public long getBytesWritten() {
+        return this.bytesWritten;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    /**
+     * Finishes and syncs the last segment.
+     *
+     * @throws IOException If it couldn't be written, or the stream ended
+     * before all segments written before were seen again
+     */
+    @Override
+    public void close() throws IOException {
+        if (!this.open) {
+            return;
+        }
+        this.open = false;
+        try {
+            if (this.segmentStreamBytes > 0) {
+                finishSegment();
+            }
+            if (this.segmentChecksums.size() < this.expectedChecksums.size()) {
+                throw new StreamChangedException("The stream is shorter than the segments written before");
+            }
+        } finally {
+            if (this.segment != null) {
+                this.segment.close();
+            }
+            if (this.compressionWorkers != null) {
+                this.compressionWorkers.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Stops writing without finishing the current segment, e.g. because the
+     * stream broke off. The unfinished segment is deleted, the finished ones
+     * and their checkpoint stay for the next attempt.
+     *
+     * @throws IOException If the unfinished segment couldn't be deleted
+     */
+    public void abandon() throws IOException {
+        if (!this.open) {
+            return;
+        }
+        this.open = false;
+        try {
+            if (this.segment != null) {
+                this.segment.close();
+                this.segment = null;
+                Files.deleteIfExists(this.folder.resolve(getSegmentName(this.segmentLengths.size())));
+            }
+        } finally {
+            if (this.compressionWorkers != null) {
+                this.compressionWorkers.shutdownNow();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Segments in " + this.folder;
+    }
+
+    /**
+     * Told every time a segment is safely on the disk, e.g. to record a
+     * checkpoint.
+     */
+    @FunctionalInterface
+    public interface SegmentListener {
+
+        /**
+         * Called after a segment was synced.
+         *
+         * @param segmentLengths The file lengths of all segments so far
+         * @param segmentChecksums The checksums of all segments so far
+         * @throws IOException If the listener failed, which stops the writer
+         */
+        void segmentWritten(List<Long> segmentLengths, List<Long> segmentChecksums) throws IOException;
+    }
+
+    /**
+     * Thrown if a resumed stream doesn't start with the segments written
+     * before, so they can't be kept.
+     */
+    public static class StreamChangedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Creates a new exception.
+         *
+         * @param message What differed
+         */
+        public StreamChangedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Gathers writes to a segment file into the large buffer and syncs the
+     * file when closed.
+     */
+    private class GatheringChannel implements WritableByteChannel {
+
+        private final FileChannel file;
+
+        GatheringChannel(FileChannel file) {
+            this.file = file;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int written = source.remaining();
+            while (source.hasRemaining()) {
+                int length = Math.min(source.remaining(), buffer.remaining());
+                var slice = source.slice();
+                slice.limit(length);
+                buffer.put(slice);
+                source.position(source.position() + length);
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+            }
+            return written;
+        }
+
+        /**
+         * Writes out the gathered buffer.
+         */
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                this.file.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.file.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!this.file.isOpen()) {
+                return;
+            }
+            try {
+                flush();
+                this.file.force(false);
+            } finally {
+                buffer.clear();
+                this.file.close();
+            }
+        }
+    }
+}
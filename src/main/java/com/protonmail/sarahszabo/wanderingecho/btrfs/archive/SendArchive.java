@@ -0,0 +1,605 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.archive;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.BlockDecompressor;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.Codec;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.CompressionSettings;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.dedup.ChunkReader;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.dedup.ChunkStore;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.dedup.ChunkWriter;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.dedup.DedupSettings;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.ChecksumChannel;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.StreamPump;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.StreamTransfer;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.TransferResult;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Snapshot;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.throttle.ThrottledChannel;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.throttle.TokenBucket;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.topology.MountTopology;
+import com.protonmail.sarahszabo.wanderingecho.util.CommandBackend;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Backups for targets that aren't btrfs, e.g. ext4, XFS or a network mount.
+ * The output of btrfs send is stored as it is, cut into segment files, in a
+ * folder named like the snapshot, next to a manifest naming the archive it was
+ * sent against. Restoring replays the chain of archives from the last full
+ * send into btrfs receive, checking every segment against its checksum.
+ * <p>
+ * While an archive is written a checkpoint lists the segments already on the
+ * disk, so an interrupted archive loses at most one segment.
+ * <p>
+ * With dedup on, the stream is cut into chunks kept once in the
+ * {@link ChunkStore} of the target folder instead, and the archive folder only
+ * lists the chunks. Such an archive has no checkpoint: sent again after an
+ * interruption, the chunks already stored aren't written again anyway.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class SendArchive {
+
+    /**
+     * The size of the segment files. Small enough for any filesystem and to
+     * copy archives around by hand, large enough that a big send doesn't make
+     * thousands of files.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 256L << 20;
+
+    /**
+     * The file name of the manifest in every archive folder.
+     */
+    public static final String MANIFEST_FILE_NAME = "Manifest.json";
+
+    /**
+     * The file name of the checkpoint in an archive folder being written.
+     */
+    public static final String CHECKPOINT_FILE_NAME = "Checkpoint.json";
+
+    /**
+     * The file name of the chunk references in a deduplicated archive folder.
+     */
+    public static final String CHUNK_LIST_FILE_NAME = "Chunks.dat";
+
+    /**
+     * Reads and writes manifests.
+     */
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(SendArchive.class.getName());
+
+    static {
+        MAPPER.findAndRegisterModules();
+        MAPPER.enable(SerializationFeature.INDENT_OUTPUT);
+    }
+
+    /**
+     * Checks whether a backup folder gets send stream archives instead of
+     * received subvolumes, because it isn't on btrfs. A simulation has no
+     * filesystems of its own, every folder of it receives subvolumes.
+     *
+     * @param folder The backup folder
+     * @return True if it does
+     */
+    public static boolean isArchiveFolder(Path folder) {
+        return !CommandBackend.system().isSimulated() && !MountTopology.system().getMountOf(folder).isBTRFS();
+    }
+
+    /**
+     * Sends a snapshot into an archive in the target folder. An archive of
+     * this snapshot that is already complete is kept. An interrupted one is
+     * resumed from its checkpoint if it was sent against the same parent with
+     * the same compression: the stream is sent again, its start is checked
+     * against the checksums of the segments on the disk, and only the rest is
+     * written. If the start differs the archive is written from scratch.
+     *
+     * @param snapshot The snapshot to send
+     * @param parent The snapshot to send against, which must be archived in
+     * the same folder, null for a full send
+     * @param target The folder holding the archives
+     * @param compression How to compress the segments, null to store the
+     * stream as it is
+     * @param dedup How to deduplicate the stream into the chunk store of the
+     * target, null to write segments
+     * @param throttle The buckets limiting the rate of the stream, may be
+     * empty
+     * @return The manifest of the archive
+     * @throws IOException If btrfs send failed or the archive couldn't be
+     * written
+     */
+    public static ArchiveManifest write(Snapshot snapshot, Snapshot parent, Path target,
+            CompressionSettings compression, DedupSettings dedup, List<TokenBucket> throttle) throws IOException {
+        var name = snapshot.getLocation().getFileName().toString();
+        var folder = target.resolve(name);
+        var existing = readManifest(folder);
+        if (existing.isPresent()) {
+            LOG.info("Already Archived: " + existing.get());
+            return existing.get();
+        }
+        var parentName = parent == null ? null : parent.getLocation().getFileName().toString();
+        var codec = compression == null ? null : compression.getCodec();
+        int level = compression == null ? 0 : compression.getLevel();
+        Files.createDirectories(folder);
+        if (dedup != null) {
+            return writeDeduplicated(snapshot, parent, target, compression, dedup, throttle);
+        }
+        var checkpoint = readCheckpoint(folder).filter(candidate -> candidate.matches(parentName, codec, level,
+                DEFAULT_SEGMENT_SIZE));
+        var listener = checkpointListener(folder, parentName, codec, level, DEFAULT_SEGMENT_SIZE);
+        SegmentWriter writer;
+        TransferResult result;
+        try {
+            if (checkpoint.isPresent()) {
+                deleteSegments(folder, checkpoint.get().getSegmentLengths().size());
+                LOG.info("Resuming " + name + " after " + checkpoint.get().getStreamOffset() + " Bytes");
+                writer = new SegmentWriter(folder, DEFAULT_SEGMENT_SIZE, compression, listener,
+                        checkpoint.get().getSegmentLengths(), checkpoint.get().getSegmentChecksums());
+            } else {
+                deleteSegments(folder, 0);
+                writer = new SegmentWriter(folder, DEFAULT_SEGMENT_SIZE, compression, listener);
+            }
+            result = sendInto(snapshot.getSendCommand(parent), writer, throttle);
+        } catch (SegmentWriter.StreamChangedException ex) {
+            //The stream isn't what we archived before, the old segments are useless
+            LOG.warning("Can't resume " + name + ", starting over: " + ex.getMessage());
+            deleteSegments(folder, 0);
+            writer = new SegmentWriter(folder, DEFAULT_SEGMENT_SIZE, compression, listener);
+            result = sendInto(snapshot.getSendCommand(parent), writer, throttle);
+        }
+        if (!result.isSuccessful()) {
+            throw new IOException("Archiving " + name + " failed: " + result);
+        }
+        return finish(target, new ArchiveManifest(name, snapshot.getParentSubvolume().getLocation(),
+                snapshot.getUuid().orElse(null), parentName, parent == null ? null : parent.getUuid().orElse(null),
+                codec, DEFAULT_SEGMENT_SIZE, writer.getSegmentLengths(), writer.getSegmentChecksums(),
+                result.getBytes(), result.getChecksum().getAsLong(), ZonedDateTime.now(), false),
+                writer.getSegmentLengths().size() + " Segments, "
+                + writer.getBytesWritten() + " Bytes");
+    }
+
+    /**
+     * Sends a snapshot into the segments of an archive. The last segment is
+     * only finished if the send succeeded, a send that failed or broke off
+     * leaves the finished segments and their checkpoint for the next attempt
+     * to resume from.
+     *
+     * @param sendCommand The command that writes the stream, e.g. btrfs send
+     * @param writer The writer of the segments
+     * @param throttle The buckets limiting the rate of the stream, may be
+     * empty
+     * @return The result of the send
+     * @throws IOException If btrfs couldn't be run or the segments couldn't be
+     * written
+     */
+    static TransferResult sendInto(List<String> sendCommand, SegmentWriter writer, List<TokenBucket> throttle)
+            throws IOException {
+        TransferResult result;
+        try {
+            //The transfer closes its sink whatever happened, the writer is closed here once that's known
+            result = StreamTransfer.sendTo(sendCommand, throttle(leaveOpen(writer), throttle));
+        } catch (IOException ex) {
+            writer.abandon();
+            throw ex;
+        }
+        if (result.isSuccessful()) {
+            writer.close();
+        } else {
+            writer.abandon();
+        }
+        return result;
+    }
+
+    /**
+     * Wraps a channel so closing the wrapper leaves it open.
+     *
+     * @param channel The channel
+     * @return The wrapper
+     */
+    private static WritableByteChannel leaveOpen(WritableByteChannel channel) {
+        return new WritableByteChannel() {
+            private boolean open = true;
+
+            @Override
+            public int write(ByteBuffer source) throws IOException {
+                if (!this.open) {
+                    throw new ClosedChannelException();
+                }
+                return channel.write(source);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return this.open;
+            }
+
+            @Override
+            public void close() {
+                this.open = false;
+            }
+
+            @Override
+            public String toString() {
+                return channel.toString();
+            }
+        };
+    }
+
+    /**
+     * Sends a snapshot into a deduplicated archive: the chunks of the stream
+     * the store of the target doesn't hold yet are stored, the archive folder
+     * lists the chunks.
+     */
+    private static ArchiveManifest writeDeduplicated(Snapshot snapshot, Snapshot parent, Path target,
+            CompressionSettings compression, DedupSettings dedup, List<TokenBucket> throttle) throws IOException {
+        var name = snapshot.getLocation().getFileName().toString();
+        var folder = target.resolve(name);
+        //Whatever an interrupted attempt left is replaced
+        deleteSegments(folder, 0);
+        var store = ChunkStore.of(target, dedup);
+        store.acquire();
+        try {
+            var writer = new ChunkWriter(store, folder.resolve(CHUNK_LIST_FILE_NAME), compression);
+            var result = StreamTransfer.sendTo(snapshot.getSendCommand(parent), throttle(writer, throttle));
+            if (!result.isSuccessful()) {
+                throw new IOException("Archiving " + name + " failed: " + result);
+            }
+            LOG.info("DEDUP: " + name + " to " + target + ": " + writer);
+            return finish(target, new ArchiveManifest(name, snapshot.getParentSubvolume().getLocation(),
+                    snapshot.getUuid().orElse(null), parent == null ? null : parent.getLocation().getFileName()
+                    .toString(), parent == null ? null : parent.getUuid().orElse(null), null, 0, List.of(),
+                    List.of(), result.getBytes(), result.getChecksum().getAsLong(), ZonedDateTime.now(), true),
+                    writer.getChunks() + " Chunks, "
+                    + writer.getStoredBytes() + " Bytes Stored");
+        } finally {
+            store.release();
+        }
+    }
+
+    /**
+     * Finds the checkpoint of an interrupted archive that a new attempt sent
+     * against the same parent with the same compression can resume from.
+     *
+     * @param target The folder holding the archives
+     * @param name The file name of the snapshot
+     * @param parentName The file name of the parent of the new attempt, null
+     * for a full send
+     * @param compression The compression of the new attempt, null for none
+     * @param segmentSize The segment size of the new attempt
+     * @return The checkpoint, empty if the archive has to be written from
+     * scratch
+     */
+    public static Optional<ArchiveCheckpoint> findResumable(Path target, String name, String parentName,
+            CompressionSettings compression, long segmentSize) {
+        var folder = target.resolve(name);
+        if (Files.exists(folder.resolve(MANIFEST_FILE_NAME))) {
+            return Optional.empty();
+        }
+        return readCheckpoint(folder).filter(candidate -> candidate.matches(parentName, compression == null ? null
+                : compression.getCodec(), compression == null ? 0 : compression.getLevel(), segmentSize));
+    }
+
+    /**
+     * Writes a stream that arrives from elsewhere, e.g. at the receive agent,
+     * into an archive in the target folder. Given a checkpoint, found with
+     * {@link #findResumable(Path, String, String, CompressionSettings, long)}, the
+     * stream starts right after its segments, which the sender checked and
+     * are kept as they are. If the stream breaks off the segments finished so
+     * far stay with their checkpoint, so the next attempt resumes after them.
+     *
+     * @param stream The send stream, read until its end and closed
+     * @param name The file name of the snapshot
+     * @param subvolume The subvolume the snapshot was taken of
+     * @param uuid The UUID of the snapshot, null if unknown
+     * @param parentName The file name of the parent the stream was sent
+     * against, archived in the same folder, null for a full send
+     * @param parentUuid The UUID of the parent, null if unknown
+     * @param target The folder holding the archives
+     * @param compression How to compress the segments, null to store the
+     * stream as it is
+     * @param segmentSize The number of stream bytes in every segment but the
+     * last
+     * @param resumeFrom The checkpoint the stream starts after, null if it
+     * starts at the beginning
+     * @return The manifest of the archive
+     * @throws IOException If the stream couldn't be read or the archive
+     * couldn't be written
+     */
+    public static ArchiveManifest receive(ReadableByteChannel stream, String name, Path subvolume, String uuid,
+            String parentName, String parentUuid, Path target, CompressionSettings compression, long segmentSize,
+            ArchiveCheckpoint resumeFrom) throws IOException {
+        var folder = target.resolve(name);
+        Files.createDirectories(folder);
+        var codec = compression == null ? null : compression.getCodec();
+        var listener = checkpointListener(folder, parentName, codec, compression == null ? 0
+                : compression.getLevel(), segmentSize);
+        SegmentWriter writer;
+        if (resumeFrom != null) {
+            deleteSegments(folder, resumeFrom.getSegmentLengths().size());
+            LOG.info("Resuming " + name + " after " + resumeFrom.getStreamOffset() + " Bytes");
+            writer = new SegmentWriter(folder, segmentSize, compression, listener,
+                    resumeFrom.getSegmentLengths(), resumeFrom.getSegmentChecksums(), true);
+        } else {
+            deleteSegments(folder, 0);
+            writer = new SegmentWriter(folder, segmentSize, compression, listener);
+        }
+        //A resumed stream starts halfway, its checksum wouldn't be the stream's
+        var source = new ChecksumChannel(stream);
+        try ( source) {
+            new StreamPump().pump(source, writer);
+        } catch (IOException ex) {
+            //Only whole segments are kept, the checkpoint vouches for them
+            writer.abandon();
+            throw ex;
+        }
+        writer.close();
+        return finish(target, new ArchiveManifest(name, subvolume, uuid, parentName, parentUuid, codec,
+                segmentSize, writer.getSegmentLengths(), writer.getSegmentChecksums(),
+                writer.getBytesWritten(), resumeFrom == null ? source.getChecksum() : null, ZonedDateTime.now(),
+                false), writer.getSegmentLengths().size()
+                + " Segments, " + writer.getBytesWritten() + " Bytes");
+    }
+
+    /**
+     * Gets the listener that records a checkpoint after every segment of an
+     * archive.
+     */
+    private static SegmentWriter.SegmentListener checkpointListener(Path folder, String parentName, Codec codec,
+            int level, long segmentSize) {
+        return (lengths, checksums) -> writeJson(folder, CHECKPOINT_FILE_NAME, new ArchiveCheckpoint(parentName,
+                codec, level, segmentSize, lengths, checksums));
+    }
+
+    /**
+     * Completes an archive whose stream is all written: writes its manifest
+     * and removes the checkpoint.
+     *
+     * @param target The folder holding the archives
+     * @param manifest The manifest
+     * @param written What was written, for the log
+     * @return The manifest
+     * @throws IOException If the manifest couldn't be written
+     */
+    private static ArchiveManifest finish(Path target, ArchiveManifest manifest, String written)
+            throws IOException {
+        var folder = target.resolve(manifest.getSnapshot());
+        writeJson(folder, MANIFEST_FILE_NAME, manifest);
+        Files.deleteIfExists(folder.resolve(CHECKPOINT_FILE_NAME));
+        //Make the archive folder itself durable
+        forceDirectory(target);
+        LOG.info("Archived: " + manifest + ", " + written);
+        return manifest;
+    }
+
+    /**
+     * Wraps the writer of an archive so it's fed no faster than the buckets
+     * allow.
+     *
+     * @param writer The writer
+     * @param throttle The buckets, may be empty
+     * @return The channel to send the stream to
+     */
+    private static WritableByteChannel throttle(WritableByteChannel writer, List<TokenBucket> throttle) {
+        return throttle.isEmpty() ? writer : new ThrottledChannel(writer, throttle);
+    }
+
+    /**
+     * Reads the checkpoint of an interrupted archive.
+     *
+     * @param folder The archive folder
+     * @return The checkpoint, empty if there is none or it can't be read
+     */
+    private static Optional<ArchiveCheckpoint> readCheckpoint(Path folder) {
+        var file = folder.resolve(CHECKPOINT_FILE_NAME);
+        if (Files.notExists(file)) {
+            return Optional.empty();
+        }
+        try {
+            var checkpoint = MAPPER.readValue(file.toFile(), ArchiveCheckpoint.class);
+            //The segments it vouches for have to be there, whole
+            var lengths = checkpoint.getSegmentLengths();
+            for (int i = 0; i < lengths.size(); i++) {
+                var segment = folder.resolve(SegmentWriter.getSegmentName(i));
+                if (Files.notExists(segment) || Files.size(segment) != lengths.get(i)) {
+                    LOG.warning("Checkpoint of " + folder + " doesn't match segment " + i + ", starting over");
+                    return Optional.empty();
+                }
+            }
+            return Optional.of(checkpoint);
+        } catch (IOException ex) {
+            Logger.getLogger(SendArchive.class.getName()).log(Level.WARNING, "Unreadable checkpoint in " + folder,
+                    ex);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Reads the manifest of an archive.
+     *
+     * @param folder The archive folder
+     * @return The manifest, empty if the archive doesn't exist or is
+     * incomplete
+     * @throws IOException If the manifest couldn't be read
+     */
+    public static Optional<ArchiveManifest> readManifest(Path folder) throws IOException {
+        var file = folder.resolve(MANIFEST_FILE_NAME);
+        if (Files.notExists(file)) {
+            return Optional.empty();
+        }
+        return Optional.of(MAPPER.readValue(file.toFile(), ArchiveManifest.class));
+    }
+
+    /**
+     * Lists the complete archives in a target folder.
+     *
+     * @param target The folder holding the archives
+     * @return The manifests of the complete archives
+     * @throws IOException If the folder couldn't be listed
+     */
+    public static List<ArchiveManifest> listArchives(Path target) throws IOException {
+        var manifests = new ArrayList<ArchiveManifest>();
+        if (Files.isDirectory(target)) {
+            try ( DirectoryStream<Path> folders = Files.newDirectoryStream(target, Files::isDirectory)) {
+                for (var folder : folders) {
+                    readManifest(folder).ifPresent(manifests::add);
+                }
+            }
+        }
+        return manifests;
+    }
+
+    /**
+     * Gets the archives needed to restore one, from the last full send up to
+     * the archive itself.
+     *
+     * @param folder The archive folder
+     * @return The manifests, oldest first
+     * @throws IOException If an archive of the chain is missing or incomplete
+     */
+    public static List<ArchiveManifest> getChain(Path folder) throws IOException {
+        var chain = new LinkedList<ArchiveManifest>();
+        var current = folder;
+        while (true) {
+            var manifest = readManifest(current);
+            if (manifest.isEmpty()) {
+                throw new IOException("Archive chain broken, " + current + " is missing or incomplete");
+            }
+            chain.addFirst(manifest.get());
+            if (manifest.get().getParent().isEmpty()) {
+                return chain;
+            }
+            current = folder.resolveSibling(manifest.get().getParent().get());
+        }
+    }
+
+    /**
+     * Restores an archive by replaying its chain into btrfs receive. Snapshots
+     * of the chain that already exist in the receive folder are skipped.
+     *
+     * @param folder The archive folder
+     * @param receiveFolder The btrfs folder to receive into
+     * @throws IOException If an archive is damaged or btrfs receive failed
+     */
+    public static void restore(Path folder, Path receiveFolder) throws IOException {
+        for (var manifest : getChain(folder)) {
+            if (Files.exists(receiveFolder.resolve(manifest.getSnapshot()))) {
+                LOG.info("Already Restored: " + manifest);
+                continue;
+            }
+            var source = openStream(folder.toAbsolutePath().getParent(), manifest);
+            var result = StreamTransfer.receiveFrom(source, List.of("btrfs", "receive", receiveFolder.toString()));
+            if (!result.isSuccessful()) {
+                throw new IOException("Restoring " + manifest + " failed: " + result);
+            }
+            LOG.info("Restored: " + manifest);
+        }
+    }
+
+    /**
+     * Opens the send stream of an archive, decompressed. Every segment is
+     * checked against its checksum, or every chunk against its hash, as the
+     * stream is read.
+     *
+     * @param target The folder holding the archives
+     * @param manifest The manifest of the archive
+     * @return The stream
+     * @throws IOException If the archive couldn't be opened
+     */
+    public static ReadableByteChannel openStream(Path target, ArchiveManifest manifest) throws IOException {
+        var archive = target.resolve(manifest.getSnapshot());
+        if (manifest.isDeduplicated()) {
+            return new ChunkReader(target, archive.resolve(CHUNK_LIST_FILE_NAME), manifest.getStreamBytes());
+        }
+        ReadableByteChannel source = new SegmentReader(archive, manifest.getSegmentLengths());
+        if (manifest.getCodec().isPresent()) {
+            source = new BlockDecompressor(source, Runtime.getRuntime().availableProcessors());
+        }
+        if (!manifest.getSegmentChecksums().isEmpty()) {
+            source = new ChecksumVerifier(source, manifest.getSegmentSize(), manifest.getSegmentChecksums());
+        }
+        return source;
+    }
+
+    /**
+     * Writes a manifest or checkpoint under a temporary name, syncs it and
+     * moves it into place, so it is either complete or the old one.
+     */
+    private static void writeJson(Path folder, String fileName, Object value) throws IOException {
+        var temporary = folder.resolve(fileName + ".tmp");
+        try ( var channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            var buffer = ByteBuffer.wrap(MAPPER.writeValueAsBytes(value));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, folder.resolve(fileName), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory(folder);
+    }
+
+    /**
+     * Syncs the entries of a directory, so files created or renamed in it
+     * survive a crash.
+     */
+    private static void forceDirectory(Path folder) throws IOException {
+        try ( var channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            //Some filesystems can't open directories, the data itself is synced already
+            LOG.fine("Couldn't sync " + folder + ": " + ex);
+        }
+    }
+
+    /**
+     * Deletes the segments of an incomplete archive from a segment on,
+     * including any that were being written when it was interrupted.
+     */
+    private static void deleteSegments(Path folder, int from) throws IOException {
+        try ( DirectoryStream<Path> segments = Files.newDirectoryStream(folder, "Segment *.dat")) {
+            for (var segment : segments) {
+                var number = segment.getFileName().toString().replaceAll("\\D", "");
+                if (Integer.parseInt(number) >= from) {
+                    Files.delete(segment);
+                }
+            }
+        }
+        Files.deleteIfExists(folder.resolve(MANIFEST_FILE_NAME + ".tmp"));
+        Files.deleteIfExists(folder.resolve(CHECKPOINT_FILE_NAME + ".tmp"));
+        if (from == 0) {
+            Files.deleteIfExists(folder.resolve(CHECKPOINT_FILE_NAME));
+            Files.deleteIfExists(folder.resolve(CHUNK_LIST_FILE_NAME));
+        }
+    }
+
+    /**
+     * No instances.
+     */
+    private SendArchive() {
+    }
+}
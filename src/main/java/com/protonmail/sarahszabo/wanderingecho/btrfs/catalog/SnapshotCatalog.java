@@ -0,0 +1,501 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.catalog;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Backup;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Snapshot;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A single append-only file holding every snapshot we created. Each record has
+ * a small binary header with the record type, the creation time, the subvolume
+ * and the snapshot location, followed by the snapshot as JSON. Opening the
+ * catalog maps the file into memory and walks the headers only, building an
+ * index by subvolume and creation time and one by snapshot location. Bodies are
+ * decoded on demand, so looking up the latest snapshot of a subvolume reads one
+ * record no matter how many snapshots exist. Deleted snapshots get a record of
+ * their own that drops them from the indices.
+ * <p>
+ * Every backup sent somewhere gets a record too, under the name of its target
+ * and the location of its snapshot, with the length and checksum of its
+ * stream, so the targets can be verified later. A snapshot that is deleted
+ * keeps its backup records, the backups live on.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class SnapshotCatalog implements Closeable {
+
+    /**
+     * The first bytes of a catalog file, "WEC" and the format version.
+     */
+    private static final int FILE_MAGIC = 0x57454303;
+
+    /**
+     * The first bytes of a catalog file from before delete records. Opening
+     * one upgrades it, older versions would cut the delete records off.
+     */
+    private static final int FILE_MAGIC_V1 = 0x57454301;
+
+    /**
+     * The first bytes of a catalog file from before backup records, upgraded
+     * the same way.
+     */
+    private static final int FILE_MAGIC_V2 = 0x57454302;
+
+    /**
+     * A record describing a created snapshot.
+     */
+    public static final byte SNAPSHOT_RECORD = 1;
+
+    /**
+     * A record marking a snapshot as deleted, its body is empty.
+     */
+    public static final byte DELETE_RECORD = 2;
+
+    /**
+     * A record describing a backup of a snapshot on a target.
+     */
+    public static final byte BACKUP_RECORD = 3;
+
+    /**
+     * Type, body length, creation time and the two string lengths.
+     */
+    private static final int RECORD_HEADER_SIZE = 1 + 4 + 8 + 2 + 2;
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(SnapshotCatalog.class.getName());
+
+    private final Path file;
+    private final FileChannel channel;
+    private final ObjectReader reader;
+    private final ObjectWriter writer;
+    private final ObjectReader backupReader;
+    private final ObjectWriter backupWriter;
+    private final Map<String, TreeMap<Long, List<Long>>> bySubvolume = new HashMap<>();
+    private final Map<String, Long> byLocation = new HashMap<>();
+    private final Map<String, Map<String, Long>> byTarget = new LinkedHashMap<>();
+    private MappedByteBuffer mapped;
+    private long size;
+
+    /**
+     * Opens the catalog, creating it if it doesn't exist, and indexes it. A
+     * torn record at the end, left by a crash during an append, is cut off.
+     *
+     * @param file The catalog file
+     * @param mapper The mapper used for the snapshot bodies
+     * @return The opened catalog
+     * @throws IOException If the file couldn't be read or isn't a catalog
+     */
+    public static SnapshotCatalog open(Path file, ObjectMapper mapper) throws IOException {
+        return new SnapshotCatalog(file, mapper);
+    }
+
+    private SnapshotCatalog(Path file, ObjectMapper mapper) throws IOException {
+        this.file = file;
+        this.reader = mapper.readerFor(Snapshot.class);
+        this.writer = mapper.writerFor(Snapshot.class).without(SerializationFeature.INDENT_OUTPUT);
+        this.backupReader = mapper.readerFor(Backup.class);
+        this.backupWriter = mapper.writerFor(Backup.class).without(SerializationFeature.INDENT_OUTPUT);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (this.channel.size() == 0) {
+            this.channel.write(ByteBuffer.allocate(4).putInt(0, FILE_MAGIC));
+            this.channel.force(true);
+        }
+        this.size = this.channel.size();
+        if (this.size > Integer.MAX_VALUE) {
+            throw new IOException("Catalog " + file + " is larger than 2 GiB");
+        }
+        this.mapped = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.size);
+        if (this.mapped.getInt(0) == FILE_MAGIC_V1 || this.mapped.getInt(0) == FILE_MAGIC_V2) {
+            this.channel.write(ByteBuffer.allocate(4).putInt(0, FILE_MAGIC), 0);
+            this.channel.force(true);
+            LOG.info("Upgraded " + file + " to the current catalog format");
+        } else if (this.mapped.getInt(0) != FILE_MAGIC) {
+            throw new IOException(file + " isn't a snapshot catalog");
+        }
+        index();
+    }
+
+    /**
+     * Walks the record headers and fills the indices.
+     */
+    private void index() throws IOException {
+        int position = 4;
+        while (position < this.size) {
+            if (this.size - position < RECORD_HEADER_SIZE) {
+                break;
+            }
+            byte type = this.mapped.get(position);
+            int bodyLength = this.mapped.getInt(position + 1);
+            long time = this.mapped.getLong(position + 5);
+            int subvolumeLength = Short.toUnsignedInt(this.mapped.getShort(position + 13));
+            int locationLength = Short.toUnsignedInt(this.mapped.getShort(position + 15));
+            long end = (long) position + RECORD_HEADER_SIZE + subvolumeLength + locationLength + bodyLength;
+            if ((type != SNAPSHOT_RECORD && type != DELETE_RECORD && type != BACKUP_RECORD) || bodyLength < 0
+                    || end > this.size) {
+                break;
+            }
+            int stringStart = position + RECORD_HEADER_SIZE;
+            var subvolume = readString(stringStart, subvolumeLength);
+            var location = readString(stringStart + subvolumeLength, locationLength);
+            if (type == SNAPSHOT_RECORD) {
+                addToIndex(subvolume, location, time, position);
+            } else if (type == BACKUP_RECORD) {
+                //A backup record names its target where the others name the subvolume
+                this.byTarget.computeIfAbsent(subvolume, key -> new LinkedHashMap<>()).put(location,
+                        (long) position);
+            } else {
+                removeFromIndex(subvolume, location, time);
+            }
+            position = (int) end;
+        }
+        if (position < this.size) {
+            LOG.warning("Cutting off a damaged record at the end of " + this.file + " at offset " + position);
+            this.channel.truncate(position);
+            this.size = position;
+            this.mapped = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.size);
+        }
+        LOG.info("Snapshot Catalog Loaded: " + this.byLocation.size() + " Snapshots, " + this.byTarget.values()
+                .stream().mapToInt(Map::size).sum() + " Backups");
+    }
+
+    /**
+     * Reads a UTF-8 string from the mapped file.
+     */
+    private String readString(int position, int length) {
+        var bytes = new byte[length];
+        this.mapped.duplicate().position(position).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds a record to the indices.
+     */
+    private void addToIndex(String subvolume, String location, long time, long offset) {
+        this.bySubvolume.computeIfAbsent(subvolume, key -> new TreeMap<>())
+                .computeIfAbsent(time, key -> new ArrayList<>(1)).add(offset);
+        this.byLocation.put(location, offset);
+    }
+
+    /**
+     * Removes a record from the indices.
+     */
+    private void removeFromIndex(String subvolume, String location, long time) {
+        var offset = this.byLocation.remove(location);
+        var times = this.bySubvolume.get(subvolume);
+        if (offset == null || times == null || !times.containsKey(time)) {
+            return;
+        }
+        times.get(time).remove(offset);
+        if (times.get(time).isEmpty()) {
+            times.remove(time);
+        }
+        if (times.isEmpty()) {
+            this.bySubvolume.remove(subvolume);
+        }
+    }
+
+    /**
+     * Appends a created snapshot to the catalog and forces it to the disk.
+     *
+     * @param snapshot The snapshot, with its real creation date
+     * @throws IOException If the write failed
+     */
+    public synchronized void append(Snapshot snapshot) throws IOException {
+        appendNoForce(snapshot);
+        this.channel.force(false);
+    }
+
+    /**
+     * Appends a snapshot without waiting for the disk.
+     */
+    private void appendNoForce(Snapshot snapshot) throws IOException {
+        long offset = writeRecord(SNAPSHOT_RECORD, keyOf(snapshot.getParentSubvolume().getLocation()),
+                keyOf(snapshot.getLocation()), snapshot.getCreationDate(), this.writer.writeValueAsBytes(snapshot));
+        addToIndex(keyOf(snapshot.getParentSubvolume().getLocation()), keyOf(snapshot.getLocation()),
+                snapshot.getCreationDate().toInstant().toEpochMilli(), offset);
+    }
+
+    /**
+     * Marks deleted snapshots in the catalog and forces the records to the
+     * disk once for all of them.
+     *
+     * @param snapshots The deleted snapshots
+     * @throws IOException If the write failed
+     */
+    public synchronized void remove(List<Snapshot> snapshots) throws IOException {
+        for (var snapshot : snapshots) {
+            writeRecord(DELETE_RECORD, keyOf(snapshot.getParentSubvolume().getLocation()),
+                    keyOf(snapshot.getLocation()), snapshot.getCreationDate(), new byte[0]);
+            removeFromIndex(keyOf(snapshot.getParentSubvolume().getLocation()), keyOf(snapshot.getLocation()),
+                    snapshot.getCreationDate().toInstant().toEpochMilli());
+        }
+        this.channel.force(false);
+    }
+
+    /**
+     * Records a backup of a snapshot on a target and forces the record to the
+     * disk. A later backup of the same snapshot to the same target replaces
+     * it.
+     *
+     * @param target The name of the target, the backup folder or the name of
+     * a remote target
+     * @param backup The backup, with the length and checksum of its stream
+     * @throws IOException If the write failed
+     */
+    public synchronized void appendBackup(String target, Backup backup) throws IOException {
+        var location = keyOf(backup.getParentSnapshot().getLocation());
+        long offset = writeRecord(BACKUP_RECORD, target, location, backup.getCreationDate(),
+                this.backupWriter.writeValueAsBytes(backup));
+        this.byTarget.computeIfAbsent(target, key -> new LinkedHashMap<>()).put(location, offset);
+        this.channel.force(false);
+    }
+
+    /**
+     * Writes a record at the end of the file.
+     *
+     * @param type The record type
+     * @param subvolumeKey The first key of the record, the subvolume or the
+     * target
+     * @param locationKey The second key of the record, the snapshot location
+     * @param creationDate The time of the record
+     * @param body The body of the record
+     * @return The offset of the record
+     */
+    private long writeRecord(byte type, String subvolumeKey, String locationKey, ZonedDateTime creationDate,
+            byte[] body) throws IOException {
+        var subvolume = subvolumeKey.getBytes(StandardCharsets.UTF_8);
+        var location = locationKey.getBytes(StandardCharsets.UTF_8);
+        long time = creationDate.toInstant().toEpochMilli();
+        var record = ByteBuffer.allocate(RECORD_HEADER_SIZE + subvolume.length + location.length + body.length)
+                .put(type).putInt(body.length).putLong(time)
+                .putShort((short) subvolume.length).putShort((short) location.length)
+                .put(subvolume).put(location).put(body).flip();
+        long offset = this.size;
+        while (record.hasRemaining()) {
+            this.size += this.channel.write(record, this.size);
+        }
+        return offset;
+    }
+
+    /**
+     * Gets the snapshot stored for a location on the disk.
+     *
+     * @param location The location of the snapshot
+     * @return The snapshot, if we created one there
+     */
+    public synchronized Optional<Snapshot> getSnapshot(Path location) {
+        var offset = this.byLocation.get(keyOf(location));
+        return offset == null ? Optional.empty() : Optional.of(readSnapshot(offset));
+    }
+
+    /**
+     * Gets the latest snapshot of a subvolume.
+     *
+     * @param subvolume The location of the subvolume
+     * @param exclude The location of a snapshot to skip, may be null
+     * @return The latest snapshot, if any
+     */
+    public Optional<Snapshot> getLatestSnapshotOf(Path subvolume, Path exclude) {
+        return streamSnapshotsOf(subvolume).filter(snapshot -> exclude == null
+                || !snapshot.getLocation().equals(exclude)).findFirst();
+    }
+
+    /**
+     * Gets the snapshots of a subvolume created within a time range, oldest
+     * first.
+     *
+     * @param subvolume The location of the subvolume
+     * @param from The start of the range, inclusive
+     * @param to The end of the range, inclusive
+     * @return The snapshots in the range
+     */
+    public synchronized List<Snapshot> getSnapshotsOf(Path subvolume, ZonedDateTime from, ZonedDateTime to) {
+        var times = this.bySubvolume.get(keyOf(subvolume));
+        if (times == null) {
+            return List.of();
+        }
+        return times.subMap(from.toInstant().toEpochMilli(), true, to.toInstant().toEpochMilli(), true)
+                .values().stream().flatMap(List::stream).map(this::readSnapshot).collect(Collectors.toList());
+    }
+
+    /**
+     * Streams the snapshots of a subvolume, newest first. Each snapshot is only
+     * decoded once the stream reaches it, so a search that stops early reads
+     * few records.
+     *
+     * @param subvolume The location of the subvolume
+     * @return The snapshots
+     */
+    public Stream<Snapshot> streamSnapshotsOf(Path subvolume) {
+        List<Long> offsets;
+        synchronized (this) {
+            var times = this.bySubvolume.get(keyOf(subvolume));
+            if (times == null) {
+                return Stream.empty();
+            }
+            offsets = times.descendingMap().values().stream().flatMap(list -> {
+                var reversed = new ArrayList<>(list);
+                Collections.reverse(reversed);
+                return reversed.stream();
+            }).collect(Collectors.toList());
+        }
+        return offsets.stream().map(offset -> {
+            synchronized (this) {
+                return readSnapshot(offset);
+            }
+        });
+    }
+
+    /**
+     * Gets the names of the targets backups were recorded for, in the order
+     * they first got one.
+     *
+     * @return The target names
+     */
+    public synchronized List<String> getBackupTargets() {
+        return new ArrayList<>(this.byTarget.keySet());
+    }
+
+    /**
+     * Gets the backups recorded for a target, the latest one of each snapshot,
+     * in the order the snapshots were first backed up there.
+     *
+     * @param target The name of the target
+     * @return The backups
+     */
+    public synchronized List<Backup> getBackupsOn(String target) {
+        var offsets = this.byTarget.getOrDefault(target, Map.of());
+        return offsets.values().stream().map(offset -> this.<Backup>readBody(offset, this.backupReader))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Gets the latest backup of a subvolume recorded for a target.
+     *
+     * @param target The name of the target
+     * @param subvolume The location of the subvolume
+     * @return The backup, empty if the subvolume wasn't backed up there
+     */
+    public synchronized Optional<Backup> getLatestBackupOf(String target, Path subvolume) {
+        var offsets = new ArrayList<>(this.byTarget.getOrDefault(target, Map.of()).values());
+        Collections.reverse(offsets);
+        return offsets.stream().map(offset -> this.<Backup>readBody(offset, this.backupReader))
+                .filter(backup -> backup.getParentSnapshot().getParentSubvolume().getLocation().equals(subvolume))
+                .findFirst();
+    }
+
+    /**
+     * Gets the number of snapshots in the catalog.
+     *
+     * @return The count
+     */
+    public synchronized int size() {
+        return this.byLocation.size();
+    }
+
+    /**
+     * Decodes the snapshot body of the record at an offset.
+     */
+    private Snapshot readSnapshot(long offset) {
+        return readBody(offset, this.reader);
+    }
+
+    /**
+     * Decodes the body of the record at an offset.
+     */
+    private <T> T readBody(long offset, ObjectReader bodyReader) {
+        try {
+            if (offset >= this.mapped.capacity()) {
+                //Appended since we last mapped the file
+                this.mapped = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.size);
+            }
+            int position = (int) offset;
+            int bodyLength = this.mapped.getInt(position + 1);
+            int stringLength = Short.toUnsignedInt(this.mapped.getShort(position + 13))
+                    + Short.toUnsignedInt(this.mapped.getShort(position + 15));
+            var body = new byte[bodyLength];
+            this.mapped.duplicate().position(position + RECORD_HEADER_SIZE + stringLength).get(body);
+            return bodyReader.readValue(body);
+        } catch (IOException ex) {
+            Logger.getLogger(SnapshotCatalog.class.getName()).log(Level.SEVERE, null, ex);
+            throw new IllegalStateException("Couldn't read catalog record at offset " + offset, ex);
+        }
+    }
+
+    /**
+     * Moves the snapshots saved as one JSON file each into the catalog, oldest
+     * first, then renames the folder so it isn't migrated again.
+     *
+     * @param associationFolder The folder of JSON files
+     * @return The number of migrated snapshots
+     * @throws IOException If a file couldn't be read or the catalog written
+     */
+    public synchronized int migrate(Path associationFolder) throws IOException {
+        if (Files.notExists(associationFolder)) {
+            return 0;
+        }
+        var snapshots = new ArrayList<Snapshot>();
+        try ( var files = Files.list(associationFolder)) {
+            for (var json : files.filter(path -> path.toString().endsWith(".JSON")).collect(Collectors.toList())) {
+                snapshots.add(this.reader.readValue(json.toFile()));
+            }
+        }
+        snapshots.sort(Comparator.comparing(Snapshot::getCreationDate));
+        int migrated = 0;
+        for (var snapshot : snapshots) {
+            if (!this.byLocation.containsKey(keyOf(snapshot.getLocation()))) {
+                appendNoForce(snapshot);
+                migrated++;
+            }
+        }
+        this.channel.force(false);
+        Files.move(associationFolder, associationFolder.resolveSibling(associationFolder.getFileName() + " (Migrated)"));
+        LOG.info("Migrated " + migrated + " Snapshots into the Snapshot Catalog");
+        return migrated;
+    }
+
+    /**
+     * Gets the index key of a path.
+     */
+    private static String keyOf(Path path) {
+        return path.normalize().toString();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.channel.close();
+    }
+}
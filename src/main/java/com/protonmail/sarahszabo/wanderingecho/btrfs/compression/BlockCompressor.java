@@ -0,0 +1,235 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.compression;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+/**
+ * A channel that compresses everything written to it on a pool of threads and
+ * writes the result to another channel. The stream is cut into blocks that are
+ * compressed independently, so every thread can work on its own block, and
+ * the compressed blocks are written in the order they were cut.
+ * <p>
+ * Every block is written as a skippable frame holding its header followed by
+ * one standard zstd or lz4 frame. Both formats ignore skippable frames, so
+ * zstd -d or lz4 -d decompress the stream as well as a
+ * {@link BlockDecompressor} does, which reads the headers to decompress blocks
+ * in parallel.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class BlockCompressor implements WritableByteChannel {
+
+    /**
+     * The magic number of the skippable frame holding a block header, little
+     * endian like both formats. Zstd and lz4 share the range 0x184D2A50 to
+     * 0x184D2A5F for skippable frames.
+     */
+    static final int HEADER_MAGIC = 0x184D2A5E;
+
+    /**
+     * The size of the header content: compressed length, raw length, codec.
+     */
+    static final int HEADER_CONTENT_SIZE = 4 + 4 + 1;
+
+    /**
+     * The size of a whole header frame, magic and content size included.
+     */
+    static final int HEADER_SIZE = 4 + 4 + HEADER_CONTENT_SIZE;
+
+    private final WritableByteChannel sink;
+    private final CompressionSettings settings;
+    private final ExecutorService workers;
+    private final boolean ownWorkers;
+    private final int maxInFlight;
+    private final ArrayDeque<Future<ByteBuffer>> inFlight = new ArrayDeque<>();
+    private final ConcurrentLinkedQueue<byte[]> freeBlocks = new ConcurrentLinkedQueue<>();
+    private byte[] block;
+    private int filled;
+    private long rawBytes;
+    private long compressedBytes;
+    private boolean open = true;
+
+    /**
+     * Creates a new compressor with its own threads.
+     *
+     * @param sink The channel the compressed stream goes to, closed with this
+     * one
+     * @param settings The codec, level, block size and number of threads
+     */
+    public BlockCompressor(WritableByteChannel sink, CompressionSettings settings) {
+        this(sink, settings, newWorkers(settings), true);
+    }
+
+    /**
+     * Creates a new compressor that runs on threads shared with other
+     * compressors, e.g. one per archive segment.
+     *
+     * @param sink The channel the compressed stream goes to, closed with this
+     * one
+     * @param settings The codec, level, block size and number of threads
+     * @param workers The threads, see {@link #newWorkers(CompressionSettings)},
+     * not shut down with this compressor
+     */
+    public BlockCompressor(WritableByteChannel sink, CompressionSettings settings, ExecutorService workers) {
+        this(sink, settings, workers, false);
+    }
+
+    private BlockCompressor(WritableByteChannel sink, CompressionSettings settings, ExecutorService workers,
+            boolean ownWorkers) {
+        this.sink = sink;
+        this.settings = settings;
+        this.workers = workers;
+        this.ownWorkers = ownWorkers;
+        //Enough blocks queued that no thread waits on the writer, few enough to bound memory
+        this.maxInFlight = settings.getThreads() * 2;
+        this.block = new byte[settings.getBlockSize()];
+    }
+
+    /**
+     * Creates the threads for compressors with these settings.
+     *
+     * @param settings The settings, for the number of threads
+     * @return The threads
+     */
+    public static ExecutorService newWorkers(CompressionSettings settings) {
+        return Executors.newFixedThreadPool(settings.getThreads(), new BasicThreadFactory.Builder()
+                .namingPattern("Wandering Echo Compression Thread %d").daemon(true).build());
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        if (!this.open) {
+            throw new ClosedChannelException();
+        }
+        int written = source.remaining();
+        while (source.hasRemaining()) {
+            int length = Math.min(source.remaining(), this.block.length - this.filled);
+            source.get(this.block, this.filled, length);
+            this.filled += length;
+            if (this.filled == this.block.length) {
+                submitBlock();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Hands the current block to a thread and starts a new one. Writes out
+     * finished blocks while too many are in flight.
+     */
+    private void submitBlock() throws IOException {
+        var data = this.block;
+        int length = this.filled;
+        this.rawBytes += length;
+        this.inFlight.add(this.workers.submit(() -> compress(data, length)));
+        var recycled = this.freeBlocks.poll();
+        this.block = recycled == null ? new byte[this.settings.getBlockSize()] : recycled;
+        this.filled = 0;
+        while (this.inFlight.size() > this.maxInFlight) {
+            writeOldest();
+        }
+    }
+
+    /**
+     * Compresses a block into its header and frame, then lets the block be
+     * reused. Runs on a compression thread.
+     */
+    private ByteBuffer compress(byte[] data, int length) throws IOException {
+        var frame = this.settings.getCodec().compress(data, length, this.settings.getLevel());
+        this.freeBlocks.add(data);
+        var buffer = ByteBuffer.allocate(HEADER_SIZE + frame.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(HEADER_MAGIC).putInt(HEADER_CONTENT_SIZE).putInt(frame.length).putInt(length)
+                .put(this.settings.getCodec().getId()).put(frame).flip();
+        return buffer;
+    }
+
+    /**
+     * Waits for the oldest block in flight and writes it to the sink.
+     */
+    private void writeOldest() throws IOException {
+        ByteBuffer frame;
+        try {
+            frame = this.inFlight.poll().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException ex) {
+            throw new IOException("Couldn't compress a block", ex.getCause());
+        }
+        this.compressedBytes += frame.remaining();
+        while (frame.hasRemaining()) {
+            this.sink.write(frame);
+        }
+    }
+
+    /**
+     * Gets the number of bytes compressed so far.
+     *
+     * @return The uncompressed bytes
+     */
+    public long getRawBytes() {
+        return this.rawBytes;
+    }
+
+    /**
+     * Gets the number of compressed bytes written to the sink so far.
+     *
+     * @return The compressed bytes, headers included
+     */
+    public long getCompressedBytes() {
+        return this.compressedBytes;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    /**
+     * Compresses the last partial block, writes out everything still in
+     * flight, then closes the sink.
+     *
+     * @throws IOException If compressing or writing failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (!this.open) {
+            return;
+        }
+        this.open = false;
+        try {
+            if (this.filled > 0) {
+                submitBlock();
+            }
+            while (!this.inFlight.isEmpty()) {
+                writeOldest();
+            }
+        } finally {
+            if (this.ownWorkers) {
+                this.workers.shutdownNow();
+            }
+            this.sink.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.settings + " => " + this.sink;
+    }
+}
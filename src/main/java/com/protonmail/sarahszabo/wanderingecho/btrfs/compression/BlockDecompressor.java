@@ -0,0 +1,166 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.compression;
+
+import static com.protonmail.sarahszabo.wanderingecho.btrfs.compression.BlockCompressor.*;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+/**
+ * A channel that reads a stream written by a {@link BlockCompressor} from
+ * another channel and decompresses it on a pool of threads. Blocks are read
+ * ahead and decompressed in parallel, and handed out in stream order.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class BlockDecompressor implements ReadableByteChannel {
+
+    /**
+     * The largest block we accept, so a corrupt header can't make us allocate
+     * gigabytes.
+     */
+    private static final int MAX_BLOCK_SIZE = 256 << 20;
+
+    private final ReadableByteChannel source;
+    private final ExecutorService workers;
+    private final int maxInFlight;
+    private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer current = ByteBuffer.allocate(0);
+    private boolean sourceEnded;
+    private boolean open = true;
+
+    /**
+     * Creates a new decompressor with its own threads.
+     *
+     * @param source The channel the compressed stream comes from, closed with
+     * this one
+     * @param threads The number of decompressing threads
+     */
+    public BlockDecompressor(ReadableByteChannel source, int threads) {
+        this.source = source;
+        this.workers = Executors.newFixedThreadPool(threads, new BasicThreadFactory.Builder()
+                .namingPattern("Wandering Echo Decompression Thread %d").daemon(true).build());
+        this.maxInFlight = threads * 2;
+    }
+
+    @Override
+    public int read(ByteBuffer destination) throws IOException {
+        if (!this.open) {
+            throw new ClosedChannelException();
+        }
+        while (!this.current.hasRemaining()) {
+            readAhead();
+            if (this.inFlight.isEmpty()) {
+                return -1;
+            }
+            this.current = ByteBuffer.wrap(takeOldest());
+        }
+        int length = Math.min(this.current.remaining(), destination.remaining());
+        var slice = this.current.slice();
+        slice.limit(length);
+        destination.put(slice);
+        this.current.position(this.current.position() + length);
+        return length;
+    }
+
+    /**
+     * Reads blocks from the source and hands them to threads until enough are
+     * in flight or the source ended.
+     */
+    private void readAhead() throws IOException {
+        while (!this.sourceEnded && this.inFlight.size() < this.maxInFlight) {
+            this.header.clear();
+            if (!readFully(this.header)) {
+                this.sourceEnded = true;
+                return;
+            }
+            this.header.flip();
+            if (this.header.getInt() != HEADER_MAGIC || this.header.getInt() != HEADER_CONTENT_SIZE) {
+                throw new IOException("Not a Wandering Echo compressed stream, bad block header");
+            }
+            int compressedLength = this.header.getInt();
+            int rawLength = this.header.getInt();
+            var codec = Codec.forId(this.header.get());
+            if (compressedLength < 0 || rawLength < 0 || compressedLength > MAX_BLOCK_SIZE
+                    || rawLength > MAX_BLOCK_SIZE) {
+                throw new IOException("Corrupt block header: " + compressedLength + " compressed bytes, "
+                        + rawLength + " raw bytes");
+            }
+            var frame = ByteBuffer.allocate(compressedLength);
+            if (!readFully(frame)) {
+                throw new EOFException("Compressed stream ended after a block header");
+            }
+            this.inFlight.add(this.workers.submit(() -> codec.decompress(frame.array(), rawLength)));
+        }
+    }
+
+    /**
+     * Fills a buffer from the source.
+     *
+     * @param buffer The buffer to fill
+     * @return False if the source ended before the first byte
+     * @throws EOFException If the source ended in the middle of the buffer
+     */
+    private boolean readFully(ByteBuffer buffer) throws IOException {
+        boolean any = false;
+        while (buffer.hasRemaining()) {
+            if (this.source.read(buffer) < 0) {
+                if (any) {
+                    throw new EOFException("Compressed stream ended in the middle of a block");
+                }
+                return false;
+            }
+            any = buffer.position() > 0;
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the oldest block in flight to be decompressed.
+     */
+    private byte[] takeOldest() throws IOException {
+        try {
+            return this.inFlight.poll().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decompressing");
+        } catch (ExecutionException ex) {
+            throw new IOException("Couldn't decompress a block", ex.getCause());
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!this.open) {
+            return;
+        }
+        this.open = false;
+        this.workers.shutdownNow();
+        this.source.close();
+    }
+
+    @Override
+    public String toString() {
+        return this.source + " => Decompressor";
+    }
+}
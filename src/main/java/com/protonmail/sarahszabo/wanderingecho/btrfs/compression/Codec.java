@@ -0,0 +1,159 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.compression;
+
+import com.github.luben.zstd.Zstd;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * The compression algorithms a backup stream can be compressed with. Every
+ * block becomes one standard frame of its format, so the stock command line
+ * tool of the format can decompress a whole stream.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public enum Codec {
+
+    /**
+     * Zstandard, good ratio at high speed. Levels 1 to 19.
+     */
+    ZSTD((byte) 1, 3, "zstd -d -c") {
+        @Override
+        public byte[] compress(byte[] block, int length, int level) throws IOException {
+            var frame = new byte[(int) Zstd.compressBound(length)];
+            long size = Zstd.compressByteArray(frame, 0, frame.length, block, 0, length, level);
+            if (Zstd.isError(size)) {
+                throw new IOException("zstd compression failed: " + Zstd.getErrorName(size));
+            }
+            return Arrays.copyOf(frame, (int) size);
+        }
+
+        @Override
+        public byte[] decompress(byte[] frame, int rawLength) throws IOException {
+            var block = new byte[rawLength];
+            long size = Zstd.decompressByteArray(block, 0, rawLength, frame, 0, frame.length);
+            if (Zstd.isError(size)) {
+                throw new IOException("zstd decompression failed: " + Zstd.getErrorName(size));
+            }
+            if (size != rawLength) {
+                throw new IOException("zstd block decompressed to " + size + " bytes, expected " + rawLength);
+            }
+            return block;
+        }
+    },
+    /**
+     * LZ4, lower ratio but barely costs any CPU. Level 0 is the fast
+     * compressor, levels 1 to 17 the high compression one.
+     */
+    LZ4((byte) 2, 0, "lz4 -d -c") {
+        @Override
+        public byte[] compress(byte[] block, int length, int level) throws IOException {
+            var factory = LZ4Factory.fastestInstance();
+            var frame = new ByteArrayOutputStream(factory.fastCompressor().maxCompressedLength(length) + 32);
+            try ( var out = new LZ4FrameOutputStream(frame, LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB, length,
+                    level == 0 ? factory.fastCompressor() : factory.highCompressor(level),
+                    XXHashFactory.fastestInstance().hash32(), LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE,
+                    LZ4FrameOutputStream.FLG.Bits.CONTENT_SIZE)) {
+                out.write(block, 0, length);
+            }
+            return frame.toByteArray();
+        }
+
+        @Override
+        public byte[] decompress(byte[] frame, int rawLength) throws IOException {
+            try ( var in = new LZ4FrameInputStream(new ByteArrayInputStream(frame))) {
+                var block = in.readNBytes(rawLength);
+                if (block.length != rawLength || in.read() != -1) {
+                    throw new EOFException("lz4 block didn't decompress to " + rawLength + " bytes");
+                }
+                return block;
+            }
+        }
+    };
+
+    private final byte id;
+    private final int defaultLevel;
+    private final String decompressCommand;
+
+    private Codec(byte id, int defaultLevel, String decompressCommand) {
+        this.id = id;
+        this.defaultLevel = defaultLevel;
+        this.decompressCommand = decompressCommand;
+    }
+
+    /**
+     * Compresses one block into one frame.
+     *
+     * @param block The data, may be longer than the block
+     * @param length The length of the block
+     * @param level The compression level
+     * @return The frame
+     * @throws IOException If compressing failed
+     */
+    public abstract byte[] compress(byte[] block, int length, int level) throws IOException;
+
+    /**
+     * Decompresses one frame back into its block.
+     *
+     * @param frame The frame
+     * @param rawLength The length of the block it was compressed from
+     * @return The block
+     * @throws IOException If the frame is corrupt
+     */
+    public abstract byte[] decompress(byte[] frame, int rawLength) throws IOException;
+
+    /**
+     * Gets the id written into block headers.
+     *
+     * @return The id
+     */
+    public byte getId() {
+        return this.id;
+    }
+
+    /**
+     * Gets the level used when none is configured.
+     *
+     * @return The default level
+     */
+    public int getDefaultLevel() {
+        return this.defaultLevel;
+    }
+
+    /**
+     * Gets the shell command that decompresses a stream of this codec with the
+     * format's own tool, for hosts that don't have Wandering Echo.
+     *
+     * @return The command, reading standard input and writing standard output
+     */
+    public String getDecompressCommand() {
+        return this.decompressCommand;
+    }
+
+    /**
+     * Gets the codec with a header id.
+     *
+     * @param id The id
+     * @return The codec
+     * @throws IOException If no codec has that id
+     */
+    public static Codec forId(byte id) throws IOException {
+        for (var codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IOException("Unknown compression codec id " + id);
+    }
+}
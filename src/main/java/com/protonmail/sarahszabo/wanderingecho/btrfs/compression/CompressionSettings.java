@@ -0,0 +1,120 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.compression;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * How backup streams are compressed: the codec, its level, how large the
+ * independently compressed blocks are and how many threads compress them.
+ * Saved as part of the BTRFS configuration file.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class CompressionSettings {
+
+    /**
+     * The block size used when nothing is configured. Large enough for a good
+     * ratio, small enough to keep every thread busy on short streams.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 4 << 20;
+
+    @JsonProperty
+    private final Codec codec;
+    @JsonProperty
+    private final int level;
+    @JsonProperty
+    private final int blockSize;
+    @JsonProperty
+    private final int threads;
+
+    /**
+     * Creates new compression settings. Null values fall back to the
+     * defaults: zstd, the codec's default level, 4 MiB blocks and one thread
+     * per processor.
+     *
+     * @param codec The codec
+     * @param level The compression level
+     * @param blockSize The size of the blocks compressed independently
+     * @param threads The number of compressing threads
+     */
+    @JsonCreator
+    public CompressionSettings(@JsonProperty(value = "codec") Codec codec,
+            @JsonProperty(value = "level") Integer level,
+            @JsonProperty(value = "blockSize") Integer blockSize,
+            @JsonProperty(value = "threads") Integer threads) {
+        this.codec = codec == null ? Codec.ZSTD : codec;
+        this.level = level == null ? this.codec.getDefaultLevel() : level;
+        this.blockSize = blockSize == null ? DEFAULT_BLOCK_SIZE : blockSize;
+        this.threads = threads == null ? Runtime.getRuntime().availableProcessors() : threads;
+        if (this.blockSize < 1 << 10 || this.threads < 1) {
+            throw new IllegalArgumentException("Compression needs blocks of at least 1 KiB and a thread, got "
+                    + this.blockSize + " bytes and " + this.threads + " threads");
+        }
+    }
+
+    /**
+     * Parses settings written as CODEC or CODEC:LEVEL, e.g. "zstd:6", with
+     * the default block size and threads.
+     *
+     * @param value The settings
+     * @return The parsed settings
+     * @throws IllegalArgumentException If the codec or level is invalid
+     */
+    public static CompressionSettings parse(String value) {
+        var parts = value.split(":", 2);
+        try {
+            return new CompressionSettings(Codec.valueOf(parts[0].toUpperCase()),
+                    parts.length == 2 ? Integer.valueOf(parts[1]) : null, null, null);
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Compression must be zstd or lz4 with an optional :LEVEL, got "
+                    + value, ex);
+        }
+    }
+
+    /**
+     * Gets the codec.
+     *
+     * @return The codec
+     */
+    public Codec getCodec() {
+        return this.codec;
+    }
+
+    /**
+     * Gets the compression level.
+     *
+     * @return The level
+     */
+    public int getLevel() {
+        return this.level;
+    }
+
+    /**
+     * Gets the size of the blocks that are compressed independently.
+     *
+     * @return The block size in bytes
+     */
+    public int getBlockSize() {
+        return this.blockSize;
+    }
+
+    /**
+     * Gets the number of threads compressing blocks.
+     *
+     * @return The number of threads
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+
+    @Override
+    public String toString() {
+        return this.codec + ":" + this.level + " (" + (this.blockSize >> 10) + " KiB blocks, " + this.threads
+                + " threads)";
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.dedup;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds stored chunks by their hash in memory, 28 bytes per chunk: the first
+ * 128 bits of the SHA-256, far too many for two different chunks to share,
+ * with the location and stored length, in flat arrays probed linearly. The
+ * table doubles as it fills, up to a memory budget. Once that is full new
+ * chunks aren't indexed anymore: they are still stored, only later copies of
+ * them aren't found and are stored again.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+final class ChunkIndex {
+
+    /**
+     * The memory one slot of the table takes.
+     */
+    static final int SLOT_SIZE = Long.BYTES * 3 + Integer.BYTES;
+
+    /**
+     * The slots of a new table.
+     */
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    private final int maximumCapacity;
+    private long[] highKeys;
+    private long[] lowKeys;
+    private long[] locations;
+    private int[] lengths;
+    private int size;
+
+    /**
+     * Creates an empty index.
+     *
+     * @param memory The most memory the table may take, in bytes
+     */
+    ChunkIndex(long memory) {
+        long slots = Long.highestOneBit(Math.max(memory / SLOT_SIZE, INITIAL_CAPACITY));
+        this.maximumCapacity = (int) Math.min(slots, 1 << 30);
+        allocate(Math.min(INITIAL_CAPACITY, this.maximumCapacity));
+    }
+
+    /**
+     * Allocates an empty table.
+     */
+    private void allocate(int capacity) {
+        this.highKeys = new long[capacity];
+        this.lowKeys = new long[capacity];
+        this.locations = new long[capacity];
+        this.lengths = new int[capacity];
+    }
+
+    /**
+     * Finds a chunk.
+     *
+     * @param hash The SHA-256 of the chunk
+     * @return The reference to it, null if it isn't indexed
+     */
+    ChunkReference find(byte[] hash) {
+        var key = ByteBuffer.wrap(hash);
+        long high = key.getLong(0);
+        long low = key.getLong(Long.BYTES);
+        int mask = this.locations.length - 1;
+        //The hash is uniform already, its low bits make a good slot
+        for (int slot = (int) low & mask; this.locations[slot] != 0; slot = (slot + 1) & mask) {
+            if (this.highKeys[slot] == high && this.lowKeys[slot] == low) {
+                return new ChunkReference(hash, this.locations[slot], this.lengths[slot]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Indexes a chunk that isn't indexed yet.
+     *
+     * @param hash The SHA-256 of the chunk, only the first 16 bytes are used
+     * @param location Where the chunk is, see {@link ChunkReference}, never 0
+     * @param storedLength The length of its stored data
+     * @return False if the index is full and the chunk wasn't indexed
+     */
+    boolean add(byte[] hash, long location, int storedLength) {
+        if ((this.size + 1) * 4L > this.locations.length * 3L) {
+            if (this.locations.length == this.maximumCapacity) {
+                return false;
+            }
+            grow();
+        }
+        var key = ByteBuffer.wrap(hash);
+        insert(key.getLong(0), key.getLong(Long.BYTES), location, storedLength);
+        this.size++;
+        return true;
+    }
+
+    /**
+     * Puts an entry into the first free slot of its probe sequence.
+     */
+    private void insert(long high, long low, long location, int storedLength) {
+        int mask = this.locations.length - 1;
+        int slot = (int) low & mask;
+        while (this.locations[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        this.highKeys[slot] = high;
+        this.lowKeys[slot] = low;
+        this.locations[slot] = location;
+        this.lengths[slot] = storedLength;
+    }
+
+    /**
+     * Doubles the table.
+     */
+    private void grow() {
+        var highs = this.highKeys;
+        var lows = this.lowKeys;
+        var oldLocations = this.locations;
+        var oldLengths = this.lengths;
+        allocate(oldLocations.length * 2);
+        for (int i = 0; i < oldLocations.length; i++) {
+            if (oldLocations[i] != 0) {
+                insert(highs[i], lows[i], oldLocations[i], oldLengths[i]);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of indexed chunks.
+     *
+     * @return The number of chunks
+     */
+    int size() {
+        return this.size;
+    }
+
+    @Override
+    public String toString() {
+        return this.size + " Chunks in " + ((long) this.locations.length * SLOT_SIZE >> 20) + " of "
+                + ((long) this.maximumCapacity * SLOT_SIZE >> 20) + " MiB";
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.dedup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads a stream back from the chunks a {@link ChunkWriter} referenced,
+ * checking every chunk against its SHA-256 and the whole against the stream
+ * length. Reading doesn't lock the store, its packs are only ever appended
+ * to.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class ChunkReader implements ReadableByteChannel {
+
+    private final Path storeFolder;
+    private final FileChannel references;
+    private final long streamBytes;
+    private final ByteBuffer referenceBuffer = ByteBuffer.allocate(ChunkReference.SIZE * 4096).flip();
+    private final Map<Integer, FileChannel> packs = new HashMap<>();
+    private final MessageDigest digest = ChunkStore.newDigest();
+    private ByteBuffer chunk = ByteBuffer.allocate(0);
+    private long bytesRead;
+    private boolean open = true;
+
+    /**
+     * Creates a new chunk reader.
+     *
+     * @param target The folder holding the archives and their store
+     * @param referenceFile The references of the stream
+     * @param streamBytes The length of the stream
+     * @throws IOException If the references couldn't be opened
+     */
+    public ChunkReader(Path target, Path referenceFile, long streamBytes) throws IOException {
+        this.storeFolder = ChunkStore.getFolder(target);
+        this.references = FileChannel.open(referenceFile, StandardOpenOption.READ);
+        this.streamBytes = streamBytes;
+    }
+
+    @Override
+    public int read(ByteBuffer destination) throws IOException {
+        if (!this.open) {
+            throw new ClosedChannelException();
+        }
+        while (!this.chunk.hasRemaining()) {
+            var reference = nextReference();
+            if (reference == null) {
+                if (this.bytesRead != this.streamBytes) {
+                    throw new EOFException("The chunks hold " + this.bytesRead + " bytes, the stream had "
+                            + this.streamBytes);
+                }
+                return -1;
+            }
+            this.chunk = ByteBuffer.wrap(load(reference));
+        }
+        int length = Math.min(destination.remaining(), this.chunk.remaining());
+        var slice = this.chunk.slice();
+        slice.limit(length);
+        destination.put(slice);
+        this.chunk.position(this.chunk.position() + length);
+        this.bytesRead += length;
+        return length;
+    }
+
+    /**
+     * Reads the next reference.
+     *
+     * @return The reference, null after the last
+     */
+    private ChunkReference nextReference() throws IOException {
+        if (this.referenceBuffer.remaining() < ChunkReference.SIZE) {
+            this.referenceBuffer.compact();
+            while (this.referenceBuffer.hasRemaining() && this.references.read(this.referenceBuffer) >= 0) {
+                //Fill the buffer
+            }
+            this.referenceBuffer.flip();
+            if (!this.referenceBuffer.hasRemaining()) {
+                return null;
+            }
+            if (this.referenceBuffer.remaining() < ChunkReference.SIZE) {
+                throw new EOFException("The chunk references end in the middle of one");
+            }
+        }
+        return ChunkReference.read(this.referenceBuffer);
+    }
+
+    /**
+     * Reads a chunk from its pack and checks it.
+     */
+    private byte[] load(ChunkReference reference) throws IOException {
+        var pack = this.packs.get(reference.getPack());
+        if (pack == null) {
+            pack = FileChannel.open(this.storeFolder.resolve(ChunkStore.getPackName(reference.getPack())),
+                    StandardOpenOption.READ);
+            this.packs.put(reference.getPack(), pack);
+        }
+        var record = ByteBuffer.allocate(ChunkStore.HEADER_SIZE + reference.getStoredLength());
+        ChunkStore.readFully(pack, record, reference.getOffset());
+        record.flip();
+        int storedLength = record.getInt();
+        int rawLength = record.getInt();
+        byte codec = record.get();
+        var hash = new byte[ChunkReference.HASH_SIZE];
+        record.get(hash);
+        if (storedLength != reference.getStoredLength() || !Arrays.equals(hash, reference.getHash())) {
+            throw new IOException(reference + " points at a different chunk");
+        }
+        var stored = new byte[storedLength];
+        record.get(stored);
+        var raw = ChunkStore.decode(codec, stored, rawLength);
+        if (!Arrays.equals(this.digest.digest(raw), hash)) {
+            throw new IOException(reference + " is damaged, its data doesn't match its hash");
+        }
+        return raw;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.open = false;
+        try {
+            this.references.close();
+        } finally {
+            for (var pack : this.packs.values()) {
+                pack.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Chunks in " + this.storeFolder;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.dedup;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where a chunk is in a {@link ChunkStore}: its SHA-256, the pack and offset
+ * of its record and the length of its stored data. An archive is a list of
+ * these, {@link #SIZE} bytes each.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public final class ChunkReference {
+
+    /**
+     * The length of the SHA-256 of a chunk.
+     */
+    public static final int HASH_SIZE = 32;
+
+    /**
+     * The length of a written reference.
+     */
+    public static final int SIZE = HASH_SIZE + Long.BYTES + Integer.BYTES;
+
+    private final byte[] hash;
+    private final long location;
+    private final int storedLength;
+
+    /**
+     * Creates a new reference.
+     *
+     * @param hash The SHA-256 of the chunk's data
+     * @param location The pack number in the upper and the offset of the
+     * record in the lower 32 bits
+     * @param storedLength The length of the data as stored, compressed or not
+     */
+    public ChunkReference(byte[] hash, long location, int storedLength) {
+        if (hash.length != HASH_SIZE) {
+            throw new IllegalArgumentException("A chunk hash has " + HASH_SIZE + " bytes, got " + hash.length);
+        }
+        this.hash = hash;
+        this.location = location;
+        this.storedLength = storedLength;
+    }
+
+    /**
+     * Reads a reference written by {@link #write(ByteBuffer)}.
+     *
+     * @param source The buffer to read from
+     * @return The reference
+     */
+    public static ChunkReference read(ByteBuffer source) {
+        var hash = new byte[HASH_SIZE];
+        source.get(hash);
+        return new ChunkReference(hash, source.getLong(), source.getInt());
+    }
+
+    /**
+     * Writes this reference.
+     *
+     * @param destination The buffer to write to
+     */
+    public void write(ByteBuffer destination) {
+        destination.put(this.hash).putLong(this.location).putInt(this.storedLength);
+    }
+
+    /**
+     * Gets the SHA-256 of the chunk's data.
+     *
+     * @return The hash, not to be modified
+     */
+    public byte[] getHash() {
+        return this.hash;
+    }
+
+    /**
+     * Gets the number of the pack holding the chunk.
+     *
+     * @return The pack number
+     */
+    public int getPack() {
+        return (int) (this.location >>> 32);
+    }
+
+    /**
+     * Gets the offset of the chunk's record in its pack.
+     *
+     * @return The offset in bytes
+     */
+    public long getOffset() {
+        return this.location & 0xFFFF_FFFFL;
+    }
+
+    /**
+     * Gets the length of the data as stored.
+     *
+     * @return The length in bytes
+     */
+    public int getStoredLength() {
+        return this.storedLength;
+    }
+
+    @Override
+    public String toString() {
+        return "Chunk in Pack " + getPack() + " at " + getOffset() + " (" + this.storedLength + " Bytes)";
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.dedup;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.Codec;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Content addressed storage for the chunks of send streams, shared by every
+ * archive in a target folder, so data the target already holds, e.g. from a
+ * recreated subvolume or a sibling with similar files, is stored once. Chunks
+ * are appended to numbered pack files through a large buffer, so the disk
+ * only sees big sequential writes. Every record in a pack is a header, the
+ * stored length, the raw length, the codec id or 0 and the SHA-256 of the raw
+ * data, followed by the data. A pack gets an index file listing its chunks
+ * when it is closed, the in memory {@link ChunkIndex} is loaded from those.
+ * <p>
+ * The store is locked for one process at a time while archives are written,
+ * threads of that process share it. Chunks are never deleted, no archive
+ * target is pruned yet. A pack left without index by a crash is scanned when
+ * the store is next used, and cut off after its last intact chunk.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class ChunkStore {
+
+    /**
+     * The name of the store's folder inside a target folder.
+     */
+    public static final String FOLDER_NAME = "Chunk Store";
+
+    /**
+     * The length of the header of every record in a pack.
+     */
+    static final int HEADER_SIZE = Integer.BYTES * 2 + 1 + ChunkReference.HASH_SIZE;
+
+    /**
+     * The length of an entry of a pack index: the first 128 bits of the hash,
+     * the location and the stored length.
+     */
+    private static final int INDEX_ENTRY_SIZE = Long.BYTES * 3 + Integer.BYTES;
+
+    /**
+     * The size of the buffer appends are gathered in.
+     */
+    private static final int WRITE_BUFFER_SIZE = 4 << 20;
+
+    /**
+     * The file locked by the process writing to the store.
+     */
+    private static final String LOCK_FILE_NAME = "Store.lock";
+
+    /**
+     * The stores of this process, by target folder.
+     */
+    private static final Map<Path, ChunkStore> STORES = new HashMap<>();
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(ChunkStore.class.getName());
+
+    private final Path folder;
+    private final long packSize;
+    private final FastCdc chunker;
+    private final ChunkIndex index;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private final ByteArrayOutputStream packEntries = new ByteArrayOutputStream();
+    private int users;
+    private FileChannel lockFile;
+    private FileLock lock;
+    private int lastPack;
+    private FileChannel pack;
+    private long packOffset;
+    private boolean indexFullLogged;
+
+    /**
+     * Creates a store that isn't loaded yet.
+     */
+    private ChunkStore(Path folder, DedupSettings settings) {
+        this.folder = folder;
+        this.packSize = settings.getPackSize();
+        this.chunker = new FastCdc(settings.getAverageChunkSize());
+        this.index = new ChunkIndex(settings.getIndexMemory());
+    }
+
+    /**
+     * Gets the store of a target folder. Its index stays loaded for the life
+     * of the process, so a daemon only reads it once.
+     *
+     * @param target The folder holding the archives
+     * @param settings How to chunk and index, the first caller's settings are
+     * kept
+     * @return The store
+     */
+    public static synchronized ChunkStore of(Path target, DedupSettings settings) {
+        return STORES.computeIfAbsent(target.toAbsolutePath().normalize(), folder -> new ChunkStore(
+                getFolder(folder), settings));
+    }
+
+    /**
+     * Gets the folder of the store in a target folder.
+     *
+     * @param target The folder holding the archives
+     * @return The store's folder
+     */
+    public static Path getFolder(Path target) {
+        return target.resolve(FOLDER_NAME);
+    }
+
+    /**
+     * Gets the file name of a pack.
+     *
+     * @param number The number of the pack, from 1
+     * @return The file name
+     */
+    public static String getPackName(int number) {
+        return String.format("Pack %06d.dat", number);
+    }
+
+    /**
+     * Gets the file name of the index of a pack.
+     */
+    private static String getPackIndexName(int number) {
+        return String.format("Pack %06d.idx", number);
+    }
+
+    /**
+     * Starts using the store. The first user locks it, waiting for another
+     * process that holds it, and loads the packs written since it was last
+     * used.
+     *
+     * @throws IOException If the store couldn't be locked or read
+     */
+    public synchronized void acquire() throws IOException {
+        if (this.users == 0) {
+            Files.createDirectories(this.folder);
+            this.lockFile = FileChannel.open(this.folder.resolve(LOCK_FILE_NAME), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            try {
+                this.lock = this.lockFile.tryLock();
+                if (this.lock == null) {
+                    LOG.info("DEDUP: " + this.folder + " is in use by another process, waiting");
+                    this.lock = this.lockFile.lock();
+                }
+                load();
+            } catch (IOException | RuntimeException ex) {
+                this.lockFile.close();
+                throw ex;
+            }
+        }
+        this.users++;
+    }
+
+    /**
+     * Stops using the store. The last user closes the pack being written and
+     * unlocks the store.
+     *
+     * @throws IOException If the pack couldn't be closed
+     */
+    public synchronized void release() throws IOException {
+        if (--this.users > 0) {
+            return;
+        }
+        try {
+            seal();
+        } finally {
+            this.lock.release();
+            this.lockFile.close();
+            this.lock = null;
+            this.lockFile = null;
+        }
+    }
+
+    /**
+     * Indexes the packs newer than the ones already indexed.
+     */
+    private void load() throws IOException {
+        var numbers = new TreeSet<Integer>();
+        try ( DirectoryStream<Path> packs = Files.newDirectoryStream(this.folder, "Pack *.dat")) {
+            for (var pack : packs) {
+                int number = Integer.parseInt(pack.getFileName().toString().replaceAll("\\D", ""));
+                if (number > this.lastPack) {
+                    numbers.add(number);
+                }
+            }
+        }
+        for (int number : numbers) {
+            var packIndex = this.folder.resolve(getPackIndexName(number));
+            if (Files.exists(packIndex)) {
+                var entries = ByteBuffer.wrap(Files.readAllBytes(packIndex));
+                var key = new byte[Long.BYTES * 2];
+                while (entries.remaining() >= INDEX_ENTRY_SIZE) {
+                    entries.get(key);
+                    addToIndex(key, entries.getLong(), entries.getInt());
+                }
+            } else {
+                recover(number);
+            }
+            this.lastPack = number;
+        }
+        if (!numbers.isEmpty()) {
+            LOG.info("DEDUP: Loaded " + numbers.size() + " Packs of " + this.folder + ", " + this.index);
+        }
+    }
+
+    /**
+     * Indexes a pack that was never closed: keeps every chunk up to the first
+     * one that isn't whole or doesn't match its hash, cuts the pack off there
+     * and writes its index.
+     */
+    private void recover(int number) throws IOException {
+        var path = this.folder.resolve(getPackName(number));
+        var digest = newDigest();
+        this.packEntries.reset();
+        long offset = 0;
+        try ( var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            while (offset + HEADER_SIZE <= size) {
+                var record = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(channel, record, offset);
+                record.flip();
+                int storedLength = record.getInt();
+                int rawLength = record.getInt();
+                byte codec = record.get();
+                var hash = new byte[ChunkReference.HASH_SIZE];
+                record.get(hash);
+                if (storedLength < 0 || rawLength < 0 || offset + HEADER_SIZE + storedLength > size) {
+                    break;
+                }
+                var data = ByteBuffer.allocate(storedLength);
+                readFully(channel, data, offset + HEADER_SIZE);
+                try {
+                    if (!Arrays.equals(digest.digest(decode(codec, data.array(), rawLength)), hash)) {
+                        break;
+                    }
+                } catch (IOException ex) {
+                    break;
+                }
+                long location = (long) number << 32 | offset;
+                writeEntry(hash, location, storedLength);
+                addToIndex(hash, location, storedLength);
+                offset += HEADER_SIZE + storedLength;
+            }
+            if (offset < size) {
+                LOG.warning("DEDUP: " + path + " ends in an unfinished chunk, cutting off " + (size - offset)
+                        + " Bytes");
+                channel.truncate(offset);
+            }
+            channel.force(true);
+        }
+        writePackIndex(number);
+        LOG.info("DEDUP: Recovered " + path + ", " + this.packEntries.size() / INDEX_ENTRY_SIZE + " Chunks");
+    }
+
+    /**
+     * Finds a stored chunk.
+     *
+     * @param hash The SHA-256 of the chunk
+     * @return The reference to it, null if it isn't stored or not indexed
+     */
+    public synchronized ChunkReference find(byte[] hash) {
+        return this.index.find(hash);
+    }
+
+    /**
+     * Stores a chunk, unless another thread stored it in the meantime.
+     *
+     * @param hash The SHA-256 of the raw chunk
+     * @param data The data to store, compressed or not
+     * @param offset Where the data starts
+     * @param length The length of the data
+     * @param rawLength The length of the raw chunk
+     * @param codecId The id of the codec the data is compressed with, 0 if it
+     * isn't
+     * @return The reference to the chunk
+     * @throws IOException If the chunk couldn't be written
+     */
+    public synchronized ChunkReference store(byte[] hash, byte[] data, int offset, int length, int rawLength,
+            byte codecId) throws IOException {
+        var existing = this.index.find(hash);
+        if (existing != null) {
+            return existing;
+        }
+        if (this.pack != null && this.packOffset + HEADER_SIZE + length > this.packSize) {
+            seal();
+        }
+        if (this.pack == null) {
+            this.lastPack++;
+            this.pack = FileChannel.open(this.folder.resolve(getPackName(this.lastPack)),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            this.packOffset = 0;
+            this.packEntries.reset();
+        }
+        long location = (long) this.lastPack << 32 | this.packOffset;
+        this.header.clear();
+        this.header.putInt(length).putInt(rawLength).put(codecId).put(hash).flip();
+        append(this.header);
+        append(ByteBuffer.wrap(data, offset, length));
+        this.packOffset += HEADER_SIZE + length;
+        writeEntry(hash, location, length);
+        addToIndex(hash, location, length);
+        return new ChunkReference(hash, location, length);
+    }
+
+    /**
+     * Indexes a chunk, telling once if the index is full.
+     */
+    private void addToIndex(byte[] hash, long location, int storedLength) {
+        if (!this.index.add(hash, location, storedLength) && !this.indexFullLogged) {
+            this.indexFullLogged = true;
+            LOG.warning("DEDUP: The index of " + this.folder + " is full (" + this.index + "), new chunks are "
+                    + "stored without being deduplicated, raise indexMemoryMiB");
+        }
+    }
+
+    /**
+     * Appends to the pack being written through the write buffer.
+     */
+    private void append(ByteBuffer source) throws IOException {
+        if (source.remaining() > this.writeBuffer.remaining()) {
+            flush();
+        }
+        if (source.remaining() > this.writeBuffer.remaining()) {
+            while (source.hasRemaining()) {
+                this.pack.write(source);
+            }
+        } else {
+            this.writeBuffer.put(source);
+        }
+    }
+
+    /**
+     * Writes out the write buffer.
+     */
+    private void flush() throws IOException {
+        this.writeBuffer.flip();
+        while (this.writeBuffer.hasRemaining()) {
+            this.pack.write(this.writeBuffer);
+        }
+        this.writeBuffer.clear();
+    }
+
+    /**
+     * Syncs every chunk stored so far to the disk, so archives referencing
+     * them can be completed.
+     *
+     * @throws IOException If the pack couldn't be synced
+     */
+    public synchronized void force() throws IOException {
+        if (this.pack != null) {
+            flush();
+            this.pack.force(false);
+        }
+    }
+
+    /**
+     * Syncs and closes the pack being written and writes its index.
+     */
+    private void seal() throws IOException {
+        if (this.pack == null) {
+            return;
+        }
+        try {
+            force();
+        } finally {
+            this.pack.close();
+            this.pack = null;
+            this.writeBuffer.clear();
+        }
+        writePackIndex(this.lastPack);
+        LOG.fine("DEDUP: Closed " + getPackName(this.lastPack) + ", " + this.packOffset + " Bytes");
+    }
+
+    /**
+     * Records a chunk of the pack being written or recovered for its index.
+     */
+    private void writeEntry(byte[] hash, long location, int storedLength) {
+        var entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        entry.put(hash, 0, Long.BYTES * 2).putLong(location).putInt(storedLength);
+        this.packEntries.writeBytes(entry.array());
+    }
+
+    /**
+     * Writes the index of a pack under a temporary name, syncs it and moves it
+     * into place.
+     */
+    private void writePackIndex(int number) throws IOException {
+        var temporary = this.folder.resolve(getPackIndexName(number) + ".tmp");
+        try ( var channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            var buffer = ByteBuffer.wrap(this.packEntries.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, this.folder.resolve(getPackIndexName(number)), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Gets the chunker the streams stored here are cut with.
+     *
+     * @return The chunker
+     */
+    public FastCdc getChunker() {
+        return this.chunker;
+    }
+
+    /**
+     * Creates a SHA-256 digest.
+     *
+     * @return The digest
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            Logger.getLogger(ChunkStore.class.getName()).log(Level.SEVERE, null, ex);
+            throw new IllegalStateException("Every Java platform has SHA-256", ex);
+        }
+    }
+
+    /**
+     * Turns the stored data of a chunk back into the raw chunk.
+     *
+     * @param codecId The codec id from the record header, 0 if not compressed
+     * @param stored The stored data
+     * @param rawLength The length of the raw chunk
+     * @return The raw chunk
+     * @throws IOException If the data is corrupt
+     */
+    static byte[] decode(byte codecId, byte[] stored, int rawLength) throws IOException {
+        if (codecId == 0) {
+            if (stored.length != rawLength) {
+                throw new IOException("Uncompressed chunk of " + stored.length + " bytes, expected " + rawLength);
+            }
+            return stored;
+        }
+        return Codec.forId(codecId).decompress(stored, rawLength);
+    }
+
+    /**
+     * Reads until a buffer is full.
+     *
+     * @param channel The file to read
+     * @param destination The buffer
+     * @param position Where in the file to read from
+     * @throws IOException If the file ends before
+     */
+    static void readFully(FileChannel channel, ByteBuffer destination, long position) throws IOException {
+        while (destination.hasRemaining()) {
+            int read = channel.read(destination, position);
+            if (read < 0) {
+                throw new EOFException("Pack ends " + destination.remaining() + " bytes early");
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Chunk Store in " + this.folder;
+    }
+}
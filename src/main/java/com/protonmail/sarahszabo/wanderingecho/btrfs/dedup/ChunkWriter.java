@@ -0,0 +1,283 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.dedup;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.CompressionSettings;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+/**
+ * A channel that cuts a stream into content defined chunks, stores the chunks
+ * the {@link ChunkStore} doesn't hold yet, compressed on their own if
+ * compression is given, and writes the reference to every chunk, in order,
+ * into a file. That file is all an archive needs besides the store. Chunks are
+ * cut on the caller's thread, hashed and compressed on a pool of threads.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class ChunkWriter implements WritableByteChannel {
+
+    /**
+     * How many references are gathered before they are written.
+     */
+    private static final int REFERENCE_BUFFER_SIZE = ChunkReference.SIZE * 4096;
+
+    /**
+     * A digest for every thread hashing chunks.
+     */
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(ChunkStore::newDigest);
+
+    private final ChunkStore store;
+    private final FastCdc chunker;
+    private final CompressionSettings compression;
+    private final FileChannel references;
+    private final ByteBuffer referenceBuffer = ByteBuffer.allocate(REFERENCE_BUFFER_SIZE);
+    private final ExecutorService workers;
+    private final Queue<Future<StoredChunk>> inFlight = new ArrayDeque<>();
+    private final int maxInFlight;
+    private final byte[] buffer;
+    private int start;
+    private int end;
+    private long streamBytes;
+    private long newBytes;
+    private long storedBytes;
+    private int chunks;
+    private int newChunks;
+    private boolean open = true;
+
+    /**
+     * Creates a new chunk writer.
+     *
+     * @param store The store, acquired by the caller
+     * @param referenceFile The file to write the references into, replaced if
+     * it exists
+     * @param compression How to compress new chunks, null to store them as
+     * they are
+     * @throws IOException If the reference file couldn't be created
+     */
+    public ChunkWriter(ChunkStore store, Path referenceFile, CompressionSettings compression) throws IOException {
+        this.store = store;
+        this.chunker = store.getChunker();
+        this.compression = compression;
+        int threads = compression == null ? Runtime.getRuntime().availableProcessors() : compression.getThreads();
+        this.workers = Executors.newFixedThreadPool(threads, new BasicThreadFactory.Builder()
+                .namingPattern("Wandering Echo Chunk Thread %d").daemon(true).build());
+        //Enough chunks queued that no thread waits on the writer, few enough to bound memory
+        this.maxInFlight = threads * 2;
+        this.buffer = new byte[this.chunker.getMaximumSize() * 4];
+        this.references = FileChannel.open(referenceFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        if (!this.open) {
+            throw new ClosedChannelException();
+        }
+        int written = source.remaining();
+        while (source.hasRemaining()) {
+            if (this.end == this.buffer.length) {
+                //Less than a chunk is left, move it to the front
+                System.arraycopy(this.buffer, this.start, this.buffer, 0, this.end - this.start);
+                this.end -= this.start;
+                this.start = 0;
+            }
+            int length = Math.min(source.remaining(), this.buffer.length - this.end);
+            source.get(this.buffer, this.end, length);
+            this.end += length;
+            //Only cut with a whole chunk's worth ahead, or the cut depends on how the stream arrived
+            while (this.end - this.start >= this.chunker.getMaximumSize()) {
+                emit(this.chunker.cut(this.buffer, this.start, this.end - this.start));
+            }
+        }
+        this.streamBytes += written;
+        return written;
+    }
+
+    /**
+     * Hands the chunk at the start of the buffer to a thread. Writes the
+     * references of finished chunks while too many are in flight.
+     */
+    private void emit(int length) throws IOException {
+        var chunk = Arrays.copyOfRange(this.buffer, this.start, this.start + length);
+        this.start += length;
+        this.inFlight.add(this.workers.submit(() -> storeChunk(chunk)));
+        while (this.inFlight.size() > this.maxInFlight) {
+            writeOldest();
+        }
+    }
+
+    /**
+     * Hashes a chunk and stores it if it is new. Runs on a chunk thread.
+     */
+    private StoredChunk storeChunk(byte[] chunk) throws IOException {
+        var hash = DIGESTS.get().digest(chunk);
+        var reference = this.store.find(hash);
+        if (reference != null) {
+            return new StoredChunk(reference, false, chunk.length);
+        }
+        if (this.compression != null) {
+            var frame = this.compression.getCodec().compress(chunk, chunk.length, this.compression.getLevel());
+            //Data that doesn't compress is stored as it is
+            if (frame.length < chunk.length) {
+                return new StoredChunk(this.store.store(hash, frame, 0, frame.length, chunk.length,
+                        this.compression.getCodec().getId()), true, chunk.length);
+            }
+        }
+        return new StoredChunk(this.store.store(hash, chunk, 0, chunk.length, chunk.length, (byte) 0), true,
+                chunk.length);
+    }
+
+    /**
+     * Waits for the oldest chunk in flight and writes its reference.
+     */
+    private void writeOldest() throws IOException {
+        StoredChunk chunk;
+        try {
+            chunk = this.inFlight.poll().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while storing chunks");
+        } catch (ExecutionException ex) {
+            throw new IOException("Couldn't store a chunk", ex.getCause());
+        }
+        if (chunk.isNew) {
+            this.newChunks++;
+            this.newBytes += chunk.rawLength;
+            this.storedBytes += chunk.reference.getStoredLength();
+        }
+        this.chunks++;
+        if (this.referenceBuffer.remaining() < ChunkReference.SIZE) {
+            flushReferences();
+        }
+        chunk.reference.write(this.referenceBuffer);
+    }
+
+    /**
+     * Writes out the gathered references.
+     */
+    private void flushReferences() throws IOException {
+        this.referenceBuffer.flip();
+        while (this.referenceBuffer.hasRemaining()) {
+            this.references.write(this.referenceBuffer);
+        }
+        this.referenceBuffer.clear();
+    }
+
+    /**
+     * Gets the number of chunks the stream was cut into.
+     *
+     * @return The number of chunks
+     */
+    public int getChunks() {
+        return this.chunks;
+    }
+
+    /**
+     * Gets the number of chunks the store didn't hold yet.
+     *
+     * @return The number of chunks
+     */
+    public int getNewChunks() {
+        return this.newChunks;
+    }
+
+    /**
+     * Gets the number of stream bytes written.
+     *
+     * @return The stream bytes
+     */
+    public long getStreamBytes() {
+        return this.streamBytes;
+    }
+
+    /**
+     * Gets the raw length of the chunks the store didn't hold yet.
+     *
+     * @return The bytes
+     */
+    public long getNewBytes() {
+        return this.newBytes;
+    }
+
+    /**
+     * Gets how much the new chunks take in the packs, after compression.
+     *
+     * @return The bytes
+     */
+    public long getStoredBytes() {
+        return this.storedBytes;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    /**
+     * Stores the last chunks and syncs the references and the store's packs.
+     *
+     * @throws IOException If they couldn't be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (!this.open) {
+            return;
+        }
+        this.open = false;
+        try {
+            while (this.end > this.start) {
+                emit(this.chunker.cut(this.buffer, this.start, this.end - this.start));
+            }
+            while (!this.inFlight.isEmpty()) {
+                writeOldest();
+            }
+            flushReferences();
+            this.references.force(true);
+            this.store.force();
+        } finally {
+            this.workers.shutdownNow();
+            this.references.close();
+        }
+    }
+
+    /**
+     * A chunk's reference, and whether storing it wrote it.
+     */
+    private static class StoredChunk {
+
+        private final ChunkReference reference;
+        private final boolean isNew;
+        private final int rawLength;
+
+        StoredChunk(ChunkReference reference, boolean isNew, int rawLength) {
+            this.reference = reference;
+            this.isNew = isNew;
+            this.rawLength = rawLength;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.chunks + " Chunks, " + this.newChunks + " New, " + this.newBytes + " of " + this.streamBytes
+                + " Bytes New, " + this.storedBytes + " Bytes Stored";
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.dedup;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Whether archive targets store send streams in a deduplicating
+ * {@link ChunkStore} instead of segment files, and how: the average size the
+ * streams are cut into, how much memory the index of the chunks may take, and
+ * how large the pack files get. Saved as part of the BTRFS configuration file.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class DedupSettings {
+
+    @JsonProperty
+    private final boolean enabled;
+    @JsonProperty
+    private final int averageChunkSize;
+    @JsonProperty
+    private final int indexMemoryMiB;
+    @JsonProperty
+    private final int packSizeMiB;
+
+    /**
+     * Creates the default settings, with deduplication off.
+     */
+    public DedupSettings() {
+        this(null, null, null, null);
+    }
+
+    /**
+     * Creates new dedup settings. Null values fall back to the defaults: off,
+     * 64 KiB chunks, a 256 MiB index, which covers about 9 million chunks or
+     * half a terabyte of distinct data, and 64 MiB packs.
+     *
+     * @param enabled True to deduplicate archives
+     * @param averageChunkSize The average chunk size in bytes, a power of two
+     * from 4 KiB to 1 MiB
+     * @param indexMemoryMiB The most memory the index may take
+     * @param packSizeMiB The size a pack file is closed at
+     */
+    @JsonCreator
+    public DedupSettings(@JsonProperty(value = "enabled") Boolean enabled,
+            @JsonProperty(value = "averageChunkSize") Integer averageChunkSize,
+            @JsonProperty(value = "indexMemoryMiB") Integer indexMemoryMiB,
+            @JsonProperty(value = "packSizeMiB") Integer packSizeMiB) {
+        this.enabled = enabled == null ? false : enabled;
+        this.averageChunkSize = averageChunkSize == null ? 64 << 10 : averageChunkSize;
+        this.indexMemoryMiB = indexMemoryMiB == null ? 256 : indexMemoryMiB;
+        this.packSizeMiB = packSizeMiB == null ? 64 : packSizeMiB;
+        if (Integer.bitCount(this.averageChunkSize) != 1 || this.averageChunkSize < 4 << 10
+                || this.averageChunkSize > 1 << 20) {
+            throw new IllegalArgumentException("The average chunk size has to be a power of two from 4 KiB to 1 MiB, "
+                    + "got " + this.averageChunkSize);
+        }
+        if (this.indexMemoryMiB < 1 || this.packSizeMiB < 16 || this.packSizeMiB > 1024) {
+            throw new IllegalArgumentException("Dedup needs at least 1 MiB of index and packs of 16 MiB to 1 GiB, "
+                    + "got " + this.indexMemoryMiB + " MiB and " + this.packSizeMiB + " MiB");
+        }
+    }
+
+    /**
+     * Creates the same settings, switched on.
+     *
+     * @return The settings
+     */
+    public DedupSettings enable() {
+        return new DedupSettings(true, this.averageChunkSize, this.indexMemoryMiB, this.packSizeMiB);
+    }
+
+    /**
+     * Checks whether archives are deduplicated.
+     *
+     * @return True if they are
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Gets the size chunks average.
+     *
+     * @return The size in bytes
+     */
+    public int getAverageChunkSize() {
+        return this.averageChunkSize;
+    }
+
+    /**
+     * Gets the most memory the index may take.
+     *
+     * @return The memory in bytes
+     */
+    @JsonIgnore
+    public long getIndexMemory() {
+        return (long) this.indexMemoryMiB << 20;
+    }
+
+    /**
+     * Gets the size a pack file is closed at.
+     *
+     * @return The size in bytes
+     */
+    @JsonIgnore
+    public long getPackSize() {
+        return (long) this.packSizeMiB << 20;
+    }
+
+    @Override
+    public String toString() {
+        return (this.enabled ? "On" : "Off") + " (" + (this.averageChunkSize >> 10) + " KiB chunks, "
+                + this.indexMemoryMiB + " MiB index, " + this.packSizeMiB + " MiB packs)";
+    }
+}
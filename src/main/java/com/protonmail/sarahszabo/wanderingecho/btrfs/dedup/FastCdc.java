@@ -0,0 +1,110 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.dedup;
+
+/**
+ * Finds content defined chunk boundaries the FastCDC way: a gear hash rolled
+ * over the bytes, cut where its top bits are all zero. Cutting depends only on
+ * the last 64 bytes, so data shifted by an insert upstream still cuts at the
+ * same places. No cut is looked for before the minimum size, a stricter mask
+ * is used before the average size and a looser one after it, which keeps the
+ * sizes close to the average, and the maximum size always cuts.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public final class FastCdc {
+
+    /**
+     * A random number for every byte value. Generated from a fixed seed, the
+     * boundaries, and so what deduplicates against what, depend on it.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        //SplitMix64, written out so no library change can move the boundaries
+        long state = 0x57616E646572696EL;
+        for (int i = 0; i < GEAR.length; i++) {
+            state += 0x9E3779B97F4A7C15L;
+            long value = state;
+            value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+            value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = value ^ (value >>> 31);
+        }
+    }
+
+    private final int minimumSize;
+    private final int averageSize;
+    private final int maximumSize;
+    private final long smallMask;
+    private final long largeMask;
+
+    /**
+     * Creates a chunker. Chunks are at least a quarter and at most four times
+     * the average size.
+     *
+     * @param averageSize The average chunk size, a power of two of at least
+     * 256 bytes
+     */
+    public FastCdc(int averageSize) {
+        if (Integer.bitCount(averageSize) != 1 || averageSize < 256) {
+            throw new IllegalArgumentException("The average chunk size has to be a power of two of at least 256, got "
+                    + averageSize);
+        }
+        int bits = Integer.numberOfTrailingZeros(averageSize);
+        this.minimumSize = averageSize / 4;
+        this.averageSize = averageSize;
+        this.maximumSize = averageSize * 4;
+        this.smallMask = -1L << (64 - bits - 2);
+        this.largeMask = -1L << (64 - bits + 2);
+    }
+
+    /**
+     * Finds the end of the chunk starting at an offset. Unless the data ends
+     * there, at least the maximum chunk size has to be given.
+     *
+     * @param data The data
+     * @param offset Where the chunk starts
+     * @param length How much data there is from the offset on
+     * @return The length of the chunk
+     */
+    public int cut(byte[] data, int offset, int length) {
+        if (length <= this.minimumSize) {
+            return length;
+        }
+        int end = Math.min(length, this.maximumSize);
+        int normal = Math.min(end, this.averageSize);
+        long hash = 0;
+        int i = this.minimumSize;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((hash & this.smallMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((hash & this.largeMask) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Gets the largest chunk this chunker cuts.
+     *
+     * @return The size in bytes
+     */
+    public int getMaximumSize() {
+        return this.maximumSize;
+    }
+
+    @Override
+    public String toString() {
+        return "FastCDC " + (this.minimumSize >> 10) + "/" + (this.averageSize >> 10) + "/"
+                + (this.maximumSize >> 10) + " KiB";
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.metrics;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+/**
+ * Every metric of the backups, by subvolume and by subvolume and target. Each
+ * one is registered as an MXBean and written every few seconds to a file in
+ * the Prometheus text format, for the textfile collector of node_exporter.
+ * When backups last succeeded is kept in a state file, so the recovery point
+ * lag is right from the start of a run and not just after its first backup.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class MetricsRegistry {
+
+    /**
+     * The JMX domain of the metrics.
+     */
+    private static final String JMX_DOMAIN = "com.protonmail.sarahszabo.wanderingecho";
+
+    /**
+     * How often the throughput is sampled and the files are written.
+     */
+    private static final long EXPORT_SECONDS = 10;
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(MetricsRegistry.class.getName());
+
+    private final Path stateFile;
+    private final Path textFile;
+    private final ObjectMapper mapper;
+    private final Map<String, Map<String, Long>> lastSuccesses;
+    private final ConcurrentHashMap<String, SubvolumeMetrics> subvolumes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<List<String>, StreamMetrics> streams = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService exporter = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("Wandering Echo Metrics Thread %d").daemon(true).build());
+
+    /**
+     * Opens the registry and starts exporting it.
+     *
+     * @param stateFile The file keeping when backups last succeeded
+     * @param textFile The Prometheus text file to write, should end in .prom
+     * @param mapper The mapper to read and write the state with
+     * @return The registry
+     * @throws IOException If the state file exists but couldn't be read
+     */
+    public static MetricsRegistry open(Path stateFile, Path textFile, ObjectMapper mapper) throws IOException {
+        var registry = new MetricsRegistry(stateFile, textFile, mapper);
+        registry.exporter.scheduleWithFixedDelay(registry::export, EXPORT_SECONDS, EXPORT_SECONDS, TimeUnit.SECONDS);
+        LOG.info("Writing metrics to " + textFile);
+        return registry;
+    }
+
+    private MetricsRegistry(Path stateFile, Path textFile, ObjectMapper mapper) throws IOException {
+        this.stateFile = stateFile;
+        this.textFile = textFile;
+        this.mapper = mapper;
+        this.lastSuccesses = Files.exists(stateFile) ? mapper.readValue(stateFile.toFile(),
+                new TypeReference<Map<String, Map<String, Long>>>() {
+        }) : new HashMap<>();
+        //Targets that aren't backed up to this run still have a recovery point lag worth alerting on
+        this.lastSuccesses.forEach((subvolume, targets) -> targets.keySet().forEach(target
+                -> getStream(subvolume, target)));
+    }
+
+    /**
+     * Gets the metrics of the snapshots of a subvolume.
+     *
+     * @param subvolume The subvolume location
+     * @return The metrics
+     */
+    public SubvolumeMetrics getSubvolume(String subvolume) {
+        return this.subvolumes.computeIfAbsent(subvolume, name -> register(new SubvolumeMetrics(name),
+                "type=Subvolume,subvolume=" + ObjectName.quote(name)));
+    }
+
+    /**
+     * Gets the metrics of the backups of a subvolume to a target.
+     *
+     * @param subvolume The subvolume location
+     * @param target The target
+     * @return The metrics
+     */
+    public StreamMetrics getStream(String subvolume, String target) {
+        return this.streams.computeIfAbsent(List.of(subvolume, target), key -> register(new StreamMetrics(
+                subvolume, target, this.lastSuccesses.getOrDefault(subvolume, Map.of()).getOrDefault(target, 0L)),
+                "type=Stream,subvolume=" + ObjectName.quote(subvolume) + ",target=" + ObjectName.quote(target)));
+    }
+
+    /**
+     * Registers metrics with the platform MBean server. Failing to is logged,
+     * the text file still has them.
+     *
+     * @param <T> The metrics
+     * @param metrics The metrics
+     * @param keys The key properties of their object name
+     * @return The metrics
+     */
+    private static <T> T register(T metrics, String keys) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(JMX_DOMAIN + ":"
+                    + keys));
+        } catch (JMException ex) {
+            Logger.getLogger(MetricsRegistry.class.getName()).log(Level.WARNING, "Couldn't register " + metrics
+                    + " over JMX", ex);
+        }
+        return metrics;
+    }
+
+    /**
+     * Samples the throughput and writes the state and the text file now, e.g.
+     * at the end of a run.
+     */
+    public synchronized void export() {
+        this.streams.values().forEach(StreamMetrics::sample);
+        try {
+            saveState();
+            writeTextFile();
+        } catch (IOException ex) {
+            Logger.getLogger(MetricsRegistry.class.getName()).log(Level.WARNING, "Couldn't export the metrics", ex);
+        }
+    }
+
+    /**
+     * Writes when backups last succeeded. Like the text file it is written
+     * next to its final name and moved over it, a run that exits while it is
+     * written leaves the last state behind instead of an empty file.
+     *
+     * @throws IOException If the state file couldn't be written
+     */
+    private void saveState() throws IOException {
+        this.streams.values().stream().filter(stream -> stream.getLastSuccessEpochSecond() != 0)
+                .forEach(stream -> this.lastSuccesses.computeIfAbsent(stream.getSubvolume(),
+                        subvolume -> new HashMap<>()).put(stream.getTarget(), stream.getLastSuccessEpochSecond()));
+        var temporary = this.stateFile.resolveSibling(this.stateFile.getFileName() + ".tmp");
+        this.mapper.writeValue(temporary.toFile(), this.lastSuccesses);
+        Files.move(temporary, this.stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format. The file is written
+     * next to its final name and moved over it, so the collector never reads
+     * half of it.
+     *
+     * @throws IOException If it couldn't be written
+     */
+    private void writeTextFile() throws IOException {
+        var text = new StringBuilder();
+        var streamList = new ArrayList<>(this.streams.values());
+        var subvolumeList = new ArrayList<>(this.subvolumes.values());
+        Function<StreamMetrics, String> streamLabels = stream -> "subvolume=\"" + escape(stream.getSubvolume())
+                + "\",target=\"" + escape(stream.getTarget()) + "\"";
+        Function<SubvolumeMetrics, String> subvolumeLabels = subvolume -> "subvolume=\""
+                + escape(subvolume.getSubvolume()) + "\"";
+        appendMetric(text, "wandering_echo_bytes_sent_total", "counter",
+                "Send stream bytes moved to the target this run.", streamList, streamLabels,
+                StreamMetrics::getBytesSent);
+        appendMetric(text, "wandering_echo_throughput_bytes_per_second", "gauge",
+                "Throughput of the last few seconds.", streamList, streamLabels, StreamMetrics::getThroughput);
+        appendMetric(text, "wandering_echo_average_throughput_bytes_per_second", "gauge",
+                "Throughput over every send of this run.", streamList, streamLabels,
+                StreamMetrics::getAverageThroughput);
+        appendMetric(text, "wandering_echo_sending", "gauge", "1 while a send is running.", streamList,
+                streamLabels, stream -> stream.isSending() ? 1 : 0);
+        appendMetric(text, "wandering_echo_send_duration_seconds", "gauge", "Duration of the last finished send.",
+                streamList, streamLabels, StreamMetrics::getLastSendSeconds);
+        appendMetric(text, "wandering_echo_send_successes_total", "counter", "Sends that succeeded this run.",
+                streamList, streamLabels, StreamMetrics::getSuccesses);
+        appendMetric(text, "wandering_echo_send_failures_total", "counter", "Sends that failed this run.",
+                streamList, streamLabels, StreamMetrics::getFailures);
+        var succeeded = streamList.stream().filter(stream -> stream.getLastSuccessEpochSecond() != 0)
+                .collect(Collectors.toList());
+        appendMetric(text, "wandering_echo_last_success_timestamp_seconds", "gauge",
+                "When a backup to the target last succeeded.", succeeded, streamLabels,
+                StreamMetrics::getLastSuccessEpochSecond);
+        appendMetric(text, "wandering_echo_rpo_lag_seconds", "gauge",
+                "Age of the newest backup on the target when this file was written.", succeeded, streamLabels,
+                StreamMetrics::getRpoLagSeconds);
+        appendMetric(text, "wandering_echo_snapshot_create_seconds", "gauge",
+                "Duration of the last snapshot creation.", subvolumeList, subvolumeLabels,
+                SubvolumeMetrics::getLastSnapshotSeconds);
+        appendMetric(text, "wandering_echo_snapshot_failures_total", "counter",
+                "Snapshots that couldn't be created this run.", subvolumeList, subvolumeLabels,
+                SubvolumeMetrics::getSnapshotFailures);
+        appendMetric(text, "wandering_echo_delete_duration_seconds", "gauge",
+                "Duration of the last delete of snapshots.", subvolumeList, subvolumeLabels,
+                SubvolumeMetrics::getLastDeleteSeconds);
+        appendMetric(text, "wandering_echo_delete_failures_total", "counter", "Deletes that failed this run.",
+                subvolumeList, subvolumeLabels, SubvolumeMetrics::getDeleteFailures);
+        appendMetric(text, "wandering_echo_unchanged_skips_total", "counter",
+                "Backups skipped this run because the subvolume didn't change.", subvolumeList, subvolumeLabels,
+                SubvolumeMetrics::getUnchangedSkips);
+        var temporary = this.textFile.resolveSibling(this.textFile.getFileName() + ".tmp");
+        Files.writeString(temporary, text, StandardCharsets.UTF_8);
+        Files.move(temporary, this.textFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Appends one metric with a sample for each of its series.
+     *
+     * @param <T> The metrics the samples come from
+     * @param text Where to append it
+     * @param name The metric name
+     * @param type The Prometheus type
+     * @param help The description
+     * @param series The metrics of every series
+     * @param labels Gets the labels of a series
+     * @param value Gets the value of a series
+     */
+    private static <T> void appendMetric(StringBuilder text, String name, String type, String help, List<T> series,
+            Function<T, String> labels, ToDoubleFunction<T> value) {
+        if (series.isEmpty()) {
+            return;
+        }
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        for (var metrics : series) {
+            double sample = value.applyAsDouble(metrics);
+            text.append(name).append('{').append(labels.apply(metrics)).append("} ")
+                    .append(sample == Math.rint(sample) ? Long.toString((long) sample)
+                            : String.format(Locale.ROOT, "%.3f", sample)).append('\n');
+        }
+    }
+
+    /**
+     * Escapes a label value of the text format.
+     *
+     * @param value The value
+     * @return The escaped value
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public String toString() {
+        return "Metrics: " + this.streams.values() + ", " + this.subvolumes.values();
+    }
+}
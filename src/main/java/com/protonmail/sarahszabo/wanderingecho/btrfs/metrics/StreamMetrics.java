@@ -0,0 +1,204 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.metrics;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.throttle.TokenBucket;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The metrics of the backups of one subvolume to one target. The bytes are
+ * counted by a bucket without a limit that every stream of the pair takes
+ * tokens from, next to its throttle buckets, so they're known while the
+ * stream runs and not just when it ends.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class StreamMetrics implements StreamMetricsMXBean {
+
+    private final String subvolume;
+    private final String target;
+    private final TokenBucket meter;
+    private final AtomicLong successes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long sendStart;
+    private volatile long lastSendNanos;
+    private volatile long lastSuccess;
+    private volatile double throughput;
+    private long sendNanos;
+    private long sampledBytes;
+    private long sampledAt = System.nanoTime();
+
+    /**
+     * Creates new stream metrics.
+     *
+     * @param subvolume The subvolume that is backed up
+     * @param target The target it's backed up to
+     * @param lastSuccess When a backup last succeeded in seconds since the
+     * epoch, 0 if never
+     */
+    public StreamMetrics(String subvolume, String target, long lastSuccess) {
+        this.subvolume = subvolume;
+        this.target = target;
+        this.meter = new TokenBucket("Meter " + subvolume + " => " + target, 0);
+        this.lastSuccess = lastSuccess;
+    }
+
+    /**
+     * Adds the byte counter of these metrics to the buckets of a stream.
+     *
+     * @param buckets The throttle buckets of the stream
+     * @return The buckets with the counter
+     */
+    public List<TokenBucket> meter(List<TokenBucket> buckets) {
+        var metered = new ArrayList<TokenBucket>(buckets);
+        metered.add(this.meter);
+        return metered;
+    }
+
+    /**
+     * Runs a send and records its duration and whether it succeeded.
+     *
+     * @param <T> The result of the send
+     * @param send The send, its streams must take tokens from
+     * {@link #meter(java.util.List)}
+     * @return The result of the send
+     * @throws Exception Whatever the send threw, counted as a failure
+     */
+    public <T> T recordSend(Callable<T> send) throws Exception {
+        long start = startSend();
+        boolean successful = false;
+        try {
+            var result = send.call();
+            successful = true;
+            return result;
+        } finally {
+            finishSend(start, successful);
+        }
+    }
+
+    /**
+     * Records the start of a send that can't run through
+     * {@link #recordSend(java.util.concurrent.Callable)}, e.g. one target of a
+     * stream copied to several targets. Finish it with
+     * {@link #finishSend(long, boolean)}.
+     *
+     * @return The start time to finish the send with
+     */
+    public long startSend() {
+        long start = System.nanoTime();
+        this.sendStart = start;
+        return start;
+    }
+
+    /**
+     * Records the end of a send, its duration and whether it succeeded.
+     *
+     * @param start The start time {@link #startSend()} returned
+     * @param successful Whether the send succeeded
+     */
+    public void finishSend(long start, boolean successful) {
+        if (successful) {
+            this.successes.incrementAndGet();
+            this.lastSuccess = Instant.now().getEpochSecond();
+        } else {
+            this.failures.incrementAndGet();
+        }
+        long duration = System.nanoTime() - start;
+        synchronized (this) {
+            this.sendNanos += duration;
+            this.lastSendNanos = duration;
+            this.sendStart = 0;
+        }
+    }
+
+    /**
+     * Records that the target already holds the current state of the
+     * subvolume, it didn't change since its last backup. Counts as a success
+     * for the recovery point, not as a send.
+     */
+    public void recordUnchanged() {
+        this.lastSuccess = Instant.now().getEpochSecond();
+    }
+
+    /**
+     * Updates the throughput from the bytes counted since the last sample.
+     */
+    synchronized void sample() {
+        long now = System.nanoTime();
+        long bytes = this.meter.getBytesAcquired();
+        this.throughput = (bytes - this.sampledBytes) * 1e9 / Math.max(1, now - this.sampledAt);
+        this.sampledBytes = bytes;
+        this.sampledAt = now;
+    }
+
+    @Override
+    public String getSubvolume() {
+        return this.subvolume;
+    }
+
+    @Override
+    public String getTarget() {
+        return this.target;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return this.meter.getBytesAcquired();
+    }
+
+    @Override
+    public double getThroughput() {
+        return this.throughput;
+    }
+
+    @Override
+    public synchronized double getAverageThroughput() {
+        long start = this.sendStart;
+        long nanos = this.sendNanos + (start == 0 ? 0 : System.nanoTime() - start);
+        return nanos == 0 ? 0 : getBytesSent() * 1e9 / nanos;
+    }
+
+    @Override
+    public boolean isSending() {
+        return this.sendStart != 0;
+    }
+
+    @Override
+    public double getLastSendSeconds() {
+        return this.lastSendNanos / 1e9;
+    }
+
+    @Override
+    public long getSuccesses() {
+        return this.successes.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return this.failures.get();
+    }
+
+    @Override
+    public long getLastSuccessEpochSecond() {
+        return this.lastSuccess;
+    }
+
+    @Override
+    public long getRpoLagSeconds() {
+        long last = this.lastSuccess;
+        return last == 0 ? -1 : Instant.now().getEpochSecond() - last;
+    }
+
+    @Override
+    public String toString() {
+        return this.subvolume + " => " + this.target + ": " + getBytesSent() + " Bytes, " + getSuccesses()
+                + " Succeeded, " + getFailures() + " Failed";
+    }
+}
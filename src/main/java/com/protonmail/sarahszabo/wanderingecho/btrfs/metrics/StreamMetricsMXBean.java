@@ -0,0 +1,92 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.metrics;
+
+/**
+ * The metrics of the backups of one subvolume to one target, as seen over JMX.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public interface StreamMetricsMXBean {
+
+    /**
+     * Gets the subvolume that is backed up.
+     *
+     * @return The subvolume location
+     */
+    String getSubvolume();
+
+    /**
+     * Gets the target the subvolume is backed up to.
+     *
+     * @return The target
+     */
+    String getTarget();
+
+    /**
+     * Gets the number of send stream bytes moved to the target this run.
+     *
+     * @return The bytes
+     */
+    long getBytesSent();
+
+    /**
+     * Gets the throughput of the last few seconds.
+     *
+     * @return The throughput in bytes per second, 0 if nothing is sent
+     */
+    double getThroughput();
+
+    /**
+     * Gets the throughput over every send of this run.
+     *
+     * @return The throughput in bytes per second
+     */
+    double getAverageThroughput();
+
+    /**
+     * Checks whether a send is running.
+     *
+     * @return True if one is
+     */
+    boolean isSending();
+
+    /**
+     * Gets how long the last finished send took.
+     *
+     * @return The duration in seconds
+     */
+    double getLastSendSeconds();
+
+    /**
+     * Gets the number of sends that succeeded this run.
+     *
+     * @return The count
+     */
+    long getSuccesses();
+
+    /**
+     * Gets the number of sends that failed this run.
+     *
+     * @return The count
+     */
+    long getFailures();
+
+    /**
+     * Gets when the last send succeeded, also in earlier runs.
+     *
+     * @return The time in seconds since the epoch, 0 if never
+     */
+    long getLastSuccessEpochSecond();
+
+    /**
+     * Gets how old the newest backup on the target is, the recovery point
+     * lag.
+     *
+     * @return The age in seconds, -1 if there is none
+     */
+    long getRpoLagSeconds();
+}
@@ -0,0 +1,109 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * The metrics of the snapshots of one subvolume, which don't depend on where
+ * they're backed up to.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class SubvolumeMetrics implements SubvolumeMetricsMXBean {
+
+    private final String subvolume;
+    private final AtomicLong snapshotFailures = new AtomicLong();
+    private final AtomicLong deleteFailures = new AtomicLong();
+    private final AtomicLong unchangedSkips = new AtomicLong();
+    private volatile long lastSnapshotNanos;
+    private volatile long lastDeleteNanos;
+
+    /**
+     * Creates new subvolume metrics.
+     *
+     * @param subvolume The subvolume
+     */
+    public SubvolumeMetrics(String subvolume) {
+        this.subvolume = subvolume;
+    }
+
+    /**
+     * Creates a snapshot and records how long it took.
+     *
+     * @param <T> The snapshot
+     * @param create Creates the snapshot
+     * @return The snapshot
+     */
+    public <T> T recordSnapshot(Supplier<T> create) {
+        long start = System.nanoTime();
+        try {
+            var snapshot = create.get();
+            this.lastSnapshotNanos = System.nanoTime() - start;
+            return snapshot;
+        } catch (RuntimeException | Error ex) {
+            this.snapshotFailures.incrementAndGet();
+            throw ex;
+        }
+    }
+
+    /**
+     * Records a delete of snapshots.
+     *
+     * @param nanos How long it took
+     * @param successful Whether it succeeded
+     */
+    public void recordDelete(long nanos, boolean successful) {
+        this.lastDeleteNanos = nanos;
+        if (!successful) {
+            this.deleteFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a backup skipped because the subvolume didn't change.
+     */
+    public void recordUnchanged() {
+        this.unchangedSkips.incrementAndGet();
+    }
+
+    @Override
+    public String getSubvolume() {
+        return this.subvolume;
+    }
+
+    @Override
+    public double getLastSnapshotSeconds() {
+        return this.lastSnapshotNanos / 1e9;
+    }
+
+    @Override
+    public double getLastDeleteSeconds() {
+        return this.lastDeleteNanos / 1e9;
+    }
+
+    @Override
+    public long getSnapshotFailures() {
+        return this.snapshotFailures.get();
+    }
+
+    @Override
+    public long getDeleteFailures() {
+        return this.deleteFailures.get();
+    }
+
+    @Override
+    public long getUnchangedSkips() {
+        return this.unchangedSkips.get();
+    }
+
+    @Override
+    public String toString() {
+        return this.subvolume + ": Snapshot " + getLastSnapshotSeconds() + " s, Delete " + getLastDeleteSeconds()
+                + " s";
+    }
+}
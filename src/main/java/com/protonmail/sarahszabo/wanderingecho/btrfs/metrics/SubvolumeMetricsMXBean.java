@@ -0,0 +1,57 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.metrics;
+
+/**
+ * The metrics of the snapshots of one subvolume, as seen over JMX.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public interface SubvolumeMetricsMXBean {
+
+    /**
+     * Gets the subvolume.
+     *
+     * @return The subvolume location
+     */
+    String getSubvolume();
+
+    /**
+     * Gets how long creating the last snapshot took.
+     *
+     * @return The duration in seconds
+     */
+    double getLastSnapshotSeconds();
+
+    /**
+     * Gets how long the last delete of snapshots took.
+     *
+     * @return The duration in seconds
+     */
+    double getLastDeleteSeconds();
+
+    /**
+     * Gets the number of snapshots that couldn't be created this run.
+     *
+     * @return The count
+     */
+    long getSnapshotFailures();
+
+    /**
+     * Gets the number of deletes that failed this run.
+     *
+     * @return The count
+     */
+    long getDeleteFailures();
+
+    /**
+     * Gets the number of backups skipped this run because the subvolume
+     * didn't change.
+     *
+     * @return The count
+     */
+    long getUnchangedSkips();
+}
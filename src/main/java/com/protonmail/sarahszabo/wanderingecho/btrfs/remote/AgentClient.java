@@ -0,0 +1,289 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.remote;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.archive.SegmentWriter;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.BlockCompressor;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.CompressionSettings;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.StreamTransfer;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.TransferResult;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Snapshot;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.SubvolumeInfo;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.throttle.ThrottledChannel;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.throttle.TokenBucket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Talks to the {@link ReceiveAgent} of a remote target, one connection per
+ * request. A send offers the parent found from the target's listing, the
+ * agent answers with the parent it really holds and where an interrupted
+ * archive can resume. btrfs send can't start in the middle, so the start of
+ * the stream is produced again but only checked against the agent's
+ * checksums, not sent. A stream sent whole is checked once more when it was
+ * stored: the agent answers with the CRC32C of what arrived.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+final class AgentClient {
+
+    /**
+     * How long connecting to an agent may take.
+     */
+    private static final int CONNECT_TIMEOUT_MILLISECONDS = 30_000;
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(AgentClient.class.getName());
+
+    /**
+     * Lists the UUIDs the subvolumes in the folder of a target were received
+     * with.
+     *
+     * @param target The target
+     * @return The UUIDs
+     * @throws IOException If the agent couldn't be reached or refused
+     */
+    static Set<String> list(RemoteTarget target) throws IOException {
+        try ( var socket = connect(target)) {
+            AgentProtocol.writeMessage(socket, AgentRequest.list(target.getFolder()));
+            var reply = AgentProtocol.readMessage(socket, AgentReply.class);
+            if (reply.getStatus() != AgentReply.Status.OK) {
+                throw new IOException(target.getName() + " refused the listing: " + reply);
+            }
+            return new HashSet<>(reply.getUuids());
+        }
+    }
+
+    /**
+     * Sends a snapshot to a target and waits until the agent stored it. If
+     * the stream no longer starts like the interrupted archive the agent
+     * offered to resume, the archive is sent again from scratch.
+     *
+     * @param snapshot The snapshot to send
+     * @param parent The parent to offer, null for a full send
+     * @param target The target
+     * @param compression How to compress the stream on the wire, null to send
+     * it as is
+     * @param throttle The buckets limiting the rate of the stream, may be
+     * empty
+     * @return The result of the transfer
+     * @throws IOException If the agent couldn't be reached, refused or the
+     * stream broke off
+     */
+    static TransferResult send(Snapshot snapshot, Snapshot parent, RemoteTarget target,
+            CompressionSettings compression, List<TokenBucket> throttle) throws IOException {
+        try {
+            return send(snapshot, parent, target, compression, throttle, true);
+        } catch (SegmentWriter.StreamChangedException ex) {
+            LOG.warning("AGENT: Can't resume " + snapshot.getFullFileName() + " on " + target.getName()
+                    + ", starting over: " + ex.getMessage());
+            return send(snapshot, parent, target, compression, throttle, false);
+        }
+    }
+
+    /**
+     * Makes one attempt at sending a snapshot.
+     *
+     * @param resume False to have the agent throw away an interrupted archive
+     */
+    private static TransferResult send(Snapshot snapshot, Snapshot parent, RemoteTarget target,
+            CompressionSettings compression, List<TokenBucket> throttle, boolean resume) throws IOException {
+        long start = System.nanoTime();
+        var name = snapshot.getLocation().getFileName().toString();
+        try ( var socket = connect(target)) {
+            AgentProtocol.writeMessage(socket, new AgentRequest(AgentRequest.Operation.SEND, target.getFolder(),
+                    name, uuidOf(snapshot), snapshot.getParentSubvolume().getLocation(), parent == null ? null
+                    : parent.getLocation().getFileName().toString(), parent == null ? null : uuidOf(parent),
+                    compression, resume));
+            var reply = AgentProtocol.readMessage(socket, AgentReply.class);
+            if (reply.getStatus() == AgentReply.Status.HELD) {
+                LOG.info("AGENT: " + target.getName() + " already holds " + name);
+                return new TransferResult(0, Duration.ofNanos(System.nanoTime() - start), 0, 0);
+            }
+            if (reply.getStatus() != AgentReply.Status.OK) {
+                throw new IOException(target.getName() + " refused " + name + ": " + reply);
+            }
+            //The agent only keeps the offered parent if it still holds it
+            var agreedParent = reply.getParent() == null ? null : parent;
+            if (parent != null && agreedParent == null) {
+                LOG.warning("AGENT: " + target.getName() + " doesn't hold " + parent.getFullFileName()
+                        + " anymore, sending " + name + " in full");
+            }
+            var frames = new AgentProtocol.FrameWriter(socket);
+            WritableByteChannel sink = compression == null ? frames : new BlockCompressor(frames, compression);
+            if (!throttle.isEmpty()) {
+                sink = new ThrottledChannel(sink, throttle);
+            }
+            PrefixVerifier verifier = null;
+            if (reply.getOffset() > 0) {
+                LOG.info("AGENT: Resuming " + name + " on " + target.getName() + " after " + reply.getOffset()
+                        + " Bytes");
+                verifier = new PrefixVerifier(sink, reply.getSegmentSize(), reply.getChecksums());
+                sink = verifier;
+            }
+            TransferResult sent;
+            try {
+                sent = StreamTransfer.sendTo(snapshot.getSendCommand(agreedParent), sink);
+            } catch (IOException ex) {
+                abort(frames);
+                throw ex;
+            }
+            //A send that failed is just short, the agent keeps its segments for the next attempt
+            if (sent.getSendExitStatus() == 0 && verifier != null && !verifier.isComplete()) {
+                abort(frames);
+                throw new SegmentWriter.StreamChangedException("The stream is shorter than the segments the agent "
+                        + "has");
+            }
+            frames.finish(sent.getSendExitStatus() == 0);
+            var stored = AgentProtocol.readMessage(socket, AgentReply.class);
+            boolean intact = stored.getStatus() == AgentReply.Status.OK;
+            if (!intact) {
+                LOG.severe("AGENT: " + target.getName() + " couldn't store " + name + ": " + stored);
+            } else if (stored.getChecksum() != null && stored.getChecksum() != sent.getChecksum().getAsLong()) {
+                //Only a stream that wasn't resumed has one, it's the whole stream then
+                LOG.severe(String.format("AGENT: %s stored %s with CRC32C %08x, but %08x was sent", target.getName(),
+                        name, stored.getChecksum(), sent.getChecksum().getAsLong()));
+                intact = false;
+            }
+            return new TransferResult(sent.getBytes(), Duration.ofNanos(System.nanoTime() - start),
+                    sent.getSendExitStatus(), intact ? stored.getExitStatus() : Math.max(1, stored.getExitStatus()),
+                    false, sent.getChecksum().getAsLong());
+        }
+    }
+
+    /**
+     * Connects to the agent of a target.
+     */
+    private static SocketChannel connect(RemoteTarget target) throws IOException {
+        var socket = SocketChannel.open();
+        try {
+            AgentProtocol.configure(socket);
+            socket.socket().connect(new InetSocketAddress(target.getHost(), target.getAgentPort()),
+                    CONNECT_TIMEOUT_MILLISECONDS);
+            return socket;
+        } catch (IOException ex) {
+            socket.close();
+            throw new IOException("Couldn't connect to the agent of " + target.getName(), ex);
+        }
+    }
+
+    /**
+     * Gets the UUID of a snapshot, asking btrfs for snapshots from before we
+     * recorded them.
+     *
+     * @return The UUID, null if btrfs couldn't tell
+     */
+    private static String uuidOf(Snapshot snapshot) {
+        return snapshot.getUuid().orElseGet(() -> {
+            try {
+                return SubvolumeInfo.of(snapshot.getLocation()).getUuid();
+            } catch (IOException ex) {
+                Logger.getLogger(AgentClient.class.getName()).log(Level.WARNING, null, ex);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Tells the agent to throw away a stream that failed on our side, if the
+     * connection still allows it.
+     */
+    private static void abort(AgentProtocol.FrameWriter frames) {
+        try {
+            frames.finish(false);
+        } catch (IOException ex) {
+            LOG.fine("Ignoring failed abort: " + ex);
+        }
+    }
+
+    /**
+     * Checks the start of a stream against the checksums of the segments the
+     * agent already has and drops it, passing on only what comes after.
+     */
+    private static class PrefixVerifier implements WritableByteChannel {
+
+        private final WritableByteChannel sink;
+        private final long segmentSize;
+        private final List<Long> checksums;
+        private final CRC32C checksum = new CRC32C();
+        private long segmentBytes;
+        private int verified;
+
+        PrefixVerifier(WritableByteChannel sink, long segmentSize, List<Long> checksums) {
+            this.sink = sink;
+            this.segmentSize = segmentSize;
+            this.checksums = checksums;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int written = source.remaining();
+            while (source.hasRemaining() && this.verified < this.checksums.size()) {
+                int length = (int) Math.min(source.remaining(), this.segmentSize - this.segmentBytes);
+                var slice = source.slice();
+                slice.limit(length);
+                this.checksum.update(slice);
+                source.position(source.position() + length);
+                this.segmentBytes += length;
+                if (this.segmentBytes == this.segmentSize) {
+                    if (this.checksum.getValue() != this.checksums.get(this.verified)) {
+                        throw new SegmentWriter.StreamChangedException("Segment " + this.verified
+                                + " of the stream differs from the one the agent has");
+                    }
+                    this.checksum.reset();
+                    this.segmentBytes = 0;
+                    this.verified++;
+                }
+            }
+            while (source.hasRemaining()) {
+                this.sink.write(source);
+            }
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.sink.isOpen();
+        }
+
+        /**
+         * Checks whether the whole start of the stream the agent has came by.
+         *
+         * @return True if every segment of the agent was checked
+         */
+        boolean isComplete() {
+            return this.verified == this.checksums.size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.sink.close();
+        }
+
+        @Override
+        public String toString() {
+            return "Resuming " + this.sink;
+        }
+    }
+
+    /**
+     * No instances.
+     */
+    private AgentClient() {
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.remote;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The wire format between {@link AgentClient} and {@link ReceiveAgent}, plain
+ * TCP without encryption for trusted networks. A connection carries one
+ * request: the client sends an {@link AgentRequest}, the agent answers with an
+ * {@link AgentReply}. For a send the stream follows in frames, each an int
+ * length and that many bytes, ended by an empty frame once btrfs send exited
+ * cleanly or a frame of length -1 if it didn't, so the agent never takes a cut
+ * stream for a whole one. The agent answers again once the stream is stored.
+ * Messages are an int magic, an int length and that much JSON.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+final class AgentProtocol {
+
+    /**
+     * Starts every message, "WEA1", so a stray connection is told apart from
+     * a client of this version.
+     */
+    static final int MAGIC = 0x57454131;
+
+    /**
+     * The most JSON a message may have, a listing of many thousand UUIDs
+     * fits.
+     */
+    private static final int MAX_MESSAGE_SIZE = 16 << 20;
+
+    /**
+     * The socket buffers asked for, enough to keep a gigabit link busy across
+     * a few milliseconds of latency.
+     */
+    private static final int SOCKET_BUFFER_SIZE = 4 << 20;
+
+    /**
+     * The length of the frame that ends a complete stream.
+     */
+    private static final int END_FRAME = 0;
+
+    /**
+     * The length of the frame that ends a stream the sender gave up on.
+     */
+    private static final int ABORT_FRAME = -1;
+
+    /**
+     * Reads and writes the messages.
+     */
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    static {
+        MAPPER.findAndRegisterModules();
+    }
+
+    /**
+     * Sets up a connected socket for streaming: large buffers, and no delay
+     * for the small messages around the stream.
+     *
+     * @param socket The socket
+     * @throws IOException If the options couldn't be set
+     */
+    static void configure(SocketChannel socket) throws IOException {
+        socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        socket.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+        socket.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+    }
+
+    /**
+     * Writes a message.
+     *
+     * @param socket The socket to write to
+     * @param message The request or reply
+     * @throws IOException If it couldn't be written
+     */
+    static void writeMessage(SocketChannel socket, Object message) throws IOException {
+        var json = MAPPER.writeValueAsBytes(message);
+        var buffer = ByteBuffer.allocate(Integer.BYTES * 2 + json.length);
+        buffer.putInt(MAGIC).putInt(json.length).put(json).flip();
+        while (buffer.hasRemaining()) {
+            socket.write(buffer);
+        }
+    }
+
+    /**
+     * Reads a message, exactly its bytes and nothing of a stream after it.
+     *
+     * @param <T> The type of the message
+     * @param socket The socket to read from
+     * @param type The type of the message
+     * @return The message
+     * @throws IOException If the other side closed the connection or didn't
+     * speak this protocol
+     */
+    static <T> T readMessage(SocketChannel socket, Class<T> type) throws IOException {
+        var header = readFully(socket, Integer.BYTES * 2);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("The other side doesn't speak the agent protocol");
+        }
+        int length = header.getInt();
+        if (length < 0 || length > MAX_MESSAGE_SIZE) {
+            throw new IOException("Message of " + length + " bytes is out of bounds");
+        }
+        return MAPPER.readValue(readFully(socket, length).array(), type);
+    }
+
+    /**
+     * Reads exactly a number of bytes.
+     */
+    private static ByteBuffer readFully(ReadableByteChannel channel, int length) throws IOException {
+        var buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("The connection was closed " + buffer.remaining() + " bytes early");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Writes a stream to a socket in frames. The data of every write goes to
+     * the socket in one gathering write with its frame header, straight from
+     * the caller's buffer. Closing it doesn't end the stream, {@link #finish}
+     * does, since only the caller knows whether the stream is whole.
+     */
+    static class FrameWriter implements WritableByteChannel {
+
+        private final SocketChannel socket;
+        private final ByteBuffer header = ByteBuffer.allocateDirect(Integer.BYTES);
+        private boolean finished;
+
+        FrameWriter(SocketChannel socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int length = source.remaining();
+            if (length == 0) {
+                //An empty frame would end the stream
+                return 0;
+            }
+            this.header.clear();
+            this.header.putInt(length).flip();
+            var buffers = new ByteBuffer[]{this.header, source};
+            while (source.hasRemaining()) {
+                this.socket.write(buffers);
+            }
+            return length;
+        }
+
+        /**
+         * Ends the stream.
+         *
+         * @param complete True if the stream is whole, false to tell the agent
+         * to throw away what it got
+         * @throws IOException If the end couldn't be written
+         */
+        void finish(boolean complete) throws IOException {
+            if (this.finished) {
+                return;
+            }
+            this.finished = true;
+            this.header.clear();
+            this.header.putInt(complete ? END_FRAME : ABORT_FRAME).flip();
+            while (this.header.hasRemaining()) {
+                this.socket.write(this.header);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.socket.isOpen() && !this.finished;
+        }
+
+        @Override
+        public void close() {
+            //The socket stays open for the end of the stream and the agent's answer
+        }
+
+        @Override
+        public String toString() {
+            return "Frames to " + this.socket;
+        }
+    }
+
+    /**
+     * Reads the frames a {@link FrameWriter} wrote, ending at the end frame.
+     * A stream that was aborted or broke off before its end frame fails.
+     */
+    static class FrameReader implements ReadableByteChannel {
+
+        private final SocketChannel socket;
+        private final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        private int frameRemaining;
+        private boolean ended;
+
+        FrameReader(SocketChannel socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException {
+            if (this.ended) {
+                return -1;
+            }
+            if (this.frameRemaining == 0) {
+                this.header.clear();
+                while (this.header.hasRemaining()) {
+                    if (this.socket.read(this.header) < 0) {
+                        throw new EOFException("The stream broke off before its end");
+                    }
+                }
+                int length = this.header.flip().getInt();
+                if (length == END_FRAME) {
+                    this.ended = true;
+                    return -1;
+                }
+                if (length == ABORT_FRAME) {
+                    throw new IOException("The sender gave up on the stream");
+                }
+                if (length < 0) {
+                    throw new IOException("Frame of " + length + " bytes is out of bounds");
+                }
+                this.frameRemaining = length;
+            }
+            //Read no further than the frame, the next header comes after it
+            int limit = destination.limit();
+            destination.limit(destination.position() + Math.min(destination.remaining(), this.frameRemaining));
+            try {
+                int read = this.socket.read(destination);
+                if (read < 0) {
+                    throw new EOFException("The stream broke off in the middle of a frame");
+                }
+                this.frameRemaining -= read;
+                return read;
+            } finally {
+                destination.limit(limit);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.socket.isOpen();
+        }
+
+        @Override
+        public void close() {
+            //The socket stays open for the agent's answer
+        }
+
+        @Override
+        public String toString() {
+            return "Frames from " + this.socket;
+        }
+    }
+
+    /**
+     * No instances.
+     */
+    private AgentProtocol() {
+    }
+}
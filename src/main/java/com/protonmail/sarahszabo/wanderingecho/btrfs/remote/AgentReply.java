@@ -0,0 +1,171 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.remote;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What a {@link ReceiveAgent} answers. To a send it answers twice: first with
+ * the parent it holds and the stream offset to resume from, with the
+ * checksums of the segments before that offset so the client can check its
+ * stream still starts the same, then with how receiving the stream went and
+ * the checksum of what arrived.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+class AgentReply {
+
+    /**
+     * How the agent answers.
+     */
+    enum Status {
+        /**
+         * The listing is there, the stream may come, or it was stored.
+         */
+        OK,
+        /**
+         * The folder already holds the snapshot, nothing to send.
+         */
+        HELD,
+        /**
+         * The agent won't do it, e.g. for a folder it doesn't serve.
+         */
+        REFUSED,
+        /**
+         * The stream couldn't be stored.
+         */
+        FAILED
+    }
+
+    @JsonProperty
+    private final Status status;
+    @JsonProperty
+    private final String message;
+    @JsonProperty
+    private final List<String> uuids;
+    @JsonProperty
+    private final String parent;
+    @JsonProperty
+    private final long offset;
+    @JsonProperty
+    private final long segmentSize;
+    @JsonProperty
+    private final List<Long> checksums;
+    @JsonProperty
+    private final long bytes;
+    @JsonProperty
+    private final int exitStatus;
+    @JsonProperty
+    private final Long checksum;
+
+    /**
+     * Creates a new reply.
+     *
+     * @param status How the agent answers
+     * @param message Why it refused or failed, null otherwise
+     * @param uuids The received UUIDs of a listing, null otherwise
+     * @param parent The file name of the parent to send against, null for a
+     * full send
+     * @param offset The stream offset to resume from
+     * @param segmentSize The number of stream bytes each checksum covers
+     * @param checksums The CRC32C of every segment before the offset
+     * @param bytes The stream bytes stored
+     * @param exitStatus The exit status of btrfs receive, 0 for an archive
+     * @param checksum The CRC32C of the stored stream, null if the stream was
+     * resumed or it wasn't stored
+     */
+    @JsonCreator
+    AgentReply(@JsonProperty(value = "status") Status status,
+            @JsonProperty(value = "message") String message,
+            @JsonProperty(value = "uuids") List<String> uuids,
+            @JsonProperty(value = "parent") String parent,
+            @JsonProperty(value = "offset") long offset,
+            @JsonProperty(value = "segmentSize") long segmentSize,
+            @JsonProperty(value = "checksums") List<Long> checksums,
+            @JsonProperty(value = "bytes") long bytes,
+            @JsonProperty(value = "exitStatus") int exitStatus,
+            @JsonProperty(value = "checksum") Long checksum) {
+        this.status = status;
+        this.message = message;
+        this.uuids = uuids == null ? List.of() : List.copyOf(uuids);
+        this.parent = parent;
+        this.offset = offset;
+        this.segmentSize = segmentSize;
+        this.checksums = checksums == null ? List.of() : List.copyOf(checksums);
+        this.bytes = bytes;
+        this.exitStatus = exitStatus;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Creates a reply without any details.
+     *
+     * @param status How the agent answers
+     * @param message Why, may be null
+     * @return The reply
+     */
+    static AgentReply of(Status status, String message) {
+        return new AgentReply(status, message, null, null, 0, 0, null, 0, 0, null);
+    }
+
+    /**
+     * Creates the reply to a listing.
+     *
+     * @param uuids The received UUIDs
+     * @return The reply
+     */
+    static AgentReply listing(Set<String> uuids) {
+        return new AgentReply(Status.OK, null, List.copyOf(uuids), null, 0, 0, null, 0, 0, null);
+    }
+
+    Status getStatus() {
+        return this.status;
+    }
+
+    String getMessage() {
+        return this.message;
+    }
+
+    List<String> getUuids() {
+        return this.uuids;
+    }
+
+    String getParent() {
+        return this.parent;
+    }
+
+    long getOffset() {
+        return this.offset;
+    }
+
+    long getSegmentSize() {
+        return this.segmentSize;
+    }
+
+    List<Long> getChecksums() {
+        return this.checksums;
+    }
+
+    long getBytes() {
+        return this.bytes;
+    }
+
+    int getExitStatus() {
+        return this.exitStatus;
+    }
+
+    Long getChecksum() {
+        return this.checksum;
+    }
+
+    @Override
+    public String toString() {
+        return this.status + (this.message == null ? "" : ": " + this.message);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.remote;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.CompressionSettings;
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * What a client asks of a {@link ReceiveAgent}: the subvolumes one of its
+ * folders holds, or to receive a snapshot into it. For a send it names the
+ * snapshot and the parent the client would like to send against, the agent
+ * decides whether it holds that parent and whether an interrupted archive of
+ * the snapshot can be resumed.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+class AgentRequest {
+
+    /**
+     * What the client asks for.
+     */
+    enum Operation {
+        /**
+         * List the UUIDs the subvolumes of the folder were received with.
+         */
+        LIST,
+        /**
+         * Receive a snapshot into the folder.
+         */
+        SEND
+    }
+
+    @JsonProperty
+    private final Operation operation;
+    @JsonProperty
+    private final String folder;
+    @JsonProperty
+    private final String snapshot;
+    @JsonProperty
+    private final String uuid;
+    @JsonProperty
+    private final Path subvolume;
+    @JsonProperty
+    private final String parent;
+    @JsonProperty
+    private final String parentUuid;
+    @JsonProperty
+    private final CompressionSettings compression;
+    @JsonProperty
+    private final boolean resume;
+
+    /**
+     * Creates a new request.
+     *
+     * @param operation What the client asks for
+     * @param folder The folder of the agent
+     * @param snapshot The file name of the snapshot to send, null to list
+     * @param uuid The UUID of the snapshot, null if unknown
+     * @param subvolume The subvolume the snapshot was taken of
+     * @param parent The file name of the parent the client would like to send
+     * against, null for a full send
+     * @param parentUuid The UUID of that parent, null if unknown
+     * @param compression How the stream is compressed on the wire, and how an
+     * archive stores it, null for neither
+     * @param resume False to throw away an interrupted archive instead of
+     * resuming it
+     */
+    @JsonCreator
+    AgentRequest(@JsonProperty(value = "operation") Operation operation,
+            @JsonProperty(value = "folder") String folder,
+            @JsonProperty(value = "snapshot") String snapshot,
+            @JsonProperty(value = "uuid") String uuid,
+            @JsonProperty(value = "subvolume") Path subvolume,
+            @JsonProperty(value = "parent") String parent,
+            @JsonProperty(value = "parentUuid") String parentUuid,
+            @JsonProperty(value = "compression") CompressionSettings compression,
+            @JsonProperty(value = "resume") boolean resume) {
+        this.operation = Objects.requireNonNull(operation, "A request needs an operation");
+        this.folder = Objects.requireNonNull(folder, "A request needs a folder");
+        this.snapshot = snapshot;
+        this.uuid = uuid;
+        this.subvolume = subvolume;
+        this.parent = parent;
+        this.parentUuid = parentUuid;
+        this.compression = compression;
+        this.resume = resume;
+        if (operation == Operation.SEND && (snapshot == null || !isFileName(snapshot))) {
+            throw new IllegalArgumentException("A send needs the file name of the snapshot, got " + snapshot);
+        }
+        //The parent is looked up in the folder just like the snapshot, it mustn't lead out of it either
+        if (parent != null && !isFileName(parent)) {
+            throw new IllegalArgumentException("A parent is named by its file name, got " + parent);
+        }
+    }
+
+    /**
+     * Checks whether a name is a plain file name in the folder, not a path or
+     * a hidden file.
+     */
+    private static boolean isFileName(String name) {
+        return !name.isEmpty() && !name.contains("/") && !name.startsWith(".");
+    }
+
+    /**
+     * Creates a request for the UUIDs a folder holds.
+     *
+     * @param folder The folder of the agent
+     * @return The request
+     */
+    static AgentRequest list(String folder) {
+        return new AgentRequest(Operation.LIST, folder, null, null, null, null, null, null, false);
+    }
+
+    Operation getOperation() {
+        return this.operation;
+    }
+
+    String getFolder() {
+        return this.folder;
+    }
+
+    String getSnapshot() {
+        return this.snapshot;
+    }
+
+    String getUuid() {
+        return this.uuid;
+    }
+
+    Path getSubvolume() {
+        return this.subvolume;
+    }
+
+    String getParent() {
+        return this.parent;
+    }
+
+    String getParentUuid() {
+        return this.parentUuid;
+    }
+
+    CompressionSettings getCompression() {
+        return this.compression;
+    }
+
+    boolean isResume() {
+        return this.resume;
+    }
+
+    @Override
+    public String toString() {
+        return this.operation + " " + (this.snapshot == null ? "" : this.snapshot + (this.parent == null
+                ? " (Full)" : " (Parent " + this.parent + ")") + " to ") + this.folder;
+    }
+}
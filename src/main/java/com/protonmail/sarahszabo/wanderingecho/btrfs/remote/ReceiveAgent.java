@@ -0,0 +1,294 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.remote;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.ParentResolver;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.archive.ArchiveCheckpoint;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.archive.SendArchive;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.BlockDecompressor;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.ChecksumChannel;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.StreamTransfer;
+import com.protonmail.sarahszabo.wanderingecho.util.EchoUtil;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+/**
+ * Receives backups over plain TCP, for trusted networks where ssh's
+ * encryption would cost more CPU than the link is worth. It serves a fixed
+ * set of folders and nothing outside them. Streams into a folder on btrfs go
+ * into btrfs receive, streams into any other folder become send stream
+ * archives, which can resume where an interrupted stream stopped. Each
+ * connection gets a thread of its own. See {@link AgentProtocol} for the wire
+ * format and {@link RemoteTarget} for the sending side.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class ReceiveAgent implements Closeable {
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(ReceiveAgent.class.getName());
+
+    private final ServerSocketChannel server;
+    private final Set<Path> folders;
+    private final long segmentSize;
+    private final Set<Path> receiving = ConcurrentHashMap.newKeySet();
+    private final ExecutorService connections = Executors.newCachedThreadPool(new BasicThreadFactory.Builder()
+            .namingPattern("Wandering Echo Receive Agent Thread %d").daemon(true).build());
+
+    /**
+     * Creates an agent listening on an address.
+     *
+     * @param address The address to listen on, port 0 for any free one
+     * @param folders The folders backups may be received into
+     * @throws IOException If the address couldn't be bound
+     * @throws IllegalArgumentException If a folder doesn't exist
+     */
+    public ReceiveAgent(InetSocketAddress address, List<Path> folders) throws IOException {
+        this(address, folders, SendArchive.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates an agent listening on an address that writes archives with
+     * segments of another size, e.g. small ones for a test.
+     *
+     * @param address The address to listen on, port 0 for any free one
+     * @param folders The folders backups may be received into
+     * @param segmentSize The number of stream bytes in every segment of an
+     * archive but the last
+     * @throws IOException If the address couldn't be bound
+     * @throws IllegalArgumentException If a folder doesn't exist
+     */
+    ReceiveAgent(InetSocketAddress address, List<Path> folders, long segmentSize) throws IOException {
+        this.segmentSize = segmentSize;
+        this.folders = folders.stream().map(folder -> folder.toAbsolutePath().normalize())
+                .collect(Collectors.toUnmodifiableSet());
+        for (var folder : this.folders) {
+            if (!Files.isDirectory(folder)) {
+                throw new IllegalArgumentException("The agent can't receive into " + folder + ", it isn't a folder");
+            }
+        }
+        this.server = ServerSocketChannel.open();
+        this.server.bind(address);
+        LOG.info("AGENT: Listening on " + getAddress() + " for " + this.folders);
+    }
+
+    /**
+     * Parses the address to listen on, written PORT or HOST:PORT.
+     *
+     * @param value The address
+     * @return The address, on every interface if no host is given
+     * @throws IllegalArgumentException If there is no valid port
+     */
+    public static InetSocketAddress parseAddress(String value) {
+        int colon = value.lastIndexOf(':');
+        var port = value.substring(colon + 1);
+        if (!port.matches("\\d{1,5}") || Integer.parseInt(port) > 65535) {
+            throw new IllegalArgumentException("An agent listens on PORT or HOST:PORT, got " + value);
+        }
+        return colon < 0 ? new InetSocketAddress(Integer.parseInt(port))
+                : new InetSocketAddress(value.substring(0, colon), Integer.parseInt(port));
+    }
+
+    /**
+     * Gets the address this agent listens on.
+     *
+     * @return The address
+     * @throws IOException If the socket is closed
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) this.server.getLocalAddress();
+    }
+
+    /**
+     * Accepts connections until the agent is closed.
+     *
+     * @throws IOException If accepting failed for another reason
+     */
+    public void run() throws IOException {
+        while (true) {
+            SocketChannel socket;
+            try {
+                socket = this.server.accept();
+            } catch (ClosedChannelException ex) {
+                return;
+            }
+            this.connections.execute(() -> serve(socket));
+        }
+    }
+
+    /**
+     * Answers the one request of a connection and closes it.
+     *
+     * @param socket The connection
+     */
+    private void serve(SocketChannel socket) {
+        try ( socket) {
+            AgentProtocol.configure(socket);
+            var request = AgentProtocol.readMessage(socket, AgentRequest.class);
+            LOG.info("AGENT: " + socket.getRemoteAddress() + " asks to " + request);
+            var folder = Path.of(request.getFolder()).toAbsolutePath().normalize();
+            if (!this.folders.contains(folder)) {
+                AgentProtocol.writeMessage(socket, AgentReply.of(AgentReply.Status.REFUSED, folder
+                        + " isn't served here"));
+                return;
+            }
+            if (request.getOperation() == AgentRequest.Operation.LIST) {
+                AgentProtocol.writeMessage(socket, AgentReply.listing(getResolver(folder).getReceivedUuids()));
+                return;
+            }
+            var destination = folder.resolve(request.getSnapshot());
+            if (!this.receiving.add(destination)) {
+                AgentProtocol.writeMessage(socket, AgentReply.of(AgentReply.Status.REFUSED, destination
+                        + " is being received already"));
+                return;
+            }
+            AgentReply stored;
+            try {
+                stored = receive(socket, request, folder);
+            } finally {
+                this.receiving.remove(destination);
+            }
+            //Only answered once it's free again, so a client retrying right after the answer isn't refused
+            if (stored != null) {
+                AgentProtocol.writeMessage(socket, stored);
+            }
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(ReceiveAgent.class.getName()).log(Level.WARNING, "AGENT: Request failed", ex);
+        }
+    }
+
+    /**
+     * Gets the resolver of the subvolumes or archives a folder holds.
+     */
+    private static ParentResolver getResolver(Path folder) throws IOException {
+        return SendArchive.isArchiveFolder(folder) ? ParentResolver.forArchive(folder)
+                : ParentResolver.forTarget(folder);
+    }
+
+    /**
+     * Decides the parent and the offset of a send and receives the stream.
+     *
+     * @param socket The connection
+     * @param request The send request
+     * @param folder The folder to receive into
+     * @return How storing the stream went, to tell the client, null if the
+     * request was answered already
+     * @throws IOException If the connection failed
+     */
+    private AgentReply receive(SocketChannel socket, AgentRequest request, Path folder) throws IOException {
+        var name = request.getSnapshot();
+        var archive = SendArchive.isArchiveFolder(folder);
+        var resolver = getResolver(folder);
+        if (request.getUuid() != null && resolver.isReceived(request.getUuid())) {
+            AgentProtocol.writeMessage(socket, AgentReply.of(AgentReply.Status.HELD, null));
+            return null;
+        }
+        //Only a parent we hold will do, otherwise the client sends in full
+        var parent = request.getParentUuid() != null && resolver.isReceived(request.getParentUuid())
+                ? request.getParent() : null;
+        ArchiveCheckpoint checkpoint = null;
+        if (archive && request.isResume()) {
+            checkpoint = SendArchive.findResumable(folder, name, parent, request.getCompression(), this.segmentSize)
+                    .orElse(null);
+        }
+        AgentProtocol.writeMessage(socket, new AgentReply(AgentReply.Status.OK, null, null, parent,
+                checkpoint == null ? 0 : checkpoint.getStreamOffset(), this.segmentSize,
+                checkpoint == null ? null : checkpoint.getSegmentChecksums(), 0, 0, null));
+        ReadableByteChannel frames = new AgentProtocol.FrameReader(socket);
+        if (request.getCompression() != null) {
+            frames = new BlockDecompressor(frames, request.getCompression().getThreads());
+        }
+        AgentReply stored;
+        if (archive) {
+            try {
+                //The archive takes the checksum of the stream itself
+                var manifest = SendArchive.receive(frames, name, request.getSubvolume(), request.getUuid(), parent,
+                        parent == null ? null : request.getParentUuid(), folder, request.getCompression(),
+                        this.segmentSize, checkpoint);
+                stored = new AgentReply(AgentReply.Status.OK, null, null, parent, 0, 0, null,
+                        manifest.getStreamBytes(), 0, manifest.getStreamChecksum().orElse(null));
+            } catch (IOException ex) {
+                Logger.getLogger(ReceiveAgent.class.getName()).log(Level.WARNING, "AGENT: Archiving " + name
+                        + " failed", ex);
+                stored = AgentReply.of(AgentReply.Status.FAILED, ex.getMessage());
+            }
+        } else {
+            var destination = folder.resolve(name);
+            if (request.getUuid() != null && Files.isDirectory(destination)) {
+                //Not received with the snapshot's UUID, so what an interrupted receive left behind
+                deletePartial(destination);
+            }
+            //The client compares it with the checksum of what it sent
+            var stream = new ChecksumChannel(frames);
+            try {
+                //Command: btrfs receive "FOLDER" < STREAM
+                var result = StreamTransfer.receiveFrom(stream, List.of("btrfs", "receive", folder.toString()));
+                stored = new AgentReply(result.isSuccessful() ? AgentReply.Status.OK : AgentReply.Status.FAILED,
+                        result.isSuccessful() ? null : "btrfs receive exited with " + result.getReceiveExitStatus(),
+                        null, parent, 0, 0, null, result.getBytes(), result.getReceiveExitStatus(),
+                        result.isSuccessful() ? stream.getChecksum() : null);
+            } catch (IOException ex) {
+                Logger.getLogger(ReceiveAgent.class.getName()).log(Level.WARNING, "AGENT: Receiving " + name
+                        + " failed", ex);
+                stored = AgentReply.of(AgentReply.Status.FAILED, ex.getMessage());
+            }
+            if (stored.getStatus() != AgentReply.Status.OK && Files.isDirectory(destination)) {
+                deletePartial(destination);
+            }
+        }
+        LOG.info("AGENT: " + request + ": " + stored + ", " + stored.getBytes() + " Bytes");
+        return stored;
+    }
+
+    /**
+     * Deletes what an interrupted receive left behind.
+     *
+     * @param subvolume The partly received subvolume
+     */
+    private static void deletePartial(Path subvolume) {
+        LOG.warning("AGENT: Deleting the partial backup " + subvolume);
+        try {
+            if (EchoUtil.processOP(true, "btrfs", "subvolume", "delete", subvolume.toString())) {
+                LOG.severe("AGENT: Couldn't delete " + subvolume);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ReceiveAgent.class.getName()).log(Level.SEVERE, "Couldn't delete " + subvolume, ex);
+        }
+    }
+
+    /**
+     * Stops accepting connections. Streams being received go on until they
+     * end.
+     */
+    @Override
+    public void close() throws IOException {
+        this.server.close();
+        this.connections.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "Receive Agent for " + this.folders;
+    }
+}
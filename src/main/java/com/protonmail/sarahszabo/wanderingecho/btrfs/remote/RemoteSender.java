@@ -0,0 +1,212 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.remote;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.ParentResolver;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.CompressionSettings;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.StreamTransfer;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.TransferResult;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Snapshot;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.throttle.TokenBucket;
+import com.protonmail.sarahszabo.wanderingecho.util.EchoUtil;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends snapshots to remote targets over ssh. Every host gets one master
+ * connection, opened the first time the host is needed, that the listings and
+ * streams to all of its folders are multiplexed over. How many streams run at
+ * once is up to the caller, see
+ * {@link com.protonmail.sarahszabo.wanderingecho.btrfs.schedule.DeviceScheduler}
+ * and {@link RemoteTarget#getDevice()}.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class RemoteSender implements Closeable {
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(RemoteSender.class.getName());
+
+    private final Path controlFolder;
+    private final Map<String, SshConnection> connections = new HashMap<>();
+
+    /**
+     * Creates a new sender without any connections yet.
+     *
+     * @throws IOException If the folder for the control sockets couldn't be
+     * created
+     */
+    public RemoteSender() throws IOException {
+        //Only we may use the sockets, the temporary folder is created private
+        this.controlFolder = Files.createTempDirectory("wandering-echo-ssh");
+    }
+
+    /**
+     * Gets the connection to a host, connecting the first time.
+     *
+     * @param host The host
+     * @return The connection
+     * @throws IOException If the host couldn't be reached
+     */
+    private synchronized SshConnection connect(String host) throws IOException {
+        var connection = this.connections.get(host);
+        if (connection == null) {
+            connection = SshConnection.open(host, this.controlFolder);
+            this.connections.put(host, connection);
+        }
+        return connection;
+    }
+
+    /**
+     * Lists the subvolumes a target holds to resolve the parents of the
+     * streams to it.
+     *
+     * @param target The target
+     * @return The resolver
+     * @throws IOException If the host couldn't be reached or the folder
+     * couldn't be listed
+     */
+    public ParentResolver getResolver(RemoteTarget target) throws IOException {
+        if (target.isAgent()) {
+            return new ParentResolver(AgentClient.list(target));
+        }
+        var connection = connect(target.getHost());
+        //Command: ssh HOST btrfs subvolume list -R 'FOLDER'
+        return ParentResolver.forListing(connection.command("btrfs subvolume list -R "
+                + SshConnection.quote(target.getFolder())), target.getName(), getListedPath(connection, target));
+    }
+
+    /**
+     * Gets the path of the folder of a target as btrfs subvolume list prints
+     * it on its host, so the subvolumes of other folders on the same
+     * filesystem don't count. If its mount can't be found every subvolume
+     * counts, an incremental send against a parent the folder doesn't hold
+     * fails on the host.
+     *
+     * @param connection The connection to the host
+     * @param target The target
+     * @return The path, empty for every subvolume
+     * @throws IOException If the host couldn't be reached
+     */
+    private static String getListedPath(SshConnection connection, RemoteTarget target) throws IOException {
+        var folder = SshConnection.quote(target.getFolder());
+        //Command: ssh HOST realpath 'FOLDER' && findmnt -n -o TARGET -T 'FOLDER' && findmnt -n -o FSROOT ...
+        var process = EchoUtil.processOPNoWait(false, connection.command("realpath " + folder
+                + " && findmnt -n -o TARGET -T " + folder + " && findmnt -n -o FSROOT -T " + folder)
+                .toArray(new String[0]));
+        var lines = new ArrayList<String>();
+        try ( var scanner = EchoUtil.getProcessInputScanner(process)) {
+            while (scanner.hasNextLine()) {
+                lines.add(scanner.nextLine().trim());
+            }
+        }
+        try {
+            if (process.waitFor() == 0 && lines.size() == 3) {
+                return ParentResolver.getListedPath(Paths.get(lines.get(1)), lines.get(2), Paths.get(lines.get(0)));
+            }
+        } catch (InterruptedException ex) {
+            Logger.getLogger(RemoteSender.class.getName()).log(Level.SEVERE, null, ex);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while finding the mount of " + target.getName(), ex);
+        }
+        LOG.warning("REMOTE: Couldn't Find the Mount of " + target.getName()
+                + ", Counting Every Subvolume on its Filesystem");
+        return "";
+    }
+
+    /**
+     * Sends a snapshot to a target and waits until the target received it.
+     *
+     * @param snapshot The snapshot to send
+     * @param parent The parent to send against, the target must hold it, null
+     * for a full send
+     * @param target The target
+     * @param compression How to compress the stream on the way, the host
+     * decompresses it with the stock tool or the agent, null to send it as is
+     * @param throttle The buckets limiting the rate of the stream, may be
+     * empty
+     * @return The result of the transfer
+     * @throws IOException If the host couldn't be reached
+     * @throws IllegalStateException If either side of the stream failed
+     */
+    public TransferResult send(Snapshot snapshot, Snapshot parent, RemoteTarget target,
+            CompressionSettings compression, List<TokenBucket> throttle) throws IOException {
+        if (target.isAgent()) {
+            var result = AgentClient.send(snapshot, parent, target, compression, throttle);
+            if (!result.isSuccessful()) {
+                throw new IllegalStateException("Sending " + snapshot.getFullFileName() + " to " + target.getName()
+                        + " failed: " + result);
+            }
+            return result;
+        }
+        //Command: btrfs send -p "PARENT" "SNAPSHOT" | ssh HOST [zstd -d |] btrfs receive 'FOLDER'
+        var receive = "btrfs receive " + SshConnection.quote(target.getFolder());
+        if (compression != null) {
+            receive = compression.getCodec().getDecompressCommand() + " | " + receive;
+        }
+        var result = StreamTransfer.transfer(snapshot.getSendCommand(parent), connect(target.getHost())
+                .command(receive), compression, throttle);
+        if (!result.isSuccessful()) {
+            discardPartial(snapshot, target);
+            throw new IllegalStateException("Sending " + snapshot.getFullFileName() + " to " + target.getName()
+                    + " failed: " + result);
+        }
+        return result;
+    }
+
+    /**
+     * Deletes what a failed send left on a target. Killing ssh only closes the
+     * remote receive's input, which may then finish the cut stream as if it
+     * were whole, and it would pass for a parent.
+     *
+     * @param snapshot The snapshot that was sent
+     * @param target The target
+     */
+    private void discardPartial(Snapshot snapshot, RemoteTarget target) {
+        var partial = SshConnection.quote(Paths.get(target.getFolder()).resolve(snapshot.getLocation()
+                .getFileName()).toString());
+        try {
+            //Command: ssh HOST [ ! -d 'PARTIAL' ] || btrfs subvolume delete 'PARTIAL'
+            if (EchoUtil.processOP(true, connect(target.getHost()).command("[ ! -d " + partial
+                    + " ] || btrfs subvolume delete " + partial).toArray(new String[0]))) {
+                LOG.severe("REMOTE: Couldn't Delete the Partial Backup " + partial + " on " + target.getName());
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(RemoteSender.class.getName()).log(Level.SEVERE, "REMOTE: Couldn't Delete the "
+                    + "Partial Backup " + partial + " on " + target.getName(), ex);
+        }
+    }
+
+    /**
+     * Closes every connection and removes the folder of their sockets.
+     */
+    @Override
+    public synchronized void close() {
+        this.connections.values().forEach(SshConnection::close);
+        this.connections.clear();
+        try ( var sockets = Files.list(this.controlFolder)) {
+            for (var socket : (Iterable<Path>) sockets::iterator) {
+                Files.deleteIfExists(socket);
+            }
+            Files.deleteIfExists(this.controlFolder);
+        } catch (IOException ex) {
+            Logger.getLogger(RemoteSender.class.getName()).log(Level.WARNING, "Couldn't remove "
+                    + this.controlFolder, ex);
+        }
+        LOG.fine("Closed the remote connections");
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.remote;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.Objects;
+
+/**
+ * A folder on another machine that backups are received into, over ssh or
+ * through a {@link ReceiveAgent} listening on a port of that machine: the host
+ * as ssh knows it, e.g. an alias from ~/.ssh/config or user@host, or its
+ * address for an agent, the folder on that host, and how many streams may go
+ * to the host at once. Saved as part of the BTRFS configuration file.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class RemoteTarget {
+
+    /**
+     * The streams allowed per host when nothing is configured. More than one
+     * keeps a long link busy while a stream waits on a slow disk.
+     */
+    public static final int DEFAULT_MAX_STREAMS = 2;
+
+    @JsonProperty
+    private final String host;
+    @JsonProperty
+    private final String folder;
+    @JsonProperty
+    private final int maxStreams;
+    @JsonProperty
+    private final int agentPort;
+
+    /**
+     * Creates a new remote target.
+     *
+     * @param host The host as ssh knows it
+     * @param folder The folder on the host to receive into
+     * @param maxStreams The streams allowed to the host at once, null for the
+     * default
+     * @param agentPort The port the receive agent of the host listens on, null
+     * or 0 to go over ssh
+     */
+    @JsonCreator
+    public RemoteTarget(@JsonProperty(value = "host") String host, @JsonProperty(value = "folder") String folder,
+            @JsonProperty(value = "maxStreams") Integer maxStreams,
+            @JsonProperty(value = "agentPort") Integer agentPort) {
+        this.host = Objects.requireNonNull(host, "A remote target needs a host");
+        this.folder = Objects.requireNonNull(folder, "A remote target needs a folder");
+        this.maxStreams = maxStreams == null ? DEFAULT_MAX_STREAMS : maxStreams;
+        //Older config files only know ssh
+        this.agentPort = agentPort == null ? 0 : agentPort;
+        if (this.host.isBlank() || this.host.startsWith("-") || this.folder.isBlank() || this.maxStreams < 1
+                || this.agentPort < 0 || this.agentPort > 65535) {
+            throw new IllegalArgumentException("A remote target needs a host, a folder, at least 1 stream and a "
+                    + "valid port if any, got " + this);
+        }
+    }
+
+    /**
+     * Parses a target written as HOST:FOLDER, e.g. "backup@nas:/srv/backups",
+     * with the default stream limit.
+     *
+     * @param value The target
+     * @return The parsed target
+     * @throws IllegalArgumentException If there is no host or folder
+     */
+    public static RemoteTarget parse(String value) {
+        int colon = value.indexOf(':');
+        if (colon < 1 || colon == value.length() - 1) {
+            throw new IllegalArgumentException("A remote target is written HOST:FOLDER, got " + value);
+        }
+        return new RemoteTarget(value.substring(0, colon), value.substring(colon + 1), null, null);
+    }
+
+    /**
+     * Parses a target reached through a receive agent, written
+     * HOST:PORT:FOLDER, e.g. "nas:7777:/srv/backups", with the default stream
+     * limit.
+     *
+     * @param value The target
+     * @return The parsed target
+     * @throws IllegalArgumentException If there is no host, port or folder
+     */
+    public static RemoteTarget parseAgent(String value) {
+        var parts = value.split(":", 3);
+        if (parts.length < 3 || parts[0].isEmpty() || !parts[1].matches("\\d{1,5}") || parts[2].isEmpty()) {
+            throw new IllegalArgumentException("An agent target is written HOST:PORT:FOLDER, got " + value);
+        }
+        return new RemoteTarget(parts[0], parts[2], null, Integer.parseInt(parts[1]));
+    }
+
+    /**
+     * Gets the host as ssh knows it.
+     *
+     * @return The host
+     */
+    public String getHost() {
+        return this.host;
+    }
+
+    /**
+     * Gets the folder on the host backups are received into.
+     *
+     * @return The folder
+     */
+    public String getFolder() {
+        return this.folder;
+    }
+
+    /**
+     * Gets the number of streams allowed to the host at once.
+     *
+     * @return The limit
+     */
+    public int getMaxStreams() {
+        return this.maxStreams;
+    }
+
+    /**
+     * Gets the port the receive agent of the host listens on.
+     *
+     * @return The port, 0 if the target is reached over ssh
+     */
+    public int getAgentPort() {
+        return this.agentPort;
+    }
+
+    /**
+     * Checks whether backups go to a receive agent instead of over ssh.
+     *
+     * @return True if they do
+     */
+    @JsonIgnore
+    public boolean isAgent() {
+        return this.agentPort != 0;
+    }
+
+    /**
+     * Gets the name of the device the streams to this target are counted
+     * against, one per host and transport however many folders it has.
+     *
+     * @return The device name
+     */
+    @JsonIgnore
+    public String getDevice() {
+        return (isAgent() ? "agent:" : "ssh:") + this.host;
+    }
+
+    /**
+     * Gets the name of this target for the metrics and the throttle, like it
+     * is written on the command line.
+     *
+     * @return HOST:FOLDER, or HOST:PORT:FOLDER for an agent
+     */
+    @JsonIgnore
+    public String getName() {
+        return this.host + ":" + (isAgent() ? this.agentPort + ":" : "") + this.folder;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + " (" + (isAgent() ? "agent, " : "") + this.maxStreams + " streams)";
+    }
+}
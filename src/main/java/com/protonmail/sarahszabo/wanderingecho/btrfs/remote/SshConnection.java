@@ -0,0 +1,191 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.remote;
+
+import com.protonmail.sarahszabo.wanderingecho.util.EchoUtil;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A master ssh connection to one host that every command to it is multiplexed
+ * over, so the handshake and authentication happen once instead of once per
+ * stream. Commands go through the control socket of the master; closing the
+ * connection stops the master. Batch mode is on, a host that asks for a
+ * password fails instead of hanging a backup.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class SshConnection implements Closeable {
+
+    /**
+     * How long the master gets to connect and authenticate.
+     */
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(30);
+
+    /**
+     * How often the master is asked whether it's up while connecting.
+     */
+    private static final long CHECK_MILLISECONDS = 100;
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(SshConnection.class.getName());
+
+    private final String host;
+    private final Path controlPath;
+    private final Process master;
+
+    /**
+     * Connects to a host and waits until the master connection is up.
+     *
+     * @param host The host as ssh knows it
+     * @param controlFolder A folder only we can write to for the control
+     * socket, with a short path since socket paths are limited to about 100
+     * characters
+     * @return The connection
+     * @throws IOException If the host couldn't be reached in time
+     */
+    public static SshConnection open(String host, Path controlFolder) throws IOException {
+        //ssh names the socket after a hash of the host, port and user
+        var controlPath = controlFolder.resolve("%C");
+        var command = List.of("ssh", "-M", "-N", "-S", controlPath.toString(), "-o", "ControlPersist=no", "-o",
+                "BatchMode=yes", "-o", "ConnectTimeout=" + CONNECT_TIMEOUT.toSeconds(), host);
+        LOG.info("COMMAND: " + String.join(" ", command));
+        var master = EchoUtil.processOPBuilder(false, command.toArray(new String[0]))
+                .redirectOutput(Redirect.DISCARD).redirectError(Redirect.INHERIT).start();
+        var connection = new SshConnection(host, controlPath, master);
+        long deadline = System.nanoTime() + CONNECT_TIMEOUT.toNanos();
+        try {
+            while (!connection.isUp()) {
+                if (!master.isAlive()) {
+                    throw new IOException("Couldn't connect to " + host + ", ssh exited with status "
+                            + master.exitValue());
+                }
+                if (System.nanoTime() > deadline) {
+                    throw new IOException("Couldn't connect to " + host + " within "
+                            + CONNECT_TIMEOUT.toSeconds() + " s");
+                }
+                Thread.sleep(CHECK_MILLISECONDS);
+            }
+        } catch (IOException ex) {
+            master.destroyForcibly();
+            throw ex;
+        } catch (InterruptedException ex) {
+            Logger.getLogger(SshConnection.class.getName()).log(Level.SEVERE, null, ex);
+            master.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting to " + host, ex);
+        }
+        LOG.info("SSH: Connected to " + host);
+        return connection;
+    }
+
+    private SshConnection(String host, Path controlPath, Process master) {
+        this.host = host;
+        this.controlPath = controlPath;
+        this.master = master;
+    }
+
+    /**
+     * Asks the master whether it's connected.
+     *
+     * @return True if it is
+     * @throws IOException If ssh couldn't be started
+     * @throws InterruptedException If interrupted while waiting for ssh
+     */
+    private boolean isUp() throws IOException, InterruptedException {
+        var check = EchoUtil.processOPBuilder(false, controlCommand("check").toArray(new String[0]))
+                .redirectOutput(Redirect.DISCARD).redirectError(Redirect.DISCARD).start();
+        if (!check.waitFor(CONNECT_TIMEOUT.toSeconds(), TimeUnit.SECONDS)) {
+            check.destroyForcibly();
+            return false;
+        }
+        return check.exitValue() == 0;
+    }
+
+    /**
+     * Gets a command that sends a control request to the master.
+     *
+     * @param request The request, e.g. check or exit
+     * @return The command
+     */
+    private List<String> controlCommand(String request) {
+        return List.of("ssh", "-S", this.controlPath.toString(), "-O", request, this.host);
+    }
+
+    /**
+     * Gets the command that runs a command on the host over this connection,
+     * for {@link com.protonmail.sarahszabo.wanderingecho.btrfs.stream.StreamTransfer}
+     * and the like. The remote shell parses it, quote what needs quoting, see
+     * {@link #quote(java.lang.String)}.
+     *
+     * @param remoteCommand The command to run on the host
+     * @return The local command
+     */
+    public List<String> command(String remoteCommand) {
+        var command = new ArrayList<String>(List.of("ssh", "-S", this.controlPath.toString(), "-o",
+                "ControlMaster=no", "-o", "BatchMode=yes", this.host));
+        command.add(remoteCommand);
+        return command;
+    }
+
+    /**
+     * Quotes a word for the remote shell.
+     *
+     * @param word The word, e.g. a path with spaces
+     * @return The word in single quotes
+     */
+    public static String quote(String word) {
+        return "'" + word.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * Gets the host of this connection.
+     *
+     * @return The host
+     */
+    public String getHost() {
+        return this.host;
+    }
+
+    /**
+     * Stops the master connection. Commands still running over it are cut
+     * off.
+     */
+    @Override
+    public void close() {
+        try {
+            var exit = EchoUtil.processOPBuilder(false, controlCommand("exit").toArray(new String[0]))
+                    .redirectOutput(Redirect.DISCARD).redirectError(Redirect.DISCARD).start();
+            exit.waitFor(CONNECT_TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+            if (!this.master.waitFor(CONNECT_TIMEOUT.toSeconds(), TimeUnit.SECONDS)) {
+                this.master.destroy();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(SshConnection.class.getName()).log(Level.WARNING, "Couldn't stop the master cleanly",
+                    ex);
+            this.master.destroy();
+        } catch (InterruptedException ex) {
+            this.master.destroy();
+            Thread.currentThread().interrupt();
+        }
+        LOG.info("SSH: Disconnected from " + this.host);
+    }
+
+    @Override
+    public String toString() {
+        return "SSH Connection to " + this.host;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.retention;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How long the snapshots of each subvolume are kept. Subvolumes without rules
+ * of their own use the default rules. Saved as part of the BTRFS configuration
+ * file, configurations without one keep every snapshot.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class RetentionPolicy {
+
+    @JsonProperty
+    private final RetentionRules defaultRules;
+    @JsonProperty
+    private final Map<String, RetentionRules> subvolumeRules;
+
+    /**
+     * Creates the default policy.
+     */
+    public RetentionPolicy() {
+        this(null, null);
+    }
+
+    /**
+     * Creates a new retention policy. Null values fall back to the defaults.
+     *
+     * @param defaultRules The rules of subvolumes without rules of their own
+     * @param subvolumeRules The rules of specific subvolumes by location
+     */
+    @JsonCreator
+    public RetentionPolicy(@JsonProperty(value = "defaultRules") RetentionRules defaultRules,
+            @JsonProperty(value = "subvolumeRules") Map<String, RetentionRules> subvolumeRules) {
+        this.defaultRules = defaultRules == null ? new RetentionRules() : defaultRules;
+        this.subvolumeRules = subvolumeRules == null ? new HashMap<>() : new HashMap<>(subvolumeRules);
+    }
+
+    /**
+     * Gets the rules of a subvolume.
+     *
+     * @param subvolume The location of the subvolume
+     * @return Its rules
+     */
+    public RetentionRules getRulesFor(Path subvolume) {
+        return this.subvolumeRules.getOrDefault(subvolume.toString(), this.defaultRules);
+    }
+
+    @Override
+    public String toString() {
+        return "Default: " + this.defaultRules + ", Subvolumes: " + this.subvolumeRules;
+    }
+}
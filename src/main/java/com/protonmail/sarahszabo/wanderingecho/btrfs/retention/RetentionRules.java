@@ -0,0 +1,139 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.retention;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Snapshot;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.IsoFields;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Which snapshots of a subvolume to keep, grandfather-father-son style: the
+ * newest few, then the newest snapshot of each of the last hours, days, weeks
+ * and months that have one. A snapshot kept by any rule is kept.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class RetentionRules {
+
+    @JsonProperty
+    private final int keepLast;
+    @JsonProperty
+    private final int hourly;
+    @JsonProperty
+    private final int daily;
+    @JsonProperty
+    private final int weekly;
+    @JsonProperty
+    private final int monthly;
+
+    /**
+     * Creates the default rules.
+     */
+    public RetentionRules() {
+        this(null, null, null, null, null);
+    }
+
+    /**
+     * Creates new retention rules. Null values fall back to the defaults: the
+     * newest snapshot, 24 hourly, 7 daily, 4 weekly and 12 monthly ones.
+     *
+     * @param keepLast The number of newest snapshots always kept, at least 1
+     * @param hourly The number of hours to keep a snapshot of
+     * @param daily The number of days to keep a snapshot of
+     * @param weekly The number of weeks to keep a snapshot of
+     * @param monthly The number of months to keep a snapshot of
+     */
+    @JsonCreator
+    public RetentionRules(@JsonProperty(value = "keepLast") Integer keepLast,
+            @JsonProperty(value = "hourly") Integer hourly, @JsonProperty(value = "daily") Integer daily,
+            @JsonProperty(value = "weekly") Integer weekly, @JsonProperty(value = "monthly") Integer monthly) {
+        this.keepLast = keepLast == null ? 1 : keepLast;
+        this.hourly = hourly == null ? 24 : requireNotNegative(hourly);
+        this.daily = daily == null ? 7 : requireNotNegative(daily);
+        this.weekly = weekly == null ? 4 : requireNotNegative(weekly);
+        this.monthly = monthly == null ? 12 : requireNotNegative(monthly);
+        if (this.keepLast < 1) {
+            throw new IllegalArgumentException("The newest snapshot is always kept, keepLast must be at least 1, got "
+                    + this.keepLast);
+        }
+    }
+
+    /**
+     * Checks that a count isn't negative.
+     *
+     * @param count The count
+     * @return The count
+     */
+    private static int requireNotNegative(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Retention counts can't be negative, got " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Selects the snapshots these rules keep.
+     *
+     * @param snapshots The snapshots of one subvolume, newest first
+     * @param zone The time zone hours, days, weeks and months are counted in
+     * @return The locations of the kept snapshots
+     */
+    public Set<Path> select(List<Snapshot> snapshots, ZoneId zone) {
+        var kept = new HashSet<Path>();
+        snapshots.stream().limit(this.keepLast).forEach(snapshot -> kept.add(snapshot.getLocation()));
+        keepPerPeriod(snapshots, this.hourly, snapshot -> snapshot.getCreationDate().withZoneSameInstant(zone)
+                .truncatedTo(ChronoUnit.HOURS).toLocalDateTime(), kept);
+        keepPerPeriod(snapshots, this.daily, snapshot -> snapshot.getCreationDate().withZoneSameInstant(zone)
+                .toLocalDate(), kept);
+        keepPerPeriod(snapshots, this.weekly, snapshot -> {
+            var date = snapshot.getCreationDate().withZoneSameInstant(zone);
+            return date.get(IsoFields.WEEK_BASED_YEAR) * 100 + date.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR);
+        }, kept);
+        keepPerPeriod(snapshots, this.monthly, snapshot -> {
+            var date = snapshot.getCreationDate().withZoneSameInstant(zone);
+            return date.getYear() * 100 + date.getMonthValue();
+        }, kept);
+        return kept;
+    }
+
+    /**
+     * Keeps the newest snapshot of each of the newest periods that have one.
+     *
+     * @param snapshots The snapshots, newest first
+     * @param periods The number of periods to keep
+     * @param periodOf Gets the period of a snapshot
+     * @param kept Where to add the kept snapshots
+     */
+    private static void keepPerPeriod(List<Snapshot> snapshots, int periods, Function<Snapshot, Object> periodOf,
+            Set<Path> kept) {
+        var seen = new HashSet<Object>();
+        for (var snapshot : snapshots) {
+            var period = periodOf.apply(snapshot);
+            if (seen.contains(period)) {
+                continue;
+            }
+            if (seen.size() == periods) {
+                return;
+            }
+            seen.add(period);
+            kept.add(snapshot.getLocation());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Last: " + this.keepLast + ", Hourly: " + this.hourly + ", Daily: " + this.daily + ", Weekly: "
+                + this.weekly + ", Monthly: " + this.monthly;
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.retention;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.catalog.SnapshotCatalog;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.metrics.MetricsRegistry;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Snapshot;
+import com.protonmail.sarahszabo.wanderingecho.util.EchoUtil;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+/**
+ * Deletes snapshots in the background, so a backup run is done as soon as its
+ * data is on the target. Deleting a subvolume only unlinks it, btrfs-cleaner
+ * frees its extents later and can flood the disk with I/O doing so. The
+ * cleaner deletes a few snapshots at a time without waiting for a commit, and
+ * holds off while btrfs still has many deleted subvolumes to clean up. Once
+ * the queue is empty it waits for btrfs to finish with btrfs subvolume sync.
+ * <p>
+ * The queue is kept in a file, snapshots still queued when the program exits
+ * are deleted by the next run.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class SnapshotCleaner implements Closeable {
+
+    /**
+     * The most snapshots deleted by one btrfs command.
+     */
+    private static final int BATCH_SIZE = 16;
+
+    /**
+     * The deleted subvolumes btrfs may still have to clean up before we
+     * delete more.
+     */
+    private static final int MAX_PENDING = 32;
+
+    /**
+     * How often the backlog of btrfs-cleaner is checked while waiting on it.
+     */
+    private static final long BACKLOG_POLL_SECONDS = 5;
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(SnapshotCleaner.class.getName());
+
+    private final Path queueFile;
+    private final SnapshotCatalog catalog;
+    private final MetricsRegistry metrics;
+    private final ObjectMapper mapper;
+    private final ArrayDeque<Path> queue = new ArrayDeque<>();
+    private final Set<Path> unsyncedFolders = new LinkedHashSet<>();
+    private final Thread worker;
+    private boolean working;
+    private volatile boolean closed;
+
+    /**
+     * Opens the cleaner and starts deleting what an earlier run left queued.
+     *
+     * @param queueFile The file keeping the queue
+     * @param catalog The catalog deleted snapshots are removed from
+     * @param metrics The metrics deletes are recorded in
+     * @param mapper The mapper to read and write the queue with
+     * @return The cleaner
+     * @throws IOException If the queue file exists but couldn't be read
+     */
+    public static SnapshotCleaner open(Path queueFile, SnapshotCatalog catalog, MetricsRegistry metrics,
+            ObjectMapper mapper) throws IOException {
+        var cleaner = new SnapshotCleaner(queueFile, catalog, metrics, mapper);
+        cleaner.worker.start();
+        return cleaner;
+    }
+
+    private SnapshotCleaner(Path queueFile, SnapshotCatalog catalog, MetricsRegistry metrics, ObjectMapper mapper)
+            throws IOException {
+        this.queueFile = queueFile;
+        this.catalog = catalog;
+        this.metrics = metrics;
+        this.mapper = mapper;
+        if (Files.exists(queueFile)) {
+            List<Path> queued = mapper.readValue(queueFile.toFile(), new TypeReference<List<Path>>() {
+            });
+            this.queue.addAll(queued);
+            LOG.info("CLEANER: " + queued.size() + " Snapshots Left to Delete by an Earlier Run");
+        }
+        this.worker = new BasicThreadFactory.Builder().namingPattern("Wandering Echo Snapshot Cleaner Thread %d")
+                .daemon(true).build().newThread(this::run);
+    }
+
+    /**
+     * Queues snapshots for deletion.
+     *
+     * @param snapshots The snapshots
+     * @throws IOException If the queue couldn't be saved
+     */
+    public synchronized void enqueue(List<Snapshot> snapshots) throws IOException {
+        snapshots.stream().map(Snapshot::getLocation).filter(location -> !this.queue.contains(location))
+                .forEach(this.queue::add);
+        saveQueue();
+        notifyAll();
+    }
+
+    /**
+     * Waits until every queued snapshot is deleted and btrfs cleaned them up.
+     *
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (!this.closed && (this.working || !this.queue.isEmpty() || !this.unsyncedFolders.isEmpty())) {
+            wait();
+        }
+    }
+
+    /**
+     * Deletes batches until closed.
+     */
+    private void run() {
+        while (!this.closed) {
+            try {
+                var batch = takeBatch();
+                if (batch.isEmpty()) {
+                    sync();
+                    continue;
+                }
+                var folder = batch.get(0).getParent();
+                waitForBacklog(folder);
+                delete(folder, batch);
+            } catch (InterruptedException ex) {
+                return;
+            } catch (IOException | RuntimeException ex) {
+                Logger.getLogger(SnapshotCleaner.class.getName()).log(Level.WARNING, "Snapshot cleanup failed", ex);
+                synchronized (this) {
+                    this.working = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the next snapshots to delete, all in the same folder. Waits for
+     * some if nothing is queued and everything deleted was synced.
+     *
+     * @return The locations of the snapshots, empty if deleted snapshots
+     * need to be synced
+     */
+    private synchronized List<Path> takeBatch() throws InterruptedException {
+        this.working = false;
+        notifyAll();
+        while (this.queue.isEmpty() && this.unsyncedFolders.isEmpty()) {
+            wait();
+        }
+        var batch = new ArrayList<Path>();
+        if (this.queue.isEmpty()) {
+            this.working = true;
+            return batch;
+        }
+        var folder = this.queue.peek().getParent();
+        var iterator = this.queue.iterator();
+        while (iterator.hasNext() && batch.size() < BATCH_SIZE) {
+            var location = iterator.next();
+            if (location.getParent().equals(folder)) {
+                batch.add(location);
+            }
+        }
+        this.working = true;
+        return batch;
+    }
+
+    /**
+     * Waits while btrfs has many deleted subvolumes left to clean up on the
+     * filesystem of a folder.
+     */
+    private void waitForBacklog(Path folder) throws InterruptedException {
+        int pending;
+        while ((pending = countPending(folder)) >= MAX_PENDING) {
+            LOG.info("CLEANER: Waiting, btrfs-cleaner has " + pending + " Deleted Subvolumes Left");
+            TimeUnit.SECONDS.sleep(BACKLOG_POLL_SECONDS);
+        }
+    }
+
+    /**
+     * Counts the deleted subvolumes btrfs hasn't cleaned up yet.
+     *
+     * @param folder A folder on the filesystem
+     * @return The count, 0 if btrfs couldn't tell
+     */
+    private static int countPending(Path folder) {
+        //Command: btrfs subvolume list -d "FOLDER"
+        //Output: ID 262 gen 30 top level 5 path <FS_TREE>/DELETED
+        int pending = 0;
+        try ( var scanner = EchoUtil.getProcessInputScanner(EchoUtil.processOPNoWait(false, "btrfs", "subvolume",
+                "list", "-d", folder.toString()))) {
+            while (scanner.hasNextLine()) {
+                if (scanner.nextLine().startsWith("ID ")) {
+                    pending++;
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(SnapshotCleaner.class.getName()).log(Level.WARNING, null, ex);
+        }
+        return pending;
+    }
+
+    /**
+     * Deletes a batch of snapshots in one folder and drops them from the
+     * queue and the catalog. Snapshots already gone from the disk count as
+     * deleted.
+     */
+    private void delete(Path folder, List<Path> batch) throws IOException {
+        var existing = batch.stream().filter(Files::isDirectory).map(Path::toString).collect(Collectors.toList());
+        long start = System.nanoTime();
+        if (!existing.isEmpty()) {
+            //Command: btrfs subvolume delete SNAPSHOT..., no commit wait
+            var command = new ArrayList<String>(List.of("btrfs", "subvolume", "delete"));
+            command.addAll(existing);
+            if (EchoUtil.processOP(true, command.toArray(new String[0]))) {
+                LOG.warning("CLEANER: Deleting " + existing.size() + " snapshots in " + folder + " failed");
+            }
+        }
+        //The batch spans subvolumes, each gets the duration of the whole delete
+        long duration = System.nanoTime() - start;
+        var gone = new ArrayList<Snapshot>();
+        var failed = new ArrayList<Path>();
+        for (var location : batch) {
+            var snapshot = this.catalog.getSnapshot(location);
+            boolean deleted = !Files.isDirectory(location);
+            if (deleted) {
+                snapshot.ifPresent(gone::add);
+            } else {
+                failed.add(location);
+            }
+            snapshot.ifPresent(found -> this.metrics.getSubvolume(found.getParentSubvolume().getLocation()
+                    .toString()).recordDelete(duration, deleted));
+        }
+        this.catalog.remove(gone);
+        synchronized (this) {
+            //Failed ones are left to the next run, retrying now would fail the same way
+            this.queue.removeAll(batch);
+            this.unsyncedFolders.add(folder);
+            saveQueue();
+        }
+        LOG.info("CLEANER: Deleted " + (batch.size() - failed.size()) + " of " + batch.size() + " Snapshots in " + folder + ", "
+                + queuedCount() + " Left");
+        if (!failed.isEmpty()) {
+            LOG.warning("CLEANER: Couldn't delete " + failed);
+        }
+    }
+
+    /**
+     * Waits for btrfs to clean up the subvolumes deleted in every folder since
+     * the last sync. A folder that can't be synced isn't tried again, btrfs
+     * cleans it up all the same and retrying would fail the same way.
+     */
+    private void sync() throws IOException {
+        List<Path> folders;
+        synchronized (this) {
+            folders = new ArrayList<>(this.unsyncedFolders);
+        }
+        try {
+            for (var folder : folders) {
+                //Command: btrfs subvolume sync "FOLDER"
+                long start = System.nanoTime();
+                Process process;
+                try {
+                    process = EchoUtil.processOPBuilder(true, "btrfs", "subvolume", "sync", folder.toString())
+                            .start();
+                } catch (IOException ex) {
+                    Logger.getLogger(SnapshotCleaner.class.getName()).log(Level.WARNING, "CLEANER: Couldn't wait "
+                            + "for btrfs-cleaner in " + folder, ex);
+                    continue;
+                }
+                try {
+                    process.waitFor();
+                } catch (InterruptedException ex) {
+                    process.destroy();
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                LOG.info("CLEANER: btrfs-cleaner Finished in " + folder + " after " + TimeUnit.NANOSECONDS
+                        .toSeconds(System.nanoTime() - start) + " s");
+            }
+        } finally {
+            synchronized (this) {
+                this.unsyncedFolders.removeAll(folders);
+            }
+        }
+        this.metrics.export();
+    }
+
+    /**
+     * Gets the number of queued snapshots.
+     */
+    private synchronized int queuedCount() {
+        return this.queue.size();
+    }
+
+    /**
+     * Writes the queue to its file, deleting the file once it's empty.
+     */
+    private void saveQueue() throws IOException {
+        if (this.queue.isEmpty()) {
+            Files.deleteIfExists(this.queueFile);
+        } else {
+            this.mapper.writeValue(this.queueFile.toFile(), new ArrayList<>(this.queue));
+        }
+    }
+
+    /**
+     * Stops the cleaner, whatever is still queued is deleted by the next run.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.worker.interrupt();
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Snapshot Cleaner: " + this.queue.size() + " Queued, " + this.unsyncedFolders.size()
+                + " Folders to Sync";
+    }
+}
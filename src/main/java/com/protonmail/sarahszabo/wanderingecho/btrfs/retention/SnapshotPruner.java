@@ -0,0 +1,68 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.retention;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.catalog.SnapshotCatalog;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Snapshot;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Subvolume;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Plans which snapshots a retention policy doesn't keep. Which ones is decided
+ * from the snapshot catalog alone. Snapshots a target still needs as the
+ * parent of its next incremental backup are never deleted, whatever the
+ * rules say. The {@link SnapshotCleaner} deletes them.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class SnapshotPruner {
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(SnapshotPruner.class.getName());
+
+    /**
+     * Plans which snapshots to delete.
+     *
+     * @param catalog The catalog of our snapshots
+     * @param subvolumes The subvolumes to prune the snapshots of
+     * @param policy The retention policy
+     * @param parents The snapshots targets need as parents, never deleted
+     * @param zone The time zone hours, days, weeks and months are counted in
+     * @return The snapshots to delete by the location of their subvolume,
+     * only subvolumes with snapshots to delete are in it
+     */
+    public static Map<Path, List<Snapshot>> plan(SnapshotCatalog catalog, List<Subvolume> subvolumes,
+            RetentionPolicy policy, Set<Path> parents, ZoneId zone) {
+        var plan = new LinkedHashMap<Path, List<Snapshot>>();
+        for (var subvolume : subvolumes) {
+            var snapshots = catalog.streamSnapshotsOf(subvolume.getLocation()).collect(Collectors.toList());
+            var kept = policy.getRulesFor(subvolume.getLocation()).select(snapshots, zone);
+            var deleted = snapshots.stream().filter(snapshot -> !kept.contains(snapshot.getLocation())
+                    && !parents.contains(snapshot.getLocation())).collect(Collectors.toList());
+            if (!deleted.isEmpty()) {
+                LOG.info("PRUNE: " + subvolume.getLocation() + ": Keeping " + (snapshots.size() - deleted.size())
+                        + ", Deleting " + deleted.size());
+                plan.put(subvolume.getLocation(), deleted);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * No instances.
+     */
+    private SnapshotPruner() {
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.schedule;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * When the daemon backs up each subvolume. Subvolumes without a schedule of
+ * their own use the default schedule. Saved as part of the BTRFS
+ * configuration file.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class BackupSchedules {
+
+    /**
+     * The schedule used when nothing is configured.
+     */
+    public static final String DEFAULT_SCHEDULE = "@hourly";
+
+    @JsonProperty
+    private final CronSchedule defaultSchedule;
+    @JsonProperty
+    private final Map<String, CronSchedule> subvolumeSchedules;
+
+    /**
+     * Creates the default schedules, every subvolume hourly.
+     */
+    public BackupSchedules() {
+        this(null, null);
+    }
+
+    /**
+     * Creates new backup schedules. Null values fall back to the defaults.
+     *
+     * @param defaultSchedule The schedule of subvolumes without one of their
+     * own
+     * @param subvolumeSchedules The schedules of specific subvolumes by
+     * location
+     */
+    @JsonCreator
+    public BackupSchedules(@JsonProperty(value = "defaultSchedule") CronSchedule defaultSchedule,
+            @JsonProperty(value = "subvolumeSchedules") Map<String, CronSchedule> subvolumeSchedules) {
+        this.defaultSchedule = defaultSchedule == null ? CronSchedule.parse(DEFAULT_SCHEDULE) : defaultSchedule;
+        this.subvolumeSchedules = subvolumeSchedules == null ? new HashMap<>() : new HashMap<>(subvolumeSchedules);
+    }
+
+    /**
+     * Gets the schedule of a subvolume.
+     *
+     * @param subvolume The location of the subvolume
+     * @return Its schedule
+     */
+    public CronSchedule getScheduleFor(Path subvolume) {
+        return this.subvolumeSchedules.getOrDefault(subvolume.toString(), this.defaultSchedule);
+    }
+
+    @Override
+    public String toString() {
+        return "Default: " + this.defaultSchedule + ", Subvolumes: " + this.subvolumeSchedules;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.schedule;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * A cron schedule: minute, hour, day of month, month and day of week, each a
+ * *, a number, a range a-b or a comma separated list of them, optionally with
+ * a step like *&#47;15. Sunday is 0 or 7. Like cron, a day matches if either
+ * the day of month or the day of week matches when both are restricted. The
+ * shortcuts @hourly, @daily, @weekly, @monthly and @yearly are understood.
+ * Times are on the wall clock: a run in an hour skipped going to summer time
+ * runs an hour late, one in an hour repeated going back runs once. Saved as
+ * its expression.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class CronSchedule {
+
+    /**
+     * The shortcuts and the expressions they stand for.
+     */
+    private static final Map<String, String> SHORTCUTS = Map.of("@hourly", "0 * * * *", "@daily", "0 0 * * *",
+            "@midnight", "0 0 * * *", "@weekly", "0 0 * * 0", "@monthly", "0 0 1 * *", "@yearly", "0 0 1 1 *",
+            "@annually", "0 0 1 1 *");
+
+    /**
+     * How far ahead to look for the next run, long enough for a leap day that
+     * has to fall on a given weekday.
+     */
+    private static final int SEARCH_YEARS = 30;
+
+    private final String expression;
+    private final BitSet minutes;
+    private final BitSet hours;
+    private final BitSet days;
+    private final BitSet months;
+    private final BitSet weekdays;
+    private final boolean anyDay;
+    private final boolean anyWeekday;
+
+    /**
+     * Parses a cron expression.
+     *
+     * @param expression The expression
+     * @return The schedule
+     * @throws IllegalArgumentException If the expression isn't valid or never
+     * matches
+     */
+    @JsonCreator
+    public static CronSchedule parse(String expression) {
+        return new CronSchedule(expression);
+    }
+
+    private CronSchedule(String expression) {
+        this.expression = expression.trim();
+        var fields = SHORTCUTS.getOrDefault(this.expression, this.expression).split("\\s+");
+        if (fields.length != 5) {
+            throw new IllegalArgumentException("A cron expression has 5 fields: minute hour day month weekday, got "
+                    + expression);
+        }
+        this.minutes = parseField(fields[0], 0, 59, expression);
+        this.hours = parseField(fields[1], 0, 23, expression);
+        this.days = parseField(fields[2], 1, 31, expression);
+        this.months = parseField(fields[3], 1, 12, expression);
+        this.weekdays = parseField(fields[4], 0, 7, expression);
+        //Sunday is both 0 and 7
+        if (this.weekdays.get(7)) {
+            this.weekdays.set(0);
+        }
+        this.anyDay = fields[2].startsWith("*");
+        this.anyWeekday = fields[4].startsWith("*");
+        if (findNext(ZonedDateTime.now(ZoneId.systemDefault())) == null) {
+            throw new IllegalArgumentException("The cron expression never matches: " + expression);
+        }
+    }
+
+    /**
+     * Parses one field of an expression.
+     *
+     * @param field The field
+     * @param min The smallest allowed value
+     * @param max The largest allowed value
+     * @param expression The whole expression, for the error message
+     * @return The matching values
+     */
+    private static BitSet parseField(String field, int min, int max, String expression) {
+        var values = new BitSet(max + 1);
+        for (var part : field.split(",")) {
+            try {
+                int step = 1;
+                int slash = part.indexOf('/');
+                if (slash >= 0) {
+                    step = Integer.parseInt(part.substring(slash + 1));
+                    part = part.substring(0, slash);
+                }
+                int from;
+                int to;
+                if (part.equals("*")) {
+                    from = min;
+                    to = max;
+                } else if (part.indexOf('-') > 0) {
+                    from = Integer.parseInt(part.substring(0, part.indexOf('-')));
+                    to = Integer.parseInt(part.substring(part.indexOf('-') + 1));
+                } else {
+                    from = Integer.parseInt(part);
+                    //A step without a range runs to the end, like 5/15
+                    to = slash >= 0 ? max : from;
+                }
+                if (from < min || to > max || from > to || step < 1) {
+                    throw new IllegalArgumentException("Out of range " + min + "-" + max + ": " + part);
+                }
+                for (int value = from; value <= to; value += step) {
+                    values.set(value);
+                }
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Invalid cron field " + field + " in " + expression + ": "
+                        + ex.getMessage(), ex);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Gets the next time this schedule matches.
+     *
+     * @param after The time to search from, exclusive
+     * @return The first matching minute after it
+     */
+    public ZonedDateTime next(ZonedDateTime after) {
+        var next = findNext(after);
+        if (next == null) {
+            throw new IllegalStateException("The cron expression never matches: " + this.expression);
+        }
+        return next;
+    }
+
+    /**
+     * Searches the next time this schedule matches, skipping whole months,
+     * days and hours that can't match.
+     *
+     * @param after The time to search from, exclusive
+     * @return The first matching minute after it, null if there is none
+     * within the search range
+     */
+    private ZonedDateTime findNext(ZonedDateTime after) {
+        var time = after.toLocalDateTime().truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+        var limit = time.plusYears(SEARCH_YEARS);
+        while (time.isBefore(limit)) {
+            if (!this.months.get(time.getMonthValue())) {
+                time = time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1).plusMonths(1);
+            } else if (!matchesDay(time)) {
+                time = time.truncatedTo(ChronoUnit.DAYS).plusDays(1);
+            } else if (!this.hours.get(time.getHour())) {
+                time = time.truncatedTo(ChronoUnit.HOURS).plusHours(1);
+            } else if (!this.minutes.get(time.getMinute())) {
+                time = time.plusMinutes(1);
+            } else {
+                //A time in a gap moves past it, in an overlap it keeps the offset it is searched from
+                var next = ZonedDateTime.ofLocal(time, after.getZone(), after.getOffset());
+                if (next.isAfter(after)) {
+                    return next;
+                }
+                time = time.plusMinutes(1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether the day of a time matches, cron style.
+     */
+    private boolean matchesDay(LocalDateTime time) {
+        boolean day = this.days.get(time.getDayOfMonth());
+        boolean weekday = this.weekdays.get(time.getDayOfWeek().getValue() % 7);
+        if (this.anyDay || this.anyWeekday) {
+            return day && weekday;
+        }
+        return day || weekday;
+    }
+
+    /**
+     * Gets the expression of this schedule.
+     *
+     * @return The expression as given
+     */
+    @JsonValue
+    public String getExpression() {
+        return this.expression;
+    }
+
+    @Override
+    public String toString() {
+        return this.expression;
+    }
+}
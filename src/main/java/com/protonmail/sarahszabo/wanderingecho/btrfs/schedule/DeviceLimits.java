@@ -0,0 +1,110 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.schedule;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How many backup streams may read from one source disk and write to one
+ * target disk at the same time. Saved as part of the BTRFS configuration file.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class DeviceLimits {
+
+    /**
+     * The limit used when nothing is configured, one stream per disk so the
+     * disk reads sequentially.
+     */
+    public static final int DEFAULT_LIMIT = 1;
+
+    @JsonProperty
+    private final int sourceDeviceLimit;
+    @JsonProperty
+    private final int targetDeviceLimit;
+    @JsonProperty
+    private final Map<String, Integer> deviceOverrides;
+
+    /**
+     * Creates the default limits.
+     */
+    public DeviceLimits() {
+        this(null, null, null);
+    }
+
+    /**
+     * Creates new device limits. Null values fall back to the defaults.
+     *
+     * @param sourceDeviceLimit Streams allowed per source disk
+     * @param targetDeviceLimit Streams allowed per target disk
+     * @param deviceOverrides Limits for specific disks by name, e.g. "sda",
+     * used for both directions
+     */
+    @JsonCreator
+    public DeviceLimits(@JsonProperty(value = "sourceDeviceLimit") Integer sourceDeviceLimit,
+            @JsonProperty(value = "targetDeviceLimit") Integer targetDeviceLimit,
+            @JsonProperty(value = "deviceOverrides") Map<String, Integer> deviceOverrides) {
+        this.sourceDeviceLimit = sourceDeviceLimit == null ? DEFAULT_LIMIT : requirePositive(sourceDeviceLimit);
+        this.targetDeviceLimit = targetDeviceLimit == null ? DEFAULT_LIMIT : requirePositive(targetDeviceLimit);
+        this.deviceOverrides = deviceOverrides == null ? new HashMap<>() : new HashMap<>(deviceOverrides);
+        this.deviceOverrides.values().forEach(DeviceLimits::requirePositive);
+    }
+
+    /**
+     * Checks that a limit allows at least one stream.
+     *
+     * @param limit The limit
+     * @return The limit
+     */
+    private static int requirePositive(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Device limits must be at least 1, got " + limit);
+        }
+        return limit;
+    }
+
+    /**
+     * Gets the number of streams allowed to read from a source disk.
+     *
+     * @param device The disk name
+     * @return The limit
+     */
+    public int getSourceLimit(String device) {
+        return this.deviceOverrides.getOrDefault(device, this.sourceDeviceLimit);
+    }
+
+    /**
+     * Gets the number of streams allowed to write to a target disk.
+     *
+     * @param device The disk name
+     * @return The limit
+     */
+    public int getTargetLimit(String device) {
+        return this.deviceOverrides.getOrDefault(device, this.targetDeviceLimit);
+    }
+
+    /**
+     * Creates limits like these with more overrides, e.g. for remote hosts.
+     *
+     * @param overrides Limits for specific devices by name, replacing the
+     * configured ones for the same names
+     * @return The new limits
+     */
+    public DeviceLimits withOverrides(Map<String, Integer> overrides) {
+        var merged = new HashMap<>(this.deviceOverrides);
+        merged.putAll(overrides);
+        return new DeviceLimits(this.sourceDeviceLimit, this.targetDeviceLimit, merged);
+    }
+
+    @Override
+    public String toString() {
+        return "Source Limit: " + this.sourceDeviceLimit + ", Target Limit: " + this.targetDeviceLimit
+                + ", Overrides: " + this.deviceOverrides;
+    }
+}
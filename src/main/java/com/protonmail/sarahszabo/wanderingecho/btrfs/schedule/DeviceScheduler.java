@@ -0,0 +1,195 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.schedule;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.topology.MountTopology;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Runs backup tasks while limiting how many of them use the same source disk
+ * and the same target disk at once. Tasks on independent disks run in
+ * parallel, tasks sharing a disk queue up behind each other so the disk can
+ * read or write sequentially instead of seeking between streams. The queue is
+ * ordered largest estimate first, then by submission: starting the longest
+ * tasks first keeps a large one from starting last and running on alone
+ * after the others finished.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class DeviceScheduler {
+
+    /**
+     * Where the kernel lists block devices.
+     */
+    private static final Path SYS_BLOCK_FOLDER = Paths.get("/sys/class/block");
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(DeviceScheduler.class.getName());
+
+    private final ExecutorService executor;
+    private final DeviceLimits limits;
+    private final Map<String, Integer> runningPerSource = new HashMap<>();
+    private final Map<String, Integer> runningPerTarget = new HashMap<>();
+    private final LinkedList<Pending<?>> pending = new LinkedList<>();
+
+    /**
+     * Creates a new scheduler.
+     *
+     * @param executor The executor that runs the tasks, should not limit the
+     * number of threads itself
+     * @param limits The per disk limits
+     */
+    public DeviceScheduler(ExecutorService executor, DeviceLimits limits) {
+        this.executor = executor;
+        this.limits = limits;
+    }
+
+    /**
+     * Gets the name of the disk that holds a path, e.g. "sda" for a path on
+     * /dev/sda2. Partitions are mapped to their disk since they share its head.
+     * Paths that aren't on a block device, like network mounts, get the source
+     * of their mount.
+     *
+     * @param path The path on the disk
+     * @return The disk name
+     * @throws IOException If the device couldn't be resolved
+     */
+    public static String getDiskOf(Path path) throws IOException {
+        var storeName = MountTopology.system().getMountOf(path).getSource();
+        if (!storeName.startsWith("/dev/")) {
+            return storeName;
+        }
+        //Resolve /dev/mapper & /dev/disk/by-* links to the kernel name
+        var device = Paths.get(storeName);
+        if (Files.exists(device)) {
+            device = device.toRealPath();
+        }
+        var sysDevice = SYS_BLOCK_FOLDER.resolve(device.getFileName().toString());
+        if (Files.exists(sysDevice.resolve("partition"))) {
+            return sysDevice.toRealPath().getParent().getFileName().toString();
+        }
+        return device.getFileName().toString();
+    }
+
+    /**
+     * Runs all tasks, respecting the device limits, and waits until every one
+     * of them finished.
+     *
+     * @param <T> The result type of the tasks
+     * @param tasks The tasks to run
+     * @return The futures of the tasks, in the same order, all completed
+     * @throws InterruptedException If we were interrupted while waiting
+     */
+    public <T> List<Future<T>> invokeAll(List<DeviceTask<T>> tasks) throws InterruptedException {
+        var futures = new ArrayList<Future<T>>(tasks.size());
+        synchronized (this) {
+            for (var task : tasks) {
+                var entry = new Pending<T>(task);
+                futures.add(entry.future);
+                enqueue(entry);
+            }
+            dispatch();
+        }
+        for (var future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                //Like ExecutorService.invokeAll, the caller inspects the futures
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Queues a task behind every pending task estimated at least as large.
+     * Must hold the lock.
+     *
+     * @param entry The task to queue
+     */
+    private void enqueue(Pending<?> entry) {
+        long estimate = entry.task.getEstimatedBytes();
+        for (var iterator = this.pending.listIterator(); iterator.hasNext();) {
+            if (iterator.next().task.getEstimatedBytes() < estimate) {
+                iterator.previous();
+                iterator.add(entry);
+                return;
+            }
+        }
+        this.pending.add(entry);
+    }
+
+    /**
+     * Starts every pending task whose disks all have a free slot. Must hold
+     * the lock.
+     */
+    private void dispatch() {
+        for (Iterator<Pending<?>> iterator = this.pending.iterator(); iterator.hasNext();) {
+            var entry = iterator.next();
+            var source = entry.task.getSourceDevice();
+            var targets = entry.task.getTargetDevices();
+            if (this.runningPerSource.getOrDefault(source, 0) < this.limits.getSourceLimit(source)
+                    && targets.stream().allMatch(target -> this.runningPerTarget.getOrDefault(target, 0)
+                    < this.limits.getTargetLimit(target))) {
+                iterator.remove();
+                this.runningPerSource.merge(source, 1, Integer::sum);
+                targets.forEach(target -> this.runningPerTarget.merge(target, 1, Integer::sum));
+                LOG.fine("Starting task " + entry.task);
+                this.executor.execute(() -> run(entry));
+            }
+        }
+    }
+
+    /**
+     * Runs a task, then frees its disk slots and starts whatever was waiting
+     * on them.
+     *
+     * @param entry The task to run
+     */
+    private <T> void run(Pending<T> entry) {
+        try {
+            entry.future.complete(entry.task.getTask().call());
+        } catch (Exception | Error ex) {
+            entry.future.completeExceptionally(ex);
+        } finally {
+            synchronized (this) {
+                this.runningPerSource.merge(entry.task.getSourceDevice(), -1, Integer::sum);
+                entry.task.getTargetDevices().forEach(target -> this.runningPerTarget.merge(target, -1, Integer::sum));
+                dispatch();
+            }
+        }
+    }
+
+    /**
+     * A task waiting for its disks together with its future.
+     *
+     * @param <T> The result type
+     */
+    private static class Pending<T> {
+
+        private final DeviceTask<T> task;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Pending(DeviceTask<T> task) {
+            this.task = task;
+        }
+    }
+}
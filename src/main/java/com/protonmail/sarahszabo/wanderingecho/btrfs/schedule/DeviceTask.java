@@ -0,0 +1,129 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.schedule;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+
+/**
+ * A backup task together with the disk it reads from and the disks it writes
+ * to.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ * @param <T> The result of the task
+ */
+public class DeviceTask<T> {
+
+    private final String sourceDevice;
+    private final List<String> targetDevices;
+    private final long estimatedBytes;
+    private final Callable<T> task;
+
+    /**
+     * Creates a new device task.
+     *
+     * @param sourceDevice The disk the task reads from
+     * @param targetDevice The disk the task writes to
+     * @param task The work to do
+     */
+    public DeviceTask(String sourceDevice, String targetDevice, Callable<T> task) {
+        this(sourceDevice, List.of(targetDevice), task);
+    }
+
+    /**
+     * Creates a new device task that only reads, e.g. a send without data
+     * estimating a send. It takes a slot on its source disk alone.
+     *
+     * @param sourceDevice The disk the task reads from
+     * @param task The work to do
+     */
+    public DeviceTask(String sourceDevice, Callable<T> task) {
+        this.sourceDevice = Objects.requireNonNull(sourceDevice);
+        this.targetDevices = List.of();
+        this.estimatedBytes = 0;
+        this.task = Objects.requireNonNull(task);
+    }
+
+    /**
+     * Creates a new device task writing to several disks at once, e.g. one
+     * send stream copied to several targets. It takes a slot on each of them.
+     *
+     * @param sourceDevice The disk the task reads from
+     * @param targetDevices The disks the task writes to, a disk named twice
+     * counts once
+     * @param task The work to do
+     */
+    public DeviceTask(String sourceDevice, List<String> targetDevices, Callable<T> task) {
+        this(sourceDevice, targetDevices, 0, task);
+    }
+
+    /**
+     * Creates a new device task with an estimate of how much it sends. The
+     * scheduler starts the tasks it estimated larger first, so the longest
+     * ones don't start last and hold up the end of a run.
+     *
+     * @param sourceDevice The disk the task reads from
+     * @param targetDevices The disks the task writes to, a disk named twice
+     * counts once
+     * @param estimatedBytes How many bytes the task is estimated to send, 0 if
+     * unknown
+     * @param task The work to do
+     */
+    public DeviceTask(String sourceDevice, List<String> targetDevices, long estimatedBytes, Callable<T> task) {
+        this.sourceDevice = Objects.requireNonNull(sourceDevice);
+        this.targetDevices = targetDevices.stream().map(Objects::requireNonNull).distinct()
+                .collect(Collectors.toUnmodifiableList());
+        if (this.targetDevices.isEmpty()) {
+            throw new IllegalArgumentException("A task needs a disk to write to");
+        }
+        this.estimatedBytes = Math.max(estimatedBytes, 0);
+        this.task = Objects.requireNonNull(task);
+    }
+
+    /**
+     * Gets the disk this task reads from.
+     *
+     * @return The disk name
+     */
+    public String getSourceDevice() {
+        return this.sourceDevice;
+    }
+
+    /**
+     * Gets the disks this task writes to.
+     *
+     * @return The disk names, each once, none if the task only reads
+     */
+    public List<String> getTargetDevices() {
+        return this.targetDevices;
+    }
+
+    /**
+     * Gets how many bytes the task is estimated to send.
+     *
+     * @return The estimate, 0 if unknown
+     */
+    public long getEstimatedBytes() {
+        return this.estimatedBytes;
+    }
+
+    /**
+     * Gets the work to do.
+     *
+     * @return The callable
+     */
+    public Callable<T> getTask() {
+        return this.task;
+    }
+
+    @Override
+    public String toString() {
+        return this.sourceDevice + " -> " + String.join(", ", this.targetDevices) + (this.estimatedBytes > 0
+                ? String.format(", ~%,d Bytes", this.estimatedBytes) : "");
+    }
+}
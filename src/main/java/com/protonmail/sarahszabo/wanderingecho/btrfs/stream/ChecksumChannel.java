@@ -0,0 +1,81 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * A channel that passes a stream through while taking its CRC32C, on the
+ * thread that reads it. The JVM computes CRC32C with the processor's own
+ * instruction where there is one, so a stream costs next to nothing extra to
+ * checksum on its way through.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class ChecksumChannel implements ReadableByteChannel {
+
+    private final ReadableByteChannel source;
+    private final CRC32C checksum = new CRC32C();
+    private volatile long bytes;
+
+    /**
+     * Creates a new checksum channel.
+     *
+     * @param source The stream to checksum
+     */
+    public ChecksumChannel(ReadableByteChannel source) {
+        this.source = source;
+    }
+
+    @Override
+    public int read(ByteBuffer destination) throws IOException {
+        int start = destination.position();
+        int read = this.source.read(destination);
+        if (read > 0) {
+            var chunk = destination.duplicate();
+            chunk.position(start).limit(start + read);
+            this.checksum.update(chunk);
+            this.bytes += read;
+        }
+        return read;
+    }
+
+    /**
+     * Gets the CRC32C of the bytes read so far.
+     *
+     * @return The checksum
+     */
+    public long getChecksum() {
+        return this.checksum.getValue();
+    }
+
+    /**
+     * Gets the number of bytes read so far.
+     *
+     * @return The byte count
+     */
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.source.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.source.close();
+    }
+
+    @Override
+    public String toString() {
+        return this.source.toString();
+    }
+}
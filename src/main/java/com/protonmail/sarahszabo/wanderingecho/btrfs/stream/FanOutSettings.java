@@ -0,0 +1,124 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.stream;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.time.Duration;
+
+/**
+ * How one send stream is copied to several targets: the size and number of
+ * the shared buffers, which bound the memory used and how far a slow target
+ * may lag, and what happens to a target that lags further. Saved as part of
+ * the BTRFS configuration file.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class FanOutSettings {
+
+    /**
+     * What to do with a target that holds every buffer.
+     */
+    public enum SlowTargetPolicy {
+        /**
+         * Slow the source and every other target down to its speed.
+         */
+        WAIT,
+        /**
+         * Stop sending to it and send it the snapshot again on its own
+         * afterwards.
+         */
+        DETACH
+    }
+
+    @JsonProperty
+    private final int bufferSize;
+    @JsonProperty
+    private final int bufferCount;
+    @JsonProperty
+    private final SlowTargetPolicy slowTargetPolicy;
+    @JsonProperty
+    private final long detachAfterSeconds;
+
+    /**
+     * Creates the default fan out settings.
+     */
+    public FanOutSettings() {
+        this(null, null, null, null);
+    }
+
+    /**
+     * Creates new fan out settings. Null values fall back to the defaults: 16
+     * buffers of 1 MiB, waiting for slow targets, and detaching a target that
+     * kept the others waiting for 30 s of a stream if detaching.
+     *
+     * @param bufferSize The size of each buffer in bytes
+     * @param bufferCount The number of buffers shared by all targets
+     * @param slowTargetPolicy What to do with a target that holds every buffer
+     * @param detachAfterSeconds How long in total a lagging target may keep
+     * the others waiting during one stream before it is detached
+     */
+    @JsonCreator
+    public FanOutSettings(@JsonProperty(value = "bufferSize") Integer bufferSize,
+            @JsonProperty(value = "bufferCount") Integer bufferCount,
+            @JsonProperty(value = "slowTargetPolicy") SlowTargetPolicy slowTargetPolicy,
+            @JsonProperty(value = "detachAfterSeconds") Long detachAfterSeconds) {
+        this.bufferSize = bufferSize == null ? StreamPump.DEFAULT_BUFFER_SIZE : bufferSize;
+        this.bufferCount = bufferCount == null ? 16 : bufferCount;
+        this.slowTargetPolicy = slowTargetPolicy == null ? SlowTargetPolicy.WAIT : slowTargetPolicy;
+        this.detachAfterSeconds = detachAfterSeconds == null ? 30 : detachAfterSeconds;
+        if (this.bufferSize < 1 << 10 || this.bufferCount < 2 || this.detachAfterSeconds < 1) {
+            throw new IllegalArgumentException("Fan out needs 2 buffers of at least 1 KiB and detaching after at"
+                    + " least 1 s, got " + this.bufferCount + " buffers of " + this.bufferSize + " bytes and "
+                    + this.detachAfterSeconds + " s");
+        }
+    }
+
+    /**
+     * Gets the size of each buffer.
+     *
+     * @return The size in bytes
+     */
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    /**
+     * Gets the number of buffers shared by all targets.
+     *
+     * @return The number of buffers
+     */
+    public int getBufferCount() {
+        return this.bufferCount;
+    }
+
+    /**
+     * Gets what happens to a target that holds every buffer.
+     *
+     * @return The policy
+     */
+    public SlowTargetPolicy getSlowTargetPolicy() {
+        return this.slowTargetPolicy;
+    }
+
+    /**
+     * Gets how long in total a lagging target may keep the others waiting
+     * during one stream before it is detached.
+     *
+     * @return The duration
+     */
+    @JsonIgnore
+    public Duration getDetachAfter() {
+        return Duration.ofSeconds(this.detachAfterSeconds);
+    }
+
+    @Override
+    public String toString() {
+        return this.bufferCount + " x " + (this.bufferSize >> 10) + " KiB buffers, " + this.slowTargetPolicy
+                + (this.slowTargetPolicy == SlowTargetPolicy.DETACH ? " after " + this.detachAfterSeconds + " s" : "");
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A channel over an input stream that reads a whole pipe's worth at a time.
+ * {@link java.nio.channels.Channels#newChannel(InputStream)} reads in 8 KiB
+ * steps, which costs eight system calls per pipe buffer.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+class InputStreamChannel implements ReadableByteChannel {
+
+    /**
+     * The default Linux pipe capacity.
+     */
+    static final int PIPE_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final byte[] chunk;
+    private boolean open = true;
+
+    /**
+     * Creates a new channel over the stream.
+     *
+     * @param in The stream to read from
+     */
+    InputStreamChannel(InputStream in) {
+        this.in = in;
+        this.chunk = new byte[PIPE_SIZE];
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int read = this.in.read(this.chunk, 0, Math.min(dst.remaining(), this.chunk.length));
+        if (read > 0) {
+            dst.put(this.chunk, 0, read);
+        }
+        return read;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.open = false;
+        this.in.close();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.stream;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.throttle.BackupCgroup;
+import com.protonmail.sarahszabo.wanderingecho.util.EchoUtil;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates how long a send stream will be without reading any file data.
+ * btrfs send --no-data walks the same metadata a send does but puts an update
+ * extent command, holding the length of the extent, where the send would
+ * write the extent's data. The estimate is the length of that stream plus the
+ * lengths of its extents.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class SendSizeEstimator {
+
+    /**
+     * The first bytes of a send stream, followed by its version.
+     */
+    private static final byte[] STREAM_MAGIC = "btrfs-stream\0".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Payload length, command type and CRC32C of a command.
+     */
+    private static final int COMMAND_HEADER_SIZE = 4 + 2 + 4;
+
+    /**
+     * Attribute type and length.
+     */
+    private static final int ATTRIBUTE_HEADER_SIZE = 2 + 2;
+
+    /**
+     * The command standing in for the data of an extent.
+     */
+    private static final int UPDATE_EXTENT_COMMAND = 22;
+
+    /**
+     * The attribute holding the length of the extent.
+     */
+    private static final int SIZE_ATTRIBUTE = 4;
+
+    /**
+     * How long a send without data may take before it is given up on, the
+     * estimate isn't worth holding the backups back for.
+     */
+    public static final long TIMEOUT_SECONDS = 60;
+
+    /**
+     * Estimates the stream of a send command.
+     *
+     * @param sendCommand The btrfs send command, without --no-data
+     * @return The estimated length of the stream in bytes
+     * @throws IOException If btrfs couldn't be run, failed, took longer than
+     * {@link #TIMEOUT_SECONDS} or didn't print a send stream
+     */
+    public static long estimate(List<String> sendCommand) throws IOException {
+        //Command: btrfs send --no-data -p "PARENT" "SUBVOLUME"
+        var command = new ArrayList<String>(sendCommand);
+        command.add(2, "--no-data");
+        var process = EchoUtil.processOPBuilder(false, command.toArray(new String[0]))
+                .redirectError(Redirect.INHERIT).start();
+        //It reads the same metadata the send will, at the same low weight
+        BackupCgroup.system().ifPresent(cgroup -> cgroup.add(process));
+        //Killing it ends the stream early, which fails the estimate
+        var watchdog = CompletableFuture.runAsync(process::destroyForcibly, CompletableFuture.delayedExecutor(
+                TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        try ( var stream = new BufferedInputStream(process.getInputStream())) {
+            long estimate = measure(stream);
+            if (!process.waitFor(30, TimeUnit.SECONDS) || process.exitValue() != 0) {
+                throw new IOException(String.join(" ", command) + " failed");
+            }
+            return estimate;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while estimating " + String.join(" ", sendCommand), ex);
+        } finally {
+            watchdog.cancel(false);
+            process.destroy();
+        }
+    }
+
+    /**
+     * Reads a send stream made without data to its end.
+     *
+     * @param stream The stream
+     * @return Its length plus the lengths of the extents it leaves out
+     * @throws IOException If it isn't a send stream or ends in the middle of a
+     * command
+     */
+    private static long measure(InputStream stream) throws IOException {
+        var header = stream.readNBytes(STREAM_MAGIC.length + 4);
+        if (header.length < STREAM_MAGIC.length + 4
+                || !Arrays.equals(Arrays.copyOf(header, STREAM_MAGIC.length), STREAM_MAGIC)) {
+            throw new IOException("Not a btrfs send stream");
+        }
+        long streamBytes = header.length;
+        long extentBytes = 0;
+        while (true) {
+            var commandHeader = stream.readNBytes(COMMAND_HEADER_SIZE);
+            if (commandHeader.length == 0) {
+                return streamBytes + extentBytes;
+            }
+            if (commandHeader.length < COMMAND_HEADER_SIZE) {
+                throw new EOFException("The send stream ends in the middle of a command");
+            }
+            var command = ByteBuffer.wrap(commandHeader).order(ByteOrder.LITTLE_ENDIAN);
+            int length = command.getInt();
+            int type = Short.toUnsignedInt(command.getShort());
+            if (length < 0) {
+                throw new IOException("A command of the send stream claims " + Integer.toUnsignedString(length)
+                        + " bytes");
+            }
+            streamBytes += COMMAND_HEADER_SIZE + length;
+            if (type != UPDATE_EXTENT_COMMAND) {
+                stream.skipNBytes(length);
+                continue;
+            }
+            var payload = stream.readNBytes(length);
+            if (payload.length < length) {
+                throw new EOFException("The send stream ends in the middle of a command");
+            }
+            var attributes = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+            while (attributes.remaining() >= ATTRIBUTE_HEADER_SIZE) {
+                int attribute = Short.toUnsignedInt(attributes.getShort());
+                int attributeLength = Short.toUnsignedInt(attributes.getShort());
+                if (attributeLength > attributes.remaining()) {
+                    throw new IOException("An attribute of the send stream runs past its command");
+                }
+                if (attribute == SIZE_ATTRIBUTE && attributeLength == Long.BYTES) {
+                    extentBytes += attributes.getLong();
+                } else {
+                    attributes.position(attributes.position() + attributeLength);
+                }
+            }
+        }
+    }
+
+    /**
+     * No instances.
+     */
+    private SendSizeEstimator() {
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Moves bytes from one channel to another through a fixed ring of direct
+ * buffers. One thread reads while the calling thread writes, so the source and
+ * the sink never wait on each other for longer than it takes to fill a buffer.
+ * The buffers are allocated once and reused for every chunk and every call to
+ * {@link #pump(ReadableByteChannel, WritableByteChannel)}.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public final class StreamPump {
+
+    /**
+     * The default size of one buffer, 1 MiB.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * The default number of buffers in the ring.
+     */
+    public static final int DEFAULT_BUFFER_COUNT = 4;
+
+    /**
+     * Marker put on the full queue by the reader once the source is exhausted.
+     */
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+    /**
+     * How long a pump that stopped early waits for its reader to give up.
+     */
+    private static final long READER_JOIN_MILLIS = 1000;
+
+    private final List<ByteBuffer> buffers;
+    private final BlockingQueue<ByteBuffer> emptyBuffers;
+    private final BlockingQueue<ByteBuffer> fullBuffers;
+    private volatile long bytesMoved;
+    private volatile boolean retired;
+
+    /**
+     * Creates a new pump with the default buffer size and count.
+     */
+    public StreamPump() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * Creates a new pump.
+     *
+     * @param bufferSize The size of each direct buffer in bytes
+     * @param bufferCount The number of buffers, at least two for the reader and
+     * writer to overlap
+     */
+    public StreamPump(int bufferSize, int bufferCount) {
+        if (bufferSize <= 0 || bufferCount < 2) {
+            throw new IllegalArgumentException("Need a positive buffer size and at least two buffers");
+        }
+        this.buffers = new ArrayList<>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            this.buffers.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+        this.emptyBuffers = new ArrayBlockingQueue<>(bufferCount);
+        //One extra slot for the end of stream marker
+        this.fullBuffers = new ArrayBlockingQueue<>(bufferCount + 1);
+    }
+
+    /**
+     * Copies everything from the source to the sink. Neither channel is closed.
+     *
+     * @param source The channel to read from until end of stream
+     * @param sink The channel to write to
+     * @return The number of bytes moved
+     * @throws IOException If reading or writing failed
+     * @throws IllegalStateException If the pump was retired, see
+     * {@link #isReusable()}
+     */
+    public long pump(ReadableByteChannel source, WritableByteChannel sink) throws IOException {
+        if (this.retired) {
+            throw new IllegalStateException("This pump's reader may still be running, use a new pump");
+        }
+        //Reset the ring in case a previous pump failed halfway
+        this.fullBuffers.clear();
+        this.emptyBuffers.clear();
+        this.buffers.forEach(buffer -> {
+            buffer.clear();
+            this.emptyBuffers.add(buffer);
+        });
+        var readerFailure = new AtomicReference<IOException>();
+        var reader = new Thread(() -> read(source, readerFailure), "Wandering Echo Stream Pump Reader Thread");
+        reader.setDaemon(true);
+        reader.start();
+        long bytes = 0;
+        this.bytesMoved = 0;
+        try {
+            while (true) {
+                var buffer = this.fullBuffers.take();
+                if (buffer == END_OF_STREAM) {
+                    break;
+                }
+                while (buffer.hasRemaining()) {
+                    bytes += sink.write(buffer);
+                }
+                this.bytesMoved = bytes;
+                buffer.clear();
+                this.emptyBuffers.put(buffer);
+            }
+            reader.join();
+        } catch (InterruptedException ex) {
+            reader.interrupt();
+            awaitReader(reader);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while pumping stream", ex);
+        } catch (IOException ex) {
+            //The sink failed, don't leave the reader blocked on an empty buffer
+            reader.interrupt();
+            awaitReader(reader);
+            throw ex;
+        }
+        if (readerFailure.get() != null) {
+            throw readerFailure.get();
+        }
+        return bytes;
+    }
+
+    /**
+     * Waits a bounded time for the reader of a pump that stopped early. A
+     * reader still blocked in its source after that could put buffers or the
+     * end of stream marker into the queues of the next pump, cutting that
+     * stream short, so the pump is retired instead.
+     *
+     * @param reader The reader thread, interrupted
+     */
+    private void awaitReader(Thread reader) {
+        try {
+            reader.join(READER_JOIN_MILLIS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (reader.isAlive()) {
+            this.retired = true;
+        }
+    }
+
+    /**
+     * Checks whether the pump can be used again. A pump whose reader didn't
+     * stop after a failed pump can't.
+     *
+     * @return True if it can
+     */
+    public boolean isReusable() {
+        return !this.retired;
+    }
+
+    /**
+     * Gets the number of bytes written to the sink by the current or last
+     * pump, including one that failed halfway.
+     *
+     * @return The byte count
+     */
+    public long getBytesMoved() {
+        return this.bytesMoved;
+    }
+
+    /**
+     * The reader side of the pump. Fills buffers until the source is exhausted,
+     * then signals the writer.
+     *
+     * @param source The source to read from
+     * @param failure Where to put the exception if reading failed
+     */
+    private void read(ReadableByteChannel source, AtomicReference<IOException> failure) {
+        try {
+            boolean endOfStream = false;
+            while (!endOfStream) {
+                var buffer = this.emptyBuffers.take();
+                //Fill the whole buffer so the writer issues large writes
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer) < 0) {
+                        endOfStream = true;
+                        break;
+                    }
+                }
+                buffer.flip();
+                if (buffer.hasRemaining()) {
+                    this.fullBuffers.put(buffer);
+                } else {
+                    buffer.clear();
+                    this.emptyBuffers.put(buffer);
+                }
+            }
+        } catch (IOException ex) {
+            failure.set(ex);
+        } catch (InterruptedException ex) {
+            //The writer gave up, nothing left to do
+            return;
+        }
+        this.fullBuffers.add(END_OF_STREAM);
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Copies one stream to several sinks, reading the source only once. The
+ * calling thread reads into a fixed pool of direct buffers and every sink
+ * writes them on a thread of its own, a buffer goes back to the pool once
+ * each sink wrote it. The pool bounds the memory no matter how many sinks
+ * there are, and how far the slowest sink may fall behind the fastest.
+ * <p>
+ * Once the slowest sink holds every buffer the source has to wait. With
+ * {@link FanOutSettings.SlowTargetPolicy#WAIT} everyone then goes at its
+ * speed. With {@link FanOutSettings.SlowTargetPolicy#DETACH} the source keeps
+ * count of how long it waited on a sink that lags at least half the pool
+ * behind the fastest one. Once that adds up to the configured time the sink
+ * furthest behind is dropped, its channel is closed and the others go on. The
+ * last sink is never dropped.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public final class StreamTee {
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(StreamTee.class.getName());
+
+    /**
+     * Queued after the last chunk of the stream.
+     */
+    private static final Chunk END_OF_STREAM = new Chunk(ByteBuffer.allocate(0));
+
+    /**
+     * How often a source waiting on sinks that don't lag looks again, since
+     * one of them may start lagging while it waits.
+     */
+    private static final long LAG_CHECK_MILLIS = 100;
+
+    private final FanOutSettings settings;
+    private final List<Chunk> chunks;
+
+    /**
+     * Creates a new tee, allocating its buffers.
+     *
+     * @param settings The size of the buffer pool and what to do with slow
+     * sinks
+     */
+    public StreamTee(FanOutSettings settings) {
+        this.settings = settings;
+        this.chunks = new ArrayList<>(settings.getBufferCount());
+        for (int i = 0; i < settings.getBufferCount(); i++) {
+            this.chunks.add(new Chunk(ByteBuffer.allocateDirect(settings.getBufferSize())));
+        }
+    }
+
+    /**
+     * Gets the settings this tee was made with.
+     *
+     * @return The settings
+     */
+    public FanOutSettings getSettings() {
+        return this.settings;
+    }
+
+    /**
+     * Copies everything from the source to every sink. A sink that fails or
+     * is detached doesn't stop the others. The source is closed by the
+     * caller, every sink is closed here.
+     *
+     * @param source The channel to read from until end of stream
+     * @param sinks The channels to write to
+     * @return What happened to each sink, in the same order
+     * @throws IOException If reading the source failed, every sink is closed
+     * then
+     */
+    public List<SinkOutcome> pump(ReadableByteChannel source, List<WritableByteChannel> sinks) throws IOException {
+        var free = new ArrayBlockingQueue<Chunk>(this.chunks.size());
+        this.chunks.forEach(chunk -> {
+            chunk.buffer.clear();
+            free.add(chunk);
+        });
+        var writers = new ArrayList<SinkWriter>(sinks.size());
+        for (int i = 0; i < sinks.size(); i++) {
+            var writer = new SinkWriter(i, sinks.get(i), free);
+            writers.add(writer);
+            writer.thread = new Thread(writer::run, "Wandering Echo Stream Tee Writer Thread " + i);
+            writer.thread.setDaemon(true);
+            writer.thread.start();
+        }
+        long[] stalledNanos = {0};
+        try {
+            boolean endOfStream = false;
+            while (!endOfStream) {
+                var attached = writers.stream().filter(SinkWriter::isWriting).count();
+                if (attached == 0) {
+                    //Every sink failed, reading on is pointless
+                    break;
+                }
+                var chunk = takeFreeChunk(free, writers, stalledNanos);
+                var buffer = chunk.buffer;
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer) < 0) {
+                        endOfStream = true;
+                        break;
+                    }
+                }
+                buffer.flip();
+                if (!buffer.hasRemaining()) {
+                    free.add(chunk);
+                    continue;
+                }
+                var receivers = writers.stream().filter(SinkWriter::isWriting).toArray(SinkWriter[]::new);
+                chunk.references.set(receivers.length);
+                for (var writer : receivers) {
+                    writer.queue.add(chunk);
+                }
+                if (receivers.length == 0) {
+                    free.add(chunk);
+                }
+            }
+        } catch (InterruptedException ex) {
+            writers.forEach(writer -> writer.detach("interrupted"));
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while copying the stream", ex);
+        } catch (IOException ex) {
+            writers.forEach(writer -> writer.detach("the source failed"));
+            throw ex;
+        } finally {
+            writers.forEach(writer -> writer.queue.add(END_OF_STREAM));
+            for (var writer : writers) {
+                try {
+                    writer.thread.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        var outcomes = new ArrayList<SinkOutcome>(writers.size());
+        writers.forEach(writer -> outcomes.add(new SinkOutcome(writer.bytes, writer.failure, writer.detached)));
+        return outcomes;
+    }
+
+    /**
+     * Takes a buffer for the next read, waiting for the sinks to free one. A
+     * sink that kept the source waiting too long in total is detached if the
+     * settings say so.
+     *
+     * @param stalledNanos How long the source waited on lagging sinks so far,
+     * updated
+     */
+    private Chunk takeFreeChunk(BlockingQueue<Chunk> free, List<SinkWriter> writers, long[] stalledNanos)
+            throws InterruptedException {
+        var chunk = free.poll();
+        if (chunk != null || this.settings.getSlowTargetPolicy() == FanOutSettings.SlowTargetPolicy.WAIT) {
+            return chunk != null ? chunk : free.take();
+        }
+        long limit = this.settings.getDetachAfter().toNanos();
+        while (true) {
+            var writing = writers.stream().filter(SinkWriter::isWriting).toArray(SinkWriter[]::new);
+            SinkWriter slowest = writing[0];
+            SinkWriter fastest = writing[0];
+            for (var writer : writing) {
+                slowest = writer.queue.size() > slowest.queue.size() ? writer : slowest;
+                fastest = writer.queue.size() < fastest.queue.size() ? writer : fastest;
+            }
+            //Sinks going at the same speed hold the source back together, nobody lags
+            if (writing.length < 2 || slowest.queue.size() - fastest.queue.size() < this.chunks.size() / 2) {
+                chunk = free.poll(LAG_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            } else if (stalledNanos[0] >= limit) {
+                slowest.detach("it kept the others waiting for "
+                        + TimeUnit.NANOSECONDS.toMillis(stalledNanos[0]) + " ms");
+                stalledNanos[0] = 0;
+                chunk = free.poll();
+            } else {
+                long start = System.nanoTime();
+                chunk = free.poll(limit - stalledNanos[0], TimeUnit.NANOSECONDS);
+                stalledNanos[0] += System.nanoTime() - start;
+            }
+            if (chunk != null) {
+                return chunk;
+            }
+        }
+    }
+
+    /**
+     * A buffer of the pool and the number of sinks that still have to write
+     * it.
+     */
+    private static class Chunk {
+
+        private final ByteBuffer buffer;
+        private final AtomicInteger references = new AtomicInteger();
+
+        Chunk(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Writes the chunks queued for one sink. A failed or detached sink keeps
+     * taking its chunks off the queue, so they go back to the pool.
+     */
+    private static class SinkWriter {
+
+        private final int index;
+        private final WritableByteChannel sink;
+        private final BlockingQueue<Chunk> free;
+        private final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        private Thread thread;
+        private volatile long bytes;
+        private volatile IOException failure;
+        private volatile boolean detached;
+
+        SinkWriter(int index, WritableByteChannel sink, BlockingQueue<Chunk> free) {
+            this.index = index;
+            this.sink = sink;
+            this.free = free;
+        }
+
+        /**
+         * Checks whether this sink still gets new chunks.
+         */
+        boolean isWriting() {
+            return !this.detached && this.failure == null;
+        }
+
+        /**
+         * Stops writing to this sink and closes it, so a write blocked on it
+         * returns and its chunks go back to the pool.
+         */
+        void detach(String reason) {
+            if (!isWriting()) {
+                return;
+            }
+            this.detached = true;
+            LOG.warning("TEE: Detaching Sink " + this.index + ", " + reason);
+            try {
+                this.sink.close();
+            } catch (IOException ex) {
+                LOG.fine("Ignoring failed close: " + ex);
+            }
+            Chunk chunk;
+            while ((chunk = this.queue.poll()) != null) {
+                if (chunk == END_OF_STREAM) {
+                    //Put back for the writer thread
+                    this.queue.add(chunk);
+                    return;
+                }
+                release(chunk);
+            }
+        }
+
+        void run() {
+            try {
+                while (true) {
+                    var chunk = this.queue.take();
+                    if (chunk == END_OF_STREAM) {
+                        break;
+                    }
+                    try {
+                        if (isWriting()) {
+                            //Every sink has its own position in the shared buffer
+                            var view = chunk.buffer.duplicate();
+                            long written = 0;
+                            while (view.hasRemaining()) {
+                                written += this.sink.write(view);
+                            }
+                            this.bytes += written;
+                        }
+                    } catch (IOException ex) {
+                        if (!this.detached) {
+                            this.failure = ex;
+                        }
+                    } finally {
+                        release(chunk);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                this.failure = new IOException("Interrupted while writing the stream", ex);
+            } finally {
+                try {
+                    this.sink.close();
+                } catch (IOException ex) {
+                    if (isWriting()) {
+                        this.failure = ex;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gives up this sink's hold on a chunk, returning it to the pool if it
+         * was the last.
+         */
+        private void release(Chunk chunk) {
+            if (chunk.references.decrementAndGet() == 0) {
+                this.free.add(chunk);
+            }
+        }
+    }
+
+    /**
+     * What happened to one sink of a tee.
+     */
+    public static class SinkOutcome {
+
+        private final long bytes;
+        private final IOException failure;
+        private final boolean detached;
+
+        SinkOutcome(long bytes, IOException failure, boolean detached) {
+            this.bytes = bytes;
+            this.failure = failure;
+            this.detached = detached;
+        }
+
+        /**
+         * Gets the number of bytes written to the sink.
+         *
+         * @return The byte count
+         */
+        public long getBytes() {
+            return this.bytes;
+        }
+
+        /**
+         * Gets why writing to the sink failed.
+         *
+         * @return The failure, null if it didn't fail
+         */
+        public IOException getFailure() {
+            return this.failure;
+        }
+
+        /**
+         * Checks whether the sink was dropped for falling behind.
+         *
+         * @return True if it was
+         */
+        public boolean isDetached() {
+            return this.detached;
+        }
+
+        /**
+         * Checks whether the sink got the whole stream.
+         *
+         * @return True if it did
+         */
+        public boolean isComplete() {
+            return this.failure == null && !this.detached;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%,d bytes", this.bytes) + (this.detached ? ", detached" : "")
+                    + (this.failure != null ? ", failed: " + this.failure : "");
+        }
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.stream;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.BlockCompressor;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.CompressionSettings;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.throttle.BackupCgroup;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.throttle.ThrottledChannel;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.throttle.TokenBucket;
+import com.protonmail.sarahszabo.wanderingecho.util.EchoUtil;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Runs a sending process and a receiving process side by side and moves the
+ * data between them inside the JVM, replacing a shell pipe. Since we see every
+ * byte we know how much was moved and take its CRC32C on the way, and since we
+ * own both processes we know which side failed.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class StreamTransfer {
+
+    /**
+     * Pumps that finished a transfer, kept so their direct buffers get reused.
+     */
+    private static final ConcurrentLinkedQueue<StreamPump> IDLE_PUMPS = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Tees that finished a transfer, kept so their direct buffers get reused.
+     */
+    private static final ConcurrentLinkedQueue<StreamTee> IDLE_TEES = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The process information pseudo-filesystem.
+     */
+    private static final Path PROC_FOLDER = Paths.get("/proc");
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(StreamTransfer.class.getName());
+
+    /**
+     * Starts both processes and pumps the standard output of the sender into
+     * the standard input of the receiver. Standard error of both is inherited.
+     *
+     * @param sendCommand The command that writes the stream, e.g. btrfs send
+     * @param receiveCommand The command that reads the stream, e.g. btrfs
+     * receive
+     * @return The bytes moved, the duration and the exit status of each side
+     * @throws IOException If either process couldn't be started
+     */
+    public static TransferResult transfer(List<String> sendCommand, List<String> receiveCommand) throws IOException {
+        return transfer(sendCommand, receiveCommand, null);
+    }
+
+    /**
+     * Starts both processes and pumps the standard output of the sender into
+     * the standard input of the receiver, compressing it on the way if
+     * compression settings are given. The receiver then has to decompress the
+     * stream itself, e.g. with zstd -d.
+     *
+     * @param sendCommand The command that writes the stream, e.g. btrfs send
+     * @param receiveCommand The command that reads the stream
+     * @param compression How to compress the stream, null to send it as is
+     * @return The uncompressed bytes moved, the duration and the exit status
+     * of each side
+     * @throws IOException If either process couldn't be started
+     */
+    public static TransferResult transfer(List<String> sendCommand, List<String> receiveCommand,
+            CompressionSettings compression) throws IOException {
+        return transfer(sendCommand, receiveCommand, compression, List.of());
+    }
+
+    /**
+     * Starts both processes and pumps the standard output of the sender into
+     * the standard input of the receiver, compressing it on the way if
+     * compression settings are given and no faster than the buckets allow.
+     *
+     * @param sendCommand The command that writes the stream, e.g. btrfs send
+     * @param receiveCommand The command that reads the stream
+     * @param compression How to compress the stream, null to send it as is
+     * @param throttle The buckets limiting the rate of the uncompressed stream,
+     * empty for no limit
+     * @return The uncompressed bytes moved, the duration and the exit status
+     * of each side
+     * @throws IOException If either process couldn't be started
+     */
+    public static TransferResult transfer(List<String> sendCommand, List<String> receiveCommand,
+            CompressionSettings compression, List<TokenBucket> throttle) throws IOException {
+        var pump = borrowPump();
+        try {
+            return transfer(pump, sendCommand, receiveCommand, compression, throttle);
+        } finally {
+            returnPump(pump);
+        }
+    }
+
+    /**
+     * Starts both processes and pumps the standard output of the sender into
+     * the standard input of the receiver using the given pump. The receiver
+     * only sees the end of the stream once the sender exited successfully, if
+     * it didn't the receiver is killed first, so it can't finish a cut stream.
+     * Whatever it received is left for the caller to delete.
+     *
+     * @param pump The pump to move the data with
+     * @param sendCommand The command that writes the stream
+     * @param receiveCommand The command that reads the stream
+     * @param compression How to compress the stream, null to send it as is
+     * @param throttle The buckets limiting the rate of the uncompressed stream,
+     * empty for no limit
+     * @return The uncompressed bytes moved, the duration and the exit status
+     * of each side
+     * @throws IOException If either process couldn't be started
+     */
+    public static TransferResult transfer(StreamPump pump, List<String> sendCommand, List<String> receiveCommand,
+            CompressionSettings compression, List<TokenBucket> throttle) throws IOException {
+        LOG.info("COMMAND: " + String.join(" ", sendCommand) + " => " + String.join(" ", receiveCommand));
+        long start = System.nanoTime();
+        var receiver = start(receiveCommand);
+        Process sender;
+        try {
+            sender = start(sendCommand);
+        } catch (IOException ex) {
+            receiver.destroyForcibly();
+            throw ex;
+        }
+        var standardInput = openStandardInput(receiver);
+        var compressor = compression == null ? null : new BlockCompressor(standardInput, compression);
+        var output = compressor == null ? standardInput : compressor;
+        //Checksum and throttle the stream as btrfs send wrote it, before it shrinks
+        var source = new ChecksumChannel(new InputStreamChannel(sender.getInputStream()));
+        var sink = throttle.isEmpty() ? output : new ThrottledChannel(output, throttle);
+        try ( source) {
+            pump.pump(source, sink);
+        } catch (IOException ex) {
+            //One side went away, the exit statuses will tell us which one
+            Logger.getLogger(StreamTransfer.class.getName()).log(Level.WARNING, "Stream pump failed", ex);
+            sender.destroy();
+        }
+        closeQuietly(sender.getInputStream());
+        int sendExitStatus = waitFor(sender);
+        if (sendExitStatus != 0) {
+            //A stream cut off between two commands looks whole to btrfs receive, it must never see its end
+            LOG.warning("TRANSFER: " + sendCommand.get(0) + " exited with " + sendExitStatus + ", killing "
+                    + receiveCommand.get(0));
+            receiver.destroyForcibly();
+        }
+        //Our end of the receiver's pipe has to be closed too before it sees end of stream
+        closeQuietly(sink);
+        closeQuietly(receiver.getOutputStream());
+        int receiveExitStatus = waitFor(receiver);
+        var result = new TransferResult(pump.getBytesMoved(), Duration.ofNanos(System.nanoTime() - start),
+                sendExitStatus, sendExitStatus == 0 ? receiveExitStatus : Math.max(1, receiveExitStatus), false,
+                source.getChecksum());
+        LOG.info("TRANSFER: " + result);
+        if (compressor != null) {
+            LOG.info("COMPRESSION: " + compression + ", " + compressor.getRawBytes() + " => "
+                    + compressor.getCompressedBytes() + " bytes");
+        }
+        return result;
+    }
+
+    /**
+     * Starts one sending process and several receiving processes and copies
+     * the standard output of the sender into the standard input of every
+     * receiver with a tee of the given settings, see
+     * {@link #fanOut(StreamTee, List, List, List, List)}.
+     *
+     * @param settings The buffers of the tee and what to do with slow targets
+     * @param sendCommand The command that writes the stream, e.g. btrfs send
+     * @param receiveCommands The commands that read the stream, one per
+     * target
+     * @param compression How to compress the stream for each target, null
+     * elements to send it as is
+     * @param throttles The buckets limiting the rate of the uncompressed
+     * stream for each target, empty lists for no limit
+     * @return The bytes moved to each target, the duration and the exit status
+     * of each side, in the order of the receive commands
+     * @throws IOException If a process couldn't be started, all of them are
+     * killed then
+     */
+    public static List<TransferResult> fanOut(FanOutSettings settings, List<String> sendCommand,
+            List<List<String>> receiveCommands, List<CompressionSettings> compression,
+            List<List<TokenBucket>> throttles) throws IOException {
+        var tee = IDLE_TEES.poll();
+        if (tee == null || tee.getSettings() != settings) {
+            tee = new StreamTee(settings);
+        }
+        try {
+            return fanOut(tee, sendCommand, receiveCommands, compression, throttles);
+        } finally {
+            IDLE_TEES.add(tee);
+        }
+    }
+
+    /**
+     * Starts one sending process and several receiving processes and copies
+     * the standard output of the sender into the standard input of every
+     * receiver, so the source is read once however many copies are made. Each
+     * receiver has its own compression and throttle. A receiver that fails or
+     * is detached by the tee is killed, the others go on. If the sender fails
+     * every receiver is killed before it sees the end of the stream.
+     *
+     * @param tee The tee to copy the stream with
+     * @param sendCommand The command that writes the stream, e.g. btrfs send
+     * @param receiveCommands The commands that read the stream, one per
+     * target
+     * @param compression How to compress the stream for each target, null
+     * elements to send it as is
+     * @param throttles The buckets limiting the rate of the uncompressed
+     * stream for each target, empty lists for no limit
+     * @return The bytes moved to each target, the duration and the exit status
+     * of each side, in the order of the receive commands
+     * @throws IOException If a process couldn't be started, all of them are
+     * killed then
+     */
+    public static List<TransferResult> fanOut(StreamTee tee, List<String> sendCommand,
+            List<List<String>> receiveCommands, List<CompressionSettings> compression,
+            List<List<TokenBucket>> throttles) throws IOException {
+        LOG.info("COMMAND: " + String.join(" ", sendCommand) + " => " + receiveCommands.stream()
+                .map(command -> String.join(" ", command)).collect(Collectors.joining(" & ")));
+        long start = System.nanoTime();
+        var receivers = new ArrayList<Process>(receiveCommands.size());
+        Process sender;
+        try {
+            for (var command : receiveCommands) {
+                receivers.add(start(command));
+            }
+            sender = start(sendCommand);
+        } catch (IOException ex) {
+            receivers.forEach(Process::destroyForcibly);
+            throw ex;
+        }
+        var compressors = new ArrayList<BlockCompressor>(receivers.size());
+        var sinks = new ArrayList<WritableByteChannel>(receivers.size());
+        for (int i = 0; i < receivers.size(); i++) {
+            var standardInput = openStandardInput(receivers.get(i));
+            var compressor = compression.get(i) == null ? null : new BlockCompressor(standardInput,
+                    compression.get(i));
+            var output = compressor == null ? standardInput : compressor;
+            compressors.add(compressor);
+            sinks.add(throttles.get(i).isEmpty() ? output : new ThrottledChannel(output, throttles.get(i)));
+        }
+        List<StreamTee.SinkOutcome> outcomes = null;
+        //Every receiver that got the whole stream got this checksum
+        var source = new ChecksumChannel(new InputStreamChannel(sender.getInputStream()));
+        try ( source) {
+            outcomes = tee.pump(source, sinks);
+        } catch (IOException ex) {
+            Logger.getLogger(StreamTransfer.class.getName()).log(Level.WARNING, "Stream tee failed", ex);
+            sender.destroy();
+        }
+        closeQuietly(sender.getInputStream());
+        int sendExitStatus = waitFor(sender);
+        for (int i = 0; i < receivers.size(); i++) {
+            //A receiver that didn't get the whole stream must not take it for a whole one, nor one that got
+            //all a failed sender wrote
+            if (outcomes == null || !outcomes.get(i).isComplete() || sendExitStatus != 0) {
+                receivers.get(i).destroyForcibly();
+            }
+            closeQuietly(receivers.get(i).getOutputStream());
+        }
+        var duration = Duration.ofNanos(System.nanoTime() - start);
+        var results = new ArrayList<TransferResult>(receivers.size());
+        for (int i = 0; i < receivers.size(); i++) {
+            int receiveExitStatus = waitFor(receivers.get(i));
+            var outcome = outcomes == null ? null : outcomes.get(i);
+            var result = new TransferResult(outcome == null ? 0 : outcome.getBytes(), duration, sendExitStatus,
+                    outcome != null && outcome.isComplete() && sendExitStatus == 0 ? receiveExitStatus
+                    : Math.max(1, receiveExitStatus),
+                    outcome != null && outcome.isDetached(), source.getChecksum());
+            LOG.info("TRANSFER: " + String.join(" ", receiveCommands.get(i)) + ": " + result);
+            if (compressors.get(i) != null) {
+                LOG.info("COMPRESSION: " + compression.get(i) + ", " + compressors.get(i).getRawBytes() + " => "
+                        + compressors.get(i).getCompressedBytes() + " bytes");
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Starts a sending process and pumps its standard output into a channel,
+     * e.g. an archive. The channel is closed afterwards.
+     *
+     * @param sendCommand The command that writes the stream, e.g. btrfs send
+     * @param sink Where the stream goes
+     * @return The bytes moved, the duration, the exit status of the sender and
+     * the checksum of the stream, the receive status is always 0
+     * @throws IOException If the process couldn't be started or the channel
+     * couldn't be written, the sender is killed then
+     */
+    public static TransferResult sendTo(List<String> sendCommand, WritableByteChannel sink) throws IOException {
+        LOG.info("COMMAND: " + String.join(" ", sendCommand) + " => " + sink);
+        var pump = borrowPump();
+        try {
+            long start = System.nanoTime();
+            var sender = start(sendCommand);
+            var source = new ChecksumChannel(new InputStreamChannel(sender.getInputStream()));
+            try ( source; sink) {
+                pump.pump(source, sink);
+            } catch (IOException ex) {
+                sender.destroyForcibly();
+                waitFor(sender);
+                throw ex;
+            }
+            closeQuietly(sender.getInputStream());
+            var result = new TransferResult(pump.getBytesMoved(), Duration.ofNanos(System.nanoTime() - start),
+                    waitFor(sender), 0, false, source.getChecksum());
+            LOG.info("TRANSFER: " + result);
+            return result;
+        } finally {
+            returnPump(pump);
+        }
+    }
+
+    /**
+     * Starts a receiving process and pumps a channel into its standard input,
+     * e.g. an archive into btrfs receive. The channel is closed afterwards.
+     *
+     * @param source Where the stream comes from
+     * @param receiveCommand The command that reads the stream
+     * @return The bytes moved, the duration and the exit status of the
+     * receiver, the send status is always 0
+     * @throws IOException If the process couldn't be started or the channel
+     * couldn't be read, the receiver is killed then so it doesn't take a cut
+     * stream for a whole one
+     */
+    public static TransferResult receiveFrom(ReadableByteChannel source, List<String> receiveCommand)
+            throws IOException {
+        LOG.info("COMMAND: " + source + " => " + String.join(" ", receiveCommand));
+        var pump = borrowPump();
+        try {
+            long start = System.nanoTime();
+            var receiver = start(receiveCommand);
+            try ( source; var sink = openStandardInput(receiver)) {
+                pump.pump(source, sink);
+            } catch (IOException ex) {
+                receiver.destroyForcibly();
+                waitFor(receiver);
+                throw ex;
+            }
+            closeQuietly(receiver.getOutputStream());
+            var result = new TransferResult(pump.getBytesMoved(), Duration.ofNanos(System.nanoTime() - start), 0,
+                    waitFor(receiver));
+            LOG.info("TRANSFER: " + result);
+            return result;
+        } finally {
+            returnPump(pump);
+        }
+    }
+
+    /**
+     * Gives a pump back to {@link #IDLE_PUMPS}, unless its reader may still be
+     * running.
+     *
+     * @param pump The pump
+     */
+    private static void returnPump(StreamPump pump) {
+        if (pump.isReusable()) {
+            IDLE_PUMPS.add(pump);
+        } else {
+            LOG.warning("Dropping a stream pump whose reader didn't stop");
+        }
+    }
+
+    /**
+     * Takes an idle pump or makes a new one. Give it back with
+     * {@link #returnPump(StreamPump)} when done.
+     *
+     * @return The pump
+     */
+    private static StreamPump borrowPump() {
+        var pump = IDLE_PUMPS.poll();
+        return pump == null ? new StreamPump() : pump;
+    }
+
+    /**
+     * Starts a process whose standard input and output we'll use, with its
+     * standard error going to ours. It's moved into the low weight backup
+     * cgroup if there is one, before it gets to read much.
+     *
+     * @param command The command to start
+     * @return The started process
+     * @throws IOException If it couldn't be started
+     */
+    private static Process start(List<String> command) throws IOException {
+        var process = EchoUtil.processOPBuilder(false, command.toArray(new String[0]))
+                .redirectError(Redirect.INHERIT).start();
+        BackupCgroup.system().ifPresent(cgroup -> cgroup.add(process));
+        return process;
+    }
+
+    /**
+     * Opens the standard input of a child process as a channel. On Linux the
+     * pipe is reopened through /proc so writes go straight from our direct
+     * buffers to the kernel; otherwise the process stream is wrapped, which
+     * copies through a small heap array. Standard output can't be reopened the
+     * same way since the JDK drains whatever is left in that pipe when the
+     * process exits, racing with our reads.
+     *
+     * @param process The child process
+     * @return The channel
+     */
+    private static WritableByteChannel openStandardInput(Process process) {
+        try {
+            return FileChannel.open(PROC_FOLDER.resolve(Long.toString(process.pid())).resolve("fd").resolve("0"),
+                    StandardOpenOption.WRITE);
+        } catch (IOException | UnsupportedOperationException ex) {
+            //Not on Linux or the process already exited
+            LOG.fine("Falling back to the process stream: " + ex);
+            return Channels.newChannel(process.getOutputStream());
+        }
+    }
+
+    /**
+     * Closes something without caring whether it fails, for pipes the other
+     * side may already have closed.
+     *
+     * @param closeable The thing to close
+     */
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ex) {
+            LOG.fine("Ignoring failed close: " + ex);
+        }
+    }
+
+    /**
+     * Waits for a process to exit.
+     *
+     * @param process The process to wait on
+     * @return Its exit status
+     */
+    private static int waitFor(Process process) {
+        try {
+            return process.waitFor();
+        } catch (InterruptedException ex) {
+            Logger.getLogger(StreamTransfer.class.getName()).log(Level.SEVERE, null, ex);
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for " + process.info().command(), ex);
+        }
+    }
+
+    /**
+     * No instances.
+     */
+    private StreamTransfer() {
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.stream;
+
+import java.time.Duration;
+import java.util.OptionalLong;
+
+/**
+ * The outcome of moving one stream from a sending process to a receiving
+ * process.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class TransferResult {
+
+    private final long bytes;
+    private final Duration duration;
+    private final int sendExitStatus;
+    private final int receiveExitStatus;
+    private final boolean detached;
+    private final long checksum;
+
+    /**
+     * Creates a new transfer result.
+     *
+     * @param bytes The number of bytes moved
+     * @param duration How long the transfer took
+     * @param sendExitStatus The exit status of the sending side
+     * @param receiveExitStatus The exit status of the receiving side
+     */
+    public TransferResult(long bytes, Duration duration, int sendExitStatus, int receiveExitStatus) {
+        this(bytes, duration, sendExitStatus, receiveExitStatus, false);
+    }
+
+    /**
+     * Creates a new transfer result for one target of a fanned out stream.
+     *
+     * @param bytes The number of bytes moved to this target
+     * @param duration How long the transfer took
+     * @param sendExitStatus The exit status of the sending side
+     * @param receiveExitStatus The exit status of the receiving side
+     * @param detached Whether the target was left behind for being too slow
+     */
+    public TransferResult(long bytes, Duration duration, int sendExitStatus, int receiveExitStatus,
+            boolean detached) {
+        this(bytes, duration, sendExitStatus, receiveExitStatus, detached, -1);
+    }
+
+    /**
+     * Creates a new transfer result with the checksum of the stream.
+     *
+     * @param bytes The number of bytes moved to this target
+     * @param duration How long the transfer took
+     * @param sendExitStatus The exit status of the sending side
+     * @param receiveExitStatus The exit status of the receiving side
+     * @param detached Whether the target was left behind for being too slow
+     * @param checksum The CRC32C of the uncompressed stream, -1 if it wasn't
+     * taken
+     */
+    public TransferResult(long bytes, Duration duration, int sendExitStatus, int receiveExitStatus,
+            boolean detached, long checksum) {
+        this.bytes = bytes;
+        this.duration = duration;
+        this.sendExitStatus = sendExitStatus;
+        this.receiveExitStatus = receiveExitStatus;
+        this.detached = detached;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Gets the number of bytes moved from the sender to the receiver.
+     *
+     * @return The byte count
+     */
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Gets the wall time of the transfer.
+     *
+     * @return The duration
+     */
+    public Duration getDuration() {
+        return this.duration;
+    }
+
+    /**
+     * Gets the average throughput of the transfer.
+     *
+     * @return The throughput in bytes per second
+     */
+    public double getBytesPerSecond() {
+        long nanos = Math.max(1, this.duration.toNanos());
+        return this.bytes * 1_000_000_000.0 / nanos;
+    }
+
+    /**
+     * Gets the exit status of the sending process.
+     *
+     * @return The exit status
+     */
+    public int getSendExitStatus() {
+        return this.sendExitStatus;
+    }
+
+    /**
+     * Gets the exit status of the receiving process.
+     *
+     * @return The exit status
+     */
+    public int getReceiveExitStatus() {
+        return this.receiveExitStatus;
+    }
+
+    /**
+     * Gets the CRC32C of the uncompressed stream, as the sending side wrote
+     * it. Only covers the whole stream if the transfer is successful.
+     *
+     * @return The checksum, empty if it wasn't taken
+     */
+    public OptionalLong getChecksum() {
+        return this.checksum < 0 ? OptionalLong.empty() : OptionalLong.of(this.checksum);
+    }
+
+    /**
+     * Checks whether the target was left behind by a fanned out stream for
+     * being too slow. Its receiver was killed, so it holds at most part of the
+     * stream.
+     *
+     * @return True if it was detached
+     */
+    public boolean isDetached() {
+        return this.detached;
+    }
+
+    /**
+     * Checks whether both sides of the transfer exited cleanly.
+     *
+     * @return True if both exit statuses are zero and the target wasn't
+     * detached
+     */
+    public boolean isSuccessful() {
+        return this.sendExitStatus == 0 && this.receiveExitStatus == 0 && !this.detached;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%,d bytes in %.1f s (%.1f MiB/s), send exit %d, receive exit %d", this.bytes,
+                this.duration.toMillis() / 1000.0, getBytesPerSecond() / (1 << 20), this.sendExitStatus,
+                this.receiveExitStatus) + (this.checksum < 0 ? "" : String.format(", CRC32C %08x", this.checksum))
+                + (this.detached ? ", detached" : "");
+    }
+}
@@ -10,6 +10,7 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import java.nio.file.Path;
 import java.time.ZonedDateTime;
 import java.util.Objects;
+import java.util.OptionalLong;
 
 /**
  * A class representing an external backup of a subvolume.
@@ -22,6 +23,22 @@ public class Backup extends BTRFSPhysicalLocationItem<Backup> implements Compara
     private final Snapshot parentSnapshot;
     @JsonProperty
     private final ZonedDateTime creationDate;
+    @JsonProperty
+    private final Long streamBytes;
+    @JsonProperty
+    private final Long checksum;
+
+    /**
+     * Creates a new backup that may or may not exist, without a record of its
+     * stream.
+     *
+     * @param location The location of the backup
+     * @param parentSnapshot This backup's parent that created it
+     * @param creationDate This backup's creation date
+     */
+    public Backup(Path location, Snapshot parentSnapshot, ZonedDateTime creationDate) {
+        this(location, parentSnapshot, creationDate, null, null);
+    }
 
     /**
      * Creates a new backup that may or may not exist.
@@ -29,14 +46,22 @@ public class Backup extends BTRFSPhysicalLocationItem<Backup> implements Compara
      * @param location The location of the backup
      * @param parentSnapshot This backup's parent that created it
      * @param creationDate This backup's creation date
+     * @param streamBytes The length of the send stream it was made from, null
+     * if unknown
+     * @param checksum The CRC32C of that stream, null if unknown
      */
     @JsonCreator
     public Backup(@JsonProperty(value = "location") Path location,
             @JsonProperty(value = "parentSnapshot") Snapshot parentSnapshot,
-            @JsonProperty(value = "creationDate") ZonedDateTime creationDate) {
+            @JsonProperty(value = "creationDate") ZonedDateTime creationDate,
+            @JsonProperty(value = "streamBytes") Long streamBytes,
+            @JsonProperty(value = "checksum") Long checksum) {
         super(location);
         this.parentSnapshot = parentSnapshot;
         this.creationDate = creationDate;
+        //Backups made before streams were checksummed
+        this.streamBytes = streamBytes;
+        this.checksum = checksum;
     }
 
     /**
@@ -68,6 +93,25 @@ public class Backup extends BTRFSPhysicalLocationItem<Backup> implements Compara
         return this.creationDate;
     }
 
+    /**
+     * Gets the length of the send stream this backup was made from.
+     *
+     * @return The length in bytes, empty if unknown
+     */
+    public OptionalLong getStreamBytes() {
+        return this.streamBytes == null ? OptionalLong.empty() : OptionalLong.of(this.streamBytes);
+    }
+
+    /**
+     * Gets the CRC32C of the send stream this backup was made from, taken as
+     * the stream was sent.
+     *
+     * @return The checksum, empty if unknown
+     */
+    public OptionalLong getChecksum() {
+        return this.checksum == null ? OptionalLong.empty() : OptionalLong.of(this.checksum);
+    }
+
     @Override
     public int compareTo(ZonedDateTime arg0) {
         return this.creationDate.compareTo(arg0);
@@ -9,6 +9,15 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.protonmail.sarahszabo.wanderingecho.btrfs.BTRFS;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.archive.SendArchive;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.CompressionSettings;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.dedup.DedupSettings;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.FanOutSettings;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.StreamTee;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.SendSizeEstimator;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.StreamTransfer;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.TransferResult;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.throttle.TokenBucket;
 import com.protonmail.sarahszabo.wanderingecho.util.EchoUtil;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -17,9 +26,14 @@ import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 /**
  * A class representing a BTRFS snapshot.
@@ -55,18 +69,28 @@ public class Snapshot extends BTRFSPhysicalLocationItem<Snapshot> {
     private final ZonedDateTime creationDate;
     @JsonProperty
     private final Subvolume parentSubvolume;
+    @JsonProperty
+    private final String uuid;
+    @JsonProperty
+    private final String receivedUuid;
+    @JsonProperty
+    private final long generation;
 
     /**
      * Copy constructor that sets the date appropriatly.
      *
      * @param snapshot The snapshot to copy from
+     * @param info What btrfs reports about the created snapshot, may be null
      */
-    private Snapshot(Snapshot snapshot) {
+    private Snapshot(Snapshot snapshot, SubvolumeInfo info) {
         super(snapshot.getLocation(), snapshot.getName());
         this.of = snapshot.of;
         this.fullFileName = snapshot.fullFileName;
         this.parentSubvolume = snapshot.parentSubvolume;
         this.creationDate = ZonedDateTime.now();
+        this.uuid = info == null ? null : info.getUuid();
+        this.receivedUuid = info == null ? null : info.getReceivedUuid().orElse(null);
+        this.generation = info == null ? -1 : info.getCreationGeneration();
     }
 
     /**
@@ -77,15 +101,46 @@ public class Snapshot extends BTRFSPhysicalLocationItem<Snapshot> {
      * @param location The location to place the snapshot
      * @param parent The parent subvolume
      */
-    @JsonCreator
-    public Snapshot(@JsonProperty(value = "of") Path of, @JsonProperty(value = "location") Path location,
-            @JsonProperty(value = "parentSubvolume") Subvolume parent) {
+    public Snapshot(Path of, Path location, Subvolume parent) {
         super(location.resolve(of.getFileName() + BTRFS.SNAPSHOT_SEPARATOR + getCurrentDateString()), of.getFileName().toString());
         this.of = of;
         //The filename on the disk: /media/disk/SUBVOL___TIME
         this.fullFileName = super.getLocation().toString();
         this.parentSubvolume = Objects.requireNonNull(parent);
         this.creationDate = ZonedDateTime.of(LocalDateTime.MAX, ZoneId.of("Z"));
+        this.uuid = null;
+        this.receivedUuid = null;
+        this.generation = -1;
+    }
+
+    /**
+     * Restores a stored snapshot exactly as it was saved, the location already
+     * contains the name and date.
+     *
+     * @param of The subvolume the snapshot is of
+     * @param location The location of the snapshot on the disk
+     * @param parent The parent subvolume
+     * @param creationDate When the snapshot was created
+     * @param uuid The btrfs UUID of the snapshot, may be null
+     * @param receivedUuid The btrfs received UUID of the snapshot, may be null
+     * @param generation The transaction generation the snapshot was created
+     * in, null if unknown
+     */
+    @JsonCreator
+    private Snapshot(@JsonProperty(value = "of") Path of, @JsonProperty(value = "location") Path location,
+            @JsonProperty(value = "parentSubvolume") Subvolume parent,
+            @JsonProperty(value = "creationDate") ZonedDateTime creationDate,
+            @JsonProperty(value = "uuid") String uuid, @JsonProperty(value = "receivedUuid") String receivedUuid,
+            @JsonProperty(value = "generation") Long generation) {
+        super(location, of.getFileName().toString());
+        this.of = of;
+        this.fullFileName = location.toString();
+        this.parentSubvolume = Objects.requireNonNull(parent);
+        this.creationDate = creationDate;
+        this.uuid = uuid;
+        this.receivedUuid = receivedUuid;
+        //Snapshots cataloged before generations were recorded
+        this.generation = generation == null ? -1 : generation;
     }
 
     /**
@@ -97,8 +152,20 @@ public class Snapshot extends BTRFSPhysicalLocationItem<Snapshot> {
     public Snapshot create() {
         try {
             //Command: btrfs subvolume snapshot "thing to snapshot" "place to put snapshot"
-            EchoUtil.processOP(true, "btrfs", "subvolume", "snapshot", "-r", this.of.toString(), this.fullFileName);
-            var snapshotWithTimestamp = new Snapshot(this);
+            if (EchoUtil.processOP(true, "btrfs", "subvolume", "snapshot", "-r", this.of.toString(),
+                    this.fullFileName)) {
+                //Nothing to catalog, and nothing to back up
+                throw new IllegalStateException("Couldn't create the snapshot " + this.fullFileName);
+            }
+            SubvolumeInfo info = null;
+            try {
+                info = SubvolumeInfo.of(getLocation());
+            } catch (IOException ex) {
+                //Not fatal, we just can't use this snapshot as an incremental parent later
+                Logger.getLogger(Snapshot.class.getName()).log(Level.WARNING, "Couldn't read the UUID of "
+                        + this.fullFileName, ex);
+            }
+            var snapshotWithTimestamp = new Snapshot(this, info);
             BTRFS.saveSnapshot(snapshotWithTimestamp);
             return snapshotWithTimestamp;
         } catch (IOException ex) {
@@ -108,43 +175,139 @@ public class Snapshot extends BTRFSPhysicalLocationItem<Snapshot> {
     }
 
     /**
-     * Generates a new bash script to backup the file to the external drive
-     * since process builder can't handle pipe characters.
+     * Backs up this snapshot to a certain location. The send and receive
+     * processes are started separately and the stream is pumped between them.
+     *
+     * @param parent The parent to use, may be null
+     * @param location The location to send the backup to
+     * @param throttle The buckets limiting the rate of the stream, may be
+     * empty
+     * @return The backup object, with the length and checksum of the stream
+     */
+    public Backup backup(Snapshot parent, Path location, List<TokenBucket> throttle) {
+        try {
+            //Command: btrfs send -p "PARENT" "SUBVOLUME" | btrfs receive "LOCATION"
+            var created = ZonedDateTime.now();
+            var result = StreamTransfer.transfer(getSendCommand(parent), List.of("btrfs", "receive",
+                    location.toString()), null, throttle);
+            if (!result.isSuccessful()) {
+                //Never leave a cut receive behind, it would pass for a parent
+                discardPartialBackup(location);
+                throw new IllegalStateException("Backup of " + this.fullFileName + " failed: " + result);
+            }
+            return new Backup(location, this, created, result.getBytes(), result.getChecksum().getAsLong());
+        } catch (IOException ex) {
+            Logger.getLogger(Snapshot.class.getName()).log(Level.SEVERE, null, ex);
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Backs up this snapshot to several locations at once. It's sent once and
+     * the stream is copied to a receive process per location, see
+     * {@link StreamTee}.
      *
-     * @param parent The parent of this snapshot, may be null
-     * @param location The location to back up to
-     * @return The location of the new script file
+     * @param parent The parent to use, every location must hold it, may be
+     * null
+     * @param locations The locations to send the backup to
+     * @param throttles The buckets limiting the rate of the stream to each
+     * location, may be empty lists
+     * @param settings The buffers shared by the locations and what to do with
+     * slow ones
+     * @return The result for each location, in the same order. A location
+     * whose result isn't successful may hold part of the backup, see
+     * {@link #discardPartialBackup(java.nio.file.Path)}
      */
-    private Path generateBashBackupScript(Snapshot parent, Path location) throws IOException {
-        //Command: btrfs send "SUBVOLUME" | btrfs recieve "LOCATION"
-        var text = "btrfs send " + (parent == null ? "" : "-p \"" + parent.getFullFileName() + "\" ")
-                + "\"" + this.fullFileName + "\" | btrfs receive \"" + location + "\"";
-        var scriptLocation = Files.createTempFile("Wandering Echo Temporary Backup Script for " + getName(), ".sh");
-        Files.write(scriptLocation, text.getBytes());
-        return scriptLocation;
+    public List<TransferResult> backup(Snapshot parent, List<Path> locations, List<List<TokenBucket>> throttles,
+            FanOutSettings settings) {
+        try {
+            //Command: btrfs send -p "PARENT" "SUBVOLUME" | tee >(btrfs receive "LOCATION") ...
+            var receiveCommands = locations.stream().map(location -> List.of("btrfs", "receive",
+                    location.toString())).collect(Collectors.toList());
+            var compression = new ArrayList<CompressionSettings>(Collections.nCopies(locations.size(), null));
+            return StreamTransfer.fanOut(settings, getSendCommand(parent), receiveCommands, compression, throttles);
+        } catch (IOException ex) {
+            Logger.getLogger(Snapshot.class.getName()).log(Level.SEVERE, null, ex);
+            throw new IllegalStateException(ex);
+        }
     }
 
     /**
-     * Backs up this snapshot to a certain location.
+     * Deletes what an interrupted receive of this snapshot left in a location,
+     * so it can be received there again.
      *
-     * @param parent The parent to use, may be null
-     * @param location The location to send the backup to
+     * @param location The location the backup was sent to
+     */
+    public void discardPartialBackup(Path location) {
+        var partial = location.resolve(getLocation().getFileName());
+        if (!Files.isDirectory(partial)) {
+            return;
+        }
+        LOG.warning("Deleting the partial backup " + partial);
+        try {
+            if (EchoUtil.processOP(true, "btrfs", "subvolume", "delete", partial.toString())) {
+                throw new IllegalStateException("Couldn't delete the partial backup " + partial);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Snapshot.class.getName()).log(Level.SEVERE, null, ex);
+            throw new IllegalStateException("Couldn't delete the partial backup " + partial, ex);
+        }
+    }
+
+    /**
+     * Backs up this snapshot into a send stream archive in a folder that isn't
+     * on btrfs, see {@link SendArchive}.
+     *
+     * @param parent The parent to use, must be archived in the same folder,
+     * may be null
+     * @param location The folder holding the archives
+     * @param compression How to compress the archive, may be null
+     * @param dedup How to deduplicate the archive, null to write segments
+     * @param throttle The buckets limiting the rate of the stream, may be
+     * empty
      * @return The backup object
      */
-    public Backup backup(Snapshot parent, Path location) {
+    public Backup archive(Snapshot parent, Path location, CompressionSettings compression, DedupSettings dedup,
+            List<TokenBucket> throttle) {
         try {
-            //Make bash backup script
-            var scriptPath = generateBashBackupScript(parent, location);
-            var backup = new Backup(location, this, ZonedDateTime.now());
-            //Execute backup script
-            EchoUtil.processOP("bash", scriptPath.toString());
-            return backup;
+            var created = ZonedDateTime.now();
+            var manifest = SendArchive.write(this, parent, location, compression, dedup, throttle);
+            return new Backup(location, this, created, manifest.getStreamBytes(),
+                    manifest.getStreamChecksum().orElse(null));
         } catch (IOException ex) {
             Logger.getLogger(Snapshot.class.getName()).log(Level.SEVERE, null, ex);
             throw new IllegalStateException(ex);
         }
     }
 
+    /**
+     * Estimates the length of the send stream of this snapshot from a send
+     * without data, see {@link SendSizeEstimator}.
+     *
+     * @param parent The parent to send against, null for a full send
+     * @return The estimated length in bytes
+     * @throws IOException If the send without data failed
+     */
+    public long estimateSend(Snapshot parent) throws IOException {
+        return SendSizeEstimator.estimate(getSendCommand(parent));
+    }
+
+    /**
+     * Gets the btrfs send command for this snapshot.
+     *
+     * @param parent The parent to send against, null for a full send
+     * @return The command
+     */
+    public List<String> getSendCommand(Snapshot parent) {
+        var sendCommand = new ArrayList<String>(List.of("btrfs", "send"));
+        if (parent != null) {
+            sendCommand.add("-p");
+            sendCommand.add(parent.getFullFileName());
+        }
+        sendCommand.add(this.fullFileName);
+        return sendCommand;
+    }
+
     @Override
     public String toString() {
         return this.fullFileName;
@@ -196,6 +359,35 @@ public class Snapshot extends BTRFSPhysicalLocationItem<Snapshot> {
         return true;
     }
 
+    /**
+     * Gets the btrfs UUID of this snapshot, known once it was created.
+     *
+     * @return The UUID
+     */
+    public Optional<String> getUuid() {
+        return Optional.ofNullable(this.uuid);
+    }
+
+    /**
+     * Gets the btrfs received UUID of this snapshot. Set if the subvolume it
+     * was taken of came from btrfs receive itself.
+     *
+     * @return The received UUID
+     */
+    public Optional<String> getReceivedUuid() {
+        return Optional.ofNullable(this.receivedUuid);
+    }
+
+    /**
+     * Gets the transaction generation this snapshot was created in. The
+     * subvolume it was taken of changed since if its generation is higher.
+     *
+     * @return The generation, -1 if unknown
+     */
+    public long getGeneration() {
+        return this.generation;
+    }
+
     /**
      * Gets the subvolume that this snapshot is of.
      *
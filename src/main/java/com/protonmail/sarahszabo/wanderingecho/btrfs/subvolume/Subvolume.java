@@ -23,23 +23,19 @@ import java.util.logging.Logger;
 public class Subvolume extends BTRFSPhysicalLocationItem<Subvolume> {
 
     @JsonIgnore
-    private final Path snapshotFolder;
+    private volatile Path snapshotFolder;
 
     /**
      * Creates a new subvolume with the specified path.The subvolume may or may
-     * not exist at this point.
+     * not exist at this point. The snapshot folder is only looked up once it's
+     * needed, every snapshot read from the catalog carries its subvolume and
+     * most of them never take another snapshot.
      *
      * @param location The location of this subvolume
      */
     @JsonCreator
     public Subvolume(@JsonProperty(value = "location") Path location) {
         super(location, location.getFileName().toString());
-        try {
-            this.snapshotFolder = BTRFS.configureSnapshotFilesystem(this);
-        } catch (IOException ex) {
-            Logger.getLogger(Subvolume.class.getName()).log(Level.SEVERE, null, ex);
-            throw new IllegalStateException("Couldn't construct subvolume, problem with getting snapshot folder", ex);
-        }
     }
 
     @Override
@@ -64,7 +60,8 @@ public class Subvolume extends BTRFSPhysicalLocationItem<Subvolume> {
     @Override
     public int hashCode() {
         int hash = 3;
-        hash = 29 * hash + Objects.hashCode(this.snapshotFolder);
+        //The location, not the snapshot folder: looking that up would configure the filesystem
+        hash = 29 * hash + Objects.hashCode(getLocation());
         return hash;
     }
 
@@ -80,7 +77,7 @@ public class Subvolume extends BTRFSPhysicalLocationItem<Subvolume> {
             return false;
         }
         final Subvolume other = (Subvolume) obj;
-        if (!Objects.equals(this.snapshotFolder, other.snapshotFolder)) {
+        if (!Objects.equals(getLocation(), other.getLocation())) {
             return false;
         }
         return true;
@@ -97,6 +94,16 @@ public class Subvolume extends BTRFSPhysicalLocationItem<Subvolume> {
      * @return The folder that this subvolume's snapshots are stored in
      */
     public Path getSnapshotFolder() {
-        return snapshotFolder;
+        var folder = this.snapshotFolder;
+        if (folder == null) {
+            try {
+                folder = BTRFS.configureSnapshotFilesystem(this);
+                this.snapshotFolder = folder;
+            } catch (IOException ex) {
+                Logger.getLogger(Subvolume.class.getName()).log(Level.SEVERE, null, ex);
+                throw new IllegalStateException("Couldn't get the snapshot folder of " + getLocation(), ex);
+            }
+        }
+        return folder;
     }
 }
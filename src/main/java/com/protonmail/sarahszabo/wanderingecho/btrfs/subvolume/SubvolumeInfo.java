@@ -0,0 +1,151 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume;
+
+import com.protonmail.sarahszabo.wanderingecho.util.EchoUtil;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Optional;
+
+/**
+ * What btrfs knows about a subvolume on the disk, as printed by btrfs
+ * subvolume show.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class SubvolumeInfo {
+
+    private final String uuid;
+    private final String parentUuid;
+    private final String receivedUuid;
+    private final long generation;
+    private final long creationGeneration;
+
+    /**
+     * Creates new subvolume information.
+     *
+     * @param uuid The UUID of the subvolume
+     * @param parentUuid The UUID of the subvolume this is a snapshot of, may be
+     * null
+     * @param receivedUuid The UUID of the subvolume this was received from, may
+     * be null
+     * @param generation The transaction generation of the subvolume
+     * @param creationGeneration The transaction generation the subvolume was
+     * created in
+     */
+    public SubvolumeInfo(String uuid, String parentUuid, String receivedUuid, long generation,
+            long creationGeneration) {
+        this.uuid = uuid;
+        this.parentUuid = parentUuid;
+        this.receivedUuid = receivedUuid;
+        this.generation = generation;
+        this.creationGeneration = creationGeneration;
+    }
+
+    /**
+     * Reads the information of a subvolume on the disk.
+     *
+     * @param subvolume The location of the subvolume
+     * @return The information
+     * @throws IOException If btrfs couldn't be run or didn't print a UUID
+     */
+    public static SubvolumeInfo of(Path subvolume) throws IOException {
+        //Command: btrfs subvolume show "SUBVOLUME"
+        var fields = new HashMap<String, String>();
+        try ( var scanner = EchoUtil.getProcessInputScanner(EchoUtil.processOPNoWait(false, "btrfs", "subvolume",
+                "show", subvolume.toString()))) {
+            while (scanner.hasNextLine()) {
+                var line = scanner.nextLine();
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    fields.putIfAbsent(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+                }
+            }
+        }
+        var uuid = uuidOrNull(fields.get("UUID"));
+        if (uuid == null) {
+            throw new IOException("btrfs subvolume show didn't report a UUID for " + subvolume);
+        }
+        return new SubvolumeInfo(uuid, uuidOrNull(fields.get("Parent UUID")),
+                uuidOrNull(fields.get("Received UUID")), generationOrUnknown(fields.get("Generation")),
+                generationOrUnknown(fields.get("Gen at creation")));
+    }
+
+    /**
+     * Parses a printed generation.
+     *
+     * @param value The printed value
+     * @return The generation, -1 if it wasn't printed
+     */
+    private static long generationOrUnknown(String value) {
+        return value == null ? -1 : Long.parseLong(value);
+    }
+
+    /**
+     * btrfs prints a dash for missing UUIDs.
+     *
+     * @param value The printed value
+     * @return The UUID or null
+     */
+    static String uuidOrNull(String value) {
+        return value == null || value.isEmpty() || value.equals("-") ? null : value;
+    }
+
+    /**
+     * Gets the UUID of the subvolume.
+     *
+     * @return The UUID
+     */
+    public String getUuid() {
+        return this.uuid;
+    }
+
+    /**
+     * Gets the UUID of the subvolume this one is a snapshot of.
+     *
+     * @return The parent UUID, if this is a snapshot
+     */
+    public Optional<String> getParentUuid() {
+        return Optional.ofNullable(this.parentUuid);
+    }
+
+    /**
+     * Gets the UUID this subvolume was received as, if it came from btrfs
+     * receive.
+     *
+     * @return The received UUID
+     */
+    public Optional<String> getReceivedUuid() {
+        return Optional.ofNullable(this.receivedUuid);
+    }
+
+    /**
+     * Gets the transaction generation of the subvolume.
+     *
+     * @return The generation, -1 if unknown
+     */
+    public long getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * Gets the transaction generation the subvolume was created in. For a
+     * snapshot the subvolume it was taken of had this generation at the time,
+     * a higher generation means it changed since.
+     *
+     * @return The generation, -1 if unknown
+     */
+    public long getCreationGeneration() {
+        return this.creationGeneration;
+    }
+
+    @Override
+    public String toString() {
+        return "UUID: " + this.uuid + ", Parent UUID: " + this.parentUuid + ", Received UUID: " + this.receivedUuid
+                + ", Generation: " + this.generation + ", Created in: " + this.creationGeneration;
+    }
+}
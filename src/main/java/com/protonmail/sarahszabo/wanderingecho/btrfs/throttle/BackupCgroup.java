@@ -0,0 +1,143 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.throttle;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.topology.MountTopology;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cgroup v2 group with a low I/O and CPU weight that the send and receive
+ * processes are moved into, so the kernel serves every other workload first
+ * when the disk or the processors are contended and gives the backup whatever
+ * is left. Only there when cgroup v2 is mounted with the io controller and we
+ * may create groups at its root.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class BackupCgroup {
+
+    /**
+     * The name of the group below the cgroup v2 root.
+     */
+    private static final String GROUP_NAME = "wandering-echo";
+
+    /**
+     * The io.weight of the group, the default being 100.
+     */
+    private static final int IO_WEIGHT = 10;
+
+    /**
+     * The cpu.weight of the group, the default being 100.
+     */
+    private static final int CPU_WEIGHT = 10;
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(BackupCgroup.class.getName());
+
+    private static Optional<BackupCgroup> system;
+
+    private final Path folder;
+
+    /**
+     * Gets the backup group of this system, creating it the first time.
+     *
+     * @return The group, empty if cgroup v2 with the io controller isn't
+     * usable
+     */
+    public static synchronized Optional<BackupCgroup> system() {
+        if (system == null) {
+            system = create();
+        }
+        return system;
+    }
+
+    /**
+     * Creates the group below the cgroup v2 root with the io controller, and
+     * the cpu controller if there is one, enabled.
+     *
+     * @return The group, empty if that isn't possible
+     */
+    private static Optional<BackupCgroup> create() {
+        var root = MountTopology.system().getMounts().stream()
+                .filter(mount -> mount.getFilesystemType().equals("cgroup2")).map(mount -> mount.getMountPoint())
+                .findFirst();
+        if (root.isEmpty()) {
+            LOG.info("No cgroup v2 hierarchy, backup processes keep their default weights");
+            return Optional.empty();
+        }
+        try {
+            var controllers = Arrays.asList(Files.readString(root.get().resolve("cgroup.controllers")).trim()
+                    .split(" "));
+            if (!controllers.contains("io")) {
+                LOG.info("The io controller isn't on cgroup v2, backup processes keep their default weights");
+                return Optional.empty();
+            }
+            var subtreeControl = root.get().resolve("cgroup.subtree_control");
+            var enabled = Arrays.asList(Files.readString(subtreeControl).trim().split(" "));
+            if (!enabled.contains("io")) {
+                Files.writeString(subtreeControl, "+io");
+            }
+            boolean cpu = controllers.contains("cpu");
+            if (cpu && !enabled.contains("cpu")) {
+                Files.writeString(subtreeControl, "+cpu");
+            }
+            var folder = Files.createDirectories(root.get().resolve(GROUP_NAME));
+            Files.writeString(folder.resolve("io.weight"), "default " + IO_WEIGHT);
+            if (cpu) {
+                Files.writeString(folder.resolve("cpu.weight"), Integer.toString(CPU_WEIGHT));
+            }
+            LOG.info("Backup processes run in " + folder + " with io.weight " + IO_WEIGHT);
+            return Optional.of(new BackupCgroup(folder));
+        } catch (IOException ex) {
+            Logger.getLogger(BackupCgroup.class.getName()).log(Level.WARNING,
+                    "Couldn't set up the backup cgroup, backup processes keep their default weights", ex);
+            return Optional.empty();
+        }
+    }
+
+    private BackupCgroup(Path folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * Moves a process into the group. A process that already exited is left
+     * alone.
+     *
+     * @param process The process
+     */
+    public void add(Process process) {
+        try {
+            Files.writeString(this.folder.resolve("cgroup.procs"), Long.toString(process.pid()));
+        } catch (IOException ex) {
+            if (process.isAlive()) {
+                Logger.getLogger(BackupCgroup.class.getName()).log(Level.WARNING, "Couldn't move " + process.pid()
+                        + " into " + this.folder, ex);
+            }
+        }
+    }
+
+    /**
+     * Gets the folder of the group, holding its pressure files.
+     *
+     * @return The folder
+     */
+    public Path getFolder() {
+        return this.folder;
+    }
+
+    @Override
+    public String toString() {
+        return "Backup Cgroup: " + this.folder;
+    }
+}
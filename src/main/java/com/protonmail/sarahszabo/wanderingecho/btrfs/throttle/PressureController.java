@@ -0,0 +1,136 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.throttle;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sets the rate of a bucket from the pressure other workloads are under. Above
+ * a threshold the rate is halved from what the streams actually achieved, far
+ * above it the bucket is paused, and below half the threshold the rate grows
+ * by half each step until it no longer holds the streams back, at which point
+ * the limit is lifted. Backing off fast and recovering gradually keeps the
+ * harm to foreground latency short while letting an idle system run the
+ * backup at full speed.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class PressureController {
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(PressureController.class.getName());
+
+    private final TokenBucket bucket = new TokenBucket("Pressure", 0);
+    private final PressureMonitor io;
+    private final PressureMonitor cpu;
+    private long lastBytes;
+    private long lastTick = System.nanoTime();
+
+    /**
+     * Creates a new controller.
+     *
+     * @param io The I/O pressure, may be null
+     * @param cpu The CPU pressure, may be null
+     */
+    public PressureController(PressureMonitor io, PressureMonitor cpu) {
+        this.io = io;
+        this.cpu = cpu;
+    }
+
+    /**
+     * Gets the bucket whose rate follows the pressure.
+     *
+     * @return The bucket
+     */
+    public TokenBucket getBucket() {
+        return this.bucket;
+    }
+
+    /**
+     * Measures the pressure and throughput since the last step and adjusts the
+     * rate. Failures are logged, not thrown, it's run on a schedule that would
+     * stop for good.
+     *
+     * @param settings The current thresholds
+     */
+    public void tick(PressureSettings settings) {
+        try {
+            step(settings);
+        } catch (RuntimeException ex) {
+            Logger.getLogger(PressureController.class.getName()).log(Level.WARNING, "Couldn't adjust to the "
+                    + "pressure", ex);
+        }
+    }
+
+    /**
+     * Takes one step of {@link #tick(PressureSettings)}.
+     */
+    private void step(PressureSettings settings) {
+        long now = System.nanoTime();
+        long bytes = this.bucket.getBytesAcquired();
+        double throughput = (bytes - this.lastBytes) * 1e9 / Math.max(1, now - this.lastTick);
+        this.lastBytes = bytes;
+        this.lastTick = now;
+        double ioPressure;
+        double cpuPressure;
+        try {
+            ioPressure = this.io == null ? 0 : this.io.sample();
+            cpuPressure = this.cpu == null ? 0 : this.cpu.sample();
+        } catch (IOException ex) {
+            Logger.getLogger(PressureController.class.getName()).log(Level.WARNING, "Couldn't read the pressure",
+                    ex);
+            return;
+        }
+        if (!settings.isEnabled()) {
+            setRate(false, 0, ioPressure, cpuPressure);
+        } else if (ioPressure >= settings.getPausePercent() || cpuPressure >= settings.getPausePercent()) {
+            setRate(true, this.bucket.getRate(), ioPressure, cpuPressure);
+        } else if (ioPressure >= settings.getIoThresholdPercent()
+                || cpuPressure >= settings.getCpuThresholdPercent()) {
+            long rate = this.bucket.getRate();
+            long achieved = rate <= 0 ? (long) throughput : Math.min(rate, (long) throughput);
+            setRate(false, Math.max(settings.getMinimumBytesPerSecond(), achieved / 2), ioPressure, cpuPressure);
+        } else if (ioPressure < settings.getIoThresholdPercent() / 2
+                && cpuPressure < settings.getCpuThresholdPercent() / 2) {
+            long rate = this.bucket.getRate();
+            if (this.bucket.isPaused() || rate <= 0) {
+                //Resume where we stopped
+                setRate(false, rate, ioPressure, cpuPressure);
+            } else {
+                //A limit the streams don't reach isn't needed anymore
+                setRate(false, throughput < rate / 2.0 ? 0 : rate + rate / 2, ioPressure, cpuPressure);
+            }
+        } else {
+            setRate(false, this.bucket.getRate(), ioPressure, cpuPressure);
+        }
+    }
+
+    /**
+     * Changes the bucket, logging it if anything changed.
+     *
+     * @param paused Whether the bucket is paused
+     * @param rate The new rate
+     * @param ioPressure The I/O pressure it's for
+     * @param cpuPressure The CPU pressure it's for
+     */
+    private void setRate(boolean paused, long rate, double ioPressure, double cpuPressure) {
+        if (this.bucket.isPaused() != paused || this.bucket.getRate() != rate) {
+            this.bucket.setRate(rate);
+            this.bucket.setPaused(paused);
+            LOG.info(String.format("THROTTLE: %s, IO Pressure %.1f%%, CPU Pressure %.1f%%", this.bucket,
+                    ioPressure, cpuPressure));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Pressure Controller: " + this.bucket + ", " + this.io + ", " + this.cpu;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.throttle;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+/**
+ * Measures how much other workloads stall on a resource, from the pressure
+ * stall information of the kernel. The "some" total of the system is the time
+ * at least one task waited on the resource; if the backup processes have their
+ * own cgroup their stall time is taken off, so the backup doesn't back off from
+ * its own reads. Stalls that overlap both are counted as ours, which only ever
+ * makes the backup faster, never slower.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class PressureMonitor {
+
+    /**
+     * The pressure files of the whole system.
+     */
+    private static final Path PROC_PRESSURE = Paths.get("/proc/pressure");
+
+    private final String resource;
+    private final Path systemFile;
+    private final Path ownFile;
+    private long lastSystemStall;
+    private long lastOwnStall;
+    private long lastSample;
+
+    /**
+     * Starts measuring a resource.
+     *
+     * @param resource The resource, "io", "cpu" or "memory"
+     * @param cgroup The cgroup of the backup processes, may be null
+     * @return The monitor, empty if the kernel doesn't report pressure
+     */
+    public static Optional<PressureMonitor> open(String resource, BackupCgroup cgroup) {
+        var systemFile = PROC_PRESSURE.resolve(resource);
+        var ownFile = cgroup == null ? null : cgroup.getFolder().resolve(resource + ".pressure");
+        try {
+            var monitor = new PressureMonitor(resource, systemFile, ownFile != null && Files.isReadable(ownFile)
+                    ? ownFile : null);
+            monitor.sample();
+            return Optional.of(monitor);
+        } catch (IOException ex) {
+            return Optional.empty();
+        }
+    }
+
+    private PressureMonitor(String resource, Path systemFile, Path ownFile) {
+        this.resource = resource;
+        this.systemFile = systemFile;
+        this.ownFile = ownFile;
+    }
+
+    /**
+     * Measures the pressure since the last sample.
+     *
+     * @return The share of the time other workloads stalled, in percent
+     * @throws IOException If the pressure files couldn't be read
+     */
+    public double sample() throws IOException {
+        long now = System.nanoTime();
+        long systemStall = readSomeTotal(this.systemFile);
+        long ownStall = this.ownFile == null ? 0 : readSomeTotal(this.ownFile);
+        //Totals are in microseconds
+        double elapsedMicros = (now - this.lastSample) / 1e3;
+        long otherStall = Math.max(0, (systemStall - this.lastSystemStall) - (ownStall - this.lastOwnStall));
+        boolean first = this.lastSample == 0;
+        this.lastSystemStall = systemStall;
+        this.lastOwnStall = ownStall;
+        this.lastSample = now;
+        return first ? 0 : Math.min(100, otherStall * 100 / elapsedMicros);
+    }
+
+    /**
+     * Reads the total stall time of the "some" line of a pressure file, e.g.
+     * "some avg10=0.00 avg60=0.00 avg300=0.00 total=2680163".
+     *
+     * @param file The pressure file
+     * @return The total in microseconds
+     * @throws IOException If the file couldn't be read or has no such line
+     */
+    private static long readSomeTotal(Path file) throws IOException {
+        for (var line : Files.readAllLines(file)) {
+            if (line.startsWith("some ")) {
+                for (var field : line.split(" ")) {
+                    if (field.startsWith("total=")) {
+                        return Long.parseLong(field.substring("total=".length()));
+                    }
+                }
+            }
+        }
+        throw new IOException(file + " has no total stall time");
+    }
+
+    @Override
+    public String toString() {
+        return "Pressure Monitor: " + this.resource + (this.ownFile == null ? "" : " without " + this.ownFile);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.throttle;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * When backup streams back off for other workloads: the I/O and CPU pressure,
+ * in percent of the time other tasks stalled, above which streams slow down,
+ * the pressure above which they stop, and the rate they never slow down below
+ * while still running. Saved as part of the throttle settings.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class PressureSettings {
+
+    @JsonProperty
+    private final boolean enabled;
+    @JsonProperty
+    private final double ioThresholdPercent;
+    @JsonProperty
+    private final double cpuThresholdPercent;
+    @JsonProperty
+    private final double pausePercent;
+    @JsonProperty
+    private final long minimumBytesPerSecond;
+
+    /**
+     * Creates the default pressure settings.
+     */
+    public PressureSettings() {
+        this(null, null, null, null, null);
+    }
+
+    /**
+     * Creates new pressure settings. Null values fall back to the defaults:
+     * enabled, slowing down above 10% I/O or 20% CPU pressure, stopping above
+     * 40% of either, and running at least at 1 MiB/s.
+     *
+     * @param enabled Whether streams adapt to pressure at all
+     * @param ioThresholdPercent The I/O pressure above which streams slow down
+     * @param cpuThresholdPercent The CPU pressure above which streams slow
+     * down
+     * @param pausePercent The pressure of either above which streams stop
+     * @param minimumBytesPerSecond The slowest a running stream gets
+     */
+    @JsonCreator
+    public PressureSettings(@JsonProperty(value = "enabled") Boolean enabled,
+            @JsonProperty(value = "ioThresholdPercent") Double ioThresholdPercent,
+            @JsonProperty(value = "cpuThresholdPercent") Double cpuThresholdPercent,
+            @JsonProperty(value = "pausePercent") Double pausePercent,
+            @JsonProperty(value = "minimumBytesPerSecond") Long minimumBytesPerSecond) {
+        this.enabled = enabled == null ? true : enabled;
+        this.ioThresholdPercent = ioThresholdPercent == null ? 10 : ioThresholdPercent;
+        this.cpuThresholdPercent = cpuThresholdPercent == null ? 20 : cpuThresholdPercent;
+        this.pausePercent = pausePercent == null ? 40 : pausePercent;
+        this.minimumBytesPerSecond = minimumBytesPerSecond == null ? 1 << 20 : minimumBytesPerSecond;
+        if (this.minimumBytesPerSecond < 1) {
+            throw new IllegalArgumentException("The minimum rate must be at least 1 B/s, got "
+                    + this.minimumBytesPerSecond);
+        }
+    }
+
+    /**
+     * Checks whether streams adapt to pressure.
+     *
+     * @return True if they do
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Gets the I/O pressure above which streams slow down.
+     *
+     * @return The threshold in percent
+     */
+    public double getIoThresholdPercent() {
+        return this.ioThresholdPercent;
+    }
+
+    /**
+     * Gets the CPU pressure above which streams slow down.
+     *
+     * @return The threshold in percent
+     */
+    public double getCpuThresholdPercent() {
+        return this.cpuThresholdPercent;
+    }
+
+    /**
+     * Gets the pressure above which streams stop.
+     *
+     * @return The threshold in percent
+     */
+    public double getPausePercent() {
+        return this.pausePercent;
+    }
+
+    /**
+     * Gets the slowest a running stream gets.
+     *
+     * @return The rate in bytes per second
+     */
+    public long getMinimumBytesPerSecond() {
+        return this.minimumBytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return this.enabled ? "IO > " + this.ioThresholdPercent + "%, CPU > " + this.cpuThresholdPercent
+                + "%, Pause > " + this.pausePercent + "%, Minimum " + this.minimumBytesPerSecond + " B/s"
+                : "Disabled";
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.throttle;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+/**
+ * The rate limits of a run. Holds one bucket for all streams together and one
+ * per target, and keeps their rates up to date: every few seconds the settings
+ * file is read again if it changed and the window of the day is applied, so
+ * editing the file or the clock passing into business hours slows down
+ * streams that are already running. Every second the pressure other workloads
+ * are under is measured and a third bucket, shared by all streams, follows it.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class Throttle {
+
+    /**
+     * How often the settings file and the schedule are looked at.
+     */
+    private static final long REFRESH_SECONDS = 5;
+
+    /**
+     * How often the pressure is measured.
+     */
+    private static final long PRESSURE_MILLISECONDS = 1000;
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(Throttle.class.getName());
+
+    private final Path file;
+    private final ObjectMapper mapper;
+    private final TokenBucket global = new TokenBucket("Global", 0);
+    private final PressureController pressure;
+    private final ConcurrentHashMap<String, TokenBucket> targets = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("Wandering Echo Throttle Thread %d").daemon(true)
+                    .build());
+    private volatile ThrottleSettings settings = new ThrottleSettings();
+    private FileTime lastModified;
+
+    /**
+     * Opens the throttle settings, writing settings without limits if there
+     * are none, and starts following the file and the schedule.
+     *
+     * @param file The settings file
+     * @param mapper The mapper to read it with
+     * @return The throttle
+     * @throws IOException If the file couldn't be read or written
+     */
+    public static Throttle open(Path file, ObjectMapper mapper) throws IOException {
+        if (Files.notExists(file)) {
+            mapper.writeValue(file.toFile(), new ThrottleSettings());
+        }
+        var throttle = new Throttle(file, mapper);
+        throttle.load();
+        throttle.apply();
+        throttle.refresher.scheduleWithFixedDelay(throttle::refresh, REFRESH_SECONDS, REFRESH_SECONDS,
+                TimeUnit.SECONDS);
+        throttle.refresher.scheduleWithFixedDelay(() -> throttle.pressure.tick(throttle.settings.getPressure()),
+                PRESSURE_MILLISECONDS, PRESSURE_MILLISECONDS, TimeUnit.MILLISECONDS);
+        return throttle;
+    }
+
+    private Throttle(Path file, ObjectMapper mapper) {
+        this.file = file;
+        this.mapper = mapper;
+        var cgroup = BackupCgroup.system().orElse(null);
+        this.pressure = new PressureController(PressureMonitor.open("io", cgroup).orElse(null),
+                PressureMonitor.open("cpu", cgroup).orElse(null));
+        LOG.info(this.pressure.toString());
+    }
+
+    /**
+     * Gets the buckets a stream to a target takes tokens from.
+     *
+     * @param target The target, named like in the settings
+     * @return The global bucket, the target's bucket and the pressure bucket
+     */
+    public List<TokenBucket> getBuckets(String target) {
+        var bucket = this.targets.computeIfAbsent(target, name -> new TokenBucket(name,
+                this.settings.getTargetRate(name, LocalTime.now())));
+        return List.of(this.global, bucket, this.pressure.getBucket());
+    }
+
+    /**
+     * Reads the settings again if the file changed and applies the rates of
+     * the time of day. A file that can't be read is logged and the settings
+     * before it are kept, so a half saved edit doesn't stop the backup. It
+     * doesn't throw either, the refresher would never run it again.
+     */
+    public void refresh() {
+        try {
+            var modified = Files.getLastModifiedTime(this.file);
+            if (!modified.equals(this.lastModified)) {
+                load();
+                LOG.info("THROTTLE: Reloaded " + this.settings);
+            }
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(Throttle.class.getName()).log(Level.WARNING, "Keeping the current throttle settings",
+                    ex);
+        }
+        try {
+            apply();
+        } catch (RuntimeException ex) {
+            Logger.getLogger(Throttle.class.getName()).log(Level.WARNING, "Couldn't apply the throttle settings",
+                    ex);
+        }
+    }
+
+    /**
+     * Reads the settings file.
+     *
+     * @throws IOException If it couldn't be read
+     */
+    private void load() throws IOException {
+        var modified = Files.getLastModifiedTime(this.file);
+        this.settings = this.mapper.readValue(this.file.toFile(), ThrottleSettings.class);
+        this.lastModified = modified;
+    }
+
+    /**
+     * Sets the rate of every bucket for the current time of day.
+     */
+    private void apply() {
+        var now = LocalTime.now();
+        setRate(this.global, this.settings.getGlobalRate(now));
+        this.targets.forEach((target, bucket) -> setRate(bucket, this.settings.getTargetRate(target, now)));
+    }
+
+    /**
+     * Changes the rate of a bucket, logging it if it's different.
+     *
+     * @param bucket The bucket
+     * @param rate The new rate
+     */
+    private static void setRate(TokenBucket bucket, long rate) {
+        if (bucket.getRate() != rate) {
+            bucket.setRate(rate);
+            LOG.info("THROTTLE: " + bucket);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Throttle: " + this.settings;
+    }
+}
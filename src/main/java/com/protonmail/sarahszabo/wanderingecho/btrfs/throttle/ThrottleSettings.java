@@ -0,0 +1,116 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.throttle;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * How fast backup streams may read from the source disk: a rate for all
+ * streams together, rates for the streams to specific targets and windows of
+ * the day that override them, plus how they back off under pressure from
+ * other workloads. Rates are in bytes per second, 0 meaning no limit. Targets are named the way the backup code names them, the backup
+ * folder for local backups and HOST:FOLDER for remote ones.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class ThrottleSettings {
+
+    @JsonProperty
+    private final long globalBytesPerSecond;
+    @JsonProperty
+    private final Map<String, Long> targetBytesPerSecond;
+    @JsonProperty
+    private final List<ThrottleWindow> schedule;
+    @JsonProperty
+    private final PressureSettings pressure;
+
+    /**
+     * Creates settings without any fixed limits.
+     */
+    public ThrottleSettings() {
+        this(null, null, null, null);
+    }
+
+    /**
+     * Creates new throttle settings. Null values mean no fixed limits and the
+     * default pressure settings.
+     *
+     * @param globalBytesPerSecond The rate of all streams together
+     * @param targetBytesPerSecond The rates of the streams to specific targets
+     * @param schedule The windows of the day with their own rates, the first
+     * one that contains the time of day applies
+     * @param pressure When streams back off for other workloads
+     */
+    @JsonCreator
+    public ThrottleSettings(@JsonProperty(value = "globalBytesPerSecond") Long globalBytesPerSecond,
+            @JsonProperty(value = "targetBytesPerSecond") Map<String, Long> targetBytesPerSecond,
+            @JsonProperty(value = "schedule") List<ThrottleWindow> schedule,
+            @JsonProperty(value = "pressure") PressureSettings pressure) {
+        this.globalBytesPerSecond = globalBytesPerSecond == null ? 0 : globalBytesPerSecond;
+        this.targetBytesPerSecond = targetBytesPerSecond == null ? new HashMap<>()
+                : new HashMap<>(targetBytesPerSecond);
+        this.schedule = schedule == null ? new ArrayList<>() : new ArrayList<>(schedule);
+        this.pressure = pressure == null ? new PressureSettings() : pressure;
+    }
+
+    /**
+     * Gets when streams back off for other workloads.
+     *
+     * @return The pressure settings
+     */
+    public PressureSettings getPressure() {
+        return this.pressure;
+    }
+
+    /**
+     * Gets the rate of all streams together at a time of day.
+     *
+     * @param time The time of day
+     * @return The rate, 0 for no limit
+     */
+    public long getGlobalRate(LocalTime time) {
+        return getWindow(time).map(ThrottleWindow::getGlobalBytesPerSecond)
+                .orElse(this.globalBytesPerSecond);
+    }
+
+    /**
+     * Gets the rate of the streams to a target at a time of day.
+     *
+     * @param target The target
+     * @param time The time of day
+     * @return The rate, 0 for no limit
+     */
+    public long getTargetRate(String target, LocalTime time) {
+        var window = getWindow(time);
+        if (window.isPresent() && window.get().getTargetBytesPerSecond().containsKey(target)) {
+            return window.get().getTargetBytesPerSecond().get(target);
+        }
+        return this.targetBytesPerSecond.getOrDefault(target, 0L);
+    }
+
+    /**
+     * Gets the window that applies at a time of day.
+     *
+     * @param time The time of day
+     * @return The first window containing it, if any
+     */
+    private Optional<ThrottleWindow> getWindow(LocalTime time) {
+        return this.schedule.stream().filter(window -> window.contains(time)).findFirst();
+    }
+
+    @Override
+    public String toString() {
+        return "Global: " + this.globalBytesPerSecond + " B/s, Targets: " + this.targetBytesPerSecond
+                + ", Schedule: " + this.schedule + ", Pressure: " + this.pressure;
+    }
+}
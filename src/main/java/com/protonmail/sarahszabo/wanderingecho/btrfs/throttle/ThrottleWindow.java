@@ -0,0 +1,93 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.throttle;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.time.LocalTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A time of day with its own rate limits, e.g. business hours. A window whose
+ * end is before its start wraps around midnight.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class ThrottleWindow {
+
+    @JsonProperty
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "HH:mm")
+    private final LocalTime from;
+    @JsonProperty
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "HH:mm")
+    private final LocalTime to;
+    @JsonProperty
+    private final Long globalBytesPerSecond;
+    @JsonProperty
+    private final Map<String, Long> targetBytesPerSecond;
+
+    /**
+     * Creates a new window.
+     *
+     * @param from When the window starts, inclusive
+     * @param to When the window ends, exclusive
+     * @param globalBytesPerSecond The rate of all streams together during the
+     * window, null to keep the usual one, 0 for no limit
+     * @param targetBytesPerSecond The rates of the streams to specific targets
+     * during the window, overriding the usual ones, may be null
+     */
+    @JsonCreator
+    public ThrottleWindow(@JsonProperty(value = "from") LocalTime from,
+            @JsonProperty(value = "to") LocalTime to,
+            @JsonProperty(value = "globalBytesPerSecond") Long globalBytesPerSecond,
+            @JsonProperty(value = "targetBytesPerSecond") Map<String, Long> targetBytesPerSecond) {
+        this.from = Objects.requireNonNull(from, "A throttle window needs a start");
+        this.to = Objects.requireNonNull(to, "A throttle window needs an end");
+        this.globalBytesPerSecond = globalBytesPerSecond;
+        this.targetBytesPerSecond = targetBytesPerSecond == null ? new HashMap<>()
+                : new HashMap<>(targetBytesPerSecond);
+    }
+
+    /**
+     * Checks whether a time of day falls in this window.
+     *
+     * @param time The time of day
+     * @return True if it does
+     */
+    public boolean contains(LocalTime time) {
+        if (this.from.isAfter(this.to)) {
+            return !time.isBefore(this.from) || time.isBefore(this.to);
+        }
+        return !time.isBefore(this.from) && time.isBefore(this.to);
+    }
+
+    /**
+     * Gets the rate of all streams together during the window.
+     *
+     * @return The rate, null if the usual one applies
+     */
+    public Long getGlobalBytesPerSecond() {
+        return this.globalBytesPerSecond;
+    }
+
+    /**
+     * Gets the rates of the streams to specific targets during the window.
+     *
+     * @return The rates by target
+     */
+    public Map<String, Long> getTargetBytesPerSecond() {
+        return this.targetBytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return this.from + "-" + this.to + " (Global: " + this.globalBytesPerSecond + ", Targets: "
+                + this.targetBytesPerSecond + ")";
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.throttle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * A channel that takes tokens from every one of its buckets before passing
+ * bytes on, so the stream runs at the lowest of their rates. Large writes are
+ * cut into chunks so the stream is paced evenly instead of in bursts.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class ThrottledChannel implements WritableByteChannel {
+
+    /**
+     * The most bytes passed on per token request.
+     */
+    private static final int CHUNK_SIZE = 64 << 10;
+
+    private final WritableByteChannel sink;
+    private final List<TokenBucket> buckets;
+
+    /**
+     * Creates a new throttled channel.
+     *
+     * @param sink The channel to pass the bytes to, closed with this one
+     * @param buckets The buckets to take tokens from
+     */
+    public ThrottledChannel(WritableByteChannel sink, List<TokenBucket> buckets) {
+        this.sink = sink;
+        this.buckets = List.copyOf(buckets);
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        int written = 0;
+        while (source.hasRemaining()) {
+            int length = Math.min(source.remaining(), CHUNK_SIZE);
+            for (var bucket : this.buckets) {
+                bucket.acquire(length);
+            }
+            var slice = source.slice();
+            slice.limit(length);
+            while (slice.hasRemaining()) {
+                this.sink.write(slice);
+            }
+            source.position(source.position() + length);
+            written += length;
+        }
+        return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.sink.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.sink.close();
+    }
+
+    @Override
+    public String toString() {
+        return this.sink + " (Throttled by " + this.buckets + ")";
+    }
+}
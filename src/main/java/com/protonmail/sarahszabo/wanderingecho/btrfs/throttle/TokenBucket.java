@@ -0,0 +1,151 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.throttle;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits a rate of bytes. Tokens trickle in at the rate up to a quarter of a
+ * second's worth, every byte takes one. Taking more than there are puts the
+ * bucket in debt and the taker sleeps it off, so large writes are paced as
+ * well as small ones. The rate can be changed and the bucket paused at any
+ * time, sleeping takers notice within a tenth of a second.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class TokenBucket {
+
+    /**
+     * The longest a taker sleeps before looking at the rate again.
+     */
+    private static final long MAX_SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final String name;
+    private long bytesPerSecond;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private boolean paused;
+    private long bytesAcquired;
+
+    /**
+     * Creates a new bucket.
+     *
+     * @param name What the bucket limits, for logging
+     * @param bytesPerSecond The rate, 0 or less for no limit
+     */
+    public TokenBucket(String name, long bytesPerSecond) {
+        this.name = name;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Changes the rate. Tokens saved up beyond the new burst are dropped.
+     *
+     * @param bytesPerSecond The new rate, 0 or less for no limit
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        refill();
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = Math.min(this.tokens, getBurst());
+    }
+
+    /**
+     * Gets the rate.
+     *
+     * @return The rate in bytes per second, 0 or less for no limit
+     */
+    public synchronized long getRate() {
+        return this.bytesPerSecond;
+    }
+
+    /**
+     * Stops or restarts handing out tokens, whatever the rate.
+     *
+     * @param paused True to make takers wait until it's restarted
+     */
+    public synchronized void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    /**
+     * Checks whether the bucket is paused.
+     *
+     * @return True if takers wait
+     */
+    public synchronized boolean isPaused() {
+        return this.paused;
+    }
+
+    /**
+     * Gets the number of bytes tokens were handed out for so far.
+     *
+     * @return The bytes
+     */
+    public synchronized long getBytesAcquired() {
+        return this.bytesAcquired;
+    }
+
+    /**
+     * Takes tokens for some bytes, sleeping until the rate allows them.
+     *
+     * @param bytes The number of bytes
+     * @throws InterruptedIOException If interrupted while sleeping
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        long owed = bytes;
+        while (true) {
+            long sleepNanos;
+            synchronized (this) {
+                if (this.paused) {
+                    sleepNanos = MAX_SLEEP_NANOS;
+                } else if (this.bytesPerSecond <= 0) {
+                    this.bytesAcquired += owed;
+                    return;
+                } else {
+                    refill();
+                    this.tokens -= owed;
+                    this.bytesAcquired += owed;
+                    owed = 0;
+                    if (this.tokens >= 0) {
+                        return;
+                    }
+                    sleepNanos = (long) (-this.tokens * 1e9 / this.bytesPerSecond);
+                }
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.min(sleepNanos, MAX_SLEEP_NANOS));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled by " + this.name);
+            }
+        }
+    }
+
+    /**
+     * Adds the tokens that trickled in since the last refill. Must hold the
+     * lock.
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        if (this.bytesPerSecond > 0) {
+            this.tokens = Math.min(getBurst(), this.tokens + (now - this.lastRefill) * this.bytesPerSecond / 1e9);
+        }
+        this.lastRefill = now;
+    }
+
+    /**
+     * Gets the most tokens the bucket holds. Must hold the lock.
+     */
+    private double getBurst() {
+        return Math.max(1, this.bytesPerSecond / 4.0);
+    }
+
+    @Override
+    public String toString() {
+        return this.name + " (" + (isPaused() ? "Paused" : getRate() <= 0 ? "Unlimited" : getRate() + " B/s") + ")";
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.topology;
+
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * One line of /proc/self/mountinfo: a filesystem mounted somewhere.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class MountEntry {
+
+    private final Path mountPoint;
+    private final String root;
+    private final String filesystemType;
+    private final String source;
+    private final String uuid;
+
+    /**
+     * Creates a new mount entry.
+     *
+     * @param mountPoint Where the filesystem is mounted
+     * @param root The directory of the filesystem that is mounted there, for
+     * btrfs the subvolume, e.g. "/@home"
+     * @param filesystemType The filesystem type, e.g. "btrfs"
+     * @param source The mounted device, e.g. "/dev/sda2"
+     * @param uuid The filesystem UUID, may be null if unknown
+     */
+    public MountEntry(Path mountPoint, String root, String filesystemType, String source, String uuid) {
+        this.mountPoint = mountPoint;
+        this.root = root;
+        this.filesystemType = filesystemType;
+        this.source = source;
+        this.uuid = uuid;
+    }
+
+    /**
+     * Gets the directory the filesystem is mounted on.
+     *
+     * @return The mount point
+     */
+    public Path getMountPoint() {
+        return this.mountPoint;
+    }
+
+    /**
+     * Gets the directory within the filesystem that is mounted, "/" for the
+     * whole filesystem.
+     *
+     * @return The root
+     */
+    public String getRoot() {
+        return this.root;
+    }
+
+    /**
+     * Gets the filesystem type.
+     *
+     * @return The type, e.g. "btrfs"
+     */
+    public String getFilesystemType() {
+        return this.filesystemType;
+    }
+
+    /**
+     * Gets the mounted device or other source.
+     *
+     * @return The source, e.g. "/dev/sda2"
+     */
+    public String getSource() {
+        return this.source;
+    }
+
+    /**
+     * Gets the UUID of the mounted filesystem.
+     *
+     * @return The UUID, if the device has one
+     */
+    public Optional<String> getUuid() {
+        return Optional.ofNullable(this.uuid);
+    }
+
+    /**
+     * Checks whether this is a btrfs filesystem.
+     *
+     * @return True for btrfs
+     */
+    public boolean isBTRFS() {
+        return this.filesystemType.equals("btrfs");
+    }
+
+    @Override
+    public String toString() {
+        return this.source + "[" + this.root + "] on " + this.mountPoint + " (" + this.filesystemType
+                + (this.uuid == null ? "" : ", UUID " + this.uuid) + ")";
+    }
+}
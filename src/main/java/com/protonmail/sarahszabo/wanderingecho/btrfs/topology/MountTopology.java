@@ -0,0 +1,275 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.topology;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Which filesystem every path lives on, read from /proc/self/mountinfo instead
+ * of asking df for each path. The table is parsed once and only parsed again
+ * when the content of mountinfo changed, which is checked by
+ * {@link #refreshIfChanged()} and costs one small read, no process.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class MountTopology {
+
+    /**
+     * The mount table of our mount namespace.
+     */
+    private static final Path MOUNT_INFO = Paths.get("/proc/self/mountinfo");
+
+    /**
+     * Links from filesystem UUIDs to their devices, maintained by udev.
+     */
+    private static final Path DISK_BY_UUID_FOLDER = Paths.get("/dev/disk/by-uuid");
+
+    /**
+     * One folder per btrfs filesystem UUID, listing its devices.
+     */
+    private static final Path SYS_BTRFS_FOLDER = Paths.get("/sys/fs/btrfs");
+
+    /**
+     * Class wide logger.
+     */
+    private static final Logger LOG = Logger.getLogger(MountTopology.class.getName());
+
+    /**
+     * The topology of the system we're running on.
+     */
+    private static MountTopology system;
+
+    private final Path mountInfo;
+    private byte[] lastMountInfo;
+    private Map<Path, MountEntry> byMountPoint = Map.of();
+
+    /**
+     * Creates a new topology read from a mountinfo file.
+     *
+     * @param mountInfo The mountinfo file
+     * @throws IOException If it couldn't be read
+     */
+    public MountTopology(Path mountInfo) throws IOException {
+        this.mountInfo = mountInfo;
+        refreshIfChanged();
+    }
+
+    /**
+     * Gets the topology of the system we're running on, reading it the first
+     * time.
+     *
+     * @return The system topology
+     */
+    public static synchronized MountTopology system() {
+        if (system == null) {
+            try {
+                system = new MountTopology(MOUNT_INFO);
+            } catch (IOException ex) {
+                Logger.getLogger(MountTopology.class.getName()).log(Level.SEVERE, null, ex);
+                throw new IllegalStateException("Couldn't read the mount table", ex);
+            }
+        }
+        return system;
+    }
+
+    /**
+     * Reads mountinfo and parses it again if anything was mounted or unmounted
+     * since the last read.
+     *
+     * @return True if the table changed
+     * @throws IOException If mountinfo couldn't be read
+     */
+    public synchronized boolean refreshIfChanged() throws IOException {
+        var content = Files.readAllBytes(this.mountInfo);
+        if (Arrays.equals(content, this.lastMountInfo)) {
+            return false;
+        }
+        var uuids = readDeviceUuids();
+        var mounts = new LinkedHashMap<Path, MountEntry>();
+        for (var line : new String(content, StandardCharsets.UTF_8).split("\n")) {
+            var entry = parse(line, uuids);
+            if (entry != null) {
+                //Later lines are mounted on top of earlier ones
+                mounts.put(entry.getMountPoint(), entry);
+            }
+        }
+        this.byMountPoint = mounts;
+        this.lastMountInfo = content;
+        LOG.fine("Mount Table Loaded: " + mounts.size() + " Mounts");
+        return true;
+    }
+
+    /**
+     * Parses one line of mountinfo:
+     * 36 35 98:0 /mnt1 /mnt/parent rw,noatime master:1 - ext3 /dev/root rw
+     *
+     * @param line The line
+     * @param uuids Device names to filesystem UUIDs
+     * @return The entry, null if the line isn't a mount
+     */
+    private static MountEntry parse(String line, Map<String, String> uuids) {
+        var fields = line.split(" ");
+        int separator = Arrays.asList(fields).indexOf("-");
+        if (fields.length < 5 || separator < 0 || fields.length < separator + 3) {
+            return null;
+        }
+        var source = unescape(fields[separator + 2]);
+        return new MountEntry(Paths.get(unescape(fields[4])), unescape(fields[3]), fields[separator + 1], source,
+                uuids.get(deviceName(source)));
+    }
+
+    /**
+     * Decodes the octal escapes mountinfo uses for spaces, tabs, newlines and
+     * backslashes.
+     *
+     * @param field The escaped field
+     * @return The decoded field
+     */
+    static String unescape(String field) {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        var builder = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 3 < field.length() && isOctal(field, i + 1)) {
+                builder.append((char) Integer.parseInt(field.substring(i + 1, i + 4), 8));
+                i += 3;
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Checks whether three characters are octal digits.
+     */
+    private static boolean isOctal(String field, int start) {
+        for (int i = start; i < start + 3; i++) {
+            if (field.charAt(i) < '0' || field.charAt(i) > '7') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the kernel name of a device path, e.g. "sda2" for /dev/sda2 or
+     * "dm-0" for a /dev/mapper link.
+     *
+     * @param source The device path
+     * @return The kernel name, or the source itself if it isn't a device
+     */
+    static String deviceName(String source) {
+        if (!source.startsWith("/dev/")) {
+            return source;
+        }
+        var device = Paths.get(source);
+        try {
+            return device.toRealPath().getFileName().toString();
+        } catch (IOException ex) {
+            return device.getFileName().toString();
+        }
+    }
+
+    /**
+     * Maps device names to the UUIDs of the filesystems on them, from udev's
+     * links and from the btrfs sysfs folders.
+     *
+     * @return Device names to UUIDs
+     */
+    private static Map<String, String> readDeviceUuids() {
+        var uuids = new HashMap<String, String>();
+        if (Files.isDirectory(DISK_BY_UUID_FOLDER)) {
+            try ( DirectoryStream<Path> links = Files.newDirectoryStream(DISK_BY_UUID_FOLDER)) {
+                for (var link : links) {
+                    uuids.put(Files.readSymbolicLink(link).getFileName().toString(), link.getFileName().toString());
+                }
+            } catch (IOException ex) {
+                LOG.fine("Couldn't read " + DISK_BY_UUID_FOLDER + ": " + ex);
+            }
+        }
+        if (Files.isDirectory(SYS_BTRFS_FOLDER)) {
+            try ( DirectoryStream<Path> filesystems = Files.newDirectoryStream(SYS_BTRFS_FOLDER)) {
+                for (var filesystem : filesystems) {
+                    var devices = filesystem.resolve("devices");
+                    if (Files.isDirectory(devices)) {
+                        try ( DirectoryStream<Path> names = Files.newDirectoryStream(devices)) {
+                            names.forEach(name -> uuids.put(name.getFileName().toString(),
+                                    filesystem.getFileName().toString()));
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                LOG.fine("Couldn't read " + SYS_BTRFS_FOLDER + ": " + ex);
+            }
+        }
+        return uuids;
+    }
+
+    /**
+     * Gets the mount that holds a path, the one with the longest mount point
+     * that contains it.
+     *
+     * @param path The path, need not exist
+     * @return The mount
+     */
+    public MountEntry getMountOf(Path path) {
+        Map<Path, MountEntry> mounts;
+        synchronized (this) {
+            mounts = this.byMountPoint;
+        }
+        var absolute = path.toAbsolutePath().normalize();
+        if (Files.exists(absolute)) {
+            try {
+                absolute = absolute.toRealPath();
+            } catch (IOException ex) {
+                LOG.fine("Couldn't resolve " + absolute + ": " + ex);
+            }
+        }
+        for (var current = absolute; current != null; current = current.getParent()) {
+            var entry = mounts.get(current);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        throw new IllegalStateException("No mount holds " + path + ", is / missing from the mount table?");
+    }
+
+    /**
+     * Gets what is mounted at exactly this directory.
+     *
+     * @param mountPoint The directory
+     * @return The mount, if something is mounted there
+     */
+    public synchronized Optional<MountEntry> getMountAt(Path mountPoint) {
+        return Optional.ofNullable(this.byMountPoint.get(mountPoint.toAbsolutePath().normalize()));
+    }
+
+    /**
+     * Gets every mount, in mount order.
+     *
+     * @return The mounts
+     */
+    public synchronized Collection<MountEntry> getMounts() {
+        return new ArrayList<>(this.byMountPoint.values());
+    }
+}
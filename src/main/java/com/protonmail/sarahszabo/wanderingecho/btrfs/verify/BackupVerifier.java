@@ -0,0 +1,113 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.verify;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.ParentResolver;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.archive.ArchiveManifest;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.archive.SendArchive;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.ChecksumChannel;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.StreamPump;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Backup;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Checks that targets still hold the backups the catalog recorded for them.
+ * An archive holds the send stream itself, so it is read back whole and its
+ * length and CRC32C compared with what was sent, on top of the checksums of
+ * its segments or the hashes of its chunks. A btrfs target holds subvolumes
+ * that can't give the stream back byte for byte, there a backup is verified
+ * by the target listing a subvolume received from the snapshot, which btrfs
+ * receive only records once the whole stream arrived.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class BackupVerifier {
+
+    /**
+     * Checks backups against the listing of a btrfs target or a receive agent.
+     *
+     * @param target The name of the target
+     * @param resolver The resolver of what the target holds
+     * @param backups The backups recorded for the target
+     * @return A result for every backup, in the same order
+     */
+    public static List<VerifyResult> verifyListed(String target, ParentResolver resolver, List<Backup> backups) {
+        return backups.stream().map(backup -> resolver.isOnTarget(backup.getParentSnapshot())
+                ? new VerifyResult(target, backup, VerifyResult.Status.VERIFIED, "Received")
+                : new VerifyResult(target, backup, VerifyResult.Status.MISSING, "No subvolume received from it"))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Gets the results of backups on a target that couldn't be reached.
+     *
+     * @param target The name of the target
+     * @param backups The backups recorded for the target
+     * @param reason Why it couldn't be reached
+     * @return A result for every backup, in the same order
+     */
+    public static List<VerifyResult> unreachable(String target, List<Backup> backups, String reason) {
+        return backups.stream().map(backup -> new VerifyResult(target, backup, VerifyResult.Status.UNREACHABLE,
+                reason)).collect(Collectors.toList());
+    }
+
+    /**
+     * Reads an archive back whole and compares it with the backup it was
+     * written for.
+     *
+     * @param folder The folder holding the archives
+     * @param backup The backup recorded for the folder
+     * @return The result
+     */
+    public static VerifyResult verifyArchive(Path folder, Backup backup) {
+        var target = folder.toString();
+        var name = backup.getParentSnapshot().getLocation().getFileName().toString();
+        Optional<ArchiveManifest> manifest;
+        try {
+            manifest = SendArchive.readManifest(folder.resolve(name));
+        } catch (IOException ex) {
+            return new VerifyResult(target, backup, VerifyResult.Status.DAMAGED, "Unreadable manifest: "
+                    + ex.getMessage());
+        }
+        if (manifest.isEmpty()) {
+            return new VerifyResult(target, backup, VerifyResult.Status.MISSING, "No complete archive");
+        }
+        long streamBytes = backup.getStreamBytes().orElse(manifest.get().getStreamBytes());
+        //The catalog has it from the sender, older backups only have the archive's own
+        var checksum = backup.getChecksum().isPresent() ? Optional.of(backup.getChecksum().getAsLong())
+                : manifest.get().getStreamChecksum();
+        try ( var stream = new ChecksumChannel(SendArchive.openStream(folder, manifest.get()))) {
+            var buffer = ByteBuffer.allocateDirect(StreamPump.DEFAULT_BUFFER_SIZE);
+            while (stream.read(buffer) >= 0) {
+                buffer.clear();
+            }
+            if (stream.getBytes() != streamBytes) {
+                return new VerifyResult(target, backup, VerifyResult.Status.DAMAGED, String.format(
+                        "%,d bytes, %,d were sent", stream.getBytes(), streamBytes));
+            }
+            if (checksum.isPresent() && stream.getChecksum() != checksum.get()) {
+                return new VerifyResult(target, backup, VerifyResult.Status.DAMAGED, String.format(
+                        "CRC32C %08x, %08x was sent", stream.getChecksum(), checksum.get()));
+            }
+            return new VerifyResult(target, backup, VerifyResult.Status.VERIFIED, String.format("%,d bytes",
+                    streamBytes) + (checksum.isPresent() ? String.format(", CRC32C %08x", checksum.get())
+                    : ", no stream checksum recorded"));
+        } catch (IOException ex) {
+            return new VerifyResult(target, backup, VerifyResult.Status.DAMAGED, ex.getMessage());
+        }
+    }
+
+    /**
+     * No instances.
+     */
+    private BackupVerifier() {
+    }
+}
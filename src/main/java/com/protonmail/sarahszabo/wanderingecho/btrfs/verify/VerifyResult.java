@@ -0,0 +1,100 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.verify;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Backup;
+
+/**
+ * The outcome of checking that a target still holds one backup.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class VerifyResult {
+
+    /**
+     * What the check found.
+     */
+    public enum Status {
+        /**
+         * The target holds the backup as it was sent.
+         */
+        VERIFIED,
+        /**
+         * The target doesn't hold the backup, or only part of it.
+         */
+        MISSING,
+        /**
+         * The target holds the backup, but not what was sent.
+         */
+        DAMAGED,
+        /**
+         * The target couldn't be reached to check.
+         */
+        UNREACHABLE
+    }
+
+    private final String target;
+    private final Backup backup;
+    private final Status status;
+    private final String detail;
+
+    /**
+     * Creates a new verify result.
+     *
+     * @param target The name of the target
+     * @param backup The backup that was checked
+     * @param status What the check found
+     * @param detail What was checked, or what is wrong
+     */
+    public VerifyResult(String target, Backup backup, Status status, String detail) {
+        this.target = target;
+        this.backup = backup;
+        this.status = status;
+        this.detail = detail;
+    }
+
+    /**
+     * Gets the name of the target.
+     *
+     * @return The target name
+     */
+    public String getTarget() {
+        return this.target;
+    }
+
+    /**
+     * Gets the backup that was checked.
+     *
+     * @return The backup
+     */
+    public Backup getBackup() {
+        return this.backup;
+    }
+
+    /**
+     * Gets what the check found.
+     *
+     * @return The status
+     */
+    public Status getStatus() {
+        return this.status;
+    }
+
+    /**
+     * Checks whether the target holds the backup as it was sent.
+     *
+     * @return True if it does
+     */
+    public boolean isVerified() {
+        return this.status == Status.VERIFIED;
+    }
+
+    @Override
+    public String toString() {
+        return this.status + ": " + this.backup.getParentSnapshot().getLocation().getFileName() + " on "
+                + this.target + ", " + this.detail;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.ui;
+
+import java.nio.file.Path;
+import java.util.Optional;
+import javafx.application.Platform;
+import javafx.scene.control.ButtonType;
+
+/**
+ * The JavaFX dialogs of {@link UI} as a {@link UserInterface}. Loading this
+ * class starts the JavaFX toolkit.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+class JavaFXUserInterface implements UserInterface {
+
+    @Override
+    public Optional<Path> getDirectory(String title, Path initialDirectory) {
+        return UI.getDirectory(title, initialDirectory);
+    }
+
+    @Override
+    public boolean confirm(String title, String message) {
+        return UI.showConfirmationDialog(title, message).filter(button -> button == ButtonType.YES
+                || button == ButtonType.OK).isPresent();
+    }
+
+    @Override
+    public Optional<String> getUserInput(String title, String contextText) {
+        return UI.getUserInput(title, contextText);
+    }
+
+    @Override
+    public void close() {
+        Platform.exit();
+    }
+}
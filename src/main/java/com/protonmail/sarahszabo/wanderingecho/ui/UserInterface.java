@@ -0,0 +1,61 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.ui;
+
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * The questions the program can ask the user during interactive setup. Get the
+ * implementation from {@link UserInterfaceLoader}, so nothing graphical is
+ * loaded unless something is actually asked.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public interface UserInterface {
+
+    /**
+     * Asks the user for a directory.
+     *
+     * @param title The title of the chooser
+     * @param initialDirectory The directory to start in, may be null
+     * @return The chosen directory
+     */
+    Optional<Path> getDirectory(String title, Path initialDirectory);
+
+    /**
+     * Asks the user for a directory.
+     *
+     * @param title The title of the chooser
+     * @return The chosen directory
+     */
+    default Optional<Path> getDirectory(String title) {
+        return getDirectory(title, null);
+    }
+
+    /**
+     * Asks the user a yes or no question.
+     *
+     * @param title The title of the dialog
+     * @param message The question
+     * @return True if the user said yes
+     */
+    boolean confirm(String title, String message);
+
+    /**
+     * Asks the user for some text.
+     *
+     * @param title The title of the dialog
+     * @param contextText The text in the content area
+     * @return The text, if the user entered any
+     */
+    Optional<String> getUserInput(String title, String contextText);
+
+    /**
+     * Shuts the interface down.
+     */
+    void close();
+}
@@ -0,0 +1,49 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.ui;
+
+/**
+ * Loads the user interface the first time it is needed. Headless runs never
+ * call {@link #get()}, so the JavaFX classes are never loaded and no display
+ * is needed.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public final class UserInterfaceLoader {
+
+    /**
+     * The loaded interface, null until something is asked.
+     */
+    private static UserInterface userInterface;
+
+    /**
+     * Gets the user interface, starting it if needed.
+     *
+     * @return The user interface
+     */
+    public static synchronized UserInterface get() {
+        if (userInterface == null) {
+            userInterface = new JavaFXUserInterface();
+        }
+        return userInterface;
+    }
+
+    /**
+     * Shuts the user interface down if it was ever started.
+     */
+    public static synchronized void closeIfLoaded() {
+        if (userInterface != null) {
+            userInterface.close();
+            userInterface = null;
+        }
+    }
+
+    /**
+     * No instances.
+     */
+    private UserInterfaceLoader() {
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.util;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+/**
+ * The tools the engine runs commands with. Every process is started through
+ * {@link EchoUtil}, which swaps btrfs and ssh for the tools given here, so the
+ * whole backup flow can run against stand-ins.
+ * <p>
+ * -Dwanderingecho.btrfs=PATH and -Dwanderingecho.ssh=PATH only swap the tool.
+ * -Dwanderingecho.simulation=FOLDER runs a simulation: FOLDER/btrfs is the
+ * tool unless one is given, as is FOLDER/ssh if it's there, and the mount
+ * folder, the snapshots and the configuration all live in FOLDER, so no root
+ * or btrfs volume is needed.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class CommandBackend {
+
+    /**
+     * The system property naming the btrfs tool.
+     */
+    public static final String BTRFS_PROPERTY = "wanderingecho.btrfs";
+
+    /**
+     * The system property naming the ssh client.
+     */
+    public static final String SSH_PROPERTY = "wanderingecho.ssh";
+
+    /**
+     * The system property naming the folder of a simulation.
+     */
+    public static final String SIMULATION_PROPERTY = "wanderingecho.simulation";
+
+    /**
+     * The name commands use for the btrfs tool.
+     */
+    private static final String BTRFS = "btrfs";
+
+    /**
+     * The name commands use for the ssh client.
+     */
+    private static final String SSH = "ssh";
+
+    private static final CommandBackend SYSTEM = fromProperties();
+
+    private final String btrfsCommand;
+    private final String sshCommand;
+    private final Path simulationFolder;
+
+    /**
+     * Creates a new backend.
+     *
+     * @param btrfsCommand The btrfs tool to run
+     * @param simulationFolder The folder of the simulation, null if this isn't
+     * one
+     */
+    public CommandBackend(String btrfsCommand, Path simulationFolder) {
+        this(btrfsCommand, SSH, simulationFolder);
+    }
+
+    /**
+     * Creates a new backend.
+     *
+     * @param btrfsCommand The btrfs tool to run
+     * @param sshCommand The ssh client to run
+     * @param simulationFolder The folder of the simulation, null if this isn't
+     * one
+     */
+    public CommandBackend(String btrfsCommand, String sshCommand, Path simulationFolder) {
+        this.btrfsCommand = btrfsCommand;
+        this.sshCommand = sshCommand;
+        this.simulationFolder = simulationFolder;
+    }
+
+    /**
+     * Gets the backend of this run, from the system properties.
+     *
+     * @return The backend
+     */
+    public static CommandBackend system() {
+        return SYSTEM;
+    }
+
+    /**
+     * Reads the backend from the system properties.
+     *
+     * @return The backend
+     */
+    private static CommandBackend fromProperties() {
+        var simulation = System.getProperty(SIMULATION_PROPERTY);
+        var simulationFolder = simulation == null ? null : Paths.get(simulation).toAbsolutePath();
+        var btrfs = System.getProperty(BTRFS_PROPERTY, simulationFolder == null ? BTRFS
+                : simulationFolder.resolve(BTRFS).toString());
+        //A simulation may reach its remote targets through a stand-in too
+        var ssh = System.getProperty(SSH_PROPERTY, simulationFolder != null && Files.isExecutable(simulationFolder
+                .resolve(SSH)) ? simulationFolder.resolve(SSH).toString() : SSH);
+        return new CommandBackend(btrfs, ssh, simulationFolder);
+    }
+
+    /**
+     * Gets the btrfs tool to run.
+     *
+     * @return The command, btrfs unless swapped
+     */
+    public String getBTRFSCommand() {
+        return this.btrfsCommand;
+    }
+
+    /**
+     * Gets the ssh client to run.
+     *
+     * @return The command, ssh unless swapped
+     */
+    public String getSSHCommand() {
+        return this.sshCommand;
+    }
+
+    /**
+     * Checks whether this is a simulation.
+     *
+     * @return True if it is
+     */
+    public boolean isSimulated() {
+        return this.simulationFolder != null;
+    }
+
+    /**
+     * Gets the folder of the simulation.
+     *
+     * @return The folder, empty if this isn't a simulation
+     */
+    public Optional<Path> getSimulationFolder() {
+        return Optional.ofNullable(this.simulationFolder);
+    }
+
+    /**
+     * Swaps the tool of a command for the one of this backend.
+     *
+     * @param command The command, e.g. btrfs send X
+     * @return The command to run
+     */
+    public String[] resolve(String... command) {
+        if (command.length == 0) {
+            return command;
+        }
+        var tool = command[0].equals(BTRFS) ? this.btrfsCommand : command[0].equals(SSH) ? this.sshCommand
+                : command[0];
+        if (tool.equals(command[0])) {
+            return command;
+        }
+        var resolved = command.clone();
+        resolved[0] = tool;
+        return resolved;
+    }
+
+    @Override
+    public String toString() {
+        return "btrfs: " + this.btrfsCommand + (this.sshCommand.equals(SSH) ? "" : ", ssh: " + this.sshCommand)
+                + (isSimulated() ? ", Simulation in " + this.simulationFolder : "");
+    }
+}
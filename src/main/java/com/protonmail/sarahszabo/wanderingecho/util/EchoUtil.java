@@ -8,6 +8,7 @@ package com.protonmail.sarahszabo.wanderingecho.util;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
@@ -29,6 +30,11 @@ public class EchoUtil {
      * The temporary directory
      */
     public static final Path TEMP_DIRECTORY;
+
+    /**
+     * The status file of our own process.
+     */
+    private static final Path PROC_SELF_STATUS = Paths.get("/proc/self/status");
     private static final Logger logger = Logger.getLogger(EchoUtil.class.getName());
 
     static {
@@ -49,7 +55,7 @@ public class EchoUtil {
      * @param commands The commands to execute
      * @param inheritIO Merge the process streams?
      * @throws IOException InterruptedException If something went wrong
-     * @return Whether or not the operation timed out or not
+     * @return True if the operation timed out or failed
      */
     public static boolean processOP(List<String> commands, boolean inheritIO) throws IOException {
         return processOP(inheritIO, commands.toArray(new String[4]));
@@ -62,7 +68,7 @@ public class EchoUtil {
      * @param directory The directory to be in
      * @param commands The commands to execute
      * @throws IOException InterruptedException If something went wrong
-     * @return Whether or not the operation timed out or not
+     * @return True if the operation timed out or failed
      */
     public static boolean processOP(Path directory, String... commands) throws IOException {
         return processOP(false, null, TEMP_DIRECTORY, commands);
@@ -73,7 +79,7 @@ public class EchoUtil {
      * completion. Does not inherit IO.
      *
      * @param commands The commands to execute
-     * @return Whether or not the operation timed out or not
+     * @return True if the operation timed out or failed
      */
     public static boolean processOPNOE(String... commands) {
         try {
@@ -90,7 +96,7 @@ public class EchoUtil {
      *
      * @param commands The commands to execute
      * @throws IOException InterruptedException If something went wrong
-     * @return Whether or not the operation timed out or not
+     * @return True if the operation timed out or failed
      */
     public static boolean processOP(String... commands) throws IOException {
         return processOP(true, commands);
@@ -98,7 +104,7 @@ public class EchoUtil {
 
     /**
      * Launches a new process in the temp directory, and waits for its
-     * completion.
+     * completion. A process still running after 30 seconds is killed.
      *
      * @param inheritIO Should the streams be merged
      * @param redirect The path to direct output from the process to, if null,
@@ -106,7 +112,8 @@ public class EchoUtil {
      * @param directory The directory to be in
      * @param commands The commands to execute
      * @throws IOException InterruptedException If something went wrong
-     * @return Whether or not the operation timed out or not
+     * @return True if the operation timed out and was killed, or failed with a
+     * non-zero exit status, false only if it completed cleanly
      */
     public static boolean processOP(boolean inheritIO, Path redirect, Path directory, String... commands) throws IOException {
         ProcessBuilder builder = processOPBuilder(inheritIO, redirect, directory, commands);
@@ -115,13 +122,21 @@ public class EchoUtil {
         //Actually do it
         Process proc = builder.start();
         try {
-            proc.waitFor(30, TimeUnit.SECONDS);
-            if (proc.isAlive()) {
-                proc.destroyForcibly();
+            if (!proc.waitFor(30, TimeUnit.SECONDS)) {
+                logger.warning("COMMAND: Timed out, killing " + builder.command().get(0));
+                proc.destroyForcibly().waitFor();
+                return true;
+            }
+            if (proc.exitValue() != 0) {
+                logger.warning("COMMAND: " + builder.command().get(0) + " exited with " + proc.exitValue());
                 return true;
             }
         } catch (InterruptedException ex) {
             Logger.getLogger(EchoUtil.class.getName()).log(Level.SEVERE, null, ex);
+            //We don't know how it went, so it didn't go well
+            proc.destroyForcibly();
+            Thread.currentThread().interrupt();
+            return true;
         }
         return false;
     }
@@ -135,7 +150,7 @@ public class EchoUtil {
      * prints to terminal
      * @param commands The commands to execute
      * @throws IOException InterruptedException If something went wrong
-     * @return Whether or not the operation timed out or not
+     * @return True if the operation timed out or failed
      */
     public static boolean processOP(boolean inheritIO, Path redirect, String... commands) throws IOException {
         return processOP(inheritIO, redirect, TEMP_DIRECTORY, commands);
@@ -148,7 +163,7 @@ public class EchoUtil {
      * @param inheritIO Should the streams be merged
      * @param commands The commands to execute
      * @throws IOException InterruptedException If something went wrong
-     * @return Whether or not the operation timed out or not
+     * @return True if the operation timed out or failed
      */
     public static boolean processOP(boolean inheritIO, String... commands) throws IOException {
         return processOP(inheritIO, null, commands);
@@ -201,7 +216,8 @@ public class EchoUtil {
      * @return The process builder with these properties
      */
     public static ProcessBuilder processOPBuilder(boolean inheritIO, Path redirect, Path directory, String... commands) {
-        ProcessBuilder builder = new ProcessBuilder(commands).directory(directory.toFile());
+        ProcessBuilder builder = new ProcessBuilder(CommandBackend.system().resolve(commands))
+                .directory(directory.toFile());
         if (inheritIO) {
             builder = builder.inheritIO();
 
@@ -237,9 +253,28 @@ public class EchoUtil {
      * @return The process builder with these properties
      */
     public static ProcessBuilder processOPBuilder(boolean inheritIO, String... commands) {
-        return inheritIO ? new ProcessBuilder(commands)
+        //btrfs may be swapped for a stand-in
+        var resolved = CommandBackend.system().resolve(commands);
+        return inheritIO ? new ProcessBuilder(resolved)
                 .directory(TEMP_DIRECTORY.toFile()).inheritIO()
-                : new ProcessBuilder(commands).directory(TEMP_DIRECTORY.toFile());
+                : new ProcessBuilder(resolved).directory(TEMP_DIRECTORY.toFile());
+    }
+
+    /**
+     * Gets the effective user ID of this process from /proc, without starting
+     * a process.
+     *
+     * @return The effective user ID, 0 for root
+     * @throws IOException If /proc couldn't be read
+     */
+    public static int getEffectiveUserID() throws IOException {
+        //Line: Uid:    REAL    EFFECTIVE    SAVED    FILESYSTEM
+        for (var line : Files.readAllLines(PROC_SELF_STATUS)) {
+            if (line.startsWith("Uid:")) {
+                return Integer.parseInt(line.substring(4).trim().split("\\s+")[1]);
+            }
+        }
+        throw new IOException("No Uid line in " + PROC_SELF_STATUS);
     }
 
     /**
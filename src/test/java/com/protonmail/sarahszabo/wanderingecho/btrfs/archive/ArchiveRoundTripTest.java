@@ -0,0 +1,174 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.archive;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.Codec;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.CompressionSettings;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that a stream written into an archive reads back byte for byte across
+ * its segments, raw or compressed, and that damaged segments are rejected.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class ArchiveRoundTripTest {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    private static final String FULL = "home___2026-10-17";
+    private static final String INCREMENTAL = "home___2026-10-18";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path target;
+
+    @Before
+    public void setUp() throws IOException {
+        this.target = this.folder.newFolder("Backups").toPath();
+    }
+
+    /**
+     * Gets data that is the same on every run and compresses somewhat: random
+     * bytes from a small alphabet.
+     */
+    private static byte[] randomData(int length, long seed) {
+        var data = new byte[length];
+        var random = new Random(seed);
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return data;
+    }
+
+    /**
+     * Writes a stream into an archive of the test target.
+     */
+    private ArchiveManifest archive(byte[] data, String name, String parentName, CompressionSettings compression)
+            throws IOException {
+        return SendArchive.receive(Channels.newChannel(new ByteArrayInputStream(data)), name,
+                Paths.get("/mnt/pool/home"), null, parentName, null, this.target, compression, SEGMENT_SIZE,
+                null);
+    }
+
+    /**
+     * Reads the stream of an archive of the test target.
+     */
+    private byte[] readBack(ArchiveManifest manifest) throws IOException {
+        var stream = new ByteArrayOutputStream();
+        try ( var source = SendArchive.openStream(this.target, manifest)) {
+            var buffer = ByteBuffer.allocate(10000);
+            while (source.read(buffer.clear()) >= 0) {
+                stream.write(buffer.array(), 0, buffer.position());
+            }
+        }
+        return stream.toByteArray();
+    }
+
+    @Test
+    public void testRawRoundTrip() throws IOException {
+        var data = randomData(3 * SEGMENT_SIZE + 1234, 1);
+        var manifest = archive(data, FULL, null, null);
+        assertEquals(4, manifest.getSegmentLengths().size());
+        assertEquals(data.length, manifest.getStreamBytes());
+        //What was written is what is read back from disk
+        assertEquals(manifest.getSegmentChecksums(), SendArchive.readManifest(this.target.resolve(FULL)).get()
+                .getSegmentChecksums());
+        assertArrayEquals(data, readBack(manifest));
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws IOException {
+        //Small blocks, so every segment holds many of them
+        var compression = new CompressionSettings(Codec.ZSTD, null, 4 << 10, 2);
+        var data = randomData(5 * SEGMENT_SIZE + 99, 2);
+        var manifest = archive(data, FULL, null, compression);
+        assertEquals(Optional.of(Codec.ZSTD), manifest.getCodec());
+        assertEquals(6, manifest.getSegmentLengths().size());
+        //Every segment is compressed on its own, the reader goes through all of them as one stream
+        long stored = manifest.getSegmentLengths().stream().mapToLong(Long::longValue).sum();
+        assertTrue(stored + " Bytes stored", stored < data.length);
+        assertArrayEquals(data, readBack(manifest));
+    }
+
+    @Test
+    public void testChain() throws IOException {
+        var full = randomData(2 * SEGMENT_SIZE, 3);
+        var incremental = randomData(SEGMENT_SIZE / 2, 4);
+        archive(full, FULL, null, null);
+        archive(incremental, INCREMENTAL, FULL, null);
+        var chain = SendArchive.getChain(this.target.resolve(INCREMENTAL));
+        assertEquals(2, chain.size());
+        assertEquals(FULL, chain.get(0).getSnapshot());
+        assertEquals(INCREMENTAL, chain.get(1).getSnapshot());
+        assertArrayEquals(full, readBack(chain.get(0)));
+        assertArrayEquals(incremental, readBack(chain.get(1)));
+        assertEquals(2, SendArchive.listArchives(this.target).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testBrokenChain() throws IOException {
+        archive(randomData(1000, 5), INCREMENTAL, FULL, null);
+        SendArchive.getChain(this.target.resolve(INCREMENTAL));
+    }
+
+    @Test
+    public void testDamagedSegment() throws IOException {
+        var data = randomData(2 * SEGMENT_SIZE + 10, 6);
+        var manifest = archive(data, FULL, null, null);
+        var segment = this.target.resolve(FULL).resolve(SegmentWriter.getSegmentName(1));
+        var bytes = Files.readAllBytes(segment);
+        bytes[100] ^= 1;
+        Files.write(segment, bytes);
+        try {
+            readBack(manifest);
+            fail("A damaged segment was read");
+        } catch (IOException ex) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void testTruncatedSegment() throws IOException {
+        var manifest = archive(randomData(2 * SEGMENT_SIZE + 10, 7), FULL, null, null);
+        var segment = this.target.resolve(FULL).resolve(SegmentWriter.getSegmentName(0));
+        var bytes = Files.readAllBytes(segment);
+        Files.write(segment, Arrays.copyOf(bytes, bytes.length - 1));
+        try {
+            readBack(manifest);
+            fail("A truncated segment was read");
+        } catch (IOException ex) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void testIncompleteArchiveIsNotListed() throws IOException {
+        archive(randomData(1000, 8), FULL, null, null);
+        Files.delete(this.target.resolve(FULL).resolve(SendArchive.MANIFEST_FILE_NAME));
+        assertEquals(List.of(), SendArchive.listArchives(this.target));
+        assertEquals(Optional.empty(), SendArchive.readManifest(this.target.resolve(FULL)));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that a send which fails partway leaves the finished segments of an
+ * archive and their checkpoint alone, and that the next attempt resumes after
+ * them.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class SegmentResumeTest {
+
+    private static final int SEGMENT_SIZE = 100000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path archive;
+    private Path stream;
+    private byte[] data;
+    private List<Long> checkpointLengths;
+    private List<Long> checkpointChecksums;
+
+    @Before
+    public void setUp() throws IOException {
+        this.archive = this.folder.newFolder("home___2026-10-18").toPath();
+        this.data = new byte[3 * SEGMENT_SIZE + SEGMENT_SIZE / 2];
+        new Random(7).nextBytes(this.data);
+        this.stream = this.folder.getRoot().toPath().resolve("stream");
+        Files.write(this.stream, this.data);
+        this.checkpointLengths = List.of();
+        this.checkpointChecksums = List.of();
+    }
+
+    /**
+     * Creates a writer of the test archive that records its checkpoints, after
+     * the segments of the last checkpoint.
+     */
+    private SegmentWriter writer() {
+        return new SegmentWriter(this.archive, SEGMENT_SIZE, null, (lengths, checksums) -> {
+            this.checkpointLengths = List.copyOf(lengths);
+            this.checkpointChecksums = List.copyOf(checksums);
+        }, this.checkpointLengths, this.checkpointChecksums);
+    }
+
+    /**
+     * Gets a command that sends the start of the test stream, then fails.
+     *
+     * @param bytes How many bytes it sends
+     */
+    private List<String> failingSend(int bytes) {
+        return List.of("sh", "-c", "head -c " + bytes + " \"$0\"; exit 1", this.stream.toString());
+    }
+
+    /**
+     * Gets a command that sends the whole test stream.
+     */
+    private List<String> send() {
+        return List.of("cat", this.stream.toString());
+    }
+
+    /**
+     * Reads the segments of the test archive.
+     */
+    private List<byte[]> readSegments() throws IOException {
+        var segments = new ArrayList<byte[]>();
+        for (int i = 0; Files.exists(this.archive.resolve(SegmentWriter.getSegmentName(i))); i++) {
+            segments.add(Files.readAllBytes(this.archive.resolve(SegmentWriter.getSegmentName(i))));
+        }
+        return segments;
+    }
+
+    @Test
+    public void testFailedSendKeepsOnlyFinishedSegments() throws IOException {
+        var result = SendArchive.sendInto(failingSend(2 * SEGMENT_SIZE + SEGMENT_SIZE / 2), writer(), List.of());
+        assertFalse(result.isSuccessful());
+        assertEquals(List.of((long) SEGMENT_SIZE, (long) SEGMENT_SIZE), this.checkpointLengths);
+        //The half segment after them is gone
+        assertEquals(2, readSegments().size());
+    }
+
+    @Test
+    public void testResumeKeepsFinishedSegments() throws IOException {
+        SendArchive.sendInto(failingSend(2 * SEGMENT_SIZE + SEGMENT_SIZE / 2), writer(), List.of());
+        var finished = readSegments();
+        var resumed = writer();
+        var result = SendArchive.sendInto(send(), resumed, List.of());
+        assertTrue(result.isSuccessful());
+        assertEquals(this.data.length, result.getBytes());
+        var segments = readSegments();
+        assertEquals(4, segments.size());
+        assertEquals(segments.size(), resumed.getSegmentLengths().size());
+        for (int i = 0; i < finished.size(); i++) {
+            assertArrayEquals("Segment " + i, finished.get(i), segments.get(i));
+        }
+        var whole = new ByteArrayOutputStream();
+        for (var segment : segments) {
+            whole.write(segment);
+        }
+        assertArrayEquals(this.data, whole.toByteArray());
+    }
+
+    @Test
+    public void testFailureOnASegmentBoundary() throws IOException {
+        SendArchive.sendInto(failingSend(SEGMENT_SIZE), writer(), List.of());
+        assertEquals(1, this.checkpointLengths.size());
+        var result = SendArchive.sendInto(send(), writer(), List.of());
+        assertTrue(result.isSuccessful());
+        assertEquals(4, readSegments().size());
+    }
+
+    @Test(expected = SegmentWriter.StreamChangedException.class)
+    public void testShorterStreamIsNoResume() throws IOException {
+        SendArchive.sendInto(failingSend(2 * SEGMENT_SIZE + 10), writer(), List.of());
+        Files.write(this.stream, new byte[SEGMENT_SIZE / 2]);
+        SendArchive.sendInto(send(), writer(), List.of());
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.catalog;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Backup;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Snapshot;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.stream.Collectors;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that a {@link SnapshotCatalog} reads back what it wrote, upgrades the
+ * catalogs of older versions and cuts off a record torn by a crash.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class SnapshotCatalogTest {
+
+    /**
+     * The magic of the current format, and of the first two that only had
+     * snapshot and delete records.
+     */
+    private static final int FILE_MAGIC = 0x57454303;
+    private static final int FILE_MAGIC_V1 = 0x57454301;
+    private static final int FILE_MAGIC_V2 = 0x57454302;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().findAndRegisterModules();
+    private static final Path SUBVOLUME = Paths.get("/mnt/pool/home");
+    private static final Path SNAPSHOTS = Paths.get("/mnt/pool/Snapshots");
+    private static final String TARGET = "/media/backup";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+
+    @Before
+    public void setUp() {
+        this.file = this.folder.getRoot().toPath().resolve("Snapshot Catalog.dat");
+    }
+
+    /**
+     * Creates a snapshot of the test subvolume, the way the catalog reads one
+     * back.
+     *
+     * @param creationDate When it was created
+     * @return The snapshot
+     */
+    private static Snapshot snapshot(String creationDate) throws IOException {
+        return snapshot(SUBVOLUME, creationDate);
+    }
+
+    /**
+     * Creates a snapshot of a subvolume, the way the catalog reads one back.
+     *
+     * @param subvolume The subvolume
+     * @param creationDate When it was created
+     * @return The snapshot
+     */
+    private static Snapshot snapshot(Path subvolume, String creationDate) throws IOException {
+        var name = subvolume.getFileName().toString();
+        var node = MAPPER.createObjectNode();
+        node.put("BTRFSPhysicalLocationItem", "Snapshot");
+        node.put("of", subvolume.toUri().toString());
+        node.put("location", SNAPSHOTS.resolve(name + "___" + creationDate).toUri().toString());
+        node.put("name", name);
+        node.put("creationDate", creationDate);
+        var parent = node.putObject("parentSubvolume");
+        parent.put("BTRFSPhysicalLocationItem", "Subvolume");
+        parent.put("location", subvolume.toUri().toString());
+        parent.put("name", name);
+        return MAPPER.treeToValue(node, Snapshot.class);
+    }
+
+    /**
+     * Opens the test catalog.
+     */
+    private SnapshotCatalog open() throws IOException {
+        return SnapshotCatalog.open(this.file, MAPPER);
+    }
+
+    /**
+     * Overwrites the magic of the test catalog, as an older version wrote it.
+     */
+    private void writeMagic(int magic) throws IOException {
+        try ( var channel = FileChannel.open(this.file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, magic), 0);
+        }
+    }
+
+    /**
+     * Reads the magic of the test catalog.
+     */
+    private int readMagic() throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(this.file)).getInt(0);
+    }
+
+    /**
+     * Appends the start of a snapshot record, as a crash in the middle of an
+     * append leaves it.
+     *
+     * @param bytes How many bytes of the record to write
+     */
+    private void appendTornRecord(int bytes) throws IOException {
+        var subvolume = SUBVOLUME.toString().getBytes(StandardCharsets.UTF_8);
+        var location = SNAPSHOTS.resolve("home___torn").toString().getBytes(StandardCharsets.UTF_8);
+        var body = new byte[100];
+        var record = ByteBuffer.allocate(1 + 4 + 8 + 2 + 2 + subvolume.length + location.length + body.length)
+                .put(SnapshotCatalog.SNAPSHOT_RECORD).putInt(body.length).putLong(System.currentTimeMillis())
+                .putShort((short) subvolume.length).putShort((short) location.length)
+                .put(subvolume).put(location).put(body).flip();
+        Files.write(this.file, Arrays.copyOf(record.array(), bytes), StandardOpenOption.APPEND);
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        var first = snapshot("2026-10-17T10:00:00Z");
+        var second = snapshot("2026-10-18T10:00:00Z");
+        try ( var catalog = open()) {
+            catalog.append(first);
+            catalog.append(second);
+            catalog.appendBackup(TARGET, new Backup(Paths.get(TARGET).resolve("home___2026-10-18T10:00:00Z"),
+                    second, second.getCreationDate(), 4096L, 0x1234L));
+            catalog.remove(List.of(first));
+        }
+        try ( var catalog = open()) {
+            assertEquals(1, catalog.size());
+            assertEquals(Optional.empty(), catalog.getSnapshot(first.getLocation()));
+            assertEquals(Optional.of(second), catalog.getLatestSnapshotOf(SUBVOLUME, null));
+            var backup = catalog.getLatestBackupOf(TARGET, SUBVOLUME);
+            assertTrue(backup.isPresent());
+            assertEquals(second, backup.get().getParentSnapshot());
+            assertEquals(OptionalLong.of(4096), backup.get().getStreamBytes());
+            assertEquals(OptionalLong.of(0x1234), backup.get().getChecksum());
+        }
+    }
+
+    @Test
+    public void testUpgradeFromVersion1() throws IOException {
+        var snapshot = snapshot("2026-10-18T10:00:00Z");
+        try ( var catalog = open()) {
+            catalog.append(snapshot);
+        }
+        writeMagic(FILE_MAGIC_V1);
+        try ( var catalog = open()) {
+            assertEquals(FILE_MAGIC, readMagic());
+            assertEquals(Optional.of(snapshot), catalog.getSnapshot(snapshot.getLocation()));
+            //Backup records can follow once it is upgraded
+            catalog.appendBackup(TARGET, new Backup(Paths.get(TARGET).resolve("home"), snapshot,
+                    snapshot.getCreationDate()));
+        }
+        try ( var catalog = open()) {
+            assertEquals(List.of(TARGET), catalog.getBackupTargets());
+            assertEquals(OptionalLong.empty(), catalog.getBackupsOn(TARGET).get(0).getStreamBytes());
+        }
+    }
+
+    @Test
+    public void testUpgradeFromVersion2() throws IOException {
+        var first = snapshot("2026-10-17T10:00:00Z");
+        var second = snapshot("2026-10-18T10:00:00Z");
+        try ( var catalog = open()) {
+            catalog.append(first);
+            catalog.append(second);
+            catalog.remove(List.of(second));
+        }
+        writeMagic(FILE_MAGIC_V2);
+        try ( var catalog = open()) {
+            assertEquals(FILE_MAGIC, readMagic());
+            assertEquals(1, catalog.size());
+            assertEquals(Optional.of(first), catalog.getLatestSnapshotOf(SUBVOLUME, null));
+        }
+    }
+
+    @Test
+    public void testTornRecordIsCutOff() throws IOException {
+        var snapshot = snapshot("2026-10-18T10:00:00Z");
+        try ( var catalog = open()) {
+            catalog.append(snapshot);
+        }
+        long size = Files.size(this.file);
+        //The header and the keys made it, the body didn't
+        appendTornRecord(60);
+        try ( var catalog = open()) {
+            assertEquals(size, Files.size(this.file));
+            assertEquals(1, catalog.size());
+        }
+    }
+
+    @Test
+    public void testTornHeaderIsCutOff() throws IOException {
+        var snapshot = snapshot("2026-10-18T10:00:00Z");
+        try ( var catalog = open()) {
+            catalog.append(snapshot);
+        }
+        long size = Files.size(this.file);
+        appendTornRecord(5);
+        try ( var catalog = open()) {
+            assertEquals(size, Files.size(this.file));
+            assertEquals(Optional.of(snapshot), catalog.getSnapshot(snapshot.getLocation()));
+        }
+    }
+
+    @Test
+    public void testAppendAfterTornRecord() throws IOException {
+        var first = snapshot("2026-10-17T10:00:00Z");
+        var second = snapshot("2026-10-18T10:00:00Z");
+        try ( var catalog = open()) {
+            catalog.append(first);
+        }
+        appendTornRecord(60);
+        try ( var catalog = open()) {
+            catalog.append(second);
+        }
+        try ( var catalog = open()) {
+            assertEquals(2, catalog.size());
+            assertEquals(Optional.of(second), catalog.getLatestSnapshotOf(SUBVOLUME, null));
+        }
+    }
+
+    @Test
+    public void testUpgradeWithTornRecord() throws IOException {
+        var snapshot = snapshot("2026-10-18T10:00:00Z");
+        try ( var catalog = open()) {
+            catalog.append(snapshot);
+        }
+        long size = Files.size(this.file);
+        writeMagic(FILE_MAGIC_V1);
+        appendTornRecord(60);
+        try ( var catalog = open()) {
+            assertEquals(FILE_MAGIC, readMagic());
+            assertEquals(size, Files.size(this.file));
+            assertEquals(Optional.of(snapshot), catalog.getSnapshot(snapshot.getLocation()));
+        }
+    }
+
+    @Test
+    public void testSnapshotsAreIndexedBySubvolume() throws IOException {
+        var root = Paths.get("/mnt/pool/root");
+        try ( var catalog = open()) {
+            catalog.append(snapshot("2026-10-16T10:00:00Z"));
+            catalog.append(snapshot(root, "2026-10-17T10:00:00Z"));
+            catalog.append(snapshot("2026-10-18T10:00:00Z"));
+            catalog.append(snapshot("2026-10-17T10:00:00Z"));
+            assertEquals(4, catalog.size());
+            //Newest first, whatever order they were appended in
+            assertEquals(List.of(snapshot("2026-10-18T10:00:00Z"), snapshot("2026-10-17T10:00:00Z"),
+                    snapshot("2026-10-16T10:00:00Z")), catalog.streamSnapshotsOf(SUBVOLUME)
+                    .collect(Collectors.toList()));
+            assertEquals(List.of(snapshot(root, "2026-10-17T10:00:00Z")), catalog.streamSnapshotsOf(root)
+                    .collect(Collectors.toList()));
+            assertEquals(0, catalog.streamSnapshotsOf(Paths.get("/mnt/pool/var")).count());
+        }
+    }
+
+    @Test
+    public void testLatestSnapshotSkipsTheExcludedOne() throws IOException {
+        var latest = snapshot("2026-10-18T10:00:00Z");
+        try ( var catalog = open()) {
+            catalog.append(snapshot("2026-10-17T10:00:00Z"));
+            catalog.append(latest);
+            assertEquals(Optional.of(latest), catalog.getLatestSnapshotOf(SUBVOLUME, null));
+            assertEquals(Optional.of(snapshot("2026-10-17T10:00:00Z")), catalog.getLatestSnapshotOf(SUBVOLUME,
+                    latest.getLocation()));
+            assertEquals(Optional.empty(), catalog.getLatestSnapshotOf(Paths.get("/mnt/pool/var"), null));
+        }
+    }
+
+    @Test
+    public void testRangeIsInclusive() throws IOException {
+        try ( var catalog = open()) {
+            for (var creationDate : List.of("2026-10-15T10:00:00Z", "2026-10-16T10:00:00Z", "2026-10-17T10:00:00Z",
+                    "2026-10-18T10:00:00Z")) {
+                catalog.append(snapshot(creationDate));
+            }
+            assertEquals(List.of(snapshot("2026-10-16T10:00:00Z"), snapshot("2026-10-17T10:00:00Z")),
+                    catalog.getSnapshotsOf(SUBVOLUME, ZonedDateTime.parse("2026-10-16T10:00:00Z"),
+                            ZonedDateTime.parse("2026-10-17T10:00:00Z")));
+        }
+    }
+
+    @Test
+    public void testSnapshotsOfTheSameTime() throws IOException {
+        var first = snapshot("2026-10-18T10:00:00Z");
+        //Another location, the same millisecond
+        var second = snapshot("2026-10-18T10:00:00.000Z");
+        try ( var catalog = open()) {
+            catalog.append(first);
+            catalog.append(second);
+            catalog.remove(List.of(second));
+            assertEquals(List.of(first), catalog.streamSnapshotsOf(SUBVOLUME).collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testReadsRecordsAppendedAfterOpening() throws IOException {
+        var latest = ZonedDateTime.parse("2026-10-18T10:00:00Z");
+        try ( var catalog = open()) {
+            //Far more than the file held when it was mapped
+            for (int i = 0; i < 500; i++) {
+                catalog.append(snapshot(latest.minusHours(i).toString()));
+            }
+            assertEquals(500, catalog.size());
+            assertEquals(Optional.of(snapshot(latest.minusHours(499).toString())), catalog.getSnapshot(
+                    snapshot(latest.minusHours(499).toString()).getLocation()));
+            assertEquals(Optional.of(snapshot(latest.toString())), catalog.getLatestSnapshotOf(SUBVOLUME, null));
+        }
+    }
+
+    @Test
+    public void testMigrate() throws IOException {
+        var associations = this.folder.newFolder("Snapshot Associations").toPath();
+        var first = snapshot("2026-10-17T10:00:00Z");
+        var second = snapshot("2026-10-18T10:00:00Z");
+        MAPPER.writeValue(associations.resolve("home___2026-10-18.JSON").toFile(), second);
+        MAPPER.writeValue(associations.resolve("home___2026-10-17.JSON").toFile(), first);
+        try ( var catalog = open()) {
+            assertEquals(2, catalog.migrate(associations));
+            assertEquals(Optional.of(second), catalog.getLatestSnapshotOf(SUBVOLUME, null));
+            //Only migrated once
+            assertTrue(Files.notExists(associations));
+            assertEquals(0, catalog.migrate(associations));
+        }
+        try ( var catalog = open()) {
+            assertEquals(2, catalog.size());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherFiles() throws IOException {
+        Files.write(this.file, "Not a catalog".getBytes(StandardCharsets.UTF_8));
+        open().close();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests that what a {@link BlockCompressor} writes a
+ * {@link BlockDecompressor} reads back, for both codecs, partial blocks and
+ * compressed streams written one after another, like archive segments.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class BlockCompressorTest {
+
+    private static final int BLOCK_SIZE = 4 << 10;
+
+    /**
+     * Gets data that is the same on every run and compresses somewhat: random
+     * bytes from a small alphabet.
+     */
+    private static byte[] randomData(int length, long seed) {
+        var data = new byte[length];
+        var random = new Random(seed);
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return data;
+    }
+
+    /**
+     * Gets small blocks on a few threads, so a test stream has many blocks in
+     * flight at once.
+     */
+    private static CompressionSettings settings(Codec codec) {
+        return new CompressionSettings(codec, null, BLOCK_SIZE, 3);
+    }
+
+    /**
+     * Compresses data, writing it in uneven pieces.
+     */
+    private static byte[] compress(byte[] data, CompressionSettings settings) throws IOException {
+        var compressed = new ByteArrayOutputStream();
+        var compressor = new BlockCompressor(Channels.newChannel(compressed), settings);
+        for (int position = 0; position < data.length; position += 1000) {
+            compressor.write(ByteBuffer.wrap(data, position, Math.min(1000, data.length - position)));
+        }
+        //The last blocks are only written on close
+        compressor.close();
+        assertEquals(data.length, compressor.getRawBytes());
+        assertEquals(compressed.size(), compressor.getCompressedBytes());
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Decompresses a stream, reading it in uneven pieces.
+     */
+    private static byte[] decompress(byte[] compressed) throws IOException {
+        var data = new ByteArrayOutputStream();
+        try ( var decompressor = new BlockDecompressor(Channels.newChannel(new ByteArrayInputStream(compressed)),
+                3)) {
+            var buffer = ByteBuffer.allocate(777);
+            while (decompressor.read(buffer.clear()) >= 0) {
+                data.write(buffer.array(), 0, buffer.position());
+            }
+        }
+        return data.toByteArray();
+    }
+
+    /**
+     * Joins streams into one.
+     */
+    private static byte[] concatenate(byte[]... streams) throws IOException {
+        var whole = new ByteArrayOutputStream();
+        for (var stream : streams) {
+            whole.write(stream);
+        }
+        return whole.toByteArray();
+    }
+
+    @Test
+    public void testZstdRoundTrip() throws IOException {
+        //Not a multiple of the block size, the last block is partial
+        var data = randomData(50 * BLOCK_SIZE + 123, 1);
+        var compressed = compress(data, settings(Codec.ZSTD));
+        assertTrue(compressed.length + " compressed bytes", compressed.length < data.length);
+        assertArrayEquals(data, decompress(compressed));
+    }
+
+    @Test
+    public void testLz4RoundTrip() throws IOException {
+        var data = randomData(50 * BLOCK_SIZE + 123, 2);
+        assertArrayEquals(data, decompress(compress(data, settings(Codec.LZ4))));
+    }
+
+    @Test
+    public void testEmptyStream() throws IOException {
+        var compressed = compress(new byte[0], settings(Codec.ZSTD));
+        assertEquals(0, compressed.length);
+        assertEquals(0, decompress(compressed).length);
+    }
+
+    @Test
+    public void testConcatenatedStreams() throws IOException {
+        //Archive segments are compressed separately and read back as one stream
+        var first = randomData(10 * BLOCK_SIZE + 5, 3);
+        var second = randomData(BLOCK_SIZE / 2, 4);
+        var third = randomData(7 * BLOCK_SIZE, 5);
+        var compressed = concatenate(compress(first, settings(Codec.ZSTD)), compress(second, settings(Codec.ZSTD)),
+                compress(third, settings(Codec.LZ4)));
+        assertArrayEquals(concatenate(first, second, third), decompress(compressed));
+    }
+
+    @Test
+    public void testSharedWorkers() throws IOException {
+        var settings = settings(Codec.ZSTD);
+        var workers = BlockCompressor.newWorkers(settings);
+        try {
+            var segments = new ByteArrayOutputStream();
+            var data = randomData(20 * BLOCK_SIZE + 9, 6);
+            for (int position = 0; position < data.length; position += 6 * BLOCK_SIZE) {
+                var segment = new ByteArrayOutputStream();
+                try ( var compressor = new BlockCompressor(Channels.newChannel(segment), settings, workers)) {
+                    compressor.write(ByteBuffer.wrap(data, position, Math.min(6 * BLOCK_SIZE,
+                            data.length - position)));
+                }
+                segments.write(segment.toByteArray());
+            }
+            //The workers outlive every compressor
+            assertFalse(workers.isShutdown());
+            assertArrayEquals(data, decompress(segments.toByteArray()));
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTruncatedStream() throws IOException {
+        var compressed = compress(randomData(3 * BLOCK_SIZE, 7), settings(Codec.ZSTD));
+        try {
+            decompress(Arrays.copyOf(compressed, compressed.length - 10));
+            fail("A truncated stream was read");
+        } catch (IOException ex) {
+            //Expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotACompressedStream() throws IOException {
+        decompress(randomData(BLOCK_SIZE, 8));
+    }
+}
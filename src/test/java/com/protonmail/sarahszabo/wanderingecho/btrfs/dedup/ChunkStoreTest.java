@@ -0,0 +1,181 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.dedup;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.Codec;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.compression.CompressionSettings;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that streams written into a {@link ChunkStore} by a
+ * {@link ChunkWriter} read back byte for byte through a {@link ChunkReader},
+ * that chunks the store already holds aren't stored again, and that damage is
+ * caught.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class ChunkStoreTest {
+
+    private static final DedupSettings SETTINGS = new DedupSettings(true, 4 << 10, 1, 16);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path target;
+    private ChunkStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        this.target = this.folder.newFolder("Backups").toPath();
+        this.store = ChunkStore.of(this.target, SETTINGS);
+        this.store.acquire();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.store.release();
+    }
+
+    /**
+     * Gets random data that is the same on every run.
+     */
+    private static byte[] randomData(int length, long seed) {
+        var data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Writes a stream into the test store, in uneven pieces.
+     *
+     * @return The writer, closed
+     */
+    private ChunkWriter write(byte[] data, String name, CompressionSettings compression) throws IOException {
+        var writer = new ChunkWriter(this.store, this.target.resolve(name), compression);
+        for (int position = 0; position < data.length; position += 10000) {
+            writer.write(ByteBuffer.wrap(data, position, Math.min(10000, data.length - position)));
+        }
+        writer.close();
+        assertEquals(data.length, writer.getStreamBytes());
+        return writer;
+    }
+
+    /**
+     * Reads a stream back from the test store.
+     */
+    private byte[] read(String name, long streamBytes) throws IOException {
+        var stream = new ByteArrayOutputStream();
+        try ( var reader = new ChunkReader(this.target, this.target.resolve(name), streamBytes)) {
+            var buffer = ByteBuffer.allocate(7777);
+            while (reader.read(buffer.clear()) >= 0) {
+                stream.write(buffer.array(), 0, buffer.position());
+            }
+        }
+        return stream.toByteArray();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        var data = randomData(1 << 20, 1);
+        var writer = write(data, "first", null);
+        assertEquals(writer.getChunks(), writer.getNewChunks());
+        assertEquals(data.length, writer.getNewBytes());
+        assertArrayEquals(data, read("first", data.length));
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws IOException {
+        //Compresses somewhat: random bytes from a small alphabet
+        var data = new byte[1 << 20];
+        var random = new Random(2);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(8));
+        }
+        var writer = write(data, "first", new CompressionSettings(Codec.ZSTD, null, 4 << 10, 2));
+        assertTrue(writer.getStoredBytes() + " Bytes stored", writer.getStoredBytes() < data.length);
+        assertArrayEquals(data, read("first", data.length));
+    }
+
+    @Test
+    public void testSameStreamIsntStoredAgain() throws IOException {
+        var data = randomData(1 << 20, 3);
+        write(data, "first", null);
+        var second = write(data, "second", null);
+        assertEquals(0, second.getNewChunks());
+        assertEquals(0, second.getNewBytes());
+        assertArrayEquals(data, read("first", data.length));
+        assertArrayEquals(data, read("second", data.length));
+    }
+
+    @Test
+    public void testEditedStreamSharesMostChunks() throws IOException {
+        var data = randomData(1 << 20, 4);
+        write(data, "first", null);
+        //A few bytes inserted in the middle only change the chunks around them
+        var edited = new ByteArrayOutputStream();
+        edited.write(data, 0, data.length / 2);
+        edited.write(randomData(100, 5));
+        edited.write(data, data.length / 2, data.length - data.length / 2);
+        var second = write(edited.toByteArray(), "second", null);
+        assertTrue(second.getNewBytes() + " new Bytes", second.getNewBytes() < data.length / 10);
+        assertArrayEquals(edited.toByteArray(), read("second", edited.size()));
+    }
+
+    @Test
+    public void testReadAfterRelease() throws IOException {
+        var data = randomData(100000, 6);
+        write(data, "first", null);
+        //Reading doesn't need the store
+        this.store.release();
+        try {
+            assertArrayEquals(data, read("first", data.length));
+        } finally {
+            this.store.acquire();
+        }
+    }
+
+    @Test
+    public void testDamagedChunk() throws IOException {
+        var data = randomData(100000, 7);
+        write(data, "first", null);
+        var pack = ChunkStore.getFolder(this.target).resolve(ChunkStore.getPackName(1));
+        var bytes = Files.readAllBytes(pack);
+        bytes[bytes.length - 10] ^= 1;
+        Files.write(pack, bytes);
+        try {
+            read("first", data.length);
+            fail("A damaged chunk was read");
+        } catch (IOException ex) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void testStreamLengthIsChecked() throws IOException {
+        var data = randomData(100000, 8);
+        write(data, "first", null);
+        try {
+            read("first", data.length + 1);
+            fail("A stream shorter than its manifest was read");
+        } catch (IOException ex) {
+            //Expected
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.dedup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests where {@link FastCdc} cuts chunks.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class FastCdcTest {
+
+    private static final int AVERAGE_SIZE = 4096;
+
+    /**
+     * Gets random data that is the same on every run.
+     */
+    private static byte[] randomData(int length, long seed) {
+        var data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Cuts data into chunks.
+     *
+     * @return The chunk lengths, in order
+     */
+    private static List<Integer> cut(FastCdc chunker, byte[] data, int offset, int length) {
+        var lengths = new ArrayList<Integer>();
+        for (int position = 0; position < length;) {
+            int chunk = chunker.cut(data, offset + position, length - position);
+            lengths.add(chunk);
+            position += chunk;
+        }
+        return lengths;
+    }
+
+    @Test
+    public void testCutPointsAreFixed() {
+        //The chunks already stored only deduplicate against new ones if these never move
+        var data = randomData(64 * 1024, 42);
+        assertEquals(List.of(6307, 5778, 4514, 4652, 2465, 4240, 6417, 4528, 4234, 4802, 4843, 4951, 4428, 3377),
+                cut(new FastCdc(AVERAGE_SIZE), data, 0, data.length));
+    }
+
+    @Test
+    public void testShortDataIsOneChunk() {
+        var chunker = new FastCdc(AVERAGE_SIZE);
+        var data = randomData(AVERAGE_SIZE / 4, 1);
+        assertEquals(data.length, chunker.cut(data, 0, data.length));
+        assertEquals(10, chunker.cut(data, 0, 10));
+    }
+
+    @Test
+    public void testChunkSizesStayWithinBounds() {
+        var chunker = new FastCdc(AVERAGE_SIZE);
+        var data = randomData(4 << 20, 2);
+        var lengths = cut(chunker, data, 0, data.length);
+        for (int i = 0; i < lengths.size() - 1; i++) {
+            assertTrue("Chunk " + i + " is " + lengths.get(i), lengths.get(i) > AVERAGE_SIZE / 4
+                    && lengths.get(i) <= chunker.getMaximumSize());
+        }
+        double average = (double) data.length / lengths.size();
+        assertTrue("The average chunk is " + average, average > AVERAGE_SIZE / 2 && average < AVERAGE_SIZE * 2);
+    }
+
+    @Test
+    public void testUniformDataIsCutAtTheMaximum() {
+        var chunker = new FastCdc(AVERAGE_SIZE);
+        var data = new byte[64 * 1024];
+        assertEquals(List.of(16384, 16384, 16384, 16384), cut(chunker, data, 0, data.length));
+    }
+
+    @Test
+    public void testCutPointsDontDependOnTheOffset() {
+        var chunker = new FastCdc(AVERAGE_SIZE);
+        var data = randomData(256 * 1024, 3);
+        var shifted = new byte[data.length + 1000];
+        System.arraycopy(data, 0, shifted, 1000, data.length);
+        assertEquals(cut(chunker, data, 0, data.length), cut(chunker, shifted, 1000, data.length));
+    }
+
+    @Test
+    public void testCutPointsResynchronizeAfterAnInsert() {
+        var chunker = new FastCdc(AVERAGE_SIZE);
+        var data = randomData(1 << 20, 4);
+        //A few bytes inserted near the start, like a file that grew at its head
+        var edited = new byte[data.length + 7];
+        System.arraycopy(data, 0, edited, 0, 100);
+        System.arraycopy(data, 100, edited, 107, data.length - 100);
+        var chunks = chunks(chunker, data);
+        var editedChunks = chunks(chunker, edited);
+        int shared = 0;
+        for (var chunk : editedChunks) {
+            if (chunks.contains(chunk)) {
+                shared++;
+            }
+        }
+        //Only the chunks around the insert change
+        assertTrue(shared + " of " + editedChunks.size() + " chunks shared", shared >= editedChunks.size() - 3);
+    }
+
+    /**
+     * Gets the contents of the chunks of data.
+     */
+    private static HashSet<ByteBuffer> chunks(FastCdc chunker, byte[] data) {
+        var chunks = new HashSet<ByteBuffer>();
+        int position = 0;
+        for (int length : cut(chunker, data, 0, data.length)) {
+            chunks.add(ByteBuffer.wrap(Arrays.copyOfRange(data, position, position + length)));
+            position += length;
+        }
+        return chunks;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAverageSizeIsAPowerOfTwo() {
+        new FastCdc(5000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAverageSizeIsLargeEnough() {
+        new FastCdc(128);
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.remote;
+
+import com.protonmail.sarahszabo.wanderingecho.btrfs.archive.SegmentWriter;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.archive.SendArchive;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.stream.StreamPump;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32C;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests a {@link ReceiveAgent} on the loopback interface, speaking the agent
+ * protocol to it the way {@link AgentClient} does: a whole stream, a stream
+ * the client aborts and the resume of that stream.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class ReceiveAgentTest {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    /**
+     * Where the test stream is aborted. The agent loses what its pump read
+     * but didn't write yet, so it's well past a buffer of the pump.
+     */
+    private static final int ABORT_AFTER = 2 * StreamPump.DEFAULT_BUFFER_SIZE + 100;
+    private static final String SNAPSHOT = "home___2026-10-18";
+    private static final String UUID = "3e9c2b52-7a4f-4a4e-9d5c-2f6b1f0c8a11";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path backups;
+    private ReceiveAgent agent;
+    private Thread acceptor;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws IOException {
+        this.backups = this.folder.newFolder("Backups").toPath();
+        //On btrfs the agent would run btrfs receive instead
+        assumeTrue(SendArchive.isArchiveFolder(this.backups));
+        this.agent = new ReceiveAgent(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                List.of(this.backups), SEGMENT_SIZE);
+        this.acceptor = new Thread(() -> {
+            try {
+                this.agent.run();
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        this.acceptor.start();
+        this.data = new byte[3 * StreamPump.DEFAULT_BUFFER_SIZE + SEGMENT_SIZE / 3];
+        new Random(11).nextBytes(this.data);
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        if (this.agent != null) {
+            this.agent.close();
+            this.acceptor.join();
+        }
+    }
+
+    /**
+     * Connects to the test agent.
+     */
+    private SocketChannel connect() throws IOException {
+        var socket = SocketChannel.open(this.agent.getAddress());
+        AgentProtocol.configure(socket);
+        return socket;
+    }
+
+    /**
+     * Creates a request to send the test snapshot in full.
+     */
+    private AgentRequest send(boolean resume) {
+        return new AgentRequest(AgentRequest.Operation.SEND, this.backups.toString(), SNAPSHOT, UUID,
+                Paths.get("/mnt/pool/home"), null, null, null, resume);
+    }
+
+    /**
+     * Sends part of the test stream in frames, in pieces like a pump would.
+     */
+    private void write(AgentProtocol.FrameWriter frames, int from, int to) throws IOException {
+        for (int position = from; position < to; position += 10000) {
+            frames.write(ByteBuffer.wrap(this.data, position, Math.min(10000, to - position)));
+        }
+    }
+
+    /**
+     * Reads the segments of the test archive back as one stream.
+     */
+    private byte[] readArchive() throws IOException {
+        var stream = new ByteArrayOutputStream();
+        var archive = this.backups.resolve(SNAPSHOT);
+        for (int i = 0; Files.exists(archive.resolve(SegmentWriter.getSegmentName(i))); i++) {
+            stream.write(Files.readAllBytes(archive.resolve(SegmentWriter.getSegmentName(i))));
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * Sends the start of the test stream, then aborts it.
+     *
+     * @param bytes How much of the stream is sent
+     * @return How much of it the agent kept in whole segments
+     */
+    private int sendAborted(int bytes) throws IOException {
+        try ( var socket = connect()) {
+            AgentProtocol.writeMessage(socket, send(true));
+            assertEquals(AgentReply.Status.OK, AgentProtocol.readMessage(socket, AgentReply.class).getStatus());
+            var frames = new AgentProtocol.FrameWriter(socket);
+            write(frames, 0, bytes);
+            frames.finish(false);
+            assertEquals(AgentReply.Status.FAILED, AgentProtocol.readMessage(socket, AgentReply.class)
+                    .getStatus());
+        }
+        int kept = readArchive().length;
+        assertTrue(kept + " Bytes kept", kept > 0 && kept < bytes && kept % SEGMENT_SIZE == 0);
+        return kept;
+    }
+
+    @Test
+    public void testTransfer() throws IOException {
+        try ( var socket = connect()) {
+            AgentProtocol.writeMessage(socket, send(true));
+            var reply = AgentProtocol.readMessage(socket, AgentReply.class);
+            assertEquals(AgentReply.Status.OK, reply.getStatus());
+            assertEquals(0, reply.getOffset());
+            var frames = new AgentProtocol.FrameWriter(socket);
+            write(frames, 0, this.data.length);
+            frames.finish(true);
+            var stored = AgentProtocol.readMessage(socket, AgentReply.class);
+            assertEquals(AgentReply.Status.OK, stored.getStatus());
+            assertEquals(this.data.length, stored.getBytes());
+            var checksum = new CRC32C();
+            checksum.update(this.data);
+            assertEquals(Long.valueOf(checksum.getValue()), stored.getChecksum());
+        }
+        assertTrue(Files.exists(this.backups.resolve(SNAPSHOT).resolve(SendArchive.MANIFEST_FILE_NAME)));
+        assertArrayEquals(this.data, readArchive());
+        //The agent now lists the snapshot and won't take it again
+        assertEquals(Set.of(UUID), AgentClient.list(new RemoteTarget("localhost", this.backups.toString(), null,
+                this.agent.getAddress().getPort())));
+        try ( var socket = connect()) {
+            AgentProtocol.writeMessage(socket, send(true));
+            assertEquals(AgentReply.Status.HELD, AgentProtocol.readMessage(socket, AgentReply.class).getStatus());
+        }
+    }
+
+    @Test
+    public void testAbortKeepsFinishedSegments() throws IOException {
+        int kept = sendAborted(ABORT_AFTER);
+        var archive = this.backups.resolve(SNAPSHOT);
+        assertFalse(Files.exists(archive.resolve(SendArchive.MANIFEST_FILE_NAME)));
+        assertTrue(Files.exists(archive.resolve(SendArchive.CHECKPOINT_FILE_NAME)));
+        assertArrayEquals(Arrays.copyOf(this.data, kept), readArchive());
+    }
+
+    @Test
+    public void testResumeAfterAbort() throws IOException {
+        int kept = sendAborted(ABORT_AFTER);
+        var finished = readArchive();
+        try ( var socket = connect()) {
+            AgentProtocol.writeMessage(socket, send(true));
+            var reply = AgentProtocol.readMessage(socket, AgentReply.class);
+            assertEquals(AgentReply.Status.OK, reply.getStatus());
+            assertEquals(kept, reply.getOffset());
+            assertEquals(kept / SEGMENT_SIZE, reply.getChecksums().size());
+            assertEquals(SEGMENT_SIZE, reply.getSegmentSize());
+            var checksum = new CRC32C();
+            checksum.update(this.data, 0, SEGMENT_SIZE);
+            assertEquals(Long.valueOf(checksum.getValue()), reply.getChecksums().get(0));
+            //Only what comes after the agent's segments goes on the wire
+            var frames = new AgentProtocol.FrameWriter(socket);
+            write(frames, (int) reply.getOffset(), this.data.length);
+            frames.finish(true);
+            var stored = AgentProtocol.readMessage(socket, AgentReply.class);
+            assertEquals(AgentReply.Status.OK, stored.getStatus());
+            assertEquals(this.data.length, stored.getBytes());
+        }
+        var archive = readArchive();
+        assertArrayEquals(finished, Arrays.copyOf(archive, kept));
+        assertArrayEquals(this.data, archive);
+    }
+
+    @Test
+    public void testNoResumeStartsOver() throws IOException {
+        sendAborted(ABORT_AFTER);
+        try ( var socket = connect()) {
+            AgentProtocol.writeMessage(socket, send(false));
+            var reply = AgentProtocol.readMessage(socket, AgentReply.class);
+            assertEquals(0, reply.getOffset());
+            var frames = new AgentProtocol.FrameWriter(socket);
+            write(frames, 0, this.data.length);
+            frames.finish(true);
+            assertEquals(AgentReply.Status.OK, AgentProtocol.readMessage(socket, AgentReply.class).getStatus());
+        }
+        assertArrayEquals(this.data, readArchive());
+    }
+
+    @Test
+    public void testRefusesOtherFolders() throws IOException {
+        try ( var socket = connect()) {
+            AgentProtocol.writeMessage(socket, AgentRequest.list(this.folder.getRoot().toString()));
+            assertEquals(AgentReply.Status.REFUSED, AgentProtocol.readMessage(socket, AgentReply.class)
+                    .getStatus());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSnapshotIsAFileName() {
+        new AgentRequest(AgentRequest.Operation.SEND, this.backups.toString(), "../" + SNAPSHOT, UUID, null, null,
+                null, null, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParentIsAFileName() {
+        new AgentRequest(AgentRequest.Operation.SEND, this.backups.toString(), SNAPSHOT, UUID, null, "../other",
+                null, null, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParentIsNotHidden() {
+        new AgentRequest(AgentRequest.Operation.SEND, this.backups.toString(), SNAPSHOT, UUID, null, ".other",
+                null, null, true);
+    }
+}
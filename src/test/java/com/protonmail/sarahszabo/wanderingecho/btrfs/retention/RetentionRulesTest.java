@@ -0,0 +1,176 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.retention;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.protonmail.sarahszabo.wanderingecho.btrfs.subvolume.Snapshot;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests which snapshots {@link RetentionRules} keeps, mostly at the edges of
+ * its hours, days, weeks and months.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class RetentionRulesTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().findAndRegisterModules();
+    private static final Path SUBVOLUME = Paths.get("/mnt/pool/home");
+    private static final Path SNAPSHOTS = Paths.get("/mnt/pool/Snapshots");
+
+    /**
+     * Creates a stored snapshot of the test subvolume, the way the catalog
+     * reads one back.
+     *
+     * @param creationDate When it was created
+     * @return The snapshot
+     */
+    private static Snapshot snapshot(String creationDate) throws IOException {
+        var node = MAPPER.createObjectNode();
+        node.put("BTRFSPhysicalLocationItem", "Snapshot");
+        node.put("of", SUBVOLUME.toUri().toString());
+        node.put("location", SNAPSHOTS.resolve("home___" + creationDate).toUri().toString());
+        node.put("name", "home");
+        node.put("creationDate", creationDate);
+        var parent = node.putObject("parentSubvolume");
+        parent.put("BTRFSPhysicalLocationItem", "Subvolume");
+        parent.put("location", SUBVOLUME.toUri().toString());
+        parent.put("name", "home");
+        return MAPPER.treeToValue(node, Snapshot.class);
+    }
+
+    /**
+     * Creates snapshots of the test subvolume, given newest first like
+     * {@link RetentionRules#select(List, ZoneId)} takes them.
+     */
+    private static List<Snapshot> snapshots(String... creationDates) throws IOException {
+        var snapshots = new ArrayList<Snapshot>(creationDates.length);
+        for (var creationDate : creationDates) {
+            snapshots.add(snapshot(creationDate));
+        }
+        return snapshots;
+    }
+
+    /**
+     * Gets the creation dates of the kept snapshots, to compare them with the
+     * dates they were created from.
+     */
+    private static Set<String> kept(Set<Path> locations) {
+        return locations.stream().map(location -> location.getFileName().toString().substring("home___".length()))
+                .collect(Collectors.toSet());
+    }
+
+    @Test
+    public void testKeepLastAlone() throws IOException {
+        var rules = new RetentionRules(2, 0, 0, 0, 0);
+        var snapshots = snapshots("2026-10-18T10:00:00Z", "2026-10-18T09:00:00Z", "2026-10-18T08:00:00Z");
+        assertEquals(Set.of("2026-10-18T10:00:00Z", "2026-10-18T09:00:00Z"),
+                kept(rules.select(snapshots, ZoneOffset.UTC)));
+    }
+
+    @Test
+    public void testHourlyKeepsNewestOfEachHour() throws IOException {
+        var rules = new RetentionRules(1, 2, 0, 0, 0);
+        var snapshots = snapshots("2026-10-18T10:59:00Z", "2026-10-18T10:00:00Z", "2026-10-18T09:59:59Z",
+                "2026-10-18T09:00:00Z", "2026-10-18T08:30:00Z");
+        assertEquals(Set.of("2026-10-18T10:59:00Z", "2026-10-18T09:59:59Z"),
+                kept(rules.select(snapshots, ZoneOffset.UTC)));
+    }
+
+    @Test
+    public void testHoursWithoutSnapshotsDontCount() throws IOException {
+        var rules = new RetentionRules(1, 2, 0, 0, 0);
+        var snapshots = snapshots("2026-10-18T10:00:00Z", "2026-10-18T07:00:00Z", "2026-10-18T03:00:00Z");
+        assertEquals(Set.of("2026-10-18T10:00:00Z", "2026-10-18T07:00:00Z"),
+                kept(rules.select(snapshots, ZoneOffset.UTC)));
+    }
+
+    @Test
+    public void testDaysAreCountedInTheZone() throws IOException {
+        var rules = new RetentionRules(1, 0, 2, 0, 0);
+        //01:30 and 02:30 on the 18th in Berlin, but two days in UTC
+        var snapshots = snapshots("2026-10-18T00:30:00Z", "2026-10-17T23:30:00Z", "2026-10-16T12:00:00Z");
+        assertEquals(Set.of("2026-10-18T00:30:00Z", "2026-10-17T23:30:00Z"),
+                kept(rules.select(snapshots, ZoneOffset.UTC)));
+        assertEquals(Set.of("2026-10-18T00:30:00Z", "2026-10-16T12:00:00Z"),
+                kept(rules.select(snapshots, ZoneId.of("Europe/Berlin"))));
+    }
+
+    @Test
+    public void testWeeksStartOnMonday() throws IOException {
+        var rules = new RetentionRules(1, 0, 0, 2, 0);
+        var snapshots = snapshots("2026-10-19T00:00:00Z", "2026-10-18T23:59:00Z", "2026-10-12T00:00:00Z",
+                "2026-10-11T12:00:00Z");
+        assertEquals(Set.of("2026-10-19T00:00:00Z", "2026-10-18T23:59:00Z"),
+                kept(rules.select(snapshots, ZoneOffset.UTC)));
+    }
+
+    @Test
+    public void testWeekSpanningNewYearIsOneWeek() throws IOException {
+        var rules = new RetentionRules(1, 0, 0, 2, 0);
+        //Thursday and Sunday of week 53 of 2026, then week 52
+        var snapshots = snapshots("2027-01-03T12:00:00Z", "2026-12-31T12:00:00Z", "2026-12-27T12:00:00Z");
+        assertEquals(Set.of("2027-01-03T12:00:00Z", "2026-12-27T12:00:00Z"),
+                kept(rules.select(snapshots, ZoneOffset.UTC)));
+    }
+
+    @Test
+    public void testMonthly() throws IOException {
+        var rules = new RetentionRules(1, 0, 0, 0, 2);
+        var snapshots = snapshots("2026-11-01T00:00:00Z", "2026-10-31T23:59:00Z", "2026-10-01T00:00:00Z",
+                "2026-09-30T23:59:00Z");
+        assertEquals(Set.of("2026-11-01T00:00:00Z", "2026-10-31T23:59:00Z"),
+                kept(rules.select(snapshots, ZoneOffset.UTC)));
+    }
+
+    @Test
+    public void testKeptByAnyRule() throws IOException {
+        var rules = new RetentionRules(1, 1, 2, 0, 3);
+        var snapshots = snapshots("2026-10-18T10:30:00Z", "2026-10-18T10:00:00Z", "2026-10-17T08:00:00Z",
+                "2026-10-17T07:00:00Z", "2026-09-15T00:00:00Z", "2026-08-20T00:00:00Z", "2026-08-10T00:00:00Z");
+        assertEquals(Set.of("2026-10-18T10:30:00Z", "2026-10-17T08:00:00Z", "2026-09-15T00:00:00Z",
+                "2026-08-20T00:00:00Z"), kept(rules.select(snapshots, ZoneOffset.UTC)));
+    }
+
+    @Test
+    public void testNoSnapshots() {
+        assertEquals(Set.of(), new RetentionRules().select(List.of(), ZoneOffset.UTC));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNewestIsAlwaysKept() {
+        new RetentionRules(0, 24, 7, 4, 12);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeCount() {
+        new RetentionRules(1, -1, 7, 4, 12);
+    }
+
+    @Test
+    public void testDefaults() throws IOException {
+        var newest = ZonedDateTime.parse("2026-10-18T10:00:00Z");
+        var creationDates = new ArrayList<String>();
+        //A snapshot every hour for 40 days
+        for (int hour = 0; hour < 40 * 24; hour++) {
+            creationDates.add(newest.minusHours(hour).toString());
+        }
+        var kept = new RetentionRules().select(snapshots(creationDates.toArray(new String[0])), ZoneOffset.UTC);
+        //24 hours, the 5 days before them, the 3 Sundays before those and the end of September
+        assertEquals(24 + 5 + 3 + 1, kept.size());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.schedule;
+
+import java.time.ZonedDateTime;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests when a {@link CronSchedule} runs next: steps, the day of month or
+ * weekday rule and the days the clock changes.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class CronScheduleTest {
+
+    /**
+     * Gets the next run of an expression after a time.
+     */
+    private static ZonedDateTime next(String expression, String after) {
+        return CronSchedule.parse(expression).next(ZonedDateTime.parse(after));
+    }
+
+    @Test
+    public void testNextMinuteIsExclusive() {
+        assertEquals(ZonedDateTime.parse("2026-10-18T10:08Z"), next("* * * * *", "2026-10-18T10:07:30Z"));
+        assertEquals(ZonedDateTime.parse("2026-10-18T10:08Z"), next("* * * * *", "2026-10-18T10:07Z"));
+    }
+
+    @Test
+    public void testStepOverEveryValue() {
+        assertEquals(ZonedDateTime.parse("2026-10-18T10:15Z"), next("*/15 * * * *", "2026-10-18T10:07Z"));
+        assertEquals(ZonedDateTime.parse("2026-10-18T11:00Z"), next("*/15 * * * *", "2026-10-18T10:45Z"));
+        assertEquals(ZonedDateTime.parse("2026-10-18T12:00Z"), next("0 */6 * * *", "2026-10-18T07:00Z"));
+    }
+
+    @Test
+    public void testStepFromValue() {
+        //5, 25 and 45
+        assertEquals(ZonedDateTime.parse("2026-10-18T10:45Z"), next("5/20 * * * *", "2026-10-18T10:26Z"));
+        assertEquals(ZonedDateTime.parse("2026-10-18T11:05Z"), next("5/20 * * * *", "2026-10-18T10:46Z"));
+    }
+
+    @Test
+    public void testStepOverRange() {
+        //10, 15 and 20
+        assertEquals(ZonedDateTime.parse("2026-10-18T10:20Z"), next("10-20/5 * * * *", "2026-10-18T10:15Z"));
+        assertEquals(ZonedDateTime.parse("2026-10-18T11:10Z"), next("10-20/5 * * * *", "2026-10-18T10:20Z"));
+    }
+
+    @Test
+    public void testDayOfMonthOrWeekday() {
+        //Sunday the 18th: Friday the 23rd comes before the 13th of November
+        assertEquals(ZonedDateTime.parse("2026-10-23T00:00Z"), next("0 0 13 * 5", "2026-10-18T12:00Z"));
+        //The 20th comes before Friday
+        assertEquals(ZonedDateTime.parse("2026-10-20T00:00Z"), next("0 0 20 * 5", "2026-10-18T12:00Z"));
+    }
+
+    @Test
+    public void testDayOfMonthAndWeekdayWhenOneIsAStar() {
+        assertEquals(ZonedDateTime.parse("2026-11-13T00:00Z"), next("0 0 13 * *", "2026-10-18T12:00Z"));
+        assertEquals(ZonedDateTime.parse("2026-10-23T00:00Z"), next("0 0 * * 5", "2026-10-18T12:00Z"));
+        //A stepped star still counts as a star, the 1st, 11th, 21st or 31st has to be a Monday
+        assertEquals(ZonedDateTime.parse("2026-12-21T00:00Z"), next("0 0 */10 * 1", "2026-10-18T12:00Z"));
+    }
+
+    @Test
+    public void testSundayIsZeroAndSeven() {
+        assertEquals(ZonedDateTime.parse("2026-10-25T00:00Z"), next("0 0 * * 0", "2026-10-19T00:00Z"));
+        assertEquals(ZonedDateTime.parse("2026-10-25T00:00Z"), next("0 0 * * 7", "2026-10-19T00:00Z"));
+    }
+
+    @Test
+    public void testShortcuts() {
+        assertEquals(ZonedDateTime.parse("2026-10-25T00:00Z"), next("@weekly", "2026-10-18T00:00Z"));
+        assertEquals(ZonedDateTime.parse("2026-11-01T00:00Z"), next("@monthly", "2026-10-18T00:00Z"));
+        assertEquals(ZonedDateTime.parse("2027-01-01T00:00Z"), next("@yearly", "2026-10-18T00:00Z"));
+    }
+
+    @Test
+    public void testLeapDay() {
+        assertEquals(ZonedDateTime.parse("2028-02-29T00:00Z"), next("0 0 29 2 *", "2026-10-18T00:00Z"));
+    }
+
+    @Test
+    public void testRunInSkippedHourRunsAnHourLate() {
+        //Berlin goes from 02:00 to 03:00 on the 29th of March 2026
+        assertEquals(ZonedDateTime.parse("2026-03-29T03:30+02:00[Europe/Berlin]"),
+                next("30 2 * * *", "2026-03-29T01:00+01:00[Europe/Berlin]"));
+        assertEquals(ZonedDateTime.parse("2026-03-30T02:30+02:00[Europe/Berlin]"),
+                next("30 2 * * *", "2026-03-29T03:30+02:00[Europe/Berlin]"));
+    }
+
+    @Test
+    public void testHourlyAcrossSkippedHour() {
+        assertEquals(ZonedDateTime.parse("2026-03-29T03:00+02:00[Europe/Berlin]"),
+                next("@hourly", "2026-03-29T01:00+01:00[Europe/Berlin]"));
+    }
+
+    @Test
+    public void testRunInRepeatedHourRunsOnce() {
+        //Berlin goes from 03:00 back to 02:00 on the 25th of October 2026
+        var first = next("30 2 * * *", "2026-10-25T01:00+02:00[Europe/Berlin]");
+        assertEquals(ZonedDateTime.parse("2026-10-25T02:30+02:00[Europe/Berlin]"), first);
+        assertEquals(ZonedDateTime.parse("2026-10-26T02:30+01:00[Europe/Berlin]"),
+                CronSchedule.parse("30 2 * * *").next(first));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNeverMatches() {
+        CronSchedule.parse("0 0 31 2 *");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOutOfRange() {
+        CronSchedule.parse("60 * * * *");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongFieldCount() {
+        CronSchedule.parse("0 0 * *");
+    }
+}
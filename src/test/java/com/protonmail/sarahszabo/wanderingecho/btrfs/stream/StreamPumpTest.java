@@ -0,0 +1,208 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.stream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests that a {@link StreamPump} moves every byte in order, through short
+ * writes and buffer boundaries, and stays usable after either side failed.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class StreamPumpTest {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Gets random data that is the same on every run.
+     */
+    private static byte[] randomData(int length, long seed) {
+        var data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Gets a channel that reads data.
+     */
+    private static ReadableByteChannel source(byte[] data) {
+        return Channels.newChannel(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * A sink that takes at most a few bytes per write, like a pipe that is
+     * nearly full.
+     */
+    private static class ShortWriteChannel implements WritableByteChannel {
+
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private final int maximum;
+
+        ShortWriteChannel(int maximum) {
+            this.maximum = maximum;
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            int length = Math.min(source.remaining(), this.maximum);
+            var bytes = new byte[length];
+            source.get(bytes);
+            this.written.write(bytes, 0, length);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * A source that fails after some bytes, or never ends if it doesn't fail.
+     */
+    private static class BrokenSource implements ReadableByteChannel {
+
+        private final long failAfter;
+        private long read;
+
+        BrokenSource(long failAfter) {
+            this.failAfter = failAfter;
+        }
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException {
+            if (this.read >= this.failAfter) {
+                throw new IOException("The sender died");
+            }
+            int length = (int) Math.min(destination.remaining(), this.failAfter - this.read);
+            destination.position(destination.position() + length);
+            this.read += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void testMovesEveryByte() throws IOException {
+        //Not a multiple of the buffer size, the last buffer is partly filled
+        var data = randomData(25 * BUFFER_SIZE + 123, 1);
+        var sink = new ByteArrayOutputStream();
+        var pump = new StreamPump(BUFFER_SIZE, 3);
+        assertEquals(data.length, pump.pump(source(data), Channels.newChannel(sink)));
+        assertEquals(data.length, pump.getBytesMoved());
+        assertArrayEquals(data, sink.toByteArray());
+    }
+
+    @Test
+    public void testShortWrites() throws IOException {
+        var data = randomData(10 * BUFFER_SIZE + 7, 2);
+        var sink = new ShortWriteChannel(1000);
+        assertEquals(data.length, new StreamPump(BUFFER_SIZE, 2).pump(source(data), sink));
+        assertArrayEquals(data, sink.written.toByteArray());
+    }
+
+    @Test
+    public void testEmptySource() throws IOException {
+        var sink = new ByteArrayOutputStream();
+        assertEquals(0, new StreamPump(BUFFER_SIZE, 2).pump(source(new byte[0]), Channels.newChannel(sink)));
+        assertEquals(0, sink.size());
+    }
+
+    @Test
+    public void testReuse() throws IOException {
+        var pump = new StreamPump(BUFFER_SIZE, 3);
+        for (int i = 0; i < 3; i++) {
+            var data = randomData(5 * BUFFER_SIZE + i * 1000, 10 + i);
+            var sink = new ByteArrayOutputStream();
+            assertEquals(data.length, pump.pump(source(data), Channels.newChannel(sink)));
+            assertArrayEquals(data, sink.toByteArray());
+        }
+    }
+
+    @Test
+    public void testSourceFailureIsThrown() throws IOException {
+        var pump = new StreamPump(BUFFER_SIZE, 3);
+        try {
+            pump.pump(new BrokenSource(3 * BUFFER_SIZE + 10), Channels.newChannel(new ByteArrayOutputStream()));
+            fail("The failure of the source was lost");
+        } catch (IOException ex) {
+            assertEquals("The sender died", ex.getMessage());
+        }
+        //What the reader filled before it failed still reached the sink
+        assertEquals(3 * BUFFER_SIZE, pump.getBytesMoved());
+        assertTrue(pump.isReusable());
+        var data = randomData(4 * BUFFER_SIZE, 3);
+        var sink = new ByteArrayOutputStream();
+        assertEquals(data.length, pump.pump(source(data), Channels.newChannel(sink)));
+        assertArrayEquals(data, sink.toByteArray());
+    }
+
+    @Test
+    public void testSinkFailureStopsTheReader() throws IOException {
+        var pump = new StreamPump(BUFFER_SIZE, 3);
+        var sink = new WritableByteChannel() {
+            private int writes;
+
+            @Override
+            public int write(ByteBuffer source) throws IOException {
+                if (++this.writes > 2) {
+                    throw new IOException("The receiver died");
+                }
+                int length = source.remaining();
+                source.position(source.limit());
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        try {
+            //A source that never ends, the reader waits for an empty buffer when the sink fails
+            pump.pump(new BrokenSource(Long.MAX_VALUE), sink);
+            fail("The failure of the sink was lost");
+        } catch (IOException ex) {
+            assertEquals("The receiver died", ex.getMessage());
+        }
+        assertEquals(2 * BUFFER_SIZE, pump.getBytesMoved());
+        assertTrue(pump.isReusable());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNeedsTwoBuffers() {
+        new StreamPump(BUFFER_SIZE, 1);
+    }
+}
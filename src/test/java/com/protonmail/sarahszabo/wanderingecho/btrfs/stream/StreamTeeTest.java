@@ -0,0 +1,240 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.stream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests that a {@link StreamTee} gives every sink the whole stream, and that a
+ * sink that fails or falls behind doesn't stop the others.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class StreamTeeTest {
+
+    private static final int BUFFER_SIZE = 1 << 10;
+    private static final int BUFFER_COUNT = 4;
+
+    /**
+     * Gets random data that is the same on every run.
+     */
+    private static byte[] randomData(int length, long seed) {
+        var data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Gets a channel that reads data.
+     */
+    private static ReadableByteChannel source(byte[] data) {
+        return Channels.newChannel(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Creates a tee with a small pool.
+     */
+    private static StreamTee tee(FanOutSettings.SlowTargetPolicy policy) {
+        return new StreamTee(new FanOutSettings(BUFFER_SIZE, BUFFER_COUNT, policy, 1L));
+    }
+
+    /**
+     * A sink that keeps what it got, taking at most some bytes per write and
+     * sleeping before each, like a slow disk.
+     */
+    private static class SlowChannel implements WritableByteChannel {
+
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private final int maximum;
+        private final long sleepMillis;
+        private volatile boolean open = true;
+
+        SlowChannel(int maximum, long sleepMillis) {
+            this.maximum = maximum;
+            this.sleepMillis = sleepMillis;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            try {
+                Thread.sleep(this.sleepMillis);
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+            int length = Math.min(source.remaining(), this.maximum);
+            var bytes = new byte[length];
+            source.get(bytes);
+            this.written.write(bytes, 0, length);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.open;
+        }
+
+        @Override
+        public void close() {
+            this.open = false;
+        }
+    }
+
+    /**
+     * A sink whose first write blocks until it's closed, like a target that
+     * stopped answering.
+     */
+    private static class StuckChannel implements WritableByteChannel {
+
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            try {
+                this.closed.await();
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+            throw new AsynchronousCloseException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.closed.getCount() > 0;
+        }
+
+        @Override
+        public void close() {
+            this.closed.countDown();
+        }
+    }
+
+    @Test
+    public void testEverySinkGetsTheStream() throws IOException {
+        //Many times the pool, so buffers are reused while sinks go at different speeds
+        var data = randomData(40 * BUFFER_SIZE + 17, 1);
+        var first = new ByteArrayOutputStream();
+        var second = new SlowChannel(100, 0);
+        var third = new SlowChannel(BUFFER_SIZE, 1);
+        var outcomes = tee(FanOutSettings.SlowTargetPolicy.WAIT).pump(source(data), List.of(Channels.newChannel(
+                first), second, third));
+        for (var outcome : outcomes) {
+            assertTrue(outcome.toString(), outcome.isComplete());
+            assertEquals(data.length, outcome.getBytes());
+        }
+        assertArrayEquals(data, first.toByteArray());
+        assertArrayEquals(data, second.written.toByteArray());
+        assertArrayEquals(data, third.written.toByteArray());
+        //Every sink is closed
+        assertFalse(second.isOpen());
+    }
+
+    @Test
+    public void testFailedSinkDoesntStopTheOthers() throws IOException {
+        var data = randomData(20 * BUFFER_SIZE, 2);
+        var healthy = new ByteArrayOutputStream();
+        var failing = new WritableByteChannel() {
+            private int writes;
+
+            @Override
+            public int write(ByteBuffer source) throws IOException {
+                if (++this.writes > 3) {
+                    throw new IOException("The disk is full");
+                }
+                int length = source.remaining();
+                source.position(source.limit());
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        var outcomes = tee(FanOutSettings.SlowTargetPolicy.WAIT).pump(source(data), List.of(failing,
+                Channels.newChannel(healthy)));
+        assertFalse(outcomes.get(0).isComplete());
+        assertEquals("The disk is full", outcomes.get(0).getFailure().getMessage());
+        assertEquals(3 * BUFFER_SIZE, outcomes.get(0).getBytes());
+        assertTrue(outcomes.get(1).isComplete());
+        assertArrayEquals(data, healthy.toByteArray());
+    }
+
+    @Test
+    public void testStuckSinkIsDetached() throws IOException {
+        var data = randomData(20 * BUFFER_SIZE, 3);
+        var healthy = new ByteArrayOutputStream();
+        var stuck = new StuckChannel();
+        var outcomes = tee(FanOutSettings.SlowTargetPolicy.DETACH).pump(source(data), List.of(stuck,
+                Channels.newChannel(healthy)));
+        assertTrue(outcomes.get(0).isDetached());
+        assertFalse(stuck.isOpen());
+        assertTrue(outcomes.get(1).isComplete());
+        assertArrayEquals(data, healthy.toByteArray());
+    }
+
+    @Test
+    public void testLastSinkIsNeverDetached() throws IOException {
+        var data = randomData(10 * BUFFER_SIZE, 4);
+        var slow = new SlowChannel(BUFFER_SIZE, 150);
+        var outcomes = tee(FanOutSettings.SlowTargetPolicy.DETACH).pump(source(data), List.of(slow));
+        assertTrue(outcomes.get(0).isComplete());
+        assertArrayEquals(data, slow.written.toByteArray());
+    }
+
+    @Test
+    public void testSourceFailureClosesEverySink() {
+        var sink = new SlowChannel(BUFFER_SIZE, 0);
+        var source = new ReadableByteChannel() {
+            private int reads;
+
+            @Override
+            public int read(ByteBuffer destination) throws IOException {
+                if (++this.reads > 5) {
+                    throw new IOException("The sender died");
+                }
+                int length = destination.remaining();
+                destination.position(destination.limit());
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        try {
+            tee(FanOutSettings.SlowTargetPolicy.WAIT).pump(source, List.of(sink));
+            fail("The failure of the source was lost");
+        } catch (IOException ex) {
+            assertEquals("The sender died", ex.getMessage());
+        }
+        assertFalse(sink.isOpen());
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.protonmail.sarahszabo.wanderingecho.btrfs.throttle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that a {@link TokenBucket} holds takers to its rate, in small pieces
+ * and large ones, and that changing the rate or pausing reaches takers that
+ * are already waiting. The bounds are loose, the tests time real sleeps.
+ *
+ * @author Sarah Szabo <SarahSzabo@Protonmail.com>
+ */
+public class TokenBucketTest {
+
+    private static final long RATE = 1 << 20;
+
+    /**
+     * Takes tokens for some bytes in pieces.
+     *
+     * @return How long it took in milliseconds
+     */
+    private static long timeAcquire(TokenBucket bucket, long bytes, long piece) throws InterruptedIOException {
+        long start = System.nanoTime();
+        for (long taken = 0; taken < bytes; taken += piece) {
+            bucket.acquire(Math.min(piece, bytes - taken));
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Starts a thread that takes tokens for some bytes, keeping what it threw.
+     */
+    private static Thread startAcquire(TokenBucket bucket, long bytes, AtomicReference<IOException> failure) {
+        var thread = new Thread(() -> {
+            try {
+                bucket.acquire(bytes);
+            } catch (IOException ex) {
+                failure.set(ex);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void testUnlimited() throws InterruptedIOException {
+        var bucket = new TokenBucket("Test", 0);
+        assertTrue(timeAcquire(bucket, 1L << 40, 1L << 30) < 1000);
+        assertEquals(1L << 40, bucket.getBytesAcquired());
+    }
+
+    @Test
+    public void testSmallPiecesAreHeldToTheRate() throws InterruptedIOException {
+        var bucket = new TokenBucket("Test", RATE);
+        //Half a second worth, the bucket starts empty
+        long millis = timeAcquire(bucket, RATE / 2, 10000);
+        assertTrue(millis + " ms", millis >= 450 && millis < 2000);
+        assertEquals(RATE / 2, bucket.getBytesAcquired());
+    }
+
+    @Test
+    public void testLargeTakeIsPaced() throws InterruptedIOException {
+        var bucket = new TokenBucket("Test", RATE);
+        //Far more than the burst in one go, the taker sleeps off the debt
+        long millis = timeAcquire(bucket, RATE / 2, RATE / 2);
+        assertTrue(millis + " ms", millis >= 450 && millis < 2000);
+        //The debt was slept off, the next taker barely waits
+        millis = timeAcquire(bucket, 1, 1);
+        assertTrue(millis + " ms", millis < 1000);
+    }
+
+    @Test
+    public void testRateChangeReachesWaitingTaker() throws InterruptedException {
+        var bucket = new TokenBucket("Test", 1000);
+        var failure = new AtomicReference<IOException>();
+        //At this rate the taker would sleep for 100 s
+        var taker = startAcquire(bucket, 100000, failure);
+        Thread.sleep(200);
+        assertTrue(taker.isAlive());
+        bucket.setRate(0);
+        taker.join(2000);
+        assertFalse(taker.isAlive());
+        assertEquals(null, failure.get());
+        assertEquals(100000, bucket.getBytesAcquired());
+    }
+
+    @Test
+    public void testPause() throws InterruptedException {
+        var bucket = new TokenBucket("Test", 0);
+        bucket.setPaused(true);
+        var failure = new AtomicReference<IOException>();
+        var taker = startAcquire(bucket, 1000, failure);
+        Thread.sleep(300);
+        //Paused even without a limit
+        assertTrue(taker.isAlive());
+        assertEquals(0, bucket.getBytesAcquired());
+        bucket.setPaused(false);
+        taker.join(2000);
+        assertFalse(taker.isAlive());
+        assertEquals(1000, bucket.getBytesAcquired());
+    }
+
+    @Test
+    public void testInterrupt() throws InterruptedException {
+        var bucket = new TokenBucket("Test", 1000);
+        var failure = new AtomicReference<IOException>();
+        var taker = startAcquire(bucket, 100000, failure);
+        Thread.sleep(200);
+        taker.interrupt();
+        taker.join(2000);
+        assertFalse(taker.isAlive());
+        assertTrue(String.valueOf(failure.get()), failure.get() instanceof InterruptedIOException);
+    }
+
+    @Test
+    public void testChannelRunsAtTheLowestRate() throws IOException {
+        var data = new byte[(int) RATE / 2];
+        new Random(1).nextBytes(data);
+        var sink = new ByteArrayOutputStream();
+        var slow = new TokenBucket("Slow", RATE);
+        var fast = new TokenBucket("Fast", 4 * RATE);
+        long start = System.nanoTime();
+        try ( var channel = new ThrottledChannel(Channels.newChannel(sink), List.of(fast, slow))) {
+            assertEquals(data.length, channel.write(ByteBuffer.wrap(data)));
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(millis + " ms", millis >= 450 && millis < 3000);
+        assertArrayEquals(data, sink.toByteArray());
+        assertEquals(data.length, slow.getBytesAcquired());
+        assertEquals(data.length, fast.getBytesAcquired());
+    }
+}